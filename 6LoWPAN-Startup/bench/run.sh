@@ -0,0 +1,30 @@
+#!/bin/sh
+#
+# Compile the service together with the JMH benchmarks and run them.
+#
+#   bench/run.sh                                         registration hot path suite
+#   bench/run.sh 'RegistrationBenchmarks.store' -p store=memory,embedded,mysql
+#   bench/run.sh RegistrationBenchmarks.registration -prof gc      ... with B/op (gc.alloc.rate.norm)
+#   bench/run.sh ClientBenchmarks -wi 2 -i 3 -f 1
+#
+# The arguments are those of JMH (bench/run.sh -h lists them). Results are written as JSON to
+# bench/jmh-result.json unless -rf/-rff say otherwise; any JMH result viewer compares them
+# between releases. JAVA_OPTS are passed to the forked benchmark JVMs as well.
+
+cd "$(dirname "$0")/.." || exit 1
+
+case "$1" in
+	""|-*) set -- RegistrationBenchmarks "$@" ;;
+esac
+case " $* " in
+	*" -rf "*|*" -rff "*|*" -h "*|*" -l "*) ;;
+	*) set -- "$@" -rf json -rff bench/jmh-result.json ;;
+esac
+
+OUT=bench/classes
+CP="lib/*"
+rm -rf "$OUT" && mkdir -p "$OUT"
+javac -nowarn -d "$OUT" -cp "$CP" -processor org.openjdk.jmh.generators.BenchmarkProcessor \
+	$(find src bench/src -name '*.java') || exit 1
+
+exec java ${JAVA_OPTS:--Xms512m -Xmx512m} -cp "$OUT:$CP" org.openjdk.jmh.Main "$@"
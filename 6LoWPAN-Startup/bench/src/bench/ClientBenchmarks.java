@@ -0,0 +1,275 @@
+package bench;
+
+import java.net.ServerSocket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.eclipse.paho.client.mqttv3.IMqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttCallback;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import mqtt.BrokerSite;
+import mqtt.MqttManager;
+import mqtt.PayloadCodec;
+import mqtt.PublisherPool;
+import mqtt.broker.MqttBroker;
+import mqtt.nio.NioMqttClient;
+import startup.MemoryIdStore;
+import startup.StartupManager;
+import util.Log;
+
+/**
+ * ClientBenchmarks runs the Paho client and the in-house NIO client side by side against the
+ * broker stand-in over loopback (-p client=paho,nio):
+ *
+ *  publish       a burst of 64 QoS 2 replies published through MqttManager by 16 threads at
+ *                once, as the id generation workers do
+ *  publishPool   the same burst spread over a PublisherPool of 4 connections; the members are
+ *                full MqttHandlers with file persistence and the client of mqtt.client (pass
+ *                -Dmqtt.client=nio in JAVA_OPTS for NIO), the client parameter is not used
+ *  inbound       a burst of 64 QoS 1 messages on 16 topics delivered to the client under test
+ *                and decoded in messageArrived
+ *
+ * The score is in messages per second over whole bursts. After each NIO trial the frames per
+ * write syscall are printed, which is the batching of the gathering writes.
+ *
+ * Usage: bench/run.sh ClientBenchmarks [JMH options]
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ClientBenchmarks {
+
+	private static final int BURST = 64;
+	private static final int THREADS = 16;
+	private static final int TOPICS = 16;
+
+	// Decoded payloads are written here so the JIT must compute them.
+	static volatile Object sink;
+
+	@Param({ "paho", "nio" })
+	public String client;
+
+	final String[] defaultIds = new String[BURST];
+	final byte[] payload = PayloadCodec.encodeId(123456);
+	MqttBroker broker;
+	int port;
+	String uri;
+
+	@Setup
+	public void setUp() throws Exception {
+		Log.setLevel(Log.WARN);
+		ServerSocket free = new ServerSocket(0);
+		port = free.getLocalPort();
+		free.close();
+		broker = new MqttBroker("localhost", port);
+		broker.start();
+		uri = "tcp://localhost:" + port;
+		for (int i = 0; i < BURST; i++) {
+			defaultIds[i] = "00:12:4b:00:" + Integer.toHexString(0x100000 + i);
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		broker.stop();
+	}
+
+	IMqttAsyncClient create(String kind, String clientId) throws Exception {
+		if (kind.equals("nio")) {
+			return new NioMqttClient(uri, clientId);
+		}
+		return new MqttAsyncClient(uri, clientId, new MemoryPersistence());
+	}
+
+	static IMqttAsyncClient connect(IMqttAsyncClient client) throws Exception {
+		MqttConnectOptions options = new MqttConnectOptions();
+		options.setCleanSession(true);
+		if (!(client instanceof NioMqttClient)) {
+			options.setSocketFactory(new IngressBenchmarks.NoDelaySocketFactory());
+		}
+		client.connect(options, null, null).waitForCompletion(10000);
+		return client;
+	}
+
+	static void close(IMqttAsyncClient client) throws Exception {
+		if (client instanceof NioMqttClient) {
+			NioMqttClient nio = (NioMqttClient) client;
+			System.out.println(String.format("%s: %.1f frames per write", client.getClientId(),
+					(double) nio.getFrameCount() / Math.max(1, nio.getWriteCount())));
+		}
+		client.disconnect(1000, null, null).waitForCompletion(5000);
+		client.close();
+	}
+
+	/**
+	 * Run the publish of each defaultId of the burst on the workers and wait for all of them.
+	 */
+	static CountDownLatch burst(ExecutorService workers, String[] defaultIds, final Publish publish) throws Exception {
+		final CountDownLatch done = new CountDownLatch(BURST);
+		for (int i = 0; i < BURST; i++) {
+			final String defaultId = defaultIds[i];
+			workers.execute(new Runnable() {
+				public void run() {
+					try {
+						publish.publish(defaultId);
+					} catch (Throwable e) {
+						Log.error("Publish to {} failed", defaultId, e);
+					}
+					done.countDown();
+				}
+			});
+		}
+		if (!done.await(10, TimeUnit.SECONDS)) {
+			throw new IllegalStateException("Burst not published within 10 s");
+		}
+		return done;
+	}
+
+	interface Publish {
+		void publish(String defaultId) throws Throwable;
+	}
+
+	/**
+	 * A manager on the client under test, with the workers publishing its replies.
+	 */
+	@State(Scope.Benchmark)
+	public static class Publisher {
+
+		IMqttAsyncClient client;
+		MqttManager manager;
+		ExecutorService workers;
+
+		@Setup
+		public void setUp(ClientBenchmarks bench) throws Exception {
+			client = connect(bench.create(bench.client, "publish-" + bench.client));
+			manager = new MqttManager(new StartupManager(new MemoryIdStore()), client);
+			workers = Executors.newFixedThreadPool(THREADS);
+		}
+
+		@TearDown
+		public void tearDown() throws Exception {
+			workers.shutdown();
+			close(client);
+			manager.close();
+		}
+	}
+
+	/**
+	 * A PublisherPool of 4 members, with the workers publishing through it.
+	 */
+	@State(Scope.Benchmark)
+	public static class Pool {
+
+		MqttManager manager;
+		PublisherPool pool;
+		ExecutorService workers;
+
+		@Setup
+		public void setUp(ClientBenchmarks bench) throws Exception {
+			manager = new MqttManager(new StartupManager(new MemoryIdStore()), new StubMqttClient());
+			pool = new PublisherPool(manager, BrokerSite.of("localhost", bench.port, false, null, null), "pool-bench", 4);
+			workers = Executors.newFixedThreadPool(THREADS);
+		}
+
+		@TearDown
+		public void tearDown() {
+			workers.shutdown();
+			pool.shutdown(5000);
+			manager.close();
+		}
+	}
+
+	/**
+	 * The client under test subscribed to the burst topics, and a NIO client publishing to them.
+	 */
+	@State(Scope.Benchmark)
+	public static class Inbound {
+
+		final AtomicReference<CountDownLatch> arrived = new AtomicReference<CountDownLatch>();
+		IMqttAsyncClient client;
+		IMqttAsyncClient source;
+
+		@Setup
+		public void setUp(ClientBenchmarks bench) throws Exception {
+			client = bench.create(bench.client, "inbound-" + bench.client);
+			client.setCallback(new MqttCallback() {
+				public void messageArrived(String topic, MqttMessage message) {
+					sink = PayloadCodec.decodeDefaultId(message.getPayload());
+					arrived.get().countDown();
+				}
+				public void deliveryComplete(IMqttDeliveryToken token) {
+				}
+				public void connectionLost(Throwable cause) {
+				}
+			});
+			connect(client);
+			client.subscribe("bench/inbound/+", 1).waitForCompletion(10000);
+			// The same publisher for both clients.
+			source = connect(bench.create("nio", "inbound-" + bench.client + "-source"));
+		}
+
+		@TearDown
+		public void tearDown() throws Exception {
+			close(source);
+			close(client);
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BURST)
+	public CountDownLatch publish(final Publisher publisher) throws Exception {
+		return burst(publisher.workers, defaultIds, new Publish() {
+			public void publish(String defaultId) {
+				publisher.manager.publish(defaultId, payload, false);
+			}
+		});
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BURST)
+	public CountDownLatch publishPool(final Pool pool) throws Exception {
+		return burst(pool.workers, defaultIds, new Publish() {
+			public void publish(String defaultId) throws Throwable {
+				pool.pool.publish(defaultId, "vestel/newDevice/" + defaultId, 2, payload, false);
+			}
+		});
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BURST)
+	public CountDownLatch inbound(Inbound inbound) throws Exception {
+		CountDownLatch latch = new CountDownLatch(BURST);
+		inbound.arrived.set(latch);
+		for (int i = 0; i < BURST; i++) {
+			inbound.source.publish("bench/inbound/" + (i % TOPICS), defaultIds[i].getBytes("UTF-8"), 1, false);
+		}
+		if (!latch.await(10, TimeUnit.SECONDS)) {
+			throw new IllegalStateException("Burst not delivered within 10 s");
+		}
+		return latch;
+	}
+}
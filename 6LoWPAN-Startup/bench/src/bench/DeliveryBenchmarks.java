@@ -0,0 +1,215 @@
+package bench;
+
+import java.io.File;
+import java.net.ServerSocket;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttCallback;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import mqtt.MqttManager;
+import mqtt.broker.MqttBroker;
+import startup.MemoryIdStore;
+import startup.StartupManager;
+import util.Log;
+
+/**
+ * DeliveryBenchmarks compares the delivery modes of the registrations end to end over loopback:
+ *
+ *  burst            a burst of 100 registrations, -p delivery=qos2 (QoS 2, the default) or
+ *                   -p delivery=dedup (QoS 1, mqtt.delivery=dedup)
+ *  burstDuplicated  the burst with every registration sent twice (a redelivery); both are
+ *                   answered (with flow at least one), with the same id with dedup and with two
+ *                   rows without
+ *  burstOverRing    a burst of 2048 registrations against a ring of 256 slots (mqtt.ring.size),
+ *                   or with -p pipeline=flow against stages buffering 256 (mqtt.flow.buffer):
+ *                   what does not fit must not hold back the replies, none may time out
+ *
+ * -p pipeline=ring (the default) or flow selects mqtt.pipeline for all of them. The replies go
+ * through one reply connection (mqtt.pool.size=1), as a site serving bursts is configured.
+ *
+ * The score is in registrations per second, from the first publish of a burst until its last
+ * reply. The device keeps 10 publishes in flight, the limit of the Paho client. After each trial
+ * the rows inserted per distinct registration are printed; 1.00 means exactly once allocations.
+ *
+ * Usage: bench/run.sh DeliveryBenchmarks [JMH options]
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DeliveryBenchmarks {
+
+	private static final int BURST = 100;
+	private static final int RING = 256;
+	private static final int OVER_RING = 2048;
+	private static final int INFLIGHT = 10;
+
+	@Param({ "qos2", "dedup" })
+	public String delivery;
+
+	@Param({ "ring" })
+	public String pipeline;
+
+	private final Semaphore inflight = new Semaphore(INFLIGHT);
+	private final AtomicInteger replies = new AtomicInteger();
+	private MqttBroker broker;
+	private MemoryIdStore store;
+	private File dedupFile;
+	private List<MqttManager> managers;
+	private MqttAsyncClient device;
+	private int qos;
+	private int registrations = 0;
+
+	/**
+	 * The broker stand-in, a service in the delivery mode and a device subscribed to its replies.
+	 */
+	@Setup
+	public void setUp() throws Exception {
+		Log.setLevel(Log.WARN);
+		ServerSocket free = new ServerSocket(0);
+		int port = free.getLocalPort();
+		free.close();
+		System.setProperty("mqtt.broker", "localhost");
+		System.setProperty("mqtt.port", Integer.toString(port));
+		broker = new MqttBroker("localhost", port);
+		broker.start();
+
+		System.setProperty("mqtt.delivery", delivery);
+		System.setProperty("mqtt.ring.size", Integer.toString(RING));
+		System.setProperty("mqtt.flow.buffer", Integer.toString(RING));
+		System.setProperty("mqtt.pipeline", pipeline);
+		System.setProperty("mqtt.pool.size", "1");
+		qos = delivery.equals("dedup") ? 1 : 2;
+		// A fresh dedup window, not a checkpoint left by another run.
+		dedupFile = File.createTempFile("delivery-" + delivery, ".dedup");
+		dedupFile.delete();
+		System.setProperty("mqtt.dedup.file", dedupFile.getPath());
+		store = new MemoryIdStore();
+		managers = new StartupManager(store).connect();
+
+		device = new MqttAsyncClient("tcp://localhost:" + port, "delivery-" + delivery, new MemoryPersistence());
+		device.setCallback(new MqttCallback() {
+			public void messageArrived(String topic, MqttMessage message) {
+				if (!topic.equals("vestel/newDevice/defaultId")) {
+					synchronized (replies) {
+						replies.incrementAndGet();
+						replies.notifyAll();
+					}
+				}
+			}
+			public void deliveryComplete(IMqttDeliveryToken token) {
+				inflight.release();
+			}
+			public void connectionLost(Throwable cause) {
+			}
+		});
+		MqttConnectOptions options = new MqttConnectOptions();
+		options.setCleanSession(true);
+		options.setSocketFactory(new IngressBenchmarks.NoDelaySocketFactory());
+		device.connect(options).waitForCompletion(10000);
+		device.subscribe("vestel/newDevice/+", qos).waitForCompletion(10000);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BURST)
+	public int burst() throws Exception {
+		return run(1);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BURST)
+	public int burstDuplicated() throws Exception {
+		return run(2);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(OVER_RING)
+	public int burstOverRing() throws Exception {
+		return run(OVER_RING, 1);
+	}
+
+	private int run(int copies) throws Exception {
+		return run(BURST, copies);
+	}
+
+	/**
+	 * Publish count registrations, each one copies times, and wait for all replies.
+	 */
+	private int run(int count, int copies) throws Exception {
+		// The flow pipeline answers a copy that arrives while the first one is in progress only once.
+		int expected = replies.get() + count * (pipeline.equals("flow") ? 1 : copies);
+		for (int i = 0; i < count; i++) {
+			byte[] defaultId = ("00:12:4b:00:" + Integer.toHexString(0x100000 + registrations++)).getBytes("UTF-8");
+			for (int c = 0; c < copies; c++) {
+				inflight.acquire();
+				publish(defaultId);
+			}
+		}
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+		synchronized (replies) {
+			while (replies.get() < expected) {
+				long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+				if (remaining <= 0) {
+					throw new IllegalStateException((expected - replies.get()) + " replies missing after 10 s");
+				}
+				replies.wait(remaining);
+			}
+		}
+		return replies.get();
+	}
+
+	/**
+	 * Paho reports the delivery before it frees the in-flight slot, so a publish right after
+	 * may be refused for a moment.
+	 */
+	private void publish(byte[] defaultId) throws Exception {
+		while (true) {
+			try {
+				device.publish("vestel/newDevice/defaultId", defaultId, qos, false);
+				return;
+			} catch (MqttException e) {
+				if (e.getReasonCode() != MqttException.REASON_CODE_MAX_INFLIGHT) {
+					throw e;
+				}
+				Thread.sleep(1);
+			}
+		}
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		System.out.println(String.format("%s: %.2f rows per registration", delivery, (double) store.maxId() / Math.max(1, registrations)));
+		device.disconnect().waitForCompletion(5000);
+		device.close();
+		for (MqttManager manager : managers) {
+			manager.shutdown(5000);
+			manager.close();
+		}
+		broker.stop();
+		dedupFile.delete();
+	}
+}
@@ -0,0 +1,208 @@
+package bench;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import util.Log;
+import util.RingBuffer;
+
+/**
+ * HandoffBenchmarks compares the handoff of arrived messages from the callback thread to the
+ * workers: the RingBuffer of MqttHandler with each wait strategy against a LinkedBlockingQueue,
+ * the queue of the fixed thread pool used before (-p queue=lbq,ring.park,ring.yield,ring.spin).
+ *
+ *  burst     a burst of 1000 requests put by the benchmark thread and taken by 2 consumers,
+ *            scored per request
+ *  latency   one request at a time, until a consumer has taken it (handoff latency)
+ *
+ * With -prof gc the gc.alloc.rate.norm of the queue is the node allocated per request; the ring
+ * reuses its slots. Busy spinning only makes sense with a core per spinning thread, the host's
+ * core count is printed first.
+ *
+ * Usage: bench/run.sh HandoffBenchmarks [JMH options]
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class HandoffBenchmarks {
+
+	private static final int BURST = 1000;
+	private static final int CONSUMERS = 2;
+
+	// Taken requests are written here so the JIT must read them.
+	static volatile Object sink;
+
+	/**
+	 * A request as carried by the handoff.
+	 */
+	static final class Request {
+		String defaultId;
+		long arrived;
+	}
+
+	/**
+	 * One handoff with its consumers, which count what they take.
+	 */
+	interface Channel {
+		void put(String defaultId, long arrived) throws InterruptedException;
+		void close();
+	}
+
+	@Param({ "lbq", "ring.park", "ring.yield", "ring.spin" })
+	public String queue;
+
+	private final AtomicLong taken = new AtomicLong();
+	private Channel channel;
+	private long put = 0;
+
+	@Setup
+	public void setUp() {
+		Log.setLevel(Log.WARN);
+		System.out.println("Cores: " + Runtime.getRuntime().availableProcessors());
+		channel = open(queue, taken);
+	}
+
+	@TearDown
+	public void tearDown() {
+		channel.close();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BURST)
+	public long burst() throws Exception {
+		return handoff(BURST);
+	}
+
+	@Benchmark
+	public long latency() throws Exception {
+		return handoff(1);
+	}
+
+	private long handoff(int count) throws InterruptedException {
+		for (int i = 0; i < count; i++) {
+			channel.put("00:12:4b:00:00:00", System.nanoTime());
+		}
+		put += count;
+		while (taken.get() < put) {
+			// The consumers may need this core.
+			Thread.yield();
+		}
+		return put;
+	}
+
+	static Channel open(String queue, AtomicLong taken) {
+		if (queue.equals("lbq")) {
+			return new QueueChannel(taken);
+		}
+		return new RingChannel(RingBuffer.Wait.parse(queue.substring("ring.".length()), null), taken);
+	}
+
+	/**
+	 * The LinkedBlockingQueue baseline: one node and one request object per put.
+	 */
+	static class QueueChannel implements Channel {
+
+		private static final Request STOP = new Request();
+		private final LinkedBlockingQueue<Request> queue = new LinkedBlockingQueue<Request>();
+
+		QueueChannel(final AtomicLong taken) {
+			for (int i = 0; i < CONSUMERS; i++) {
+				Thread t = new Thread("lbq-consumer-" + i) {
+					public void run() {
+						try {
+							Request request;
+							while ((request = queue.take()) != STOP) {
+								sink = request.defaultId;
+								taken.incrementAndGet();
+							}
+						} catch (InterruptedException e) {
+							// Stopped.
+						}
+					}
+				};
+				t.setDaemon(true);
+				t.start();
+			}
+		}
+
+		public void put(String defaultId, long arrived) throws InterruptedException {
+			Request request = new Request();
+			request.defaultId = defaultId;
+			request.arrived = arrived;
+			queue.put(request);
+		}
+
+		public void close() {
+			for (int i = 0; i < CONSUMERS; i++) {
+				queue.add(STOP);
+			}
+		}
+	}
+
+	/**
+	 * The RingBuffer handoff as done by MqttHandler: the slots are filled and copied out.
+	 */
+	static class RingChannel implements Channel {
+
+		private final RingBuffer<Request> ring;
+
+		RingChannel(RingBuffer.Wait wait, final AtomicLong taken) {
+			ring = new RingBuffer<Request>(1024, new RingBuffer.Factory<Request>() {
+				public Request create() {
+					return new Request();
+				}
+			}, wait);
+			for (int i = 0; i < CONSUMERS; i++) {
+				Thread t = new Thread("ring-consumer-" + i) {
+					public void run() {
+						try {
+							long seq;
+							while ((seq = ring.take()) >= 0) {
+								Request request = ring.get(seq);
+								String defaultId = request.defaultId;
+								request.defaultId = null;
+								ring.release(seq);
+								sink = defaultId;
+								taken.incrementAndGet();
+							}
+						} catch (InterruptedException e) {
+							// Stopped.
+						}
+					}
+				};
+				t.setDaemon(true);
+				t.start();
+			}
+		}
+
+		public void put(String defaultId, long arrived) throws InterruptedException {
+			long seq = ring.claim();
+			Request request = ring.get(seq);
+			request.defaultId = defaultId;
+			request.arrived = arrived;
+			ring.publish(seq);
+		}
+
+		public void close() {
+			ring.close();
+		}
+	}
+}
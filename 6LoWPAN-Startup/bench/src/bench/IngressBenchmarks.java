@@ -0,0 +1,287 @@
+package bench;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.SocketFactory;
+
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.MqttCallback;
+import org.eclipse.paho.client.mqttv3.MqttClient;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import coap.CoapMessage;
+import coap.CoapServer;
+import mqtt.MqttManager;
+import mqtt.broker.MqttBroker;
+import mqttsn.MqttSnGateway;
+import mqttsn.MqttSnPacket;
+import startup.MemoryIdStore;
+import startup.StartupManager;
+import util.Log;
+
+/**
+ * IngressBenchmarks compares the ways a device registers, end to end over loopback:
+ *
+ *  coap     confirmable CoAP POST startup/register, answered on the piggybacked ACK
+ *  mqtt     QoS 2 publish of the defaultId through the broker, reply on the device topic
+ *  mqttsn   QoS 1 MQTT-SN publish to the in-process gateway, QoS 1 reply on the device topic
+ *
+ * The service (memory store), the broker stand-in and the client run in this process, one
+ * registration at a time. Besides the throughput, the process CPU time per registration is
+ * printed after each trial, i.e. the registrations per second one core can serve, broker
+ * included for the Mqtt path since that hop is what CoAP removes.
+ *
+ * Usage: bench/run.sh IngressBenchmarks [JMH options]
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class IngressBenchmarks {
+
+	private MqttBroker broker;
+	private StartupManager startupManager;
+	private CoapServer coapServer;
+	private MqttSnGateway gateway;
+
+	@Setup
+	public void setUp() throws Exception {
+		Log.setLevel(Log.WARN);
+		ServerSocket free = new ServerSocket(0);
+		int port = free.getLocalPort();
+		free.close();
+		System.setProperty("mqtt.broker", "localhost");
+		System.setProperty("mqtt.port", Integer.toString(port));
+		broker = new MqttBroker("localhost", port);
+		broker.start();
+
+		startupManager = new StartupManager(new MemoryIdStore());
+		startupManager.connect();
+		coapServer = new CoapServer(startupManager, new InetSocketAddress("127.0.0.1", 0));
+		coapServer.start();
+		gateway = new MqttSnGateway(startupManager, new InetSocketAddress("127.0.0.1", 0));
+		gateway.start();
+	}
+
+	@TearDown
+	public void tearDown() {
+		coapServer.shutdown(1000);
+		gateway.shutdown(1000);
+		for (MqttManager manager : startupManager.getMqttManagers()) {
+			manager.shutdown(1000);
+			manager.close();
+		}
+		broker.stop();
+	}
+
+	@State(Scope.Thread)
+	public static class Coap extends Cpu {
+		DatagramChannel channel;
+		final ByteBuffer in = ByteBuffer.allocate(512);
+		final byte[] token = { 1, 2, 3, 4 };
+
+		@Setup
+		public void setUp(IngressBenchmarks bench) throws Exception {
+			channel = DatagramChannel.open();
+			channel.connect(new InetSocketAddress("127.0.0.1", bench.coapServer.getPort()));
+			start("coap");
+		}
+
+		@TearDown
+		public void tearDown() throws Exception {
+			stop();
+			channel.close();
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class Mqtt extends Cpu {
+		MqttClient client;
+		final LinkedBlockingQueue<MqttMessage> replies = new LinkedBlockingQueue<MqttMessage>();
+
+		@Setup
+		public void setUp() throws Exception {
+			client = new MqttClient("tcp://localhost:" + System.getProperty("mqtt.port"), "ingress-bench", new MemoryPersistence());
+			client.setCallback(new MqttCallback() {
+				public void messageArrived(String topic, MqttMessage message) {
+					if (!topic.equals("vestel/newDevice/defaultId")) {
+						replies.add(message);
+					}
+				}
+				public void deliveryComplete(IMqttDeliveryToken token) {
+				}
+				public void connectionLost(Throwable cause) {
+				}
+			});
+			MqttConnectOptions options = new MqttConnectOptions();
+			options.setCleanSession(true);
+			options.setSocketFactory(new NoDelaySocketFactory());
+			client.connect(options);
+			client.subscribe("vestel/newDevice/+", 2);
+			start("mqtt");
+		}
+
+		@TearDown
+		public void tearDown() throws Exception {
+			stop();
+			client.disconnect();
+			client.close();
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class MqttSn extends Cpu {
+		DatagramChannel channel;
+		final ByteBuffer in = ByteBuffer.allocate(512);
+
+		@Setup
+		public void setUp(IngressBenchmarks bench) throws Exception {
+			channel = DatagramChannel.open();
+			channel.connect(new InetSocketAddress("127.0.0.1", bench.gateway.getPort()));
+			channel.write(ByteBuffer.wrap(MqttSnPacket.connect("ingress-bench", 60, true)));
+			expect(MqttSnPacket.CONNACK);
+			start("mqttsn");
+		}
+
+		void expect(int type) throws IOException {
+			in.clear();
+			channel.read(in);
+			if (in.get(1) != type) {
+				throw new IllegalStateException("MQTT-SN message type " + in.get(1) + " instead of " + type);
+			}
+		}
+
+		@TearDown
+		public void tearDown() throws Exception {
+			stop();
+			channel.write(ByteBuffer.wrap(MqttSnPacket.empty(MqttSnPacket.DISCONNECT)));
+			channel.close();
+		}
+	}
+
+	@Benchmark
+	public ByteBuffer coap(Coap coap) throws Exception {
+		int i = coap.next();
+		byte[] request = CoapMessage.encodeRequest(CoapMessage.CON, CoapMessage.POST, i & 0xFFFF, coap.token,
+				CoapServer.REGISTER_PATH, ("00:12:4b:00:" + Integer.toHexString(i)).getBytes("UTF-8"));
+		coap.channel.write(ByteBuffer.wrap(request));
+		coap.in.clear();
+		coap.channel.read(coap.in);
+		if (coap.in.get(1) != CoapMessage.CREATED) {
+			throw new IllegalStateException("CoAP registration answered with code " + coap.in.get(1));
+		}
+		return coap.in;
+	}
+
+	@Benchmark
+	public MqttMessage mqtt(Mqtt mqtt) throws Exception {
+		int i = mqtt.next();
+		mqtt.client.publish("vestel/newDevice/defaultId", ("00:12:4b:00:" + Integer.toHexString(i)).getBytes("UTF-8"), 2, false);
+		MqttMessage reply = mqtt.replies.poll(5, TimeUnit.SECONDS);
+		if (reply == null) {
+			throw new IllegalStateException("No Mqtt reply within 5 s");
+		}
+		return reply;
+	}
+
+	@Benchmark
+	public ByteBuffer mqttsn(MqttSn sn) throws Exception {
+		int i = sn.next();
+		String defaultId = "00:12:4b:00:" + Integer.toHexString(i);
+		sn.channel.write(ByteBuffer.wrap(MqttSnPacket.publish(MqttSnPacket.qosFlags(1) | MqttSnPacket.TOPIC_PREDEFINED,
+				MqttSnGateway.PREDEFINED_REGISTRATION, (i - 1) % 0xFFFF + 1, defaultId.getBytes("UTF-8"))));
+		sn.expect(MqttSnPacket.PUBACK);
+		sn.expect(MqttSnPacket.PUBLISH);
+		// Acknowledge the QoS 1 reply: topic id and message id are at 3..6.
+		sn.channel.write(ByteBuffer.wrap(MqttSnPacket.ack(MqttSnPacket.PUBACK, sn.in.getShort(3) & 0xFFFF, sn.in.getShort(5) & 0xFFFF, 0)));
+		return sn.in;
+	}
+
+	/**
+	 * Plain sockets with Nagle's algorithm off, so the small frames of the simulated device are not
+	 * held back waiting for delayed ACKs.
+	 */
+	static class NoDelaySocketFactory extends SocketFactory {
+		private Socket configure(Socket socket) throws IOException {
+			socket.setTcpNoDelay(true);
+			return socket;
+		}
+		public Socket createSocket() throws IOException {
+			return configure(new Socket());
+		}
+		public Socket createSocket(String host, int port) throws IOException {
+			return configure(new Socket(host, port));
+		}
+		public Socket createSocket(InetAddress host, int port) throws IOException {
+			return configure(new Socket(host, port));
+		}
+		public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+			return configure(new Socket(host, port, localHost, localPort));
+		}
+		public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException {
+			return configure(new Socket(address, port, localAddress, localPort));
+		}
+	}
+
+	/**
+	 * The state of a registration benchmark that also reports the process CPU time spent per
+	 * registration.
+	 */
+	static abstract class Cpu {
+		private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		private String name;
+		private long cpuStart;
+		private int count = 0;
+
+		/**
+		 * CPU time of the live Java threads (JIT compiler and GC threads are not among them).
+		 */
+		private long cpuTime() {
+			long total = 0;
+			for (long id : threads.getAllThreadIds()) {
+				total += Math.max(0, threads.getThreadCpuTime(id));
+			}
+			return total;
+		}
+
+		void start(String name) {
+			this.name = name;
+			cpuStart = cpuTime();
+		}
+
+		int next() {
+			return ++count;
+		}
+
+		void stop() {
+			double micros = (cpuTime() - cpuStart) / 1000.0 / Math.max(1, count);
+			System.out.println(String.format("%s: %.1f us CPU per registration, %.0f registrations/s per core",
+					name, micros, 1e6 / micros));
+		}
+	}
+}
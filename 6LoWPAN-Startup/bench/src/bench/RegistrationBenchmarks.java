@@ -0,0 +1,330 @@
+package bench;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import mqtt.MqttManager;
+import mqtt.PayloadCodec;
+import mqtt.TopicRouter;
+import startup.DBManager;
+import startup.IdIndex;
+import startup.IdStore;
+import startup.LeaseManager;
+import startup.MemoryIdStore;
+import startup.ShortAddressAllocator;
+import startup.StartupManager;
+import util.Log;
+
+/**
+ * RegistrationBenchmarks measures the registration hot path piece by piece and end to end:
+ *
+ *  store                  id generation against an IdStore (generateNewId without publish), with
+ *                         -p store=memory,embedded,mysql; embedded is DBManager on an H2 file
+ *                         database in MySQL mode, mysql needs the database of db.url
+ *  codecDecode/Encode     payload conversion of defaultId and generated id
+ *  publish                MqttManager.publish of a reply on a stub client (in-flight permit,
+ *                         client publish, completion listener)
+ *  registration           decode + generate + encode + publish, i.e. one registration
+ *  lookupIndex            bulk lookup of 100 defaultIds answered by the in-memory index
+ *  lookupRequest          the same lookup as a request: decode, lookup, encode, publish reply
+ *  shortaddrAllocate      allocate and release a 16-bit short address in a PAN that is 99% full
+ *  leaseHeartbeat         renew the lease of one of 65536 devices
+ *  route                  route an arrived topic with the 3 routes of the service (-p routes=3),
+ *                         and with 300 routes (per-gateway literal, '+' and '#' filters)
+ *
+ * The allocation per registration is the gc.alloc.rate.norm of registration with -prof gc.
+ *
+ * Usage: bench/run.sh RegistrationBenchmarks [JMH options]
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class RegistrationBenchmarks {
+
+	static final int KEYS = 1 << 16;
+	private static final int LOOKUP_BATCH = 100;
+
+	String[] defaultIds;
+	byte[][] payloads;
+	int i = 0;
+
+	@Setup
+	public void setUp() throws Exception {
+		// Keep the console quiet, the benchmarks would only measure the log ring otherwise.
+		Log.setLevel(Log.WARN);
+		defaultIds = new String[KEYS];
+		payloads = new byte[KEYS][];
+		for (int k = 0; k < KEYS; k++) {
+			defaultIds[k] = "00:12:4b:00:" + Integer.toHexString(0x100000 + k);
+			payloads[k] = defaultIds[k].getBytes("UTF-8");
+		}
+	}
+
+	/**
+	 * The IdStore under test.
+	 */
+	@State(Scope.Thread)
+	public static class Store {
+
+		@Param({ "memory", "embedded" })
+		public String store;
+
+		IdStore idStore;
+		File dir;
+
+		@Setup
+		public void setUp() throws Exception {
+			if (store.equals("memory")) {
+				idStore = new MemoryIdStore();
+				return;
+			}
+			if (store.equals("embedded")) {
+				dir = File.createTempFile("store-bench", "");
+				dir.delete();
+				dir.mkdirs();
+				String url = "jdbc:h2:file:" + new File(dir, "startup").getAbsolutePath() + ";MODE=MySQL";
+				Connection conn = DriverManager.getConnection(url, "sa", "");
+				Statement stm = conn.createStatement();
+				stm.executeUpdate("create table devicestartup (ID int auto_increment primary key, DEFAULT_ID varchar(64))");
+				stm.executeUpdate("create index devicestartup_default_id on devicestartup (DEFAULT_ID)");
+				stm.close();
+				conn.close();
+				System.setProperty("db.url", url);
+				System.setProperty("db.user", "sa");
+				System.setProperty("db.password", "");
+				System.setProperty("db.driver", "org.h2.Driver");
+			} else if (!store.equals("mysql")) {
+				throw new IllegalArgumentException("Unknown store: " + store);
+			}
+			DBManager db = new DBManager();
+			db.warmUp();
+			idStore = db;
+		}
+
+		@TearDown
+		public void tearDown() throws Exception {
+			if (dir != null) {
+				DriverManager.getConnection(System.getProperty("db.url"), "sa", "").createStatement().execute("shutdown");
+				for (File f : dir.listFiles()) {
+					f.delete();
+				}
+				dir.delete();
+			}
+		}
+	}
+
+	/**
+	 * A manager on a stub client, closed after the trial so its workers stop.
+	 */
+	@State(Scope.Thread)
+	public static class Manager {
+
+		final byte[] reply = PayloadCodec.encodeId(123456);
+		MqttManager manager;
+
+		@Setup
+		public void setUp() {
+			manager = new MqttManager(new StartupManager(new MemoryIdStore()), new StubMqttClient());
+		}
+
+		@TearDown
+		public void tearDown() {
+			manager.close();
+		}
+	}
+
+	/**
+	 * Registered devices, batches of them to look up, and a manager answering lookup requests.
+	 */
+	@State(Scope.Thread)
+	public static class Lookup {
+
+		StartupManager startupManager;
+		List<List<String>> batches;
+		byte[][] requests;
+		MqttManager manager;
+
+		@Setup
+		public void setUp(RegistrationBenchmarks bench) throws Exception {
+			startupManager = new StartupManager(new MemoryIdStore());
+			for (String defaultId : bench.defaultIds) {
+				startupManager.notifyInsertion(defaultId);
+			}
+			batches = new ArrayList<List<String>>();
+			for (int b = 0; b < KEYS / LOOKUP_BATCH; b++) {
+				List<String> batch = new ArrayList<String>(LOOKUP_BATCH);
+				for (int k = 0; k < LOOKUP_BATCH; k++) {
+					batch.add(bench.defaultIds[(b * 7919 + k * 104729) & (KEYS - 1)]);
+				}
+				batches.add(batch);
+			}
+			requests = new byte[batches.size()][];
+			for (int b = 0; b < requests.length; b++) {
+				requests[b] = PayloadCodec.encodeLookupRequest("c" + b, MqttManager.LOOKUP_REPLY_PREFIX + "dashboard", true, batches.get(b));
+			}
+			manager = new MqttManager(startupManager, new StubMqttClient());
+		}
+
+		@TearDown
+		public void tearDown() {
+			manager.close();
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class ShortAddresses {
+
+		ShortAddressAllocator allocator;
+
+		@Setup
+		public void setUp() {
+			allocator = new ShortAddressAllocator(ShortAddressAllocator.parseReserved("0xFFFE,0xFFFF"));
+			while (allocator.getFreeCount() > ShortAddressAllocator.SLOTS / 100) {
+				allocator.allocate();
+			}
+			// Scatter the free addresses over the whole PAN.
+			for (int addr = 0; addr < 0xFFFE; addr += 97) {
+				allocator.release(addr);
+			}
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class Leases {
+
+		LeaseManager leases;
+
+		@Setup
+		public void setUp(RegistrationBenchmarks bench) throws Exception {
+			MemoryIdStore store = new MemoryIdStore();
+			leases = new LeaseManager(store, new IdIndex(store));
+			for (int k = 0; k < KEYS; k++) {
+				leases.grant(bench.defaultIds[k], k + 1);
+			}
+		}
+	}
+
+	/**
+	 * Routing decisions of TopicRouter on a mix of topics, with routes that only count.
+	 */
+	@State(Scope.Thread)
+	public static class Router {
+
+		private static final int GATEWAYS = 100;
+
+		@Param({ "3", "300" })
+		public int routes;
+
+		final TopicRouter router = new TopicRouter();
+		final MqttMessage message = new MqttMessage();
+		String[] topics;
+		int routed = 0;
+
+		@Setup
+		public void setUp() {
+			TopicRouter.Route count = new TopicRouter.Route() {
+				public void handle(String topic, TopicRouter.Captures captures, MqttMessage message) {
+					routed += captures.count();
+				}
+			};
+			router.add("vestel/newDevice/defaultId", count);
+			router.add(MqttManager.LOOKUP_TOPIC, count);
+			router.add(MqttManager.HEARTBEAT_TOPIC, count);
+			List<String> mix = new ArrayList<String>();
+			mix.add("vestel/newDevice/defaultId");
+			mix.add(MqttManager.LOOKUP_TOPIC);
+			mix.add(MqttManager.HEARTBEAT_TOPIC);
+			for (int g = 0; routes > 3 && g < GATEWAYS; g++) {
+				router.add("vestel/gw/g" + g + "/newDevice/defaultId", count);
+				router.add("vestel/gw/g" + g + "/+/heartbeat", count);
+				router.add("vestel/site" + g + "/#", count);
+				mix.add("vestel/gw/g" + g + "/newDevice/defaultId");
+				mix.add("vestel/gw/g" + g + "/dev" + g + "/heartbeat");
+				mix.add("vestel/site" + g + "/a/b/c");
+			}
+			topics = new String[1024];
+			for (int k = 0; k < topics.length; k++) {
+				topics[k] = mix.get((k * 7919) % mix.size());
+			}
+		}
+	}
+
+	/**
+	 * generateNewId equivalent on a store: insert and encode the reply payload.
+	 */
+	@Benchmark
+	public byte[] store(Store store) throws Exception {
+		return PayloadCodec.encodeId(store.idStore.insert(defaultIds[i++ & (KEYS - 1)]));
+	}
+
+	@Benchmark
+	public String codecDecode() {
+		return PayloadCodec.decodeDefaultId(payloads[i++ & (KEYS - 1)]);
+	}
+
+	@Benchmark
+	public byte[] codecEncode() {
+		return PayloadCodec.encodeId(++i);
+	}
+
+	@Benchmark
+	public void publish(Manager manager) {
+		manager.manager.publish(defaultIds[i++ & (KEYS - 1)], manager.reply, false);
+	}
+
+	@Benchmark
+	public String registration(Manager manager) throws Exception {
+		String defaultId = PayloadCodec.decodeDefaultId(payloads[i++ & (KEYS - 1)]);
+		manager.manager.generateNewId(defaultId);
+		return defaultId;
+	}
+
+	@Benchmark
+	public Object lookupIndex(Lookup lookup) throws Exception {
+		return lookup.startupManager.lookupIds(lookup.batches.get(i++ % lookup.batches.size()));
+	}
+
+	@Benchmark
+	public void lookupRequest(Lookup lookup) {
+		lookup.manager.lookup(lookup.requests[i++ % lookup.requests.length]);
+	}
+
+	@Benchmark
+	public int shortaddrAllocate(ShortAddresses addresses) {
+		int addr = addresses.allocator.allocate();
+		addresses.allocator.release(addr);
+		return addr;
+	}
+
+	@Benchmark
+	public Object leaseHeartbeat(Leases leases) {
+		return leases.leases.heartbeat(defaultIds[i++ & (KEYS - 1)]);
+	}
+
+	@Benchmark
+	public Object route(Router router) throws Exception {
+		return router.router.dispatch(router.topics[i++ & (router.topics.length - 1)], router.message);
+	}
+}
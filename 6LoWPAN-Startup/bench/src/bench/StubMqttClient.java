@@ -0,0 +1,98 @@
+package bench;
+
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.IMqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.IMqttToken;
+import org.eclipse.paho.client.mqttv3.MqttCallback;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.internal.wire.MqttWireMessage;
+
+/**
+ * StubMqttClient is an always connected client without a network. Every action completes
+ * immediately on the calling thread and notifies its listener, so the overhead measured on top
+ * of it is the one of MqttHandler itself.
+ */
+public class StubMqttClient implements IMqttAsyncClient {
+
+	private MqttCallback callback;
+	private long published = 0;
+
+	public long getPublishedCount() {
+		return published;
+	}
+
+	public MqttCallback getCallback() {
+		return callback;
+	}
+
+	// The token of every action: complete from the start.
+	private static final IMqttDeliveryToken DONE = new IMqttDeliveryToken() {
+		public void waitForCompletion() { }
+		public void waitForCompletion(long timeout) { }
+		public boolean isComplete() { return true; }
+		public MqttException getException() { return null; }
+		public void setActionCallback(IMqttActionListener listener) { }
+		public IMqttActionListener getActionCallback() { return null; }
+		public IMqttAsyncClient getClient() { return null; }
+		public String[] getTopics() { return null; }
+		public void setUserContext(Object userContext) { }
+		public Object getUserContext() { return null; }
+		public int getMessageId() { return 0; }
+		public int[] getGrantedQos() { return null; }
+		public boolean getSessionPresent() { return false; }
+		public MqttWireMessage getResponse() { return null; }
+		public MqttMessage getMessage() { return null; }
+	};
+
+	private IMqttDeliveryToken complete(IMqttActionListener listener) {
+		if (listener != null) {
+			listener.onSuccess(DONE);
+		}
+		return DONE;
+	}
+
+	public IMqttToken connect() { return null; }
+	public IMqttToken connect(MqttConnectOptions options) { return null; }
+	public IMqttToken connect(Object userContext, IMqttActionListener callback) { return complete(callback); }
+	public IMqttToken connect(MqttConnectOptions options, Object userContext, IMqttActionListener callback) { return complete(callback); }
+
+	public IMqttToken disconnect() { return null; }
+	public IMqttToken disconnect(long quiesceTimeout) { return null; }
+	public IMqttToken disconnect(Object userContext, IMqttActionListener callback) { return complete(callback); }
+	public IMqttToken disconnect(long quiesceTimeout, Object userContext, IMqttActionListener callback) { return complete(callback); }
+	public void disconnectForcibly() { }
+	public void disconnectForcibly(long disconnectTimeout) { }
+	public void disconnectForcibly(long quiesceTimeout, long disconnectTimeout) { }
+
+	public boolean isConnected() { return true; }
+	public String getClientId() { return "stub"; }
+	public String getServerURI() { return "tcp://stub:1883"; }
+
+	public IMqttDeliveryToken publish(String topic, byte[] payload, int qos, boolean retained) { published++; return null; }
+	public IMqttDeliveryToken publish(String topic, byte[] payload, int qos, boolean retained, Object userContext, IMqttActionListener callback) {
+		published++;
+		return complete(callback);
+	}
+	public IMqttDeliveryToken publish(String topic, MqttMessage message) { published++; return null; }
+	public IMqttDeliveryToken publish(String topic, MqttMessage message, Object userContext, IMqttActionListener callback) {
+		published++;
+		return complete(callback);
+	}
+
+	public IMqttToken subscribe(String topicFilter, int qos) { return null; }
+	public IMqttToken subscribe(String topicFilter, int qos, Object userContext, IMqttActionListener callback) { return complete(callback); }
+	public IMqttToken subscribe(String[] topicFilters, int[] qos) { return null; }
+	public IMqttToken subscribe(String[] topicFilters, int[] qos, Object userContext, IMqttActionListener callback) { return complete(callback); }
+
+	public IMqttToken unsubscribe(String topicFilter) { return null; }
+	public IMqttToken unsubscribe(String[] topicFilters) { return null; }
+	public IMqttToken unsubscribe(String topicFilter, Object userContext, IMqttActionListener callback) { return complete(callback); }
+	public IMqttToken unsubscribe(String[] topicFilters, Object userContext, IMqttActionListener callback) { return complete(callback); }
+
+	public void setCallback(MqttCallback callback) { this.callback = callback; }
+	public IMqttDeliveryToken[] getPendingDeliveryTokens() { return new IMqttDeliveryToken[0]; }
+	public void close() { }
+}
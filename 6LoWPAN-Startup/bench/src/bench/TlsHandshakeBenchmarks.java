@@ -0,0 +1,217 @@
+package bench;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.KeyStore;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x509.BasicConstraints;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.openssl.jcajce.JcaPEMWriter;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import mqtt.SslUtil;
+import util.Log;
+
+/**
+ * TlsHandshakeBenchmarks measures what a (re)connect of MqttHandler costs on the TLS side:
+ *
+ *  createContext    PEM parsing + KeyStore + SSLContext, what every connect paid before
+ *  cachedFactory    the cached factory lookup that replaces it
+ *  connectFull      TCP connect + full handshake (session invalidated after each one)
+ *  connectResumed   TCP connect + abbreviated handshake on the cached session
+ *
+ * A throw-away self-signed certificate is generated and served by a local SSLServerSocket, so
+ * only loopback networking is involved. After the connect benchmarks the share of resumed
+ * handshakes is printed.
+ *
+ * Usage: bench/run.sh TlsHandshakeBenchmarks [JMH options]
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class TlsHandshakeBenchmarks {
+
+	private File dir;
+	private String caFile;
+	private String crtFile;
+	private String keyFile;
+	private SSLServerSocket server;
+	private ExecutorService workers;
+	private SSLSocketFactory factory;
+	private byte[] lastSessionId = null;
+	private long handshakes = 0;
+	private long resumed = 0;
+
+	@Setup
+	public void setUp() throws Exception {
+		Log.setLevel(Log.WARN);
+
+		// Credentials: one self-signed certificate acts as CA, server and client certificate.
+		KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+		generator.initialize(2048);
+		KeyPair keyPair = generator.generateKeyPair();
+		X500Name name = new X500Name("CN=localhost");
+		X509Certificate cert = new JcaX509CertificateConverter().getCertificate(
+				new JcaX509v3CertificateBuilder(name, BigInteger.valueOf(System.currentTimeMillis()),
+						new Date(System.currentTimeMillis() - 60000), new Date(System.currentTimeMillis() + 86400000L),
+						name, keyPair.getPublic())
+				.addExtension(Extension.basicConstraints, true, new BasicConstraints(true))
+				.build(new JcaContentSignerBuilder("SHA256withRSA").build(keyPair.getPrivate())));
+
+		dir = new File(System.getProperty("java.io.tmpdir"), "tls-bench-" + System.nanoTime());
+		dir.mkdirs();
+		caFile = writePem(new File(dir, "ca.crt"), cert);
+		crtFile = writePem(new File(dir, "client.crt"), cert);
+		keyFile = writePem(new File(dir, "client.key"), keyPair.getPrivate());
+
+		// Server side.
+		KeyStore serverKeys = KeyStore.getInstance(KeyStore.getDefaultType());
+		serverKeys.load(null, null);
+		serverKeys.setKeyEntry("server", keyPair.getPrivate(), "bench".toCharArray(), new Certificate[] { cert });
+		KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+		kmf.init(serverKeys, "bench".toCharArray());
+		SSLContext serverContext = SSLContext.getInstance("TLSv1.2");
+		serverContext.init(kmf.getKeyManagers(), null, null);
+		server = (SSLServerSocket) serverContext.getServerSocketFactory().createServerSocket(0, 512, InetAddress.getLoopbackAddress());
+		workers = Executors.newCachedThreadPool();
+		Thread acceptor = new Thread("tls-bench-server") {
+			public void run() {
+				acceptLoop(server, workers);
+			}
+		};
+		acceptor.setDaemon(true);
+		acceptor.start();
+
+		factory = SslUtil.getSocketFactory(caFile, crtFile, keyFile, "");
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		if (handshakes > 0) {
+			System.out.println(resumed + " of " + handshakes + " handshakes resumed a session");
+		}
+		server.close();
+		workers.shutdownNow();
+		for (File f : dir.listFiles()) {
+			f.delete();
+		}
+		dir.delete();
+	}
+
+	@Benchmark
+	public Object createContext() {
+		return SslUtil.createContext(caFile, crtFile, keyFile, "");
+	}
+
+	@Benchmark
+	public Object cachedFactory() {
+		return SslUtil.getSocketFactory(caFile, crtFile, keyFile, "");
+	}
+
+	@Benchmark
+	public byte[] connectFull() throws Exception {
+		return connect(false);
+	}
+
+	@Benchmark
+	public byte[] connectResumed() throws Exception {
+		return connect(true);
+	}
+
+	/**
+	 * One client connect + handshake + close.
+	 */
+	private byte[] connect(boolean resume) throws Exception {
+		SSLSocket socket = (SSLSocket) factory.createSocket("localhost", server.getLocalPort());
+		try {
+			socket.startHandshake();
+			byte[] id = socket.getSession().getId();
+			handshakes++;
+			if (lastSessionId != null && Arrays.equals(id, lastSessionId)) {
+				resumed++;
+			}
+			lastSessionId = id;
+			if (!resume) {
+				socket.getSession().invalidate();
+			}
+			return id;
+		} finally {
+			socket.close();
+		}
+	}
+
+	static void acceptLoop(ServerSocket server, ExecutorService workers) {
+		while (!server.isClosed()) {
+			try {
+				final SSLSocket socket = (SSLSocket) server.accept();
+				workers.execute(new Runnable() {
+					public void run() {
+						try {
+							socket.startHandshake();
+							InputStream in = socket.getInputStream();
+							while (in.read() >= 0) {
+								// Wait for the client to close.
+							}
+						} catch (Exception e) {
+							// Client went away.
+						} finally {
+							try {
+								socket.close();
+							} catch (Exception e) {
+								// Ignore.
+							}
+						}
+					}
+				});
+			} catch (Exception e) {
+				// Server closed.
+			}
+		}
+	}
+
+	private static String writePem(File file, Object object) throws Exception {
+		JcaPEMWriter writer = new JcaPEMWriter(new FileWriter(file));
+		try {
+			writer.writeObject(object);
+		} finally {
+			writer.close();
+		}
+		return file.getPath();
+	}
+}
@@ -0,0 +1,172 @@
+package coap;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * CoapMessage is the part of a CoAP message (RFC 7252) the registration service needs: header,
+ * token, Uri-Path and payload. Other elective options are skipped; an unknown critical option is
+ * reported with {@link #badOption} so the request can be answered with 4.02.
+ */
+public final class CoapMessage {
+
+	public static final int VERSION 	= 1;
+	public static final int CON 		= 0;
+	public static final int NON 		= 1;
+	public static final int ACK 		= 2;
+	public static final int RST 		= 3;
+
+	// Codes (class << 5 | detail).
+	public static final int EMPTY 					= 0x00;
+	public static final int POST 					= 0x02;
+	public static final int CREATED 				= 0x41;	// 2.01
+	public static final int CHANGED 				= 0x44;	// 2.04
+	public static final int BAD_REQUEST 			= 0x80;	// 4.00
+	public static final int BAD_OPTION 			= 0x82;	// 4.02
+	public static final int NOT_FOUND 				= 0x84;	// 4.04
+	public static final int METHOD_NOT_ALLOWED 	= 0x85;	// 4.05
+	public static final int INTERNAL_SERVER_ERROR 	= 0xA0;	// 5.00
+	public static final int SERVICE_UNAVAILABLE 	= 0xA3;	// 5.03
+
+	private static final int URI_HOST 	= 3;
+	private static final int URI_PORT 	= 7;
+	private static final int URI_PATH 	= 11;
+	private static final int URI_QUERY 	= 15;
+	private static final byte[] NO_TOKEN = new byte[0];
+
+	int type;
+	int code;
+	int messageId;
+	byte[] token = NO_TOKEN;
+	String path = "";
+	byte[] payload = null;
+	boolean badOption = false;
+
+	/**
+	 * Decode a datagram. Returns null if it is not a well-formed CoAP message.
+	 */
+	static CoapMessage decode(ByteBuffer in) {
+		if (in.remaining() < 4) {
+			return null;
+		}
+		int first = in.get() & 0xFF;
+		if (first >>> 6 != VERSION) {
+			return null;
+		}
+		CoapMessage msg = new CoapMessage();
+		msg.type = (first >>> 4) & 3;
+		int tokenLength = first & 15;
+		msg.code = in.get() & 0xFF;
+		msg.messageId = in.getShort() & 0xFFFF;
+		if (tokenLength > 8 || in.remaining() < tokenLength) {
+			return null;
+		}
+		if (tokenLength > 0) {
+			msg.token = new byte[tokenLength];
+			in.get(msg.token);
+		}
+
+		StringBuilder path = null;
+		int number = 0;
+		while (in.hasRemaining()) {
+			int b = in.get() & 0xFF;
+			if (b == 0xFF) {
+				if (!in.hasRemaining()) {
+					return null;	// Payload marker without payload
+				}
+				msg.payload = new byte[in.remaining()];
+				in.get(msg.payload);
+				break;
+			}
+			int delta = extended(b >>> 4, in);
+			int length = extended(b & 15, in);
+			if (delta < 0 || length < 0 || length > in.remaining()) {
+				return null;
+			}
+			number += delta;
+			if (number == URI_PATH) {
+				byte[] segment = new byte[length];
+				in.get(segment);
+				if (path == null) {
+					path = new StringBuilder();
+				} else {
+					path.append('/');
+				}
+				path.append(new String(segment, StandardCharsets.UTF_8));
+			} else {
+				if ((number & 1) != 0 && number != URI_HOST && number != URI_PORT && number != URI_QUERY) {
+					msg.badOption = true;
+				}
+				in.position(in.position() + length);
+			}
+		}
+		if (path != null) {
+			msg.path = path.toString();
+		}
+		return msg;
+	}
+
+	/**
+	 * Option delta or length with its extended bytes (13: one byte, 14: two bytes). -1 for the
+	 * reserved value 15 or a truncated message.
+	 */
+	private static int extended(int value, ByteBuffer in) {
+		if (value < 13) {
+			return value;
+		}
+		if (value == 13 && in.remaining() >= 1) {
+			return (in.get() & 0xFF) + 13;
+		}
+		if (value == 14 && in.remaining() >= 2) {
+			return (in.getShort() & 0xFFFF) + 269;
+		}
+		return -1;
+	}
+
+	/**
+	 * Encode a response without options: header, token, then the payload if there is one.
+	 */
+	static byte[] encode(int type, int code, int messageId, byte[] token, byte[] payload) {
+		int length = 4 + token.length + (payload == null || payload.length == 0 ? 0 : 1 + payload.length);
+		byte[] out = new byte[length];
+		out[0] = (byte) ((VERSION << 6) | (type << 4) | token.length);
+		out[1] = (byte) code;
+		out[2] = (byte) (messageId >>> 8);
+		out[3] = (byte) messageId;
+		System.arraycopy(token, 0, out, 4, token.length);
+		if (length > 4 + token.length) {
+			out[4 + token.length] = (byte) 0xFF;
+			System.arraycopy(payload, 0, out, 5 + token.length, payload.length);
+		}
+		return out;
+	}
+
+	/**
+	 * Encode a request with a Uri-Path (segments separated by '/') and a payload.
+	 */
+	public static byte[] encodeRequest(int type, int code, int messageId, byte[] token, String path, byte[] payload) {
+		ByteBuffer out = ByteBuffer.allocate(4 + token.length + path.length() * 3 + 16 + payload.length);
+		out.put((byte) ((VERSION << 6) | (type << 4) | token.length)).put((byte) code).putShort((short) messageId).put(token);
+		int number = 0;
+		for (String segment : path.split("/")) {
+			byte[] bytes = segment.getBytes(StandardCharsets.UTF_8);
+			int delta = URI_PATH - number;
+			number = URI_PATH;
+			int lengthNibble = bytes.length < 13 ? bytes.length : bytes.length < 269 ? 13 : 14;
+			out.put((byte) ((delta << 4) | lengthNibble));
+			if (lengthNibble == 13) {
+				out.put((byte) (bytes.length - 13));
+			} else if (lengthNibble == 14) {
+				out.putShort((short) (bytes.length - 269));
+			}
+			out.put(bytes);
+		}
+		if (payload.length > 0) {
+			out.put((byte) 0xFF).put(payload);
+		}
+		byte[] bytes = new byte[out.position()];
+		out.flip();
+		out.get(bytes);
+		return bytes;
+	}
+}
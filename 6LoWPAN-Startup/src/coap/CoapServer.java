@@ -0,0 +1,345 @@
+package coap;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import mqtt.PayloadCodec;
+import startup.Ingress;
+import startup.Settings;
+import startup.StartupManager;
+import util.Log;
+
+/**
+ * CoapServer lets 6LoWPAN nodes register over CoAP (RFC 7252) directly, without an Mqtt bridge:
+ * <pre>
+ * POST coap://service/startup/register    payload: defaultId   ->  2.01, payload: generated id
+ * POST coap://service/startup/heartbeat   payload: defaultId   ->  2.04, or 4.04 without lease
+ * </pre>
+ * The answer to a confirmable request is piggybacked on its ACK; a non-confirmable request gets a
+ * non-confirmable response with the same token.
+ * 
+ * One selector thread reads the DatagramChannel and never blocks: registrations go to the
+ * coap.workers (default 16) threads, which allocate the id through the same path as the Mqtt
+ * registrations ({@link StartupManager#allocateId(String)}) and send the response themselves. A
+ * payload that is not a valid defaultId ({@link PayloadCodec#decodeDefaultId(byte[])}) is answered
+ * 4.00.
+ * At most coap.queue (default 1024) registrations wait for a worker; above that, and once shutting
+ * down, a registration is answered 5.03 at once so the node retries later. A registration that
+ * fails unexpectedly is answered 5.00.
+ * Requests are deduplicated by (endpoint, message id) for coap.exchangeLifetimeSeconds (247, the
+ * EXCHANGE_LIFETIME of the RFC), at most coap.dedupSize (200000) of them: a retransmission gets
+ * the cached response, or nothing while the first copy is still being handled.
+ * 
+ * Settings: coap.enabled (false), coap.bind (0.0.0.0), coap.port (5683).
+ */
+public class CoapServer implements Ingress {
+
+	public static final String REGISTER_PATH 	= "startup/register";
+	public static final String HEARTBEAT_PATH 	= "startup/heartbeat";
+
+	/**
+	 * A request of an endpoint, kept for deduplication. The response is set by the thread that
+	 * handled it.
+	 */
+	private static final class Exchange {
+		final SocketAddress endpoint;
+		final int messageId;
+		final long expiry;
+		volatile byte[] response;
+
+		Exchange(SocketAddress endpoint, int messageId, long expiry) {
+			this.endpoint = endpoint;
+			this.messageId = messageId;
+			this.expiry = expiry;
+		}
+
+		public int hashCode() {
+			return endpoint.hashCode() * 31 + messageId;
+		}
+
+		public boolean equals(Object o) {
+			if (!(o instanceof Exchange)) {
+				return false;
+			}
+			Exchange other = (Exchange) o;
+			return messageId == other.messageId && endpoint.equals(other.endpoint);
+		}
+	}
+
+	private final StartupManager startupManager;
+	private final InetSocketAddress address;
+	private final long lifetimeNanos = TimeUnit.SECONDS.toNanos(Settings.getLong("coap.exchangeLifetimeSeconds", 247));
+	private final int dedupSize = Settings.getInt("coap.dedupSize", 200000);
+
+	private final int workerCount = Math.max(1, Settings.getInt("coap.workers", 16));
+	private final ThreadPoolExecutor workers = new ThreadPoolExecutor(workerCount, workerCount, 0, TimeUnit.MILLISECONDS,
+			new ArrayBlockingQueue<Runnable>(Math.max(1, Settings.getInt("coap.queue", 1024))), new ThreadFactory() {
+		private int count = 0;
+
+		public synchronized Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "coap-worker-" + (++count));
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
+	// Selector thread only.
+	private final HashMap<Exchange, Exchange> exchanges = new HashMap<Exchange, Exchange>();
+	private final ArrayDeque<Exchange> exchangeOrder = new ArrayDeque<Exchange>();
+
+	private DatagramChannel channel;
+	private Selector selector;
+	private Thread thread;
+	private volatile boolean running = false;
+	private final AtomicInteger nextMessageId = new AtomicInteger((int) System.nanoTime());
+
+	// Metrics.
+	private final AtomicLong requests 		= new AtomicLong();
+	private final AtomicLong duplicates 	= new AtomicLong();
+	private final AtomicLong registrations 	= new AtomicLong();
+	private final AtomicLong rejected 		= new AtomicLong();
+
+	public CoapServer(StartupManager startupManager) {
+		this(startupManager, new InetSocketAddress(Settings.get("coap.bind", "0.0.0.0"), Settings.getInt("coap.port", 5683)));
+	}
+
+	public CoapServer(StartupManager startupManager, InetSocketAddress address) {
+		this.startupManager = startupManager;
+		this.address = address;
+	}
+
+	/**
+	 * Bind the port and start serving. Throws if the port cannot be bound.
+	 */
+	public synchronized void start() throws IOException {
+		if (running) {
+			return;
+		}
+		channel = DatagramChannel.open();
+		channel.configureBlocking(false);
+		channel.bind(address);
+		selector = Selector.open();
+		channel.register(selector, SelectionKey.OP_READ);
+		running = true;
+		thread = new Thread("coap-selector") {
+			public void run() {
+				serve();
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+		Log.info("CoAP ingress listening on {}", channel.getLocalAddress());
+	}
+
+	/**
+	 * Port actually bound (coap.port 0 binds any free port).
+	 */
+	public int getPort() throws IOException {
+		return ((InetSocketAddress) channel.getLocalAddress()).getPort();
+	}
+
+	/**
+	 * Stop reading requests, then let the registrations in progress send their response, within
+	 * timeoutMs.
+	 */
+	public void shutdown(long timeoutMs) {
+		running = false;
+		if (selector != null) {
+			selector.wakeup();
+		}
+		workers.shutdown();
+		try {
+			if (!workers.awaitTermination(timeoutMs, TimeUnit.MILLISECONDS)) {
+				Log.warn("CoAP registrations still running at shutdown");
+			}
+			if (thread != null) {
+				thread.join(timeoutMs);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		try {
+			if (channel != null) {
+				channel.close();
+			}
+		} catch (IOException e) {
+			// Closing anyway.
+		}
+	}
+
+	private void serve() {
+		ByteBuffer in = ByteBuffer.allocateDirect(2048);
+		long nextSweep = System.nanoTime();
+		try {
+			while (running) {
+				selector.select(1000);
+				selector.selectedKeys().clear();
+				SocketAddress from;
+				while (running && (from = receive(in)) != null) {
+					in.flip();
+					CoapMessage request = CoapMessage.decode(in);
+					if (request != null) {
+						handle(from, request);
+					}
+				}
+				long now = System.nanoTime();
+				if (now - nextSweep >= 0) {
+					sweep(now);
+					nextSweep = now + TimeUnit.SECONDS.toNanos(1);
+				}
+			}
+		} catch (IOException e) {
+			if (running) {
+				Log.error("CoAP ingress stopped", e);
+			}
+		} finally {
+			try {
+				selector.close();
+			} catch (IOException e) {
+				// Closing anyway.
+			}
+		}
+	}
+
+	private SocketAddress receive(ByteBuffer in) throws IOException {
+		in.clear();
+		return channel.receive(in);
+	}
+
+	private void handle(final SocketAddress from, final CoapMessage request) {
+		if (request.type == CoapMessage.ACK || request.type == CoapMessage.RST || request.code == CoapMessage.EMPTY) {
+			// Nothing is sent confirmable by the server; an empty CON is a ping.
+			if (request.type == CoapMessage.CON) {
+				send(from, CoapMessage.encode(CoapMessage.RST, CoapMessage.EMPTY, request.messageId, new byte[0], null));
+			}
+			return;
+		}
+		requests.incrementAndGet();
+
+		Exchange key = new Exchange(from, request.messageId, System.nanoTime() + lifetimeNanos);
+		Exchange previous = exchanges.get(key);
+		if (previous != null) {
+			duplicates.incrementAndGet();
+			byte[] response = previous.response;
+			if (response != null) {
+				send(from, response);
+			}
+			return;
+		}
+		exchanges.put(key, key);
+		exchangeOrder.add(key);
+		final Exchange exchange = key;
+
+		if (request.badOption) {
+			respond(exchange, request, CoapMessage.BAD_OPTION, null);
+		} else if (REGISTER_PATH.equals(request.path) || HEARTBEAT_PATH.equals(request.path)) {
+			if (request.code != CoapMessage.POST) {
+				respond(exchange, request, CoapMessage.METHOD_NOT_ALLOWED, null);
+			} else if (PayloadCodec.decodeDefaultId(request.payload) == null) {
+				respond(exchange, request, CoapMessage.BAD_REQUEST, null);
+			} else if (HEARTBEAT_PATH.equals(request.path)) {
+				// Cheap enough for the selector thread.
+				boolean renewed = startupManager.notifyHeartbeat(PayloadCodec.decodeDefaultId(request.payload));
+				respond(exchange, request, renewed ? CoapMessage.CHANGED : CoapMessage.NOT_FOUND, null);
+			} else {
+				try {
+					workers.execute(new Runnable() {
+						public void run() {
+							register(exchange, request);
+						}
+					});
+				} catch (RejectedExecutionException e) {
+					// Queue full or shutting down: the selector thread must not wait for a worker.
+					rejected.incrementAndGet();
+					respond(exchange, request, CoapMessage.SERVICE_UNAVAILABLE, null);
+				}
+			}
+		} else {
+			respond(exchange, request, CoapMessage.NOT_FOUND, null);
+		}
+	}
+
+	private void register(Exchange exchange, CoapMessage request) {
+		String defaultId = PayloadCodec.decodeDefaultId(request.payload);
+		try {
+			int generatedId = startupManager.allocateId(defaultId);
+			if (generatedId < 0) {
+				respond(exchange, request, CoapMessage.SERVICE_UNAVAILABLE, null);
+				return;
+			}
+			registrations.incrementAndGet();
+			respond(exchange, request, CoapMessage.CREATED, PayloadCodec.encodeId(generatedId));
+		} catch (SQLException e) {
+			Log.warn("CoAP registration of {} failed: {}", defaultId, e);
+			respond(exchange, request, CoapMessage.INTERNAL_SERVER_ERROR, null);
+		} catch (RuntimeException e) {
+			// Answered anyway: without a response the node would retransmit for the whole
+			// exchange lifetime and get nothing, the exchange being known.
+			Log.error("CoAP registration of {} failed", defaultId, e);
+			respond(exchange, request, CoapMessage.INTERNAL_SERVER_ERROR, null);
+		}
+	}
+
+	private void respond(Exchange exchange, CoapMessage request, int code, byte[] payload) {
+		byte[] response = request.type == CoapMessage.CON
+				? CoapMessage.encode(CoapMessage.ACK, code, request.messageId, request.token, payload)
+				: CoapMessage.encode(CoapMessage.NON, code, nextMessageId.incrementAndGet() & 0xFFFF, request.token, payload);
+		exchange.response = response;
+		send(exchange.endpoint, response);
+	}
+
+	private void send(SocketAddress to, byte[] datagram) {
+		try {
+			// A datagram the socket buffer cannot take is lost, like on the network; the client
+			// retransmits a confirmable request.
+			channel.send(ByteBuffer.wrap(datagram), to);
+		} catch (IOException e) {
+			Log.debug("CoAP response to {} not sent: {}", to, e);
+		}
+	}
+
+	/**
+	 * Forget the exchanges older than the exchange lifetime, and the oldest ones above dedupSize.
+	 */
+	private void sweep(long now) {
+		Exchange oldest;
+		while ((oldest = exchangeOrder.peek()) != null && (oldest.expiry - now <= 0 || exchangeOrder.size() > dedupSize)) {
+			exchangeOrder.poll();
+			exchanges.remove(oldest);
+		}
+	}
+
+	public long getRequestCount() {
+		return requests.get();
+	}
+
+	public long getDuplicateCount() {
+		return duplicates.get();
+	}
+
+	public long getRegistrationCount() {
+		return registrations.get();
+	}
+
+	/**
+	 * Registrations answered 5.03 because the worker queue was full or the server stopping.
+	 */
+	public long getRejectedCount() {
+		return rejected.get();
+	}
+}
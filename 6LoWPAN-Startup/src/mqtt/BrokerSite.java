@@ -0,0 +1,239 @@
+package mqtt;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.net.ssl.SSLSocketFactory;
+
+import startup.Settings;
+import startup.StateDir;
+import util.Log;
+
+/**
+ * BrokerSite is the connection configuration of one broker served by the service: its server
+ * URIs (the primary first, then the backups tried in order when it cannot be reached), client id,
+ * credentials, TLS files and the number of id generation workers of its connection.
+ *
+ * Without mqtt.sites the service serves one site configured by the historical settings:
+ * mqtt.broker, mqtt.port, mqtt.broker.backups (comma separated host[:port], optional), mqtt.ssl,
+ * mqtt.username, mqtt.password, mqtt.workers, mqtt.pool.size, mqtt.outbox.file and
+ * mqtt.dedup.file, with the client id "startupService2".
+ *
+ * mqtt.sites=a,b serves the sites a and b at the same time, each configured by
+ * mqtt.site.<name>.brokers (comma separated host[:port] or URIs, required), .port, .ssl,
+ * .username, .password, .workers and .pool.size (default: the global setting), .clientId
+ * (default "startupService2-<name>"), .outbox.file (default <stateDir>/<clientId>.outbox, see {@link StateDir}) and
+ * .dedup.file (default <stateDir>/<clientId>.dedup).
+ * The TLS files are mqtt.ssl.ca, mqtt.ssl.cert, mqtt.ssl.key and mqtt.ssl.keyPassword; a site
+ * may override each of them with mqtt.site.<name>.ssl.ca, .ssl.cert, .ssl.key and
+ * .ssl.keyPassword, e.g. for a broker of another CA.
+ */
+public final class BrokerSite {
+
+	public static final String DEFAULT_CLIENTID = "startupService2";
+
+	private final String name;
+	private final String[] serverUris;
+	private final String clientId;
+	private final boolean ssl;
+	private final String userName;
+	private final String password;
+	private final int workers;
+	private final int poolSize;
+	private final String outboxFile;
+	private final String dedupFile;
+	private final String[] sslFiles;	// CA certificate, client certificate, client key, key password
+
+	private BrokerSite(String name, String[] serverUris, String clientId, boolean ssl, String userName,
+			String password, int workers, int poolSize, String outboxFile, String dedupFile, String[] sslFiles) {
+		this.name = name;
+		this.serverUris = serverUris;
+		this.clientId = clientId;
+		this.ssl = ssl;
+		this.userName = userName;
+		this.password = password;
+		this.workers = workers;
+		this.poolSize = poolSize;
+		this.outboxFile = outboxFile;
+		this.dedupFile = dedupFile;
+		this.sslFiles = sslFiles;
+	}
+
+	/**
+	 * A site of one broker with the global worker and pool settings, for connections built from
+	 * a host and port.
+	 */
+	public static BrokerSite of(String broker, int port, boolean ssl, String userName, String password) {
+		return new BrokerSite("default", new String[] { uri(broker, port, ssl) }, DEFAULT_CLIENTID, ssl, userName, password,
+				Settings.getInt("mqtt.workers", 16), Settings.getInt("mqtt.pool.size", 0), Settings.get("mqtt.outbox.file", null),
+				Settings.get("mqtt.dedup.file", null), sslFiles("mqtt."));
+	}
+
+	/**
+	 * Return the sites configured by mqtt.sites, or the single default site.
+	 */
+	public static List<BrokerSite> configured() {
+		String names = Settings.get("mqtt.sites", "");
+		if (names.isEmpty()) {
+			return Collections.singletonList(configuredDefault());
+		}
+		List<BrokerSite> sites = new ArrayList<BrokerSite>();
+		for (String name : names.split(",")) {
+			name = name.trim();
+			if (!name.isEmpty()) {
+				sites.add(configured(name));
+			}
+		}
+		return sites;
+	}
+
+	private static BrokerSite configuredDefault() {
+		boolean ssl = Settings.getBoolean("mqtt.ssl", false);
+		int port = Settings.getInt("mqtt.port", ssl ? 8883 : 1883);
+		String broker = Settings.get("mqtt.broker", 	// Broker(server) ip of vesbeeing(Server)
+				Settings.getBoolean("broker.embedded", false) ? "localhost" : "192.168.2.100");
+		String backups = Settings.get("mqtt.broker.backups", "");
+		String hosts = backups.isEmpty() ? broker : broker + "," + backups;
+		return new BrokerSite("default", uris(hosts, port, ssl), DEFAULT_CLIENTID, ssl,
+				Settings.get("mqtt.username", null), Settings.get("mqtt.password", null),
+				Settings.getInt("mqtt.workers", 16), Settings.getInt("mqtt.pool.size", 0), Settings.get("mqtt.outbox.file", null),
+				Settings.get("mqtt.dedup.file", null), sslFiles("mqtt."));
+	}
+
+	private static BrokerSite configured(String name) {
+		String prefix = "mqtt.site." + name + ".";
+		String hosts = Settings.get(prefix + "brokers", null);
+		if (hosts == null || hosts.isEmpty()) {
+			throw new IllegalArgumentException(prefix + "brokers is not set");
+		}
+		boolean ssl = Settings.getBoolean(prefix + "ssl", Settings.getBoolean("mqtt.ssl", false));
+		int port = Settings.getInt(prefix + "port", Settings.getInt("mqtt.port", ssl ? 8883 : 1883));
+		return new BrokerSite(name, uris(hosts, port, ssl),
+				Settings.get(prefix + "clientId", DEFAULT_CLIENTID + "-" + name), ssl,
+				Settings.get(prefix + "username", Settings.get("mqtt.username", null)),
+				Settings.get(prefix + "password", Settings.get("mqtt.password", null)),
+				Settings.getInt(prefix + "workers", Settings.getInt("mqtt.workers", 16)),
+				Settings.getInt(prefix + "pool.size", Settings.getInt("mqtt.pool.size", 0)),
+				Settings.get(prefix + "outbox.file", null),
+				Settings.get(prefix + "dedup.file", null), sslFiles(prefix));
+	}
+
+	/**
+	 * The TLS files of prefix + "ssl.*", each defaulting to the global mqtt.ssl.* setting.
+	 */
+	private static String[] sslFiles(String prefix) {
+		return new String[] {
+				Settings.get(prefix + "ssl.ca", Settings.get("mqtt.ssl.ca", "certificates/ca.crt")),
+				Settings.get(prefix + "ssl.cert", Settings.get("mqtt.ssl.cert", "certificates/client.crt")),
+				Settings.get(prefix + "ssl.key", Settings.get("mqtt.ssl.key", "certificates/client.key")),
+				Settings.get(prefix + "ssl.keyPassword", Settings.get("mqtt.ssl.keyPassword", "")) };
+	}
+
+	/**
+	 * Parse a comma separated list of host[:port] (or complete URIs) into server URIs.
+	 */
+	static String[] uris(String hosts, int port, boolean ssl) {
+		List<String> uris = new ArrayList<String>();
+		for (String host : hosts.split(",")) {
+			host = host.trim();
+			if (host.isEmpty()) {
+				continue;
+			}
+			if (host.contains("://")) {
+				uris.add(host);
+			} else if (host.lastIndexOf(':') > 0 && host.indexOf(':') == host.lastIndexOf(':')) {
+				uris.add((ssl ? "ssl://" : "tcp://") + host);
+			} else {
+				uris.add(uri(host, port, ssl));
+			}
+		}
+		return uris.toArray(new String[uris.size()]);
+	}
+
+	private static String uri(String host, int port, boolean ssl) {
+		return (ssl ? "ssl://" : "tcp://") + host + ":" + port;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Server URIs in the order they are tried, the primary first.
+	 */
+	public String[] getServerUris() {
+		return serverUris.clone();
+	}
+
+	public String getClientId() {
+		return clientId;
+	}
+
+	public boolean isSsl() {
+		return ssl;
+	}
+
+	public String getUserName() {
+		return userName;
+	}
+
+	public String getPassword() {
+		return password;
+	}
+
+	public int getWorkers() {
+		return workers;
+	}
+
+	public int getPoolSize() {
+		return poolSize;
+	}
+
+	/**
+	 * The SSL socket factory of the TLS files of the site, shared by the sites with the same files
+	 * (see {@link SslUtil#getSocketFactory}). Null if it cannot be built.
+	 */
+	public SSLSocketFactory getSocketFactory() {
+		return SslUtil.getSocketFactory(sslFiles[0], sslFiles[1], sslFiles[2], sslFiles[3]);
+	}
+
+	/**
+	 * Outbox file of the connection with this client id. The configured file belongs to the
+	 * subscribing connection; the other connections of the site (the reply pool) get their own.
+	 * Null if the state directory cannot be used: the outbox is then kept in memory only.
+	 */
+	public File getOutboxFile(String clientId) {
+		if (outboxFile != null && clientId.equals(this.clientId)) {
+			return new File(outboxFile);
+		}
+		try {
+			return StateDir.file(clientId + ".outbox");
+		} catch (IOException e) {
+			Log.error("Outbox of {} not persisted: {}", clientId, e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Checkpoint file of the dedup window of the site (mqtt.delivery=dedup). Null if the state
+	 * directory cannot be used: the window is then kept in memory only.
+	 */
+	public File getDedupFile() {
+		if (dedupFile != null) {
+			return new File(dedupFile);
+		}
+		try {
+			return StateDir.file(clientId + ".dedup");
+		} catch (IOException e) {
+			Log.error("Dedup window of {} not persisted: {}", clientId, e.getMessage());
+			return null;
+		}
+	}
+
+	public String toString() {
+		return name;
+	}
+}
@@ -0,0 +1,481 @@
+package mqtt;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+import util.BloomFilter;
+import util.Log;
+
+/**
+ * DedupWindow makes the id allocation of a registration idempotent for a while: a defaultId that
+ * arrives again within the window (a QoS 1 redelivery, a redelivery after a reconnect, a retry of
+ * the device) gets the id allocated the first time instead of a new row. With it, at least once
+ * delivery of the registrations gives exactly once allocations (mqtt.delivery=dedup).
+ *
+ * The window is cut into 4 time buckets, the newest one taking the new defaultIds and the oldest
+ * one dropped every quarter window, so a defaultId is remembered for between 3/4 of a window and
+ * a window. Every bucket has
+ * <ul>
+ * <li>a {@link BloomFilter} sized for bloomKeys / 4 defaultIds at 1% false positives, and</li>
+ * <li>an exact set of at most maxEntries / 4 defaultIds with their id.</li>
+ * </ul>
+ * Memory is fixed by the two sizes whatever the rate of registrations. A defaultId that is in no
+ * filter is new, without further lookups. One in a filter is looked up in the exact sets; if they
+ * no longer hold it (full, or a false positive of the filter) the allocator confirms it from the
+ * store, so an id registered before is answered with that id. A duplicate that arrives while the
+ * first allocation is still running waits for its result, also when the exact set of the newest
+ * bucket is full: the defaultIds being allocated are marked in a set of their own, bounded by
+ * {@link #MAX_IN_PROGRESS}.
+ *
+ * The buckets are checkpointed to a file (written to a temporary file, then renamed) every
+ * checkpoint period and at {@link #close()}, and restored by the constructor, so duplicates are
+ * still detected after a restart. The checkpoint names the store the ids were allocated in
+ * ({@link startup.StartupManager#storeIdentity()}); one of another store, and buckets older than
+ * the window, are skipped when restoring.
+ */
+public final class DedupWindow {
+
+	/**
+	 * The allocation made once per defaultId and window, and the lookup confirming a defaultId the
+	 * exact sets no longer hold.
+	 */
+	public interface Allocator {
+		int allocate(String defaultId) throws SQLException;
+
+		/**
+		 * The id of defaultId in the store, or a value <= 0 if it has none.
+		 */
+		int find(String defaultId) throws SQLException;
+	}
+
+	private static final int MAGIC 		= 0x53444450;	// "SDDP"
+	private static final int VERSION 	= 2;
+	private static final int BUCKETS 	= 4;
+	private static final double FPP 	= 0.01;
+
+	/**
+	 * DefaultIds marked while their allocation runs with the exact set full, far more than
+	 * allocations run at once; beyond it a duplicate may get a second id.
+	 */
+	static final int MAX_IN_PROGRESS = 4096;
+
+	/**
+	 * The id of a defaultId, 0 while being allocated.
+	 */
+	private static final class Entry {
+		private int id = 0;
+		private boolean failed = false;
+
+		Entry() {
+		}
+
+		Entry(int id) {
+			this.id = id;
+		}
+
+		synchronized void set(int id) {
+			this.id = id;
+			notifyAll();
+		}
+
+		synchronized void fail() {
+			failed = true;
+			notifyAll();
+		}
+
+		synchronized int get() {
+			return id;
+		}
+
+		/**
+		 * The id, or 0 if the allocation failed.
+		 */
+		synchronized int await() throws SQLException {
+			while (id == 0 && !failed) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new SQLException("Interrupted while waiting for a duplicate allocation");
+				}
+			}
+			return id;
+		}
+	}
+
+	/**
+	 * The defaultIds first seen during a quarter of the window.
+	 */
+	private static final class Bucket {
+		final long startMillis;
+		final BloomFilter filter;
+		final ConcurrentHashMap<String, Entry> exact = new ConcurrentHashMap<String, Entry>();
+
+		Bucket(long startMillis, BloomFilter filter) {
+			this.startMillis = startMillis;
+			this.filter = filter;
+		}
+	}
+
+	private final long windowMillis;
+	private final long bucketMillis;
+	private final int maxBucketEntries;
+	private final int bloomBucketKeys;
+	private final File file;
+	private final String store;
+	private volatile Bucket[] buckets;		// Newest first
+	private final ConcurrentHashMap<String, Entry> inProgress = new ConcurrentHashMap<String, Entry>();
+	private ScheduledExecutorService scheduler = null;
+
+	// Metrics.
+	private final AtomicLong duplicates 	= new AtomicLong();	// Answered with an earlier allocation
+	private final AtomicLong confirmed 		= new AtomicLong();	// ... of which confirmed by the store
+	private final AtomicLong falsePositives = new AtomicLong();	// In a filter, unknown to the store
+
+	/**
+	 * A window remembering at most maxEntries defaultIds exactly and bloomKeys in its filters,
+	 * checkpointed to file for the ids of store (either null: not persisted).
+	 */
+	public DedupWindow(long windowMillis, int maxEntries, int bloomKeys, File file, String store) {
+		this.windowMillis = Math.max(BUCKETS, windowMillis);
+		this.bucketMillis = this.windowMillis / BUCKETS;
+		this.maxBucketEntries = Math.max(1, maxEntries / BUCKETS);
+		this.bloomBucketKeys = Math.max(1, bloomKeys / BUCKETS);
+		this.file = store == null ? null : file;
+		this.store = store;
+		long now = System.currentTimeMillis();
+		Bucket[] initial = new Bucket[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++) {
+			initial[i] = new Bucket(now - i * bucketMillis, new BloomFilter(bloomBucketKeys, FPP));
+		}
+		buckets = initial;
+		restore();
+	}
+
+	/**
+	 * The id of defaultId: the one allocated within the window if any, otherwise a new one from
+	 * allocator. Failed allocations (an exception, or an id <= 0) are not remembered.
+	 */
+	public int allocate(String defaultId, Allocator allocator) throws SQLException {
+		rotate();
+		while (true) {
+			Bucket[] current = buckets;
+			// Before the filters: the mark is removed only once the filter holds the defaultId.
+			Entry seen = inProgress.get(defaultId);
+			boolean filtered = false;
+			for (int i = 0; seen == null && i < current.length; i++) {
+				Bucket bucket = current[i];
+				seen = bucket.exact.get(defaultId);
+				if (seen != null) {
+					break;
+				}
+				filtered = filtered || bucket.filter.mightContain(defaultId);
+			}
+			if (seen == null) {
+				if (filtered) {
+					// Seen within the window, but the exact sets no longer hold it (or never did).
+					int id = allocator.find(defaultId);
+					if (id > 0) {
+						duplicates.incrementAndGet();
+						confirmed.incrementAndGet();
+						return id;
+					}
+					falsePositives.incrementAndGet();
+				}
+				Bucket newest = current[0];
+				Entry entry = new Entry();
+				if (newest.exact.size() >= maxBucketEntries) {
+					// Only the filter remembers it, marked in progress until then.
+					if (inProgress.size() >= MAX_IN_PROGRESS) {
+						int id = allocator.allocate(defaultId);
+						if (id > 0) {
+							newest.filter.add(defaultId);
+						}
+						return id;
+					}
+					seen = inProgress.putIfAbsent(defaultId, entry);
+					if (seen == null) {
+						try {
+							return allocate(defaultId, allocator, newest, entry);
+						} finally {
+							inProgress.remove(defaultId, entry);
+						}
+					}
+				} else {
+					seen = newest.exact.putIfAbsent(defaultId, entry);
+					if (seen == null) {
+						return allocate(defaultId, allocator, newest, entry);
+					}
+				}
+			}
+			int id = seen.await();
+			if (id > 0) {
+				duplicates.incrementAndGet();
+				return id;
+			}
+			// The first allocation failed and was forgotten: this one tries again.
+		}
+	}
+
+	private int allocate(String defaultId, Allocator allocator, Bucket bucket, Entry entry) throws SQLException {
+		int id = 0;
+		try {
+			id = allocator.allocate(defaultId);
+			return id;
+		} finally {
+			if (id > 0) {
+				bucket.filter.add(defaultId);
+				entry.set(id);
+			} else {
+				bucket.exact.remove(defaultId, entry);
+				entry.fail();
+			}
+		}
+	}
+
+	/**
+	 * Start a new bucket when the newest one is a quarter window old, and empty ones for the
+	 * quarters that passed without registrations; the oldest ones are dropped and their filters
+	 * reused.
+	 */
+	private void rotate() {
+		long now = System.currentTimeMillis();
+		if (now - buckets[0].startMillis < bucketMillis) {
+			return;
+		}
+		synchronized (this) {
+			Bucket[] current = buckets;
+			int steps = (int) Math.min(BUCKETS, (now - current[0].startMillis) / bucketMillis);
+			if (steps <= 0) {
+				return;
+			}
+			Bucket[] next = new Bucket[BUCKETS];
+			for (int i = 0; i < BUCKETS; i++) {
+				if (i < steps) {
+					BloomFilter filter = current[BUCKETS - 1 - i].filter;
+					filter.clear();
+					next[i] = new Bucket(now - i * bucketMillis, filter);
+				} else {
+					next[i] = current[i - steps];
+				}
+			}
+			buckets = next;
+		}
+	}
+
+	/**
+	 * Checkpoint the window every periodMillis (0 disables it) until {@link #close()}.
+	 */
+	public synchronized void startCheckpoints(long periodMillis) {
+		if (file == null || periodMillis <= 0 || scheduler != null) {
+			return;
+		}
+		scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "dedup-checkpoint");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		scheduler.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				try {
+					checkpoint();
+				} catch (Throwable e) {
+					Log.warn("Dedup checkpoint failed: {}", e);
+				}
+			}
+		}, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stop the checkpoints and write a last one.
+	 */
+	public void close() {
+		synchronized (this) {
+			if (scheduler != null) {
+				scheduler.shutdownNow();
+				scheduler = null;
+			}
+		}
+		if (file != null) {
+			try {
+				checkpoint();
+			} catch (IOException e) {
+				Log.warn("Dedup checkpoint failed: {}", e);
+			}
+		}
+	}
+
+	/**
+	 * Write the buckets to the file: header, then per bucket its start, filter and the allocated
+	 * entries of its exact set, then a CRC32 of all that.
+	 */
+	public void checkpoint() throws IOException {
+		rotate();
+		Bucket[] current = buckets;
+		File tmp = new File(file.getPath() + ".tmp");
+		CRC32 crc = new CRC32();
+		DataOutputStream out = new DataOutputStream(new CheckedOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)), crc));
+		int entries = 0;
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeUTF(store);
+			out.writeInt(current.length);
+			for (Bucket bucket : current) {
+				out.writeLong(bucket.startMillis);
+				bucket.filter.write(out);
+				List<Map.Entry<String, Entry>> allocated = new ArrayList<Map.Entry<String, Entry>>(bucket.exact.size());
+				for (Map.Entry<String, Entry> e : bucket.exact.entrySet()) {
+					if (e.getValue().get() > 0) {
+						allocated.add(e);
+					}
+				}
+				out.writeInt(allocated.size());
+				for (Map.Entry<String, Entry> e : allocated) {
+					out.writeUTF(e.getKey());
+					out.writeInt(e.getValue().get());
+				}
+				entries += allocated.size();
+			}
+			out.flush();
+			// The CRC of everything written so far.
+			out.writeInt((int) crc.getValue());
+		} finally {
+			out.close();
+		}
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		Log.debug("Dedup checkpoint written: {} defaultIds, {} bytes", entries, file.length());
+	}
+
+	/**
+	 * Take over the buckets of the checkpoint that are still within the window. Filters of another
+	 * size (the settings changed) are rebuilt from the exact entries.
+	 */
+	private void restore() {
+		if (file == null || !file.exists()) {
+			return;
+		}
+		try {
+			byte[] data = Files.readAllBytes(file.toPath());
+			if (data.length < 16) {
+				throw new IOException("truncated");
+			}
+			CRC32 crc = new CRC32();
+			crc.update(data, 0, data.length - 4);
+			if ((int) crc.getValue() != ByteBuffer.wrap(data).getInt(data.length - 4)) {
+				throw new IOException("checksum mismatch");
+			}
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(data, 0, data.length - 4));
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				throw new IOException("not a dedup checkpoint of version " + VERSION);
+			}
+			String checkpointStore = in.readUTF();
+			if (!checkpointStore.equals(store)) {
+				throw new IOException("checkpoint of " + checkpointStore + ", not of " + store);
+			}
+			int count = in.readInt();
+			long now = System.currentTimeMillis();
+			Bucket[] restored = buckets.clone();
+			int slot = 0;
+			int entries = 0;
+			for (int b = 0; b < count; b++) {
+				long startMillis = in.readLong();
+				BloomFilter filter = BloomFilter.read(in, in.available() / 8);
+				int size = in.readInt();
+				boolean live = slot < BUCKETS && startMillis + bucketMillis > now - windowMillis && startMillis <= now;
+				Bucket bucket = null;
+				if (live) {
+					BloomFilter own = restored[slot].filter;
+					boolean compatible = own.isCompatible(filter);
+					bucket = new Bucket(startMillis, compatible ? filter : own);
+					restored[slot++] = bucket;
+				}
+				for (int i = 0; i < size; i++) {
+					String defaultId = in.readUTF();
+					int id = in.readInt();
+					if (bucket != null && bucket.exact.size() < maxBucketEntries) {
+						bucket.exact.put(defaultId, new Entry(id));
+						bucket.filter.add(defaultId);
+						entries++;
+					}
+				}
+			}
+			// Keep the order newest first and fill the remaining slots with empty, older buckets.
+			for (int i = slot; i < BUCKETS; i++) {
+				restored[i] = new Bucket(restored[Math.max(0, i - 1)].startMillis - bucketMillis, restored[i].filter);
+				restored[i].filter.clear();
+			}
+			if (slot > 0) {
+				buckets = restored;
+			}
+			Log.info("Dedup window restored from {}: {} defaultIds in {} buckets", file, entries, slot);
+		} catch (IOException e) {
+			Log.warn("Dedup checkpoint {} could not be read, starting empty: {}", file, e);
+		}
+	}
+
+	/**
+	 * Duplicates answered with an earlier allocation.
+	 */
+	public long getDuplicateCount() {
+		return duplicates.get();
+	}
+
+	/**
+	 * Duplicates answered from the store because the exact sets no longer held them.
+	 */
+	public long getConfirmedCount() {
+		return confirmed.get();
+	}
+
+	/**
+	 * DefaultIds in a filter that turned out to be new.
+	 */
+	public long getFalsePositiveCount() {
+		return falsePositives.get();
+	}
+
+	/**
+	 * DefaultIds remembered exactly (approximate while allocations run).
+	 */
+	public int size() {
+		int size = 0;
+		for (Bucket bucket : buckets) {
+			size += bucket.exact.size();
+		}
+		return size;
+	}
+
+	/**
+	 * Memory of the filters in bytes, fixed.
+	 */
+	public int getFilterBytes() {
+		int bytes = 0;
+		for (Bucket bucket : buckets) {
+			bytes += bucket.filter.sizeBytes();
+		}
+		return bytes;
+	}
+}
@@ -0,0 +1,188 @@
+package mqtt;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.Key;
+import java.security.KeyStore;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateFactory;
+
+import startup.Settings;
+import startup.StateDir;
+import util.Log;
+
+/**
+ * KeystoreCache converts the PEM credentials of the Mqtt client into a PKCS12 keystore once and
+ * keeps it on disk, named after a SHA-256 of the PEM files' content (and the key password).
+ * Later starts with the same PEM files load the PKCS12 file with the JDK's own provider, so
+ * BouncyCastle parsing and key decryption are off the startup path.
+ * 
+ * The keystore holds the CA certificate ("ca-certificate") and the client key with its chain
+ * ("private-key"), both protected with {@link #storePassword(String, String)}, a password derived
+ * from the content of the PEM key: only who can read the key can open the keystore. The files are
+ * kept in a directory private to the service user ({@link StateDir#checked(File)}), and a cached
+ * keystore is used only if its certificates are those of the PEM files; anything else is
+ * converted again.
+ * 
+ * Settings: mqtt.ssl.cacheDir (the "keystores" directory of {@link StateDir}).
+ */
+final class KeystoreCache {
+
+	static final String CA_ALIAS 	= "ca-certificate";
+	static final String KEY_ALIAS 	= "private-key";
+
+	private KeystoreCache() {
+	}
+
+	/**
+	 * Content hash of the PEM files, hex encoded.
+	 */
+	static String hash(String caCrtFile, String crtFile, String keyFile, String password) throws IOException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e);
+		}
+		for (String file : new String[] { caCrtFile, crtFile, keyFile }) {
+			byte[] content = Files.readAllBytes(new File(file).toPath());
+			digest.update(content);
+			digest.update((byte) 0);
+		}
+		digest.update(password.getBytes(StandardCharsets.UTF_8));
+
+		StringBuilder sb = new StringBuilder(64);
+		for (byte b : digest.digest()) {
+			sb.append(Character.forDigit((b >> 4) & 0x0f, 16)).append(Character.forDigit(b & 0x0f, 16));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Password protecting the cached keystore: a SHA-256 of the PEM key file and its password, so
+	 * the keystore is as protected as the PEM key it comes from, also when that is not encrypted.
+	 */
+	static char[] storePassword(String keyFile, String password) throws IOException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e);
+		}
+		digest.update("startup keystore".getBytes(StandardCharsets.UTF_8));
+		digest.update((byte) 0);
+		digest.update(Files.readAllBytes(new File(keyFile).toPath()));
+		digest.update((byte) 0);
+		digest.update(password.getBytes(StandardCharsets.UTF_8));
+
+		char[] hex = new char[64];
+		int i = 0;
+		for (byte b : digest.digest()) {
+			hex[i++] = Character.forDigit((b >> 4) & 0x0f, 16);
+			hex[i++] = Character.forDigit(b & 0x0f, 16);
+		}
+		return hex;
+	}
+
+	/**
+	 * Return the PKCS12 keystore for these PEM files, converting them first if needed.
+	 */
+	static KeyStore load(String caCrtFile, String crtFile, String keyFile, String password, String hash) throws Exception {
+		File dir = null;
+		try {
+			String cacheDir = Settings.get("mqtt.ssl.cacheDir", null);
+			dir = StateDir.checked(cacheDir != null ? new File(cacheDir) : StateDir.file("keystores"));
+		} catch (IOException e) {
+			Log.warn("Keystore cache disabled, the PEM files are converted on every start: {}", e.getMessage());
+		}
+		File file = dir == null ? null : new File(dir, hash + ".p12");
+		char[] storePassword = storePassword(keyFile, password);
+
+		if (file != null && file.isFile()) {
+			InputStream in = new FileInputStream(file);
+			try {
+				KeyStore store = KeyStore.getInstance("PKCS12");
+				store.load(in, storePassword);
+				verify(store, caCrtFile, crtFile);
+				Log.debug("SSL credentials loaded from {}", file);
+				return store;
+			} catch (Exception e) {
+				Log.warn("Cached keystore {} is unusable, converting the PEM files again: {}", file, e);
+			} finally {
+				in.close();
+			}
+		}
+
+		// First start with these files: parse the PEM files and keep the result.
+		KeyStore[] pem = SslUtil.parsePem(caCrtFile, crtFile, keyFile, password);
+		Key key = pem[1].getKey(KEY_ALIAS, password.toCharArray());
+
+		KeyStore store = KeyStore.getInstance("PKCS12");
+		store.load(null, null);
+		store.setCertificateEntry(CA_ALIAS, pem[0].getCertificate(CA_ALIAS));
+		store.setKeyEntry(KEY_ALIAS, key, storePassword, pem[1].getCertificateChain(KEY_ALIAS));
+
+		if (file == null) {
+			return store;
+		}
+		try {
+			write(store, storePassword, dir, file);
+			Log.info("SSL credentials converted to {}", file);
+		} catch (IOException e) {
+			// Not fatal, the next start parses the PEM files again.
+			Log.warn("Keystore cache {} could not be written: {}", file, e);
+		}
+		return store;
+	}
+
+	/**
+	 * Check that the certificates of a cached keystore are those of the PEM files. The JDK reads
+	 * PEM certificates itself, only the key needs BouncyCastle.
+	 */
+	private static void verify(KeyStore store, String caCrtFile, String crtFile) throws Exception {
+		CertificateFactory factory = CertificateFactory.getInstance("X.509");
+		Certificate ca;
+		Certificate crt;
+		InputStream in = new FileInputStream(caCrtFile);
+		try {
+			ca = factory.generateCertificate(in);
+		} finally {
+			in.close();
+		}
+		in = new FileInputStream(crtFile);
+		try {
+			crt = factory.generateCertificate(in);
+		} finally {
+			in.close();
+		}
+		Certificate[] chain = store.getCertificateChain(KEY_ALIAS);
+		if (!ca.equals(store.getCertificate(CA_ALIAS)) || chain == null || chain.length == 0 || !crt.equals(chain[0])) {
+			throw new IOException("its certificates are not those of " + caCrtFile + " and " + crtFile);
+		}
+	}
+
+	private static void write(KeyStore store, char[] storePassword, File dir, File file) throws Exception {
+		File tmp = File.createTempFile(file.getName(), ".tmp", dir);
+		tmp.setReadable(false, false);
+		tmp.setReadable(true, true);
+		tmp.setWritable(false, false);
+		tmp.setWritable(true, true);
+		OutputStream out = new FileOutputStream(tmp);
+		try {
+			store.store(out, storePassword);
+		} finally {
+			out.close();
+		}
+		// Readers never see a half written keystore.
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+}
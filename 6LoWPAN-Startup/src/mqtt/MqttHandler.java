@@ -17,10 +17,17 @@
 package mqtt;
 
 import java.sql.SQLException;
-import java.sql.Timestamp;
 import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.SocketFactory;
 
 import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.IMqttAsyncClient;
 import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
 import org.eclipse.paho.client.mqttv3.IMqttToken;
 import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
@@ -30,6 +37,12 @@ import org.eclipse.paho.client.mqttv3.MqttException;
 import org.eclipse.paho.client.mqttv3.MqttMessage;
 import org.eclipse.paho.client.mqttv3.persist.MqttDefaultFilePersistence;
 
+import mqtt.flow.RegistrationPipeline;
+import mqtt.nio.NioMqttClient;
+import startup.Settings;
+import util.Log;
+import util.RingBuffer;
+
 /**
  * A sample application that demonstrates how to use the Paho MQTT v3.1 Client API in
  * non-blocking callback/notification mode.
@@ -53,55 +66,68 @@ import org.eclipse.paho.client.mqttv3.persist.MqttDefaultFilePersistence;
  */
 public class MqttHandler implements MqttCallback {
 
-	private int state = BEGIN;	
-
-	private static final int BEGIN = 0;
-	private static final int CONNECTED = 1;
-	private static final int PUBLISHED = 2;
-	private static final int SUBSCRIBED = 3;
-	private static final int DISCONNECTED = 4;
-	private static final int FINISH = 5;
-	private static final int ERROR = 6;
-	private static final int UNSUBSCRIBED = 9;
-
 	// Private instance variables
-	private MqttAsyncClient client;
+	private IMqttAsyncClient client;
 	private String 	brokerUrl;
 	private MqttConnectOptions conOpt;
-	private Throwable ex = null;
-	private Object waiter = new Object();
-	private boolean donext = false;
+	private volatile IMqttToken connectToken = null;	// The first connect, see subscribe
 	
 	// V> New objects for Vestel distribution.
 	private MqttManager mqttManager = null;
-	private final boolean QUIETMODE	= false;		// Log on the console
+	private Reconnector reconnector = null;
+	private boolean publishOnly = false;	// Reply connection of the PublisherPool
 	private static MqttHandler handlerInst = null;	// Singleton object
 	
+	// Arrived messages by topic filter, see addRoutes.
+	private final TopicRouter router = new TopicRouter();
+	
+	// Publishes in flight at most, the limit of the client; more would fail with 32202.
+	private final Semaphore inflight;
+	private static final int PUBLISH_TIMEOUT = 6000;
+	private static final int SUBSCRIBE_TIMEOUT = 10000;
+	
+	// Id generation of arrived devices (DB insert + reply) and lookups, off the Paho callback
+	// thread: handed to the workers through the reusable slots of a ring (mqtt.ring.size slots,
+	// mqtt.ring.wait spin|yield|park). When the ring is full they wait in an overflow queue of at
+	// most mqtt.ring.overflow requests, then are dropped (see submit).
+	private static final int REGISTRATION 	= 0;
+	private static final int LOOKUP 		= 1;
+	private final AtomicInteger pendingWork = new AtomicInteger();
+	private final RingBuffer<Request> requests = new RingBuffer<Request>(Settings.getInt("mqtt.ring.size", 1024),
+			new RingBuffer.Factory<Request>() {
+				public Request create() {
+					return new Request();
+				}
+			}, RingBuffer.Wait.parse(Settings.get("mqtt.ring.wait", "park"), RingBuffer.Wait.PARK));
+
+	private final ConcurrentLinkedDeque<Request> overflow = new ConcurrentLinkedDeque<Request>();
+	private final AtomicInteger overflowSize = new AtomicInteger();
+	private final int overflowCapacity = Settings.getInt("mqtt.ring.overflow", 65536);
+	private final AtomicInteger shed = new AtomicInteger();
+
+	/**
+	 * An arrived message waiting for a worker, a slot of the ring (or of the overflow queue).
+	 */
+	private static final class Request {
+		int type;
+		String defaultId;	// REGISTRATION
+		byte[] payload;		// LOOKUP
+		long arrived;
+	}
+
+	// With mqtt.pipeline=flow the registrations go through the stages of a Flow pipeline instead
+	// of the ring (the lookups stay on the ring).
+	private RegistrationPipeline pipeline = null;
+	
 	/**
 	 * Initialize and return MqttHandler instance.
 	 */
-	public static MqttHandler getHandlerInst(MqttManager mqttManager, String broker, String clientId, int port, boolean cleanSession, boolean ssl, String userName, String password){
+	public static MqttHandler getHandlerInst(MqttManager mqttManager, String broker, String clientId, int port, boolean cleanSession, boolean ssl, String userName, String password) throws MqttException {
 
 		// Singleton pattern.
 		if(handlerInst == null){
-	
 			// With a valid set of arguments, the real work of driving the client API can begin
-			try {
-				// Create an instance of the client wrapper
-				handlerInst = new MqttHandler(mqttManager, broker, clientId, port, cleanSession, ssl, userName, password);
-	
-			} catch (MqttException me) {
-				// Display full details of any exception that occurs
-				System.out.println("reason " + me.getReasonCode());
-				System.out.println("msg " + me.getMessage());
-				System.out.println("loc " + me.getLocalizedMessage());
-				System.out.println("cause " + me.getCause());
-				System.out.println("excep " + me);
-				me.printStackTrace();
-			} catch (Throwable th) {
-				System.out.println("Throwable caught "+th);
-				th.printStackTrace();
-			}	
+			handlerInst = new MqttHandler(mqttManager, broker, clientId, port, cleanSession, ssl, userName, password);
 		}
 		return handlerInst;
 	}
@@ -110,6 +136,22 @@ public class MqttHandler implements MqttCallback {
 	 * Constructs an instance of the sample client wrapper
 	 */
     public MqttHandler(MqttManager mqttManager, String broker, String clientId, int port, boolean cleanSession, boolean ssl, String userName, String password) throws MqttException {
+    	this(mqttManager, broker, clientId, port, cleanSession, ssl, userName, password, false);
+    }
+
+	/**
+	 * Constructs a client wrapper; a publishOnly one (see {@link PublisherPool}) has no will and
+	 * restores neither subscriptions nor the status after a reconnect.
+	 */
+    public MqttHandler(MqttManager mqttManager, String broker, String clientId, int port, boolean cleanSession, boolean ssl, String userName, String password, boolean publishOnly) throws MqttException {
+    	this(mqttManager, BrokerSite.of(broker, port, ssl, userName, password), clientId, cleanSession, publishOnly);
+    }
+
+	/**
+	 * Constructs a client wrapper connected to a broker site: its first server URI, or the next
+	 * ones in order when it cannot be reached (at the first connect and at every reconnect).
+	 */
+    public MqttHandler(MqttManager mqttManager, BrokerSite site, String clientId, boolean cleanSession, boolean publishOnly) throws MqttException {
     	
     	//This sample stores in a temporary directory... where messages temporarily
     	// stored until the message has been delivered to the server.
@@ -120,30 +162,62 @@ public class MqttHandler implements MqttCallback {
 
     	try {
     		this.mqttManager = mqttManager;
+    		this.publishOnly = publishOnly;
+    		this.reconnector = new Reconnector(this, site.getOutboxFile(clientId));
+    		if (!publishOnly) {
+    			// A reply connection receives nothing.
+    			startWorkers(site);
+    		}
     		
     		// Construct the object that contains connection parameters such as cleanSession and LWT
 			conOpt = new MqttConnectOptions();
 			conOpt.setCleanSession(cleanSession);
 			
-			if (password != null) {
-				conOpt.setPassword(password.toCharArray());
+			if (site.getPassword() != null) {
+				conOpt.setPassword(site.getPassword().toCharArray());
 			}
-			if (userName != null) {
-				conOpt.setUserName(userName);
+			if (site.getUserName() != null) {
+				conOpt.setUserName(site.getUserName());
 			}
 			
 			// SSL/TLS Configuration
-			String protocol = "tcp://";
+			boolean ssl = site.isSsl();
 			if (ssl){
-				// TODO MAKE SSL/TLS CONFIGURATION! 
-				//protocol = "ssl://";
-				//ServletContext servletContext = (ServletContext) FacesContext.getCurrentInstance().getExternalContext().getContext();
-				//conOpt.setSocketFactory(SslUtil.getSocketFactory(servletContext.getRealPath("/resources/certificates/ca.crt"), servletContext.getRealPath("/resources/certificates/client.crt"), servletContext.getRealPath("/resources/certificates/client.key"), "trialclt"));
+				// The factory (and its SSLContext) is cached by SslUtil, so reconnects with the same
+				// options resume the TLS session instead of doing a full handshake.
+				SocketFactory socketFactory = site.getSocketFactory();
+				if (socketFactory == null) {
+					throw new IllegalStateException("SSL/TLS socket factory could not be created");
+				}
+				conOpt.setSocketFactory(socketFactory);
+			}
+			String[] serverUris = site.getServerUris();
+			this.brokerUrl = serverUris[0];
+			if (serverUris.length > 1) {
+				// Paho tries them in order on every connect.
+				conOpt.setServerURIs(serverUris);
+			}
+			
+			// Subscribers of the status topic see "offline" if the service disappears without a
+			// clean shutdown.
+			if (!publishOnly) {
+				conOpt.setWill(MqttManager.STATUS_TOPIC, MqttManager.STATUS_OFFLINE.getBytes(), 1, true);
 			}
-			this.brokerUrl = protocol + broker + ":" + port;
 			
-    		// Construct the MqttClient instance
-			client = new MqttAsyncClient(this.brokerUrl, clientId, dataStore);
+    		// Construct the MqttClient instance: Paho, or the in-house NIO client (mqtt.client=nio)
+			boolean nio = Settings.get("mqtt.client", "paho").equals("nio");
+			if (nio && ssl) {
+				Log.warn("mqtt.client=nio does not support SSL/TLS, using the Paho client");
+			} else if (nio && serverUris.length > 1) {
+				Log.warn("mqtt.client=nio does not support backup brokers, using the Paho client for site {}", site);
+			}
+			if (nio && !ssl && serverUris.length == 1) {
+				client = new NioMqttClient(this.brokerUrl, clientId);
+			} else {
+				client = new MqttAsyncClient(this.brokerUrl, clientId, dataStore);
+			}
+			inflight = new Semaphore(maxInflight(client));
+			addRoutes();
 
 			// Set this wrapper as the callback handler
 	    	client.setCallback(this);
@@ -152,23 +226,167 @@ public class MqttHandler implements MqttCallback {
 	    	connect();
 
 		} catch (MqttException e) {
-			e.printStackTrace();
-			log("Unable to set up client: "+e.toString());
-			System.exit(1);
+			Log.error("Unable to set up client: {}", e.toString(), e);
+			throw e;
 		} catch (Throwable e) {
-			e.printStackTrace();
-			log("Unable to connect broker: "+e.toString());
-			System.exit(1);
+			Log.error("Unable to connect broker: {}", e.toString(), e);
+			// The caller (startup orchestration) decides whether the process exits.
+			throw new MqttException(e);
 		}
     }
     
+    /**
+     * Constructs an instance around an already created client. The client is not connected here,
+     * so this is the way to run the handler on top of a stub client.
+     */
+    public MqttHandler(MqttManager mqttManager, IMqttAsyncClient client) {
+    	
+    	this.mqttManager = mqttManager;
+    	this.conOpt = new MqttConnectOptions();
+    	this.brokerUrl = client.getServerURI();
+    	this.client = client;
+    	this.inflight = new Semaphore(maxInflight(client));
+    	BrokerSite site = mqttManager.getSite();
+    	this.reconnector = new Reconnector(this, site.getOutboxFile(client.getClientId()));
+    	startWorkers(site);
+    	addRoutes();
+    	client.setCallback(this);
+    }
+    
+    /**
+     * Start the id generation workers of the connection, mqtt.workers (or the workers of the site).
+     * They take the requests from the ring until {@link #close()}. With mqtt.pipeline=flow the
+     * registration pipeline is set up as well.
+     */
+    private void startWorkers(BrokerSite site) {
+    	if (Settings.get("mqtt.pipeline", "ring").equals("flow")) {
+    		pipeline = new RegistrationPipeline(mqttManager, new RegistrationPipeline.Done() {
+    			public void done(RegistrationPipeline.Registration registration, boolean answered) {
+    				if (answered) {
+    					mqttManager.getMetrics().record(System.nanoTime() - registration.getArrived());
+    				}
+    				workDone();
+    			}
+    		});
+    	}
+    	String prefix = "default".equals(site.getName()) ? "mqtt-worker-" : "mqtt-worker-" + site.getName() + "-";
+    	for (int i = 1; i <= site.getWorkers(); i++) {
+    		Thread t = new Thread(prefix + i) {
+    			public void run() {
+    				work();
+    			}
+    		};
+    		t.setDaemon(true);
+    		t.start();
+    	}
+    }
+
+    /**
+     * In-flight limit of the client: 10 for Paho (mqtt.maxInflight), mqtt.nio.maxInflight for the
+     * NIO client.
+     */
+    private static int maxInflight(IMqttAsyncClient client) {
+    	if (client instanceof NioMqttClient) {
+    		return ((NioMqttClient) client).getMaxInflight();
+    	}
+    	return Settings.getInt("mqtt.maxInflight", 10);
+    }
+
+    /**
+     * Route the topics the service subscribes to. Further routes can be added to {@link #getRouter()}
+     * before their topics are subscribed.
+     */
+    private void addRoutes() {
+    	// default_id of new device
+    	router.add("vestel/newDevice/defaultId", new TopicRouter.Route() {
+    		public void handle(String topic, TopicRouter.Captures captures, MqttMessage message) {
+    			if (pipeline != null) {
+    				// Decoded in the pipeline; queued without waiting, dropped if it is closed or full.
+    				pendingWork.incrementAndGet();
+    				if (!pipeline.submit(message.getPayload(), System.nanoTime())) {
+    					workDone();
+    				}
+    				return;
+    			}
+    			String payload = PayloadCodec.decodeDefaultId(message.getPayload());
+    			long arrived = System.nanoTime();
+    			if (payload == null) {
+    				Log.warn("Invalid defaultId of {} bytes dropped", message.getPayload().length);
+    				return;
+    			}
+    			Log.info("Topic: {}  Message: {}  QoS: {}", topic, payload, message.getQos());
+
+    			// Generate new id and publish it to related topic to be taken by related device.
+    			submit(REGISTRATION, payload, null, arrived);
+    		}
+    	});
+    	// bulk defaultId <-> id translation of other services
+    	router.add(MqttManager.LOOKUP_TOPIC, new TopicRouter.Route() {
+    		public void handle(String topic, TopicRouter.Captures captures, MqttMessage message) {
+    			byte[] request = message.getPayload();
+    			Log.debug("Lookup request of {} bytes", request.length);
+    			submit(LOOKUP, null, request, System.nanoTime());
+    		}
+    	});
+    	// lease renewal, cheap enough for the callback thread
+    	router.add(MqttManager.HEARTBEAT_TOPIC, new TopicRouter.Route() {
+    		public void handle(String topic, TopicRouter.Captures captures, MqttMessage message) {
+    			String defaultId = PayloadCodec.decodeDefaultId(message.getPayload());
+    			if (defaultId != null) {
+    				mqttManager.heartbeat(defaultId);
+    			}
+    		}
+    	});
+    }
+
+    public TopicRouter getRouter() {
+    	return router;
+    }
+
+    public RegistrationPipeline getPipeline() {
+    	return pipeline;
+    }
+
+    // Accessors used by the reconnection subsystem.
+    IMqttAsyncClient getClient() {
+    	return client;
+    }
+
+    MqttConnectOptions getConnectOptions() {
+    	return conOpt;
+    }
+
+    MqttManager getMqttManager() {
+    	return mqttManager;
+    }
+
+    String getBrokerUrl() {
+    	return brokerUrl;
+    }
+
+    public Reconnector getReconnector() {
+    	return reconnector;
+    }
+
+    boolean isPublishOnly() {
+    	return publishOnly;
+    }
+
+    /**
+     * True if a publish would go out right away: connected, not recovering and with a free
+     * in-flight slot.
+     */
+    boolean isAvailable() {
+    	return client.isConnected() && !reconnector.isReconnecting() && inflight.availablePermits() > 0;
+    }
+
     /**
      * Connect the broker.
      */
     public void connect() throws Throwable {
     	
     	MqttConnector con = new MqttConnector();
-    	con.doConnect();
+    	connectToken = con.doConnect();
     }
 
     /**
@@ -179,117 +397,209 @@ public class MqttHandler implements MqttCallback {
      * @throws MqttException
      */
     public void publish(String topicName, int qos, byte[] payload, boolean retained) throws Throwable {
-    	// Use a state machine to decide which step to do next. State change occurs
-    	// when a notification is received that an MQTT action has completed
-    	
-    	state = BEGIN;
     	
-    	while (state != FINISH) {
-    		switch (state) {
-    		case BEGIN:
-    			// Connect using a non-blocking connect
-				if (client.isConnected()) {
-					donext = true;
-					state = CONNECTED;
-				}
-    			break;
-    		case CONNECTED:
-    			// Publish using a non-blocking publisher
-    			Publisher pub = new Publisher();
-    			pub.doPublish(topicName, qos, payload, retained);
-    			break;
-    		case ERROR:
-    			log("Error is received!");
-    			throw ex;
-    		case PUBLISHED:
-    			state = FINISH;
-    			donext = true;
-    			break;
+    	if (reconnector.isReconnecting()) {
+    		// Keep the reply until the connection is back instead of blocking the caller.
+    		reconnector.buffer(topicName, qos, payload, retained);
+    		return;
+    	}
+    	try {
+    		publishConnected(topicName, qos, payload, retained);
+    	} catch (MqttException e) {
+    		if (e.getReasonCode() == MqttException.REASON_CODE_CLIENT_NOT_CONNECTED
+    				|| e.getReasonCode() == MqttException.REASON_CODE_CONNECTION_LOST) {
+    			// The connection dropped meanwhile, possibly before connectionLost reached the
+    			// reconnector (the clients fail in-flight publishes then); the recovery flushes it.
+    			reconnector.buffer(topicName, qos, payload, retained);
+    			return;
     		}
+    		throw e;
+    	}
+    }
 
-    		if (state != FINISH) {
-        		// Wait(6 seconds) until notified about a state change and then perform next action.
-    			waitForStateChange(6000);
-    		}
+    /**
+     * Publish without going through the outbox; fails if the connection is being recovered.
+     */
+    void publishConnected(String topicName, int qos, byte[] payload, boolean retained) throws Throwable {
+    	// Publishes run on several worker threads at once, so completion is tracked per message
+    	// (token), as for connect and subscribe.
+    	if (!client.isConnected()) {
+    		throw new MqttException(MqttException.REASON_CODE_CLIENT_NOT_CONNECTED);
+    	}
+    	long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(PUBLISH_TIMEOUT);
+    	Publisher pub = new Publisher();
+    	IMqttDeliveryToken token = send(pub, topicName, qos, payload, retained, null, deadline);
+    	try {
+    		token.waitForCompletion(Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())));
+    	} finally {
+    		pub.release();
     	}
     }
 
     /**
-     * Wait for a maximum amount of time for a state change event to occur
-     * @param maxTTW  maximum time to wait in milliseconds
-     * @throws MqttException
+     * Publish without waiting for the delivery: returns once the client has taken the message,
+     * waiting only for a free in-flight slot, and tells listener the outcome from the callback
+     * thread of the client. A reply kept in the outbox counts as a success, told at once.
      */
-    private void waitForStateChange(int maxTTW) throws MqttException {
-    	synchronized (waiter) {
-    		if (!donext ) {
-    			try {
-    				//log("(1)"+operation+"-Waiting is beginning..");
-    				waiter.wait(maxTTW);
-    				//log("(2)"+operation+"-Notification is received!");
-    			} catch (InterruptedException e) {
-    				log("timed out");
-    				e.printStackTrace();
-    			}
+    public void publishAsync(String topicName, int qos, byte[] payload, boolean retained, IMqttActionListener listener) throws Throwable {
+    	try {
+    		if (reconnector.isReconnecting()) {
+    			reconnector.buffer(topicName, qos, payload, retained);
+    			listener.onSuccess(null);
+    			return;
+    		}
+    		if (!client.isConnected()) {
+    			throw new MqttException(MqttException.REASON_CODE_CLIENT_NOT_CONNECTED);
+    		}
+    		send(new Publisher(), topicName, qos, payload, retained, listener,
+    				System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(PUBLISH_TIMEOUT));
+    	} catch (MqttException e) {
+    		if (e.getReasonCode() == MqttException.REASON_CODE_CLIENT_NOT_CONNECTED
+    				|| e.getReasonCode() == MqttException.REASON_CODE_CONNECTION_LOST) {
+    			reconnector.buffer(topicName, qos, payload, retained);
+    			listener.onSuccess(null);
+    			return;
+    		}
+    		throw e;
+    	}
+    }
 
-    			if (ex != null) {
-    				throw (MqttException)ex;
+    /**
+     * Take an in-flight slot and hand the message to the client, retrying until deadline while the
+     * client has no slot either. The slot is given back by pub, at completion at the latest.
+     */
+    private IMqttDeliveryToken send(Publisher pub, String topicName, int qos, byte[] payload, boolean retained,
+    		IMqttActionListener listener, long deadline) throws MqttException, InterruptedException {
+    	if (!inflight.tryAcquire(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)) {
+    		throw new MqttException(MqttException.REASON_CODE_MAX_INFLIGHT);
+    	}
+    	while (true) {
+    		try {
+    			return pub.doPublish(topicName, qos, payload, retained, listener);
+    		} catch (MqttException e) {
+    			// Messages of a timed out wait may still hold a slot of the client; retry shortly.
+    			if (e.getReasonCode() != MqttException.REASON_CODE_MAX_INFLIGHT || System.nanoTime() > deadline) {
+    				pub.release();
+    				throw e;
     			}
+    			Thread.sleep(1);
     		}
-    		//else log("(3)"+operation+"-No waiting!");
-    		donext = false;
     	}
     }
 
     /**
-     * Subscribe to a topic on an MQTT server
-     * Once subscribed this method waits for the messages to arrive from the server
-     * that match the subscription. It continues listening for messages until the enter key is
-     * pressed.
+     * Subscribe to a topic on an MQTT server and wait for the broker to confirm. Waits for the
+     * first connect if it is still running; fails if the client is not connected.
+     * 
+     * Every call waits on its own token, so the failure of an earlier subscribe or connect (a
+     * connection lost while restoring) does not fail the next one.
      * @param topicName to subscribe to (can be wild carded)
      * @param qos the maximum quality of service to receive messages at for this subscription
      * @throws MqttException
      */
     public void subscribe(String topicName, int qos) throws Throwable {
-    	// Use a state machine to decide which step to do next. State change occurs
-    	// when a notification is received that an MQTT action has completed
-    	
-    	state = BEGIN;	
-    	
-    	while (state != FINISH) {
-    		switch (state) {
-    		case BEGIN:
-    			// Connect using a non-blocking connect
-				if (client.isConnected()) {
-					donext = true;
-					state = CONNECTED;
-				}
-    			break;
-    		case CONNECTED:
-    			// Subscribe using a non-blocking subscribe
-    			Subscriber sub = new Subscriber();
-    			sub.doSubscribe(topicName, qos);
-    			break;
-    		case ERROR:
-    			throw ex;
-    		case SUBSCRIBED:
-    			state = FINISH;
-    			donext = true;
-    			break;
+    	IMqttToken connecting = connectToken;
+    	if (!client.isConnected() && connecting != null && !connecting.isComplete()) {
+    		connecting.waitForCompletion(TimeUnit.SECONDS.toMillis(Math.max(1, conOpt.getConnectionTimeout())));
+    	}
+    	if (!client.isConnected()) {
+    		throw new MqttException(MqttException.REASON_CODE_CLIENT_NOT_CONNECTED);
+    	}
+    	IMqttToken token = new Subscriber().doSubscribe(topicName, qos);
+    	token.waitForCompletion(SUBSCRIBE_TIMEOUT);
+    	int[] granted = token.getGrantedQos();
+    	if (granted != null && granted.length > 0 && granted[0] == 0x80) {
+    		// Refused by the broker.
+    		throw new MqttException(MqttException.REASON_CODE_SUBSCRIBE_FAILED);
+    	}
+    }
+
+    /**
+     * Unsubscribe from a topic and wait up to timeoutMs for the broker to confirm.
+     */
+    public void unsubscribe(String topicName, long timeoutMs) throws MqttException {
+    	Unsubscriber unsub = new Unsubscriber();
+    	unsub.doUnsubscribe(topicName).waitForCompletion(timeoutMs);
+    }
+
+    /**
+     * Wait up to timeoutMs for the id generations already started (after unsubscribing, so no new
+     * ones arrive). Returns false if some are still running.
+     *
+     * The workers keep running: a message the broker had in flight when we unsubscribed must still
+     * get its reply, and it cannot be served on the callback thread (it would wait for its own
+     * delivery notification).
+     */
+    public boolean drain(long timeoutMs) throws InterruptedException {
+    	long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+    	synchronized (pendingWork) {
+    		while (pendingWork.get() > 0) {
+    			long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+    			if (remaining <= 0) {
+    				return false;
+    			}
+    			pendingWork.wait(remaining);
     		}
+    	}
+    	return true;
+    }
 
-    		if (state != FINISH)
-        		// Wait(6 seconds) until notified about a state change and then perform next action.
-    			waitForStateChange(500);
+    /**
+     * Wait up to timeoutMs for the outstanding publishes (including QoS 2 handshakes) to complete.
+     * Returns the number of publishes still outstanding.
+     */
+    public int awaitDeliveries(long timeoutMs) {
+    	long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+    	IMqttDeliveryToken[] tokens = client.getPendingDeliveryTokens();
+    	int pending = 0;
+    	for (IMqttDeliveryToken token : tokens) {
+    		long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+    		try {
+    			if (remaining > 0) {
+    				token.waitForCompletion(remaining);
+    			}
+    		} catch (MqttException e) {
+    			// Timed out or failed, counted below.
+    		}
+    		if (!token.isComplete()) {
+    			pending++;
+    		}
     	}
+    	return pending;
+    }
+
+    /**
+     * Disconnect, giving the client up to quiesceMs to finish the work in progress.
+     */
+    public void disconnect(long quiesceMs) throws MqttException {
+    	Disconnector disc = new Disconnector();
+    	disc.doDisconnect(quiesceMs).waitForCompletion(quiesceMs + 1000);
     }
 
     /**
-     * Utility method to handle logging. If 'quietMode' is set, this method does nothing
-     * @param message the message to log
+     * Drop the connection without waiting and release the client, e.g. to replace a stuck
+     * connection. Replies in the outbox stay in its file; replies still routed here fail with
+     * REASON_CODE_CLIENT_CLOSED.
      */
-    void log(String message) {
-    	if (!QUIETMODE) {
-    		System.out.println(message);
+    public void close() {
+    	reconnector.shutdown();
+    	reconnector.closeOutbox();
+    	// The workers finish the requests already in the ring, then stop; the overflow is dropped.
+    	requests.close();
+    	while (overflow.poll() != null) {
+    		overflowSize.decrementAndGet();
+    		workDone();
+    	}
+    	if (pipeline != null) {
+    		pipeline.close();
+    	}
+    	try {
+    		if (client.isConnected()) {
+    			client.disconnectForcibly(0, 1000);
+    		}
+    		client.close();
+    	} catch (MqttException e) {
+    		Log.debug("Closing {} failed: {}", client.getClientId(), e);
     	}
     }
 
@@ -302,17 +612,8 @@ public class MqttHandler implements MqttCallback {
      */
 	public void connectionLost(Throwable cause) {
 		// Called when the connection to the server has been lost.
-		// An application may choose to implement reconnection
-		// logic at this point or simply exit.
-		log("Connection to " + brokerUrl + " lost!" + cause);
-		
-		try {
-			connect();
-			mqttManager.subscribe();
-		} catch (Throwable e) {
-			System.out.println("Throwable caught "+e);
-		}
-		// System.exit(1);
+		// Reconnect with backoff; subscriptions and buffered replies are restored once connected.
+		reconnector.connectionLost(cause);
 	}
 
     /**
@@ -333,7 +634,9 @@ public class MqttHandler implements MqttCallback {
 		//
 		// note that token.getTopics() returns an array so we convert to a string
 		// before printing it on the console
-		log("Delivery complete callback: Publish Completed "+Arrays.toString(token.getTopics()));
+		if (Log.isDebugEnabled()) {
+			Log.debug("Delivery complete callback: Publish Completed {}", Arrays.toString(token.getTopics()));
+		}
 	}
 
     /**
@@ -343,29 +646,130 @@ public class MqttHandler implements MqttCallback {
 	public void messageArrived(String topic, MqttMessage message) throws MqttException {
 		// Called when a message arrives from the server that matches any
 		// subscription made by the client
-		String time = new Timestamp(System.currentTimeMillis()).toString();
-		System.out.println("Time:\t" +time +
-                           "  Topic:\t" + topic +
-                           "  Message:\t" + new String(message.getPayload()) +
-                           "  QoS:\t" + message.getQos());
-
-		// Parse received msg.
-		switch (topic) {
-		case "vestel/newDevice/defaultId":	// default_id of new device
-
-			// Set the message coming from the broker.
-			mqttManager.setDefaultId(new String(message.getPayload()));
-			// Create new thread to generate new id and publish it to related topic to be taken by related device.
-			new Thread() {
-				public void run() {
-					try {
-						mqttManager.generateNewId();
-					} catch (SQLException | MqttException e) {
-						e.printStackTrace();
+
+		// Hand the message to the route of its topic (a trie lookup, see TopicRouter).
+		if (!router.dispatch(topic, message)) {
+			Log.info("Topic: {}  Message: {} bytes  QoS: {}", topic, message.getPayload().length, message.getQos());
+		}
+	}
+
+	/**
+	 * Hand an arrived message to the workers, counted for {@link #drain(long)}. Runs on the callback
+	 * thread, which must never wait for the workers: they wait for the delivery notifications of
+	 * their replies, and those are delivered by this very thread. So a full ring does not hold back
+	 * the broker; the request goes to the overflow queue, which the workers move into the ring as
+	 * slots free up, and beyond mqtt.ring.overflow it is dropped (the device asks again).
+	 */
+	private void submit(int type, String defaultId, byte[] payload, long arrived) {
+		pendingWork.incrementAndGet();
+		if (requests.isClosed()) {
+			Log.warn("Handler closed, message of {} dropped", defaultId != null ? defaultId : "lookup");
+			workDone();
+			return;
+		}
+		// Behind the overflow queue while it holds requests, so they keep their order.
+		long seq = overflowSize.get() == 0 ? requests.tryClaim() : -1;
+		if (seq >= 0) {
+			Request request = requests.get(seq);
+			request.type = type;
+			request.defaultId = defaultId;
+			request.payload = payload;
+			request.arrived = arrived;
+			requests.publish(seq);
+			return;
+		}
+		if (overflowSize.incrementAndGet() > overflowCapacity) {
+			overflowSize.decrementAndGet();
+			int count = shed.incrementAndGet();
+			if (count == 1 || count % 1000 == 0) {
+				Log.warn("Request queue full, message of {} dropped ({} so far)", defaultId != null ? defaultId : "lookup", count);
+			}
+			workDone();
+			return;
+		}
+		Request request = new Request();
+		request.type = type;
+		request.defaultId = defaultId;
+		request.payload = payload;
+		request.arrived = arrived;
+		overflow.add(request);
+		// The workers may have emptied the ring meanwhile and be waiting for it.
+		refill();
+	}
+
+	/**
+	 * Move requests of the overflow queue into the free slots of the ring, oldest first.
+	 */
+	private void refill() {
+		while (overflowSize.get() > 0) {
+			Request request = overflow.poll();
+			if (request == null) {
+				return;
+			}
+			long seq = requests.tryClaim();
+			if (seq < 0) {
+				overflow.addFirst(request);
+				return;
+			}
+			overflowSize.decrementAndGet();
+			Request slot = requests.get(seq);
+			slot.type = request.type;
+			slot.defaultId = request.defaultId;
+			slot.payload = request.payload;
+			slot.arrived = request.arrived;
+			requests.publish(seq);
+		}
+	}
+
+	/**
+	 * Messages dropped because the ring and the overflow queue (or the queue of the pipeline) were
+	 * full.
+	 */
+	public int getShedCount() {
+		return shed.get() + (pipeline != null ? pipeline.getShedCount() : 0);
+	}
+
+	/**
+	 * Worker loop: take a request, free its slot at once, then serve it.
+	 */
+	private void work() {
+		try {
+			long seq;
+			while ((seq = requests.take()) >= 0) {
+				Request request = requests.get(seq);
+				int type = request.type;
+				String defaultId = request.defaultId;
+				byte[] payload = request.payload;
+				long arrived = request.arrived;
+				request.defaultId = null;
+				request.payload = null;
+				requests.release(seq);
+				refill();
+				try {
+					if (type == REGISTRATION) {
+						mqttManager.generateNewId(defaultId);
+						mqttManager.getMetrics().record(System.nanoTime() - arrived);
+					} else {
+						mqttManager.lookup(payload);
 					}
+				} catch (SQLException | MqttException e) {
+					Log.error("Request of {} failed", defaultId, e);
+				} catch (RuntimeException e) {
+					Log.error("Request of {} failed", defaultId, e);
+				} finally {
+					workDone();
 				}
-			}.start();
-			break;
+			}
+		} catch (InterruptedException e) {
+			// Stopped.
+		}
+	}
+
+	private void workDone() {
+		if (pendingWork.decrementAndGet() == 0) {
+			synchronized (pendingWork) {
+				pendingWork.notifyAll();
+			}
 		}
 	}
 
@@ -406,54 +810,33 @@ public class MqttHandler implements MqttCallback {
     }
 
 	/**
-	 * Connect in a non-blocking way and then sit back and wait to be
-	 * notified that the action has completed.
+	 * Connect in a non-blocking way. Completion is reported through the returned token.
 	 */
     public class MqttConnector {
 
 		public MqttConnector() {
 		}
 
-		public void doConnect() {
+		public IMqttToken doConnect() throws MqttException {
 	    	// Connect to the server
 			// Get a token and setup an asynchronous listener on the token which
 			// will be notified once the connect completes
-	    	log("Connecting to "+brokerUrl + " with client ID "+client.getClientId());
+	    	Log.debug("Connecting to {} with client ID {}", brokerUrl, client.getClientId());
 
 	    	IMqttActionListener conListener = new IMqttActionListener() {
 				public void onSuccess(IMqttToken asyncActionToken) {
-			    	log("Connected");
-			    	state = CONNECTED;
-			    	carryOn();
+			    	Log.debug("Connected");
 				}
 
 				public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
-					ex = exception;
-					state = ERROR;
-					log ("connect failed" +exception);
-					carryOn();
-				}
-
-				public void carryOn() {
-			    	synchronized (waiter) {
-			    		log("Notified by doConnect()!");
-			    		donext=true;
-			    		waiter.notifyAll();
-			    	}
+					Log.debug("Connect failed: {}", exception);
 				}
 			};
 
-	    	try {
-	    		// Connect using a non-blocking connect
-	    		client.connect(conOpt,"Connect sample context", conListener);
-			} catch (MqttException e) {
-				// If though it is a non-blocking connect an exception can be
-				// thrown if validation of parms fails or other checks such
-				// as already connected fail.
-				state = ERROR;
-				donext = true;
-				ex = e;
-			}
+	    	// Connect using a non-blocking connect. Even though it is non-blocking an exception
+	    	// can be thrown if validation of parms fails or other checks such as already
+	    	// connected fail.
+	    	return client.connect(conOpt,"Connect sample context", conListener);
 		}
 	}
 
@@ -462,7 +845,17 @@ public class MqttHandler implements MqttCallback {
 	 * notified that the action has completed.
 	 */
 	public class Publisher {
-		public void doPublish(String topicName, int qos, byte[] payload, boolean retained) {
+		private final AtomicBoolean released = new AtomicBoolean();
+
+		public IMqttDeliveryToken doPublish(String topicName, int qos, byte[] payload, boolean retained) throws MqttException {
+			return doPublish(topicName, qos, payload, retained, null);
+		}
+
+		/**
+		 * Publish and tell then (if not null) the outcome, after the in-flight slot is given back.
+		 */
+		public IMqttDeliveryToken doPublish(String topicName, int qos, byte[] payload, boolean retained,
+				final IMqttActionListener then) throws MqttException {
 		 	// Send / publish a message to the server
 			// Get a token and setup an asynchronous listener on the token which
 			// will be notified once the message has been delivered
@@ -470,168 +863,118 @@ public class MqttHandler implements MqttCallback {
 	    	message.setQos(qos);
 	    	message.setRetained(retained);
 
-	    	String time = new Timestamp(System.currentTimeMillis()).toString();
-	    	log("Publishing at: "+time+ " to topic \""+topicName+"\" qos "+qos);
+	    	Log.debug("Publishing to topic \"{}\" qos {}", topicName, qos);
 
 	    	// Setup a listener object to be notified when the publish completes.
 	    	//
 	    	IMqttActionListener pubListener = new IMqttActionListener() {
 				public void onSuccess(IMqttToken asyncActionToken) {
-			    	log("Publish Completed");
-			    	state = PUBLISHED;
-			    	carryOn();
+			    	Log.debug("Publish Completed");
+			    	release();
+			    	if (then != null) {
+			    		then.onSuccess(asyncActionToken);
+			    	}
 				}
 
 				public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
-					ex = exception;
-					state = ERROR;
-					log ("Publish failed" +exception);
-					carryOn();
-				}
-
-				public void carryOn() {
-			    	synchronized (waiter) {
-			    		donext=true;
-			    		waiter.notifyAll();
-			    	}
+					Log.debug("Publish failed: {}", exception);
+					release();
+					if (then != null) {
+						then.onFailure(asyncActionToken, exception);
+					}
 				}
 			};
 
-	    	try {
-		    	// Publish the message
-	    		client.publish(topicName, message, "Pub sample context", pubListener);
-	    	} catch (MqttException e) {
-				state = ERROR;
-				donext = true;
-				ex = e;
+	    	// Publish the message
+	    	return client.publish(topicName, message, "Pub sample context", pubListener);
+		}
+
+		/**
+		 * Give back the in-flight slot of this message (once, whichever of completion and timeout
+		 * comes first).
+		 */
+		void release() {
+			if (released.compareAndSet(false, true)) {
+				inflight.release();
 			}
 		}
 	}
 
 	/**
-	 * Subscribe in a non-blocking way and then sit back and wait to be
-	 * notified that the action has completed.
+	 * Subscribe in a non-blocking way. Completion is reported through the returned token, like
+	 * {@link Unsubscriber}.
 	 */
 	public class Subscriber {
 		
-		public void doSubscribe(String topicName, int qos) {
+		public IMqttToken doSubscribe(String topicName, int qos) throws MqttException {
 		 	// Make a subscription
 			// Get a token and setup an asynchronous listener on the token which
 			// will be notified once the subscription is in place.
-	    	log("Subscribing to topic \""+topicName+"\" qos "+qos);
+	    	Log.debug("Subscribing to topic \"{}\" qos {}", topicName, qos);
 
 	    	IMqttActionListener subListener = new IMqttActionListener() {
 				public void onSuccess(IMqttToken asyncActionToken) {
-			    	log("Subscribe Completed");
-			    	state = SUBSCRIBED;
-			    	carryOn();
+			    	Log.debug("Subscribe Completed");
 				}
 
 				public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
-					ex = exception;
-					state = ERROR;
-					log ("Subscribe failed" +exception);
-					carryOn();
-				}
-
-				public void carryOn() {
-			    	synchronized (waiter) {
-			    		donext=true;
-			    		waiter.notifyAll();
-			    	}
+					Log.debug("Subscribe failed: {}", exception);
 				}
 			};
 
-	    	try {
-	    		client.subscribe(topicName, qos, "Subscribe sample context", subListener);
-	    	} catch (MqttException e) {
-				state = ERROR;
-				donext = true;
-				ex = e;
-			}
+	    	return client.subscribe(topicName, qos, "Subscribe sample context", subListener);
 		}
 	}
 	
 	/**
-	 * Unsubscribe in a non blocking-way and then sit back and wait to be
-	 * notified that the action has completed.
+	 * Unsubscribe in a non blocking-way. The completion is reported through the returned token.
 	 */
 	public class Unsubscriber {
-		public void doUnsubscribe(String topicName) {
+		public IMqttToken doUnsubscribe(String topicName) throws MqttException {
 		 	// Make a unsubscription
 			// Get a token and setup an asynchronous listener on the token which
 			// will be notified once the unsubscription is in place.
-	    	log("Unsubscribing to topic \""+topicName);
+	    	Log.debug("Unsubscribing to topic \"{}\"", topicName);
 
 	    	IMqttActionListener unsubListener = new IMqttActionListener() {
 				public void onSuccess(IMqttToken asyncActionToken) {
-			    	log("Unsubscribe Completed");
-			    	state = UNSUBSCRIBED;
-			    	carryOn();
+			    	Log.debug("Unsubscribe Completed");
 				}
 
 				public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
-					ex = exception;
-					state = ERROR;
-					log ("Unsubscribe failed" +exception);
-					carryOn();
-				}
-
-				public void carryOn() {
-			    	synchronized (waiter) {
-			    		donext=true;
-			    		waiter.notifyAll();
-			    	}
+					Log.debug("Unsubscribe failed: {}", exception);
 				}
 			};
 
-	    	try {
-	    		client.unsubscribe(topicName, "Unsubscribe sample context", unsubListener);
-	    	} catch (MqttException e) {
-				state = ERROR;
-				donext = true;
-				ex = e;
-			}
+	    	return client.unsubscribe(topicName, "Unsubscribe sample context", unsubListener);
 		}
 	}
 
 	/**
-	 * Disconnect in a non-blocking way and then sit back and wait to be
-	 * notified that the action has completed.
+	 * Disconnect in a non-blocking way. Completion is reported through the returned token, like
+	 * {@link Unsubscriber}.
 	 */
 	public class Disconnector {
-		public void doDisconnect() {
+		public IMqttToken doDisconnect() throws MqttException {
+			// Default quiesce time of the client.
+			return doDisconnect(30000);
+		}
+
+		public IMqttToken doDisconnect(long quiesceTimeout) throws MqttException {
 	    	// Disconnect the client
-	    	log("Disconnecting");
+	    	Log.debug("Disconnecting");
 
 	    	IMqttActionListener discListener = new IMqttActionListener() {
 				public void onSuccess(IMqttToken asyncActionToken) {
-			    	log("Disconnect Completed");
-			    	state = DISCONNECTED;
-			    	carryOn();
+			    	Log.debug("Disconnect Completed");
 				}
 
 				public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
-					ex = exception;
-					state = ERROR;
-					log ("Disconnect failed" +exception);
-					carryOn();
-				}
-				public void carryOn() {
-			    	synchronized (waiter) {
-			    		donext=true;
-			    		waiter.notifyAll();
-			    	}
+					Log.debug("Disconnect failed: {}", exception);
 				}
 			};
 
-	    	try {
-	    		client.disconnect("Disconnect sample context", discListener);
-	    	} catch (MqttException e) {
-				state = ERROR;
-				donext = true;
-				ex = e;
-			}
+	    	return client.disconnect(quiesceTimeout, "Disconnect sample context", discListener);
 		}
 	}
 }
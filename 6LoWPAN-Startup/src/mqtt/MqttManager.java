@@ -1,110 +1,484 @@
 package mqtt;
 
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.IMqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.IMqttToken;
 import org.eclipse.paho.client.mqttv3.MqttException;
 
+import mqtt.flow.RegistrationPipeline;
+import startup.Settings;
 import startup.StartupManager;
+import util.Log;
 
 /**
  * @author Engin Leloglu - 2016
  * 
  * MqttManager class provides the control of Mqtt parameters and functions generally.
+ * 
+ * There is one MqttManager per broker site ({@link BrokerSite}, mqtt.sites); the managers of all
+ * sites share the StartupManager, so ids come from one allocator and one index.
  */
 public class MqttManager {
 	
 	private StartupManager startupManager 	= null;
 	private MqttHandler mqttHandler			= null;
+	private PublisherPool publisherPool		= null;	// Reply connections, with mqtt.pool.size > 0
+	private final BrokerSite site;									// Broker(s), client id and credentials
+	private final SiteMetrics metrics		= new SiteMetrics();
 	
-	private final String BROKER 	= "192.168.2.100"; 				// Broker(server) ip of vesbeeing(Server)
-	private final String CLIENTID 	= "startupService2";			// Client id
-	private int QOS 				= 2;							// Quality of service (0, 1 or 2)
+	// Delivery of the registrations: "qos2" (exactly once by the protocol) or "dedup" (at least
+	// once with QoS 1, duplicates answered with the id already allocated, see DedupWindow).
+	private final boolean DEDUP		= Settings.get("mqtt.delivery", "qos2").equals("dedup");
+	// Quality of service (0, 1 or 2) per topic.
+	private final int QOS 			= Settings.getInt("mqtt.qos.registration", DEDUP ? 1 : 2);	// defaultId subscription
+	private final int REPLY_QOS 	= Settings.getInt("mqtt.qos.reply", DEDUP ? 1 : 2);			// Generated ids
+	private final int LOOKUP_QOS 	= Settings.getInt("mqtt.qos.lookup", 1);					// Lookups and their replies
+	private final int HEARTBEAT_QOS = Settings.getInt("mqtt.qos.heartbeat", 0);
+	private DedupWindow dedup 		= null;
+	private final DedupWindow.Allocator allocator = new DedupWindow.Allocator() {
+		public int allocate(String defaultId) throws SQLException {
+			return startupManager.notifyInsertion(defaultId);
+		}
+
+		public int find(String defaultId) throws SQLException {
+			Integer id = startupManager.lookupIds(Collections.singletonList(defaultId)).get(defaultId);
+			return id != null ? id : -1;
+		}
+	};
 	private final boolean CLEANSESS = true;							// Clean session
 	private final String PFX		= "vestel/newDevice/";			// Prefix of topic
-	private String defaultId		= null;
+	// Retained-reply mode: the broker keeps the id of every device, so a rebooting device that
+	// subscribes first gets it without a new allocation. See RetainedSweeper.
+	private final boolean RETAINED 	= Settings.getBoolean("mqtt.reply.retained", false);
+	private RetainedSweeper sweeper = null;
+	
+	// Retained readiness of the service: "starting", "ready", "stopping" or "offline" (will message).
+	public static final String STATUS_TOPIC 	= Settings.get("startup.status.topic", "vestel/startup/status");
+	public static final String STATUS_OFFLINE 	= "offline";
+	// Bulk lookups of other services, see PayloadCodec.decodeLookupRequest.
+	public static final String LOOKUP_TOPIC 	= "vestel/startup/lookup";
+	// The only topics lookup replies are published on; a request naming another one is dropped.
+	public static final String LOOKUP_REPLY_PREFIX = "vestel/startup/lookup/reply/";
+	// Lease renewals of devices (defaultId, QoS 0), only subscribed with lease.enabled.
+	public static final String HEARTBEAT_TOPIC 	= "vestel/startup/heartbeat";
+	private volatile String status 				= null;
+	private volatile boolean subscribed 		= false;
 	
 	////////// SETTINGS FOR SIMPLE COMM.(Default) ////////
-	private int PORT				= 1883;
-	private final boolean SSL 		= false;
-	private final String USERNAME 	= null;
-	private final String PASSWORD 	= null;
-	///////////////////////////////////////////////////////
+	// mqtt.ssl=false, mqtt.port=1883
 	////////// SETTINGS FOR SSL/TLS BASED COMM. ///////////
-	// private int PORT = 8883;
-	// private boolean SSL = true;
-	// private String USERNAME = "engin";
-	// private String PASSWORD = "222";
+	// mqtt.ssl=true, mqtt.port=8883, mqtt.username, mqtt.password and
+	// mqtt.ssl.ca, mqtt.ssl.cert, mqtt.ssl.key, mqtt.ssl.keyPassword (PEM files)
+	////////// SETTINGS OF DELIVERY //////////////////////
+	// mqtt.delivery=qos2 (default) or dedup (QoS 1, mqtt.dedup.seconds, mqtt.dedup.size,
+	// mqtt.dedup.bloom.size, mqtt.dedup.checkpoint.seconds, mqtt.dedup.file) and
+	// mqtt.qos.registration, mqtt.qos.reply, mqtt.qos.lookup, mqtt.qos.heartbeat per topic
+	////////// SETTINGS OF SEVERAL SITES //////////////////
+	// mqtt.sites=a,b and mqtt.site.<name>.brokers, see BrokerSite
 	///////////////////////////////////////////////////////
 	
+	/**
+	 * Connect to the first configured broker site.
+	 */
 	public MqttManager(StartupManager startupManager) throws MqttException {
+		this(startupManager, BrokerSite.configured().get(0));
+	}
+
+	/**
+	 * Connect to the brokers of site and subscribe to new devices there.
+	 */
+	public MqttManager(StartupManager startupManager, BrokerSite site) throws MqttException {
 		
 		this.startupManager = startupManager;
-		mqttHandler = MqttHandler.getHandlerInst(this, BROKER, CLIENTID, PORT, CLEANSESS, SSL, USERNAME, PASSWORD);
-		subscribe();
+		this.site = site;
+		if (DEDUP) {
+			// Restored before the subscription, so redeliveries after a restart are recognized. A
+			// store in memory starts empty, the ids of a checkpoint would not be in it.
+			String store = StartupManager.storeIdentity();
+			dedup = new DedupWindow(TimeUnit.SECONDS.toMillis(Settings.getLong("mqtt.dedup.seconds", 600)),
+					Settings.getInt("mqtt.dedup.size", 100000), Settings.getInt("mqtt.dedup.bloom.size", 1000000),
+					store == null ? null : site.getDedupFile(), store);
+			dedup.startCheckpoints(TimeUnit.SECONDS.toMillis(Settings.getLong("mqtt.dedup.checkpoint.seconds", 30)));
+		}
+		mqttHandler = new MqttHandler(this, site, site.getClientId(), CLEANSESS, false);
+		if (site.getPoolSize() > 0) {
+			publisherPool = new PublisherPool(this, site, site.getClientId(), site.getPoolSize());
+		}
+		subscribed = subscribe();
+		// Replies left in the outbox by a previous run during an outage.
+		mqttHandler.getReconnector().flushOutbox();
+		
+		if (RETAINED) {
+			sweeper = new RetainedSweeper(this, mqttHandler, PFX, PFX + "defaultId");
+			sweeper.start();
+		}
+	}
+
+	/**
+	 * Create a manager on top of an already constructed client (e.g. a stub client of a benchmark).
+	 * The client is neither connected nor subscribed here.
+	 */
+	public MqttManager(StartupManager startupManager, IMqttAsyncClient client) {
+		
+		this.startupManager = startupManager;
+		this.site = BrokerSite.configured().get(0);
+		mqttHandler = new MqttHandler(this, client);
 	}
 	
 	/**
-	 * Generate new id for each new device that has just added into the system.
+	 * Generate new id for the device that has just added into the system with given defaultId.
 	 */
-	public void generateNewId() throws SQLException, MqttException{
+	public void generateNewId(String defaultId) throws SQLException, MqttException{
 		
-		// Add defaultId of device into DB and return new id(primary key) that is generated by DB.
-		int generatedId = startupManager.notifyInsertion(defaultId);
+		int generatedId = allocateId(defaultId);
 		
 		// Publish generatedId matched with related defaultId.
-		publish(defaultId, Integer.toString(generatedId), false);
+		publish(defaultId, PayloadCodec.encodeId(generatedId), RETAINED);
 
 	}
 
+	/**
+	 * Add defaultId of device into DB and return new id(primary key) that is generated by DB, the
+	 * first half of {@link #generateNewId(String)}. With mqtt.delivery=dedup a defaultId seen within
+	 * the dedup window gets the id allocated then.
+	 */
+	public int allocateId(String defaultId) throws SQLException {
+		if (dedup != null) {
+			return dedup.allocate(defaultId, allocator);
+		}
+		return startupManager.notifyInsertion(defaultId);
+	}
+
+	/**
+	 * True if the replies are published retained (mqtt.reply.retained).
+	 */
+	public boolean isRetained() {
+		return RETAINED;
+	}
+
 	/**
 	 *  Publish message for related device with quality of service, generated-id and retained flag information. 
 	 */
 	public void publish(String defaultId, String generatedId, boolean retained){
+		publish(defaultId, generatedId.getBytes(), retained);
+	}
+
+	/**
+	 *  Publish already encoded generated-id for related device. 
+	 */
+	public void publish(String defaultId, byte[] generatedId, boolean retained){
 		
 		try {
-			mqttHandler.publish(PFX + defaultId, QOS, generatedId.getBytes(), retained);
+			publishReply(defaultId, PFX + defaultId, REPLY_QOS, generatedId, retained);
 		} catch (MqttException me) {
-			// Display full details of any exception that occurs
-			System.out.println("reason " + me.getReasonCode());
-			System.out.println("msg " + me.getMessage());
-			System.out.println("loc " + me.getLocalizedMessage());
-			System.out.println("cause " + me.getCause());
-			System.out.println("excep " + me);
-			me.printStackTrace();
+			// Timeouts under load end here: one line, no stack trace.
+			Log.warn("Reply to {} failed: reason {}, {}", defaultId, me.getReasonCode(), me.getMessage());
 		} catch (Throwable th) {
-			System.out.println("Throwable caught " + th);
-			th.printStackTrace();
+			Log.error("Reply to {} failed", defaultId, th);
 		}
 	}
 	
 	/**
-	 * Subscribe related topic to get all default ids of new devices that has just added into the system.
+	 *  Publish already encoded generated-id for related device without waiting for the delivery;
+	 *  done is told whether the reply went out (or to the outbox), from the callback thread of the
+	 *  client.
 	 */
-	public void subscribe(){
+	public void publishAsync(final String defaultId, byte[] generatedId, boolean retained, final IMqttActionListener done){
+		
+		IMqttActionListener listener = new IMqttActionListener() {
+			public void onSuccess(IMqttToken asyncActionToken) {
+				done.onSuccess(asyncActionToken);
+			}
 
+			public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+				Log.warn("Reply to {} failed: {}", defaultId, exception);
+				done.onFailure(asyncActionToken, exception);
+			}
+		};
 		try {
-			mqttHandler.subscribe(PFX + "defaultId", QOS);
+			if (publisherPool != null) {
+				publisherPool.publishAsync(defaultId, PFX + defaultId, REPLY_QOS, generatedId, retained, listener);
+			} else {
+				mqttHandler.publishAsync(PFX + defaultId, REPLY_QOS, generatedId, retained, listener);
+			}
 		} catch (MqttException me) {
-			// Display full details of any exception that occurs
-			System.out.println("reason " + me.getReasonCode());
-			System.out.println("msg " + me.getMessage());
-			System.out.println("loc " + me.getLocalizedMessage());
-			System.out.println("cause " + me.getCause());
-			System.out.println("excep " + me);
-			me.printStackTrace();
+			Log.warn("Reply to {} failed: reason {}, {}", defaultId, me.getReasonCode(), me.getMessage());
+			done.onFailure(null, me);
 		} catch (Throwable th) {
-			System.out.println("Throwable caught " + th);
-			th.printStackTrace();
+			Log.error("Reply to {} failed", defaultId, th);
+			done.onFailure(null, th);
+		}
+	}
+	
+	/**
+	 * Publish a reply on the pool member of key (replies with the same key keep their order), or
+	 * on the subscribing connection without a pool.
+	 */
+	private void publishReply(String key, String topicName, int qos, byte[] payload, boolean retained) throws Throwable {
+		if (publisherPool != null) {
+			publisherPool.publish(key, topicName, qos, payload, retained);
+		} else {
+			mqttHandler.publish(topicName, qos, payload, retained);
 		}
 	}
 
-	// Getters and setters.
-	public String getDefaultId() {
-		return defaultId;
+	/**
+	 * Answer a bulk lookup request on its reply topic, from the in-memory index when possible.
+	 */
+	public void lookup(byte[] request) {
+		PayloadCodec.LookupRequest req = PayloadCodec.decodeLookupRequest(request);
+		if (req == null) {
+			Log.warn("Malformed lookup request dropped");
+			return;
+		}
+		// The requester names the topic: it must not make the service publish on the topics of
+		// devices or other services.
+		if (!req.replyTopic.startsWith(LOOKUP_REPLY_PREFIX) || req.replyTopic.length() == LOOKUP_REPLY_PREFIX.length()
+				|| req.replyTopic.indexOf('+') >= 0 || req.replyTopic.indexOf('#') >= 0) {
+			Log.warn("Lookup {} dropped: reply topic {} is not under {}", req.correlationId, req.replyTopic, LOOKUP_REPLY_PREFIX);
+			return;
+		}
+		Map<String, ?> values;
+		try {
+			if (req.byDefaultId) {
+				values = startupManager.lookupIds(req.keys);
+			} else {
+				// Keys that are not numbers cannot be ids: answered as unknown.
+				List<Integer> ids = new ArrayList<Integer>(req.keys.size());
+				for (String key : req.keys) {
+					try {
+						ids.add(Integer.valueOf(key));
+					} catch (NumberFormatException e) {
+						// Skipped.
+					}
+				}
+				Map<Integer, String> found = startupManager.lookupDefaultIds(ids);
+				Map<String, String> byKey = new LinkedHashMap<String, String>(req.keys.size() * 2);
+				for (String key : req.keys) {
+					String defaultId = null;
+					try {
+						defaultId = found.get(Integer.valueOf(key));
+					} catch (NumberFormatException e) {
+						// Unknown.
+					}
+					byKey.put(key, defaultId);
+				}
+				values = byKey;
+			}
+		} catch (SQLException e) {
+			// No answer: the requester times out and retries, like with a lost message.
+			Log.warn("Lookup {} failed: {}", req.correlationId, e);
+			return;
+		}
+		try {
+			publishReply(req.replyTopic, req.replyTopic, LOOKUP_QOS, PayloadCodec.encodeLookupResponse(req.correlationId, values), false);
+		} catch (Throwable th) {
+			Log.warn("Lookup {} could not be answered: {}", req.correlationId, th);
+		}
 	}
 
-	public void setDefaultId(String defaultId) {
-		this.defaultId = defaultId;
+	/**
+	 * Renew the lease of a device that sent a heartbeat.
+	 */
+	public void heartbeat(String defaultId) {
+		if (!startupManager.notifyHeartbeat(defaultId)) {
+			Log.debug("Heartbeat of {} without lease ignored", defaultId);
+		}
 	}
-	
+
+	/**
+	 * Return the generated ids of the registered devices among defaultIds, with one query to the
+	 * store. Null on a store error: then no device may be taken for unregistered.
+	 */
+	public Map<String, Integer> findRegistered(Collection<String> defaultIds) {
+		try {
+			return startupManager.getIdStore().findIds(defaultIds);
+		} catch (SQLException e) {
+			Log.warn("Registration of {} devices could not be checked: {}", defaultIds.size(), e);
+			return null;
+		}
+	}
+
+	public BrokerSite getSite() {
+		return site;
+	}
+
+	/**
+	 * Registrations answered through this site and their latency.
+	 */
+	public SiteMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Reconnector of the subscribing connection (outages, outbox).
+	 */
+	public Reconnector getReconnector() {
+		return mqttHandler.getReconnector();
+	}
+
+	/**
+	 * Messages of the subscribing connection dropped because its workers were too far behind.
+	 */
+	public int getShedCount() {
+		return mqttHandler.getShedCount();
+	}
+
+	/**
+	 * Registration pipeline of the subscribing connection, null unless mqtt.pipeline=flow.
+	 */
+	public RegistrationPipeline getPipeline() {
+		return mqttHandler.getPipeline();
+	}
+
+	/**
+	 * Dedup window of the registrations, null unless mqtt.delivery=dedup.
+	 */
+	public DedupWindow getDedupWindow() {
+		return dedup;
+	}
+
+	public PublisherPool getPublisherPool() {
+		return publisherPool;
+	}
+
+	public RetainedSweeper getSweeper() {
+		return sweeper;
+	}
+
+	/**
+	 * Publish the readiness of the service as a retained message on the status topic.
+	 */
+	public void publishStatus(String status) {
+		this.status = status;
+		try {
+			mqttHandler.publish(STATUS_TOPIC, 1, status.getBytes(), true);
+		} catch (Throwable th) {
+			Log.warn("Status {} could not be published: {}", status, th);
+		}
+	}
+
+	/**
+	 * Publish the last status again, e.g. after a reconnect replaced it with the will message.
+	 */
+	void restoreStatus() {
+		String last = status;
+		if (last != null) {
+			publishStatus(last);
+		}
+	}
+
+	/**
+	 * True once the first subscription has been made (the service receives new devices).
+	 */
+	public boolean isSubscribed() {
+		return subscribed;
+	}
+
+	/**
+	 * Stop the service without losing replies, within timeoutMs: unsubscribe so the broker sends
+	 * no new devices, let the id generations already started publish their reply, wait for the
+	 * outstanding publishes (QoS 2 handshakes included), then disconnect cleanly. During an outage
+	 * the replies go to the outbox file and are published by the next run.
+	 */
+	public void shutdown(long timeoutMs) {
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+		Reconnector reconnector = mqttHandler.getReconnector();
+		if (sweeper != null) {
+			sweeper.shutdown();
+		}
+		boolean connected = !reconnector.isReconnecting();
+
+		if (connected) {
+			try {
+				mqttHandler.unsubscribe(PFX + "defaultId", remaining(deadline));
+				mqttHandler.unsubscribe(LOOKUP_TOPIC, remaining(deadline));
+				if (startupManager.getLeaseManager() != null) {
+					mqttHandler.unsubscribe(HEARTBEAT_TOPIC, remaining(deadline));
+				}
+			} catch (MqttException e) {
+				Log.warn("Unsubscribe failed, continuing shutdown: {}", e);
+			}
+		}
+		try {
+			if (!mqttHandler.drain(remaining(deadline))) {
+				Log.warn("Shutdown deadline reached with id generations still running");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if (dedup != null) {
+			// The allocations are done: the last checkpoint holds all of them.
+			dedup.close();
+		}
+		if (publisherPool != null) {
+			publisherPool.shutdown(remaining(deadline));
+		}
+		reconnector.shutdown();
+		if (!connected || reconnector.isReconnecting()) {
+			Log.info("Disconnected already, {} replies kept in the outbox", reconnector.getBufferedCount());
+			return;
+		}
+
+		int pending = mqttHandler.awaitDeliveries(remaining(deadline));
+		if (pending > 0) {
+			Log.warn("{} publishes still outstanding at disconnect", pending);
+		}
+		// A clean disconnect does not trigger the will.
+		publishStatus(STATUS_OFFLINE);
+		try {
+			mqttHandler.disconnect(remaining(deadline));
+		} catch (MqttException e) {
+			Log.warn("Disconnect failed: {}", e);
+		}
+	}
+
+	/**
+	 * Stop the workers of the connection and release its client without the handshakes of
+	 * {@link #shutdown(long)}, e.g. for a manager on a stub client, or after the shutdown.
+	 */
+	public void close() {
+		if (sweeper != null) {
+			sweeper.shutdown();
+		}
+		mqttHandler.close();
+		if (dedup != null) {
+			dedup.close();
+		}
+	}
+
+	private static long remaining(long deadline) {
+		return Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime()));
+	}
+
+	/**
+	 * Subscribe related topic to get all default ids of new devices that has just added into the system.
+	 * Returns false if the subscription failed.
+	 */
+	public boolean subscribe(){
+
+		try {
+			mqttHandler.subscribe(PFX + "defaultId", QOS);
+			mqttHandler.subscribe(LOOKUP_TOPIC, LOOKUP_QOS);
+			if (startupManager.getLeaseManager() != null) {
+				mqttHandler.subscribe(HEARTBEAT_TOPIC, HEARTBEAT_QOS);
+			}
+			return true;
+		} catch (MqttException me) {
+			Log.error("Subscription failed with reason {}", me.getReasonCode(), me);
+		} catch (Throwable th) {
+			Log.error("Subscription failed", th);
+		}
+		return false;
+	}
+
 }
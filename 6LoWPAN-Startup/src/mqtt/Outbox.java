@@ -0,0 +1,233 @@
+package mqtt;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+
+import util.Log;
+
+/**
+ * Outbox keeps the replies that could not be published while the connection to the broker was
+ * down. It is bounded: once full, new replies are dropped and counted (the device asks again).
+ * 
+ * Every buffered reply is also appended to a file, so replies survive a restart of the service
+ * during an outage. A reply is taken with {@link #peek()} and leaves the outbox (and the file) only
+ * by {@link #remove(Entry)} once it has been published: the file then gets an acknowledgement
+ * record (an empty topic, which no reply has) for its oldest reply. A crash between the publish
+ * and the acknowledgement publishes the reply again at the next run, which the device tolerates.
+ * The file is removed once the outbox has been flushed.
+ * 
+ * A closed outbox leaves its file to the connection taking it over and refuses further replies.
+ */
+public class Outbox {
+
+	/**
+	 * A buffered reply.
+	 */
+	public static final class Entry {
+		final String topic;
+		final int qos;
+		final byte[] payload;
+		final boolean retained;
+
+		Entry(String topic, int qos, byte[] payload, boolean retained) {
+			this.topic = topic;
+			this.qos = qos;
+			this.payload = payload;
+			this.retained = retained;
+		}
+	}
+
+	// MQTT limit of a payload, bounds what is read from the file.
+	private static final int MAX_PAYLOAD = 268435455;
+
+	private final int capacity;
+	private final File file;
+	private final ArrayDeque<Entry> entries = new ArrayDeque<Entry>();
+	private DataOutputStream journal = null;
+	private long dropped = 0;
+	private boolean closed = false;
+
+	public Outbox(int capacity, File file) {
+		this.capacity = capacity;
+		this.file = file;
+		load();
+	}
+
+	/**
+	 * Buffer a reply; returns false if the outbox is full and the reply is dropped, or if the
+	 * outbox is closed (see {@link #isClosed()}).
+	 */
+	public synchronized boolean add(String topic, int qos, byte[] payload, boolean retained) {
+		if (closed) {
+			return false;
+		}
+		if (entries.size() >= capacity) {
+			dropped++;
+			return false;
+		}
+		Entry entry = new Entry(topic, qos, payload, retained);
+		entries.add(entry);
+		persist(entry);
+		return true;
+	}
+
+	/**
+	 * The oldest reply, left in the outbox, or null when the outbox is empty.
+	 */
+	public synchronized Entry peek() {
+		return entries.peek();
+	}
+
+	/**
+	 * Remove the reply returned by {@link #peek()} once it has been published. The file is removed
+	 * with the last one.
+	 */
+	public synchronized void remove(Entry entry) {
+		if (entries.peek() != entry) {
+			return;
+		}
+		entries.poll();
+		if (entries.isEmpty()) {
+			clearFile();
+		} else {
+			acknowledge();
+		}
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	public synchronized long getDroppedCount() {
+		return dropped;
+	}
+
+	public synchronized boolean isClosed() {
+		return closed;
+	}
+
+	/**
+	 * Stop writing the file, which is left as it is for the connection that takes it over.
+	 */
+	public synchronized void close() {
+		closed = true;
+		try {
+			if (journal != null) {
+				journal.close();
+			}
+		} catch (IOException e) {
+			// Every record was flushed already.
+		}
+		journal = null;
+	}
+
+	private void persist(Entry entry) {
+		if (file == null || closed) {
+			return;
+		}
+		try {
+			if (journal == null) {
+				journal = new DataOutputStream(new FileOutputStream(file, true));
+			}
+			journal.writeUTF(entry.topic);
+			journal.writeByte(entry.qos);
+			journal.writeBoolean(entry.retained);
+			journal.writeInt(entry.payload.length);
+			journal.write(entry.payload);
+			journal.flush();
+		} catch (IOException e) {
+			Log.warn("Outbox could not be persisted to {}: {}", file, e);
+		}
+	}
+
+	private void acknowledge() {
+		if (file == null || journal == null) {
+			return;
+		}
+		try {
+			journal.writeUTF("");
+			journal.flush();
+		} catch (IOException e) {
+			Log.warn("Outbox could not be persisted to {}: {}", file, e);
+		}
+	}
+
+	private void clearFile() {
+		if (file == null || closed) {
+			return;
+		}
+		try {
+			if (journal != null) {
+				journal.close();
+			}
+		} catch (IOException e) {
+			// Ignore, the file is removed anyway.
+		}
+		journal = null;
+		if (file.exists() && !file.delete()) {
+			Log.warn("Outbox file {} could not be removed", file);
+		}
+	}
+
+	/**
+	 * Load replies left over by a previous run.
+	 */
+	private void load() {
+		if (file == null || !file.exists()) {
+			return;
+		}
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			while (true) {
+				String topic = in.readUTF();
+				if (topic.isEmpty()) {
+					// Acknowledgement: the oldest reply was published.
+					entries.poll();
+					continue;
+				}
+				int qos = in.readByte();
+				boolean retained = in.readBoolean();
+				int length = in.readInt();
+				if (length < 0 || length > MAX_PAYLOAD) {
+					throw new IOException("invalid payload length " + length);
+				}
+				byte[] payload = new byte[length];
+				in.readFully(payload);
+				entries.add(new Entry(topic, qos, payload, retained));
+			}
+		} catch (EOFException e) {
+			// End of file, or a record cut by a crash.
+		} catch (IOException e) {
+			Log.warn("Outbox file {} could not be read: {}", file, e);
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+					// Ignore.
+				}
+			}
+		}
+		// A smaller mqtt.outbox.size than in the previous run: keep the oldest replies.
+		while (entries.size() > capacity) {
+			entries.pollLast();
+			dropped++;
+		}
+		// Rewrite the file so it holds exactly what is buffered now.
+		clearFile();
+		for (Entry entry : entries) {
+			persist(entry);
+		}
+		if (!entries.isEmpty()) {
+			Log.info("{} replies recovered from {}", entries.size(), file);
+		}
+	}
+}
@@ -0,0 +1,147 @@
+package mqtt;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * PayloadCodec converts the payloads of the registration topics.
+ * 
+ * Devices send their defaultId as text and get back the generated id as decimal digits. A defaultId
+ * is 1 to {@link #MAX_DEFAULT_ID_LENGTH} characters of [0-9A-Za-z:._-]; it ends up in the store, in
+ * the reply topic and in the logs, and arrives from anyone who can reach the broker or the UDP
+ * ingresses, so anything else is refused.
+ * 
+ * Lookup requests (other backend services) are UTF-8 text, one item per line:
+ * <pre>
+ * correlation id
+ * reply topic, under MqttManager.LOOKUP_REPLY_PREFIX (others are not answered)
+ * "ids" (keys are defaultIds) or "defaultIds" (keys are generated ids)
+ * key
+ * ...
+ * </pre>
+ * and the response, on the reply topic, is the correlation id followed by one "key=value" line per
+ * key, in request order, with an empty value for unknown keys.
+ */
+public final class PayloadCodec {
+
+	/**
+	 * The longest defaultId, the width of the DEFAULT_ID column.
+	 */
+	public static final int MAX_DEFAULT_ID_LENGTH = 64;
+
+	private PayloadCodec() {
+	}
+
+	/**
+	 * Decode the defaultId sent by a device. Returns null if it is not a valid defaultId.
+	 */
+	public static String decodeDefaultId(byte[] payload) {
+		if (payload == null || payload.length == 0 || payload.length > MAX_DEFAULT_ID_LENGTH) {
+			return null;
+		}
+		for (byte b : payload) {
+			if (!((b >= '0' && b <= '9') || (b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z')
+					|| b == ':' || b == '.' || b == '_' || b == '-')) {
+				return null;
+			}
+		}
+		return new String(payload, StandardCharsets.US_ASCII);
+	}
+
+	/**
+	 * Encode a generated id as ASCII digits, without going through an intermediate String.
+	 */
+	public static byte[] encodeId(int id) {
+		if (id == Integer.MIN_VALUE) {
+			return Integer.toString(id).getBytes(StandardCharsets.US_ASCII);
+		}
+		boolean negative = id < 0;
+		int value = negative ? -id : id;
+		int length = negative ? 2 : 1;
+		for (int rest = value / 10; rest != 0; rest /= 10) {
+			length++;
+		}
+
+		byte[] digits = new byte[length];
+		int pos = length;
+		do {
+			digits[--pos] = (byte) ('0' + value % 10);
+			value /= 10;
+		} while (value != 0);
+		if (negative) {
+			digits[0] = '-';
+		}
+		return digits;
+	}
+
+	/**
+	 * A decoded lookup request.
+	 */
+	public static final class LookupRequest {
+		public final String correlationId;
+		public final String replyTopic;
+		public final boolean byDefaultId;	// true: defaultId -> id, false: id -> defaultId
+		public final List<String> keys;
+
+		LookupRequest(String correlationId, String replyTopic, boolean byDefaultId, List<String> keys) {
+			this.correlationId = correlationId;
+			this.replyTopic = replyTopic;
+			this.byDefaultId = byDefaultId;
+			this.keys = keys;
+		}
+	}
+
+	/**
+	 * Decode a lookup request. Returns null if it is malformed (it cannot be answered).
+	 */
+	public static LookupRequest decodeLookupRequest(byte[] payload) {
+		String[] lines = new String(payload, StandardCharsets.UTF_8).split("\r?\n");
+		if (lines.length < 3 || lines[0].isEmpty() || lines[1].isEmpty()) {
+			return null;
+		}
+		boolean byDefaultId;
+		if ("ids".equals(lines[2])) {
+			byDefaultId = true;
+		} else if ("defaultIds".equals(lines[2])) {
+			byDefaultId = false;
+		} else {
+			return null;
+		}
+		List<String> keys = new ArrayList<String>(lines.length - 3);
+		for (int i = 3; i < lines.length; i++) {
+			if (!lines[i].isEmpty()) {
+				keys.add(lines[i]);
+			}
+		}
+		return new LookupRequest(lines[0], lines[1], byDefaultId, keys);
+	}
+
+	/**
+	 * Encode a lookup request (used by clients of the lookup topic).
+	 */
+	public static byte[] encodeLookupRequest(String correlationId, String replyTopic, boolean byDefaultId, List<String> keys) {
+		StringBuilder sb = new StringBuilder(64 + keys.size() * 24);
+		sb.append(correlationId).append('\n').append(replyTopic).append('\n').append(byDefaultId ? "ids" : "defaultIds");
+		for (String key : keys) {
+			sb.append('\n').append(key);
+		}
+		return sb.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Encode the response to a lookup request; values are in request order, null when unknown.
+	 */
+	public static byte[] encodeLookupResponse(String correlationId, Map<String, ?> values) {
+		StringBuilder sb = new StringBuilder(64 + values.size() * 24);
+		sb.append(correlationId);
+		for (Map.Entry<String, ?> e : values.entrySet()) {
+			sb.append('\n').append(e.getKey()).append('=');
+			if (e.getValue() != null) {
+				sb.append(e.getValue());
+			}
+		}
+		return sb.toString().getBytes(StandardCharsets.UTF_8);
+	}
+}
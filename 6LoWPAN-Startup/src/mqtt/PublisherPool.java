@@ -0,0 +1,261 @@
+package mqtt;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.MqttException;
+
+import startup.Settings;
+import util.Log;
+
+/**
+ * PublisherPool publishes the replies over mqtt.pool.size connections of their own (client ids
+ * <clientId>-pub<i>, each with its own persistence and outbox), so reply throughput is no longer
+ * capped by the in-flight window and the socket of the subscribing connection.
+ *
+ * A reply goes to the member picked by the hash of its key (the defaultId), so the replies of one
+ * device keep their order. A member that is down keeps its devices: their replies wait in its
+ * outbox behind the older ones, so a stale (retained) reply is never published after a newer one
+ * sent through another member. A member that is connected but has its whole in-flight window
+ * taken, whose replies are already on their way, is skipped and the next member takes the reply.
+ * If a member stays unavailable for mqtt.pool.replaceMs while another member is fine, it is
+ * drained (up to mqtt.pool.drainMs for its in-flight publishes) and replaced by a fresh
+ * connection with the same client id, which takes over its outbox file. A reply that reaches the
+ * old member once it is closed is sent again through the new one.
+ *
+ * Replies on the subscribing connection (mqtt.pool.size=0) wait for their acknowledgements behind
+ * every request the broker has queued on that socket, so a burst of arrivals slows the replies
+ * down to a trickle; sites that see bursts should use at least one reply connection.
+ *
+ * Settings: mqtt.pool.size (0, replies go through the subscribing connection; per site
+ * mqtt.site.<name>.pool.size),
+ * mqtt.pool.replaceMs (30000), mqtt.pool.drainMs (5000), mqtt.pool.connectMs (10000).
+ */
+public class PublisherPool {
+
+	private final MqttManager mqttManager;
+	private final BrokerSite site;
+	private final String clientId;
+
+	private final long replaceMillis 	= Settings.getLong("mqtt.pool.replaceMs", 30000);
+	private final long drainMillis 		= Settings.getLong("mqtt.pool.drainMs", 5000);
+	private final long connectMillis 	= Settings.getLong("mqtt.pool.connectMs", 10000);
+
+	private final AtomicReferenceArray<MqttHandler> members;
+	private final long[] unavailableSince;		// Maintenance thread only
+	private final ScheduledExecutorService maintenance;
+	private volatile int replaced = 0;
+
+	public PublisherPool(MqttManager mqttManager, BrokerSite site, String clientId, int size) throws MqttException {
+		this.mqttManager = mqttManager;
+		this.site = site;
+		this.clientId = clientId;
+
+		members = new AtomicReferenceArray<MqttHandler>(size);
+		unavailableSince = new long[size];
+		for (int i = 0; i < size; i++) {
+			open(i);
+		}
+		Log.info("{} reply connections to site {}", size, site);
+
+		maintenance = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "mqtt-pool");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		maintenance.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				check();
+			}
+		}, 1, 1, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Publish a reply on the member of key.
+	 */
+	public void publish(String key, String topicName, int qos, byte[] payload, boolean retained) throws Throwable {
+		while (true) {
+			MqttHandler member = select(key);
+			try {
+				member.publish(topicName, qos, payload, retained);
+				return;
+			} catch (MqttException e) {
+				awaitReplacement(member, e);
+			}
+		}
+	}
+
+	/**
+	 * Publish a reply on the member of key without waiting for its delivery, see
+	 * {@link MqttHandler#publishAsync(String, int, byte[], boolean, IMqttActionListener)}.
+	 */
+	public void publishAsync(String key, String topicName, int qos, byte[] payload, boolean retained, IMqttActionListener listener) throws Throwable {
+		while (true) {
+			MqttHandler member = select(key);
+			try {
+				member.publishAsync(topicName, qos, payload, retained, listener);
+				return;
+			} catch (MqttException e) {
+				awaitReplacement(member, e);
+			}
+		}
+	}
+
+	/**
+	 * A member closed for its replacement refuses replies: wait until the new member has taken
+	 * its place (up to mqtt.pool.connectMs), any other failure is rethrown.
+	 */
+	private void awaitReplacement(MqttHandler member, MqttException e) throws MqttException, InterruptedException {
+		if (e.getReasonCode() != MqttException.REASON_CODE_CLIENT_CLOSED) {
+			throw e;
+		}
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(connectMillis);
+		while (contains(member)) {
+			if (System.nanoTime() >= deadline) {
+				throw e;
+			}
+			Thread.sleep(1);
+		}
+	}
+
+	private boolean contains(MqttHandler member) {
+		for (int i = 0; i < members.length(); i++) {
+			if (members.get(i) == member) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * The member of key, or the next available one if the member of key only has no free
+	 * in-flight slot. A member that is down is used anyway: it buffers the reply in its outbox.
+	 */
+	MqttHandler select(String key) {
+		int n = members.length();
+		int first = (key.hashCode() & 0x7fffffff) % n;
+		MqttHandler own = members.get(first);
+		if (own.isAvailable() || !own.getClient().isConnected() || own.getReconnector().isReconnecting()) {
+			return own;
+		}
+		for (int k = 1; k < n; k++) {
+			MqttHandler member = members.get((first + k) % n);
+			if (member.isAvailable()) {
+				return member;
+			}
+		}
+		return own;
+	}
+
+	public int getSize() {
+		return members.length();
+	}
+
+	public int getReplacedCount() {
+		return replaced;
+	}
+
+	/**
+	 * Wait up to timeoutMs for the outstanding replies, then disconnect every member. Replies of
+	 * members that are down stay in their outbox file for the next run.
+	 */
+	public void shutdown(long timeoutMs) {
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+		maintenance.shutdownNow();
+		for (int i = 0; i < members.length(); i++) {
+			MqttHandler member = members.get(i);
+			member.getReconnector().shutdown();
+			if (member.getReconnector().isReconnecting()) {
+				Log.info("Reply connection {} down, {} replies kept in the outbox", i, member.getReconnector().getBufferedCount());
+				continue;
+			}
+			int pending = member.awaitDeliveries(remaining(deadline));
+			if (pending > 0) {
+				Log.warn("{} replies of connection {} still outstanding at disconnect", pending, i);
+			}
+			try {
+				member.disconnect(remaining(deadline));
+			} catch (MqttException e) {
+				Log.warn("Disconnect of reply connection {} failed: {}", i, e);
+			}
+		}
+	}
+
+	/**
+	 * Create member i, route its devices to it and wait for its connection. Its replies are
+	 * buffered behind those left in its outbox (by the connection it replaces or by a previous run)
+	 * until they are published; if it does not come up in time it keeps trying in the background
+	 * like a lost connection.
+	 */
+	private void open(int i) throws MqttException {
+		MqttHandler member = new MqttHandler(mqttManager, site, clientId + "-pub" + i, true, true);
+		member.getReconnector().hold();
+		members.set(i, member);
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(connectMillis);
+		try {
+			while (!member.getClient().isConnected() && System.nanoTime() < deadline) {
+				Thread.sleep(10);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if (!member.getClient().isConnected()) {
+			Log.warn("Reply connection {} not up after {} ms, retrying in the background", i, connectMillis);
+		}
+		member.getReconnector().recover();
+	}
+
+	/**
+	 * Track how long each member has been unavailable and replace the ones stuck for too long.
+	 */
+	private void check() {
+		long now = System.currentTimeMillis();
+		boolean anyAvailable = false;
+		for (int i = 0; i < members.length(); i++) {
+			if (members.get(i).isAvailable()) {
+				anyAvailable = true;
+				unavailableSince[i] = 0;
+			} else if (unavailableSince[i] == 0) {
+				unavailableSince[i] = now;
+			}
+		}
+		// With every member down the broker is the problem, new connections would not help.
+		if (!anyAvailable) {
+			return;
+		}
+		for (int i = 0; i < members.length(); i++) {
+			if (unavailableSince[i] != 0 && now - unavailableSince[i] >= replaceMillis) {
+				replace(i, now - unavailableSince[i]);
+				unavailableSince[i] = 0;
+			}
+		}
+	}
+
+	private void replace(int i, long unavailableMillis) {
+		MqttHandler old = members.get(i);
+		Log.warn("Reply connection {} unavailable for {} ms, replacing it", i, unavailableMillis);
+		// Stop its reconnects; let its in-flight replies finish. Replies routed to it meanwhile
+		// go to its outbox, which the new connection takes over; once closed it refuses them.
+		old.getReconnector().shutdown();
+		if (old.getClient().isConnected()) {
+			old.awaitDeliveries(drainMillis);
+		}
+		old.close();
+		try {
+			open(i);
+			replaced++;
+		} catch (MqttException e) {
+			Log.error("Reply connection {} could not be replaced", i, e);
+		}
+	}
+
+	private static long remaining(long deadline) {
+		return Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime()));
+	}
+}
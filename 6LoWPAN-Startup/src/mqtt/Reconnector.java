@@ -0,0 +1,305 @@
+package mqtt;
+
+import java.io.File;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.IMqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.IMqttToken;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+
+import startup.Settings;
+import util.Log;
+
+/**
+ * Reconnector brings the connection of MqttHandler back after connectionLost.
+ * 
+ * Attempts are spaced by a capped exponential backoff with full jitter
+ * (delay = random(0, min(max, initial * 2^attempt))), so that service instances do not all hit a
+ * restarted broker at the same moment. Once connected the subscriptions are restored and the
+ * replies buffered in the {@link Outbox} during the outage are published. The recovery is only
+ * over when the subscriptions are in place and the connection is still up: a failed subscription,
+ * or a connection lost again while restoring, starts the next attempt.
+ * 
+ * A new connection that takes over the outbox of another one ({@link PublisherPool}) goes through
+ * the same recovery ({@link #hold()}, {@link #recover()}), so its replies queue behind those left
+ * in the outbox.
+ * 
+ * Settings: mqtt.reconnect.initialMs (500), mqtt.reconnect.maxMs (60000),
+ * mqtt.outbox.size (10000). The outbox file is given by the site of the connection
+ * ({@link BrokerSite#getOutboxFile(String)}, mqtt.outbox.file or <stateDir>/<clientId>.outbox).
+ */
+public class Reconnector {
+
+	private final MqttHandler handler;
+	private final long initialDelay 	= Settings.getLong("mqtt.reconnect.initialMs", 500);
+	private final long maxDelay 		= Settings.getLong("mqtt.reconnect.maxMs", 60000);
+	private final Outbox outbox;
+	private final ScheduledExecutorService scheduler;
+
+	private final Object flushLock = new Object();
+
+	private volatile boolean reconnecting = false;
+	private boolean lostAgain = false;		// connectionLost while restoring
+	private boolean held = false;			// First connection, see hold()
+	private int attempt = 0;
+	private long lostAt = 0;
+
+	// Metrics.
+	private volatile int outages 				= 0;
+	private volatile long attemptsTotal 		= 0;
+	private volatile long lastOutageMillis 		= 0;	// Lost -> connected
+	private volatile long lastRecoverMillis 	= 0;	// Lost -> subscribed and outbox flushed
+	private volatile long totalOutageMillis 	= 0;
+	private volatile long maxRecoverMillis 		= 0;
+
+	public Reconnector(MqttHandler handler, File outboxFile) {
+		this.handler = handler;
+		this.outbox = new Outbox(Settings.getInt("mqtt.outbox.size", 10000), outboxFile);
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				// A daemon: Starter keeps the service alive during an outage, the first attempt
+				// would start this thread too late (Paho's threads end with the connection).
+				Thread thread = new Thread(r, "mqtt-reconnect");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	public boolean isReconnecting() {
+		return reconnecting;
+	}
+
+	/**
+	 * Called from MqttHandler.connectionLost; starts the attempts unless they are running already.
+	 */
+	public synchronized void connectionLost(Throwable cause) {
+		if (reconnecting) {
+			// Lost again before the restore is over; restore() starts the next attempt.
+			lostAgain = true;
+			Log.debug("Connection to {} lost while restoring: {}", handler.getBrokerUrl(), cause);
+			return;
+		}
+		reconnecting = true;
+		attempt = 0;
+		lostAt = System.nanoTime();
+		outages++;
+		Log.warn("Connection to {} lost, reconnecting: {}", handler.getBrokerUrl(), cause);
+		schedule();
+	}
+
+	/**
+	 * Buffer the replies of a connection that is just being set up, until {@link #recover()} has
+	 * published what its outbox holds already.
+	 */
+	public synchronized void hold() {
+		if (!reconnecting) {
+			reconnecting = true;
+			held = true;
+			attempt = 0;
+			lostAt = System.nanoTime();
+		}
+	}
+
+	/**
+	 * End {@link #hold()}: publish the outbox once connected, with the usual attempts while the
+	 * connection is not up.
+	 */
+	public void recover() {
+		scheduler.execute(new Runnable() {
+			public void run() {
+				tryConnect();
+			}
+		});
+	}
+
+	/**
+	 * Stop reconnecting (service shutdown). Replies still in the outbox stay in its file and are
+	 * published by the next run.
+	 */
+	public void shutdown() {
+		scheduler.shutdownNow();
+	}
+
+	/**
+	 * Keep a reply for later while the connection is down. Fails with REASON_CODE_CLIENT_CLOSED
+	 * once the outbox is closed, so the caller can send the reply through the connection that
+	 * took it over.
+	 */
+	public void buffer(String topicName, int qos, byte[] payload, boolean retained) throws MqttException {
+		if (!outbox.add(topicName, qos, payload, retained)) {
+			if (outbox.isClosed()) {
+				throw new MqttException(MqttException.REASON_CODE_CLIENT_CLOSED);
+			}
+			Log.warn("Outbox full, reply to {} dropped", topicName);
+		}
+	}
+
+	/**
+	 * Leave the outbox file to the connection that replaces this one.
+	 */
+	public void closeOutbox() {
+		outbox.close();
+	}
+
+	/**
+	 * Publish whatever is in the outbox (also replies recovered from a previous run). A reply leaves
+	 * the outbox only once it is published; one flush runs at a time so none is published twice.
+	 */
+	public void flushOutbox() {
+		flushOutbox(Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Publish at most limit replies of the outbox.
+	 */
+	private void flushOutbox(int limit) {
+		synchronized (flushLock) {
+			Outbox.Entry entry;
+			int count = 0;
+			while (count < limit && (entry = outbox.peek()) != null) {
+				try {
+					handler.publishConnected(entry.topic, entry.qos, entry.payload, entry.retained);
+				} catch (Throwable e) {
+					// Connection dropped again; the reply stays for the next recovery.
+					Log.warn("Outbox flush interrupted after {} replies: {}", count, e);
+					return;
+				}
+				outbox.remove(entry);
+				count++;
+			}
+			if (count > 0) {
+				Log.info("{} buffered replies published", count);
+			}
+		}
+	}
+
+	private synchronized void schedule() {
+		long cap = Math.min(maxDelay, initialDelay << Math.min(attempt, 30));
+		long delay = ThreadLocalRandom.current().nextLong(cap + 1);
+		attempt++;
+		attemptsTotal++;
+		Log.debug("Reconnect attempt {} in {} ms", attempt, delay);
+		scheduler.schedule(new Runnable() {
+			public void run() {
+				tryConnect();
+			}
+		}, delay, TimeUnit.MILLISECONDS);
+	}
+
+	private void tryConnect() {
+		synchronized (this) {
+			lostAgain = false;
+		}
+		IMqttAsyncClient client = handler.getClient();
+		MqttConnectOptions conOpt = handler.getConnectOptions();
+		try {
+			client.connect(conOpt, null, new IMqttActionListener() {
+				public void onSuccess(IMqttToken asyncActionToken) {
+					scheduler.execute(new Runnable() {
+						public void run() {
+							restore();
+						}
+					});
+				}
+
+				public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+					Log.debug("Reconnect failed: {}", exception);
+					schedule();
+				}
+			});
+		} catch (MqttException e) {
+			if (e.getReasonCode() == MqttException.REASON_CODE_CLIENT_CONNECTED) {
+				restore();
+			} else {
+				Log.debug("Reconnect failed: {}", e);
+				schedule();
+			}
+		}
+	}
+
+	/**
+	 * Connected again: restore the subscription, then publish the outbox.
+	 */
+	private void restore() {
+		long connectedAt = System.nanoTime();
+		if (!handler.isPublishOnly()) {
+			if (!handler.getMqttManager().subscribe()) {
+				// Connected but not subscribed: registrations would go unanswered, try again.
+				Log.warn("Subscriptions on {} not restored, retrying", handler.getBrokerUrl());
+				schedule();
+				return;
+			}
+			// The broker has published the will ("offline") in the meantime.
+			handler.getMqttManager().restoreStatus();
+		}
+		// Only what the outage left: replies keep coming to the outbox until the flag is reset,
+		// and a flush chasing them would hold up the recovery for as long as the arrivals last.
+		flushOutbox(outbox.size());
+
+		synchronized (this) {
+			if (lostAgain || !handler.getClient().isConnected()) {
+				Log.warn("Connection to {} lost again while restoring, reconnecting", handler.getBrokerUrl());
+				schedule();
+				return;
+			}
+			reconnecting = false;
+			if (held) {
+				held = false;
+				Log.debug("Connection to {} up, outbox published", handler.getBrokerUrl());
+				flushOutbox();
+				return;
+			}
+		}
+
+		long now = System.nanoTime();
+		lastOutageMillis = (connectedAt - lostAt) / 1000000;
+		lastRecoverMillis = (now - lostAt) / 1000000;
+		totalOutageMillis += lastOutageMillis;
+		maxRecoverMillis = Math.max(maxRecoverMillis, lastRecoverMillis);
+		Log.info("Reconnected to {} after {} attempts, outage {} ms, recovered in {} ms",
+				handler.getBrokerUrl(), attempt, lastOutageMillis, lastRecoverMillis);
+
+		// Replies buffered between the flush and the flag reset.
+		flushOutbox();
+	}
+
+	// Metrics.
+	public int getOutageCount() {
+		return outages;
+	}
+
+	public long getAttemptCount() {
+		return attemptsTotal;
+	}
+
+	public long getLastOutageMillis() {
+		return lastOutageMillis;
+	}
+
+	public long getLastRecoverMillis() {
+		return lastRecoverMillis;
+	}
+
+	public long getMaxRecoverMillis() {
+		return maxRecoverMillis;
+	}
+
+	public long getTotalOutageMillis() {
+		return totalOutageMillis;
+	}
+
+	public int getBufferedCount() {
+		return outbox.size();
+	}
+
+	public long getDroppedCount() {
+		return outbox.getDroppedCount();
+	}
+}
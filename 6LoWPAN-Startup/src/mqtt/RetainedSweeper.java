@@ -0,0 +1,182 @@
+package mqtt;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttCallback;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+
+import startup.Settings;
+import util.Log;
+
+/**
+ * RetainedSweeper bounds the retained replies kept by the broker in retained-reply mode
+ * (mqtt.reply.retained): every mqtt.reply.sweepMinutes (default 60) it reads the retained ids on
+ * "vestel/newDevice/+" and clears (empty retained message) those of devices that are no longer
+ * registered, i.e. decommissioned devices removed from the id store. The store is asked in batches
+ * of {@value #BATCH} devices. A device that registers again while its reply is being cleared gets
+ * its reply back: the cleared devices are checked once more afterwards.
+ * 
+ * The sweep uses a connection of its own (client id "<clientId>-sweeper", no will) so the
+ * retained flood does not go through the service callback.
+ */
+public class RetainedSweeper {
+
+	private static final int BATCH = 1000;
+
+	private final MqttManager mqttManager;
+	private final MqttHandler handler;
+	private final String prefix;
+	private final String requestTopic;
+	private final long quietMs = Settings.getLong("mqtt.reply.sweepQuietMs", 2000);
+	private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "retained-sweeper");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
+	public RetainedSweeper(MqttManager mqttManager, MqttHandler handler, String prefix, String requestTopic) {
+		this.mqttManager = mqttManager;
+		this.handler = handler;
+		this.prefix = prefix;
+		this.requestTopic = requestTopic;
+	}
+
+	/**
+	 * Sweep periodically from now on.
+	 */
+	public void start() {
+		long period = Settings.getLong("mqtt.reply.sweepMinutes", 60);
+		if (period <= 0) {
+			return;
+		}
+		scheduler.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				try {
+					sweep();
+				} catch (Throwable e) {
+					Log.warn("Retained reply sweep failed: {}", e);
+				}
+			}
+		}, period, period, TimeUnit.MINUTES);
+	}
+
+	public void shutdown() {
+		scheduler.shutdownNow();
+	}
+
+	/**
+	 * Clear the retained replies of decommissioned devices now. Returns the number cleared.
+	 */
+	public int sweep() throws MqttException, InterruptedException {
+		final List<String> defaultIds = new ArrayList<String>();
+		final long[] lastArrival = { System.nanoTime() };
+
+		MqttConnectOptions main = handler.getConnectOptions();
+		MqttConnectOptions conOpt = new MqttConnectOptions();
+		conOpt.setCleanSession(true);
+		conOpt.setSocketFactory(main.getSocketFactory());
+		if (main.getUserName() != null) {
+			conOpt.setUserName(main.getUserName());
+		}
+		if (main.getPassword() != null) {
+			conOpt.setPassword(main.getPassword());
+		}
+
+		MqttAsyncClient client = new MqttAsyncClient(handler.getBrokerUrl(),
+				handler.getClient().getClientId() + "-sweeper", new MemoryPersistence());
+		client.setCallback(new MqttCallback() {
+			public void messageArrived(String topic, MqttMessage message) {
+				// Retained messages only: the replies published right now are not stale.
+				if (message.isRetained() && message.getPayload().length > 0 && !topic.equals(requestTopic)) {
+					synchronized (defaultIds) {
+						defaultIds.add(topic.substring(prefix.length()));
+						lastArrival[0] = System.nanoTime();
+					}
+				}
+			}
+
+			public void deliveryComplete(IMqttDeliveryToken token) {
+			}
+
+			public void connectionLost(Throwable cause) {
+			}
+		});
+
+		int cleared = 0;
+		int checked;
+		try {
+			client.connect(conOpt).waitForCompletion(10000);
+			client.subscribe(prefix + "+", 0).waitForCompletion(10000);
+
+			// The broker sends the retained messages right after the subscription; wait until they stop.
+			while (true) {
+				long idle;
+				synchronized (defaultIds) {
+					idle = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastArrival[0]);
+				}
+				if (idle >= quietMs) {
+					break;
+				}
+				Thread.sleep(quietMs - idle);
+			}
+			client.unsubscribe(prefix + "+").waitForCompletion(10000);
+
+			List<String> snapshot;
+			synchronized (defaultIds) {
+				snapshot = new ArrayList<String>(defaultIds);
+			}
+			checked = snapshot.size();
+			for (int from = 0; from < snapshot.size(); from += BATCH) {
+				List<String> batch = snapshot.subList(from, Math.min(snapshot.size(), from + BATCH));
+				Map<String, Integer> registered = mqttManager.findRegistered(batch);
+				if (registered == null) {
+					continue;
+				}
+				List<String> stale = new ArrayList<String>();
+				for (String defaultId : batch) {
+					if (!registered.containsKey(defaultId)) {
+						stale.add(defaultId);
+					}
+				}
+				if (stale.isEmpty()) {
+					continue;
+				}
+				for (String defaultId : stale) {
+					client.publish(prefix + defaultId, new byte[0], 1, true).waitForCompletion(10000);
+				}
+				cleared += stale.size();
+				// Registered since the check: its new reply may have been published before the
+				// clear, so publish it again.
+				Map<String, Integer> again = mqttManager.findRegistered(stale);
+				if (again == null) {
+					Log.warn("{} cleared retained replies could not be checked again", stale.size());
+					continue;
+				}
+				for (Map.Entry<String, Integer> e : again.entrySet()) {
+					mqttManager.publish(e.getKey(), PayloadCodec.encodeId(e.getValue()), true);
+					cleared--;
+				}
+			}
+		} finally {
+			if (client.isConnected()) {
+				client.disconnect().waitForCompletion(10000);
+			}
+			client.close();
+		}
+		Log.info("Retained reply sweep: {} checked, {} cleared", checked, cleared);
+		return cleared;
+	}
+}
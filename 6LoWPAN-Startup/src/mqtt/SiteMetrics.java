@@ -0,0 +1,101 @@
+package mqtt;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * SiteMetrics counts the registrations answered through one broker site and their latency, from
+ * the arrival of the defaultId to the completion of the reply publish (buffered replies count
+ * when they are put in the outbox).
+ *
+ * Latencies go into power-of-two microsecond buckets, so recording is two atomic increments and
+ * the percentiles of an interval are exact to a factor of two. {@link #interval()} returns the
+ * figures since the previous call.
+ */
+public final class SiteMetrics {
+
+	private static final int BUCKETS = 40;	// Up to 2^40 us
+
+	/**
+	 * The figures of one reporting interval.
+	 */
+	public static final class Interval {
+		public final long replies;
+		public final double seconds;
+		public final double p50Millis;
+		public final double p99Millis;
+		public final double maxMillis;
+
+		Interval(long replies, double seconds, double p50Millis, double p99Millis, double maxMillis) {
+			this.replies = replies;
+			this.seconds = seconds;
+			this.p50Millis = p50Millis;
+			this.p99Millis = p99Millis;
+			this.maxMillis = maxMillis;
+		}
+
+		public double getRate() {
+			return seconds > 0 ? replies / seconds : 0;
+		}
+	}
+
+	private final AtomicLong replies = new AtomicLong();
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+	private final AtomicLong maxNanos = new AtomicLong();
+	private long intervalStart = System.nanoTime();		// Reporting thread only
+
+	/**
+	 * Count one answered registration that took latencyNanos.
+	 */
+	public void record(long latencyNanos) {
+		replies.incrementAndGet();
+		long micros = Math.max(1, latencyNanos / 1000);
+		buckets.incrementAndGet(Math.min(BUCKETS - 1, 63 - Long.numberOfLeadingZeros(micros)));
+		long max;
+		while (latencyNanos > (max = maxNanos.get()) && !maxNanos.compareAndSet(max, latencyNanos)) {
+			// Retry.
+		}
+	}
+
+	/**
+	 * Registrations answered since the start.
+	 */
+	public long getReplyCount() {
+		return replies.get();
+	}
+
+	/**
+	 * Return the figures since the previous call and start a new interval. Called by one thread.
+	 */
+	public Interval interval() {
+		long now = System.nanoTime();
+		long[] counts = new long[BUCKETS];
+		long count = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			counts[i] = buckets.getAndSet(i, 0);
+			count += counts[i];
+		}
+		double max = maxNanos.getAndSet(0) / 1e6;
+		double seconds = (now - intervalStart) / 1e9;
+		intervalStart = now;
+		return new Interval(count, seconds, percentile(counts, count, 0.50, max), percentile(counts, count, 0.99, max), max);
+	}
+
+	/**
+	 * Upper bound of the bucket holding the p quantile, in milliseconds, at most the maximum.
+	 */
+	private static double percentile(long[] counts, long count, double p, double maxMillis) {
+		if (count == 0) {
+			return 0;
+		}
+		long rank = (long) Math.ceil(p * count);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts[i];
+			if (seen >= rank) {
+				return Math.min(maxMillis, (1L << (i + 1)) / 1000.0);
+			}
+		}
+		return maxMillis;
+	}
+}
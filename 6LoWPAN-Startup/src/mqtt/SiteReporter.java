@@ -0,0 +1,66 @@
+package mqtt;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import mqtt.flow.FlowStage;
+import mqtt.flow.RegistrationPipeline;
+import startup.Settings;
+import util.Log;
+
+/**
+ * SiteReporter logs the throughput and the reply latency of every broker site
+ * ({@link SiteMetrics}) every mqtt.stats.seconds (default 60, 0 disables it), with the outage
+ * count, the outbox size and the messages shed by its connection, the duplicates answered with mqtt.delivery=dedup
+ * and the stages of its registration pipeline (mqtt.pipeline=flow).
+ */
+public final class SiteReporter extends Thread {
+
+	private final List<MqttManager> managers;
+	private final long periodMillis = TimeUnit.SECONDS.toMillis(Settings.getLong("mqtt.stats.seconds", 60));
+
+	public SiteReporter(List<MqttManager> managers) {
+		super("mqtt-stats");
+		this.managers = managers;
+		setDaemon(true);
+	}
+
+	/**
+	 * Start reporting, unless mqtt.stats.seconds is 0.
+	 */
+	public void start() {
+		if (periodMillis > 0) {
+			super.start();
+		}
+	}
+
+	public void run() {
+		try {
+			while (true) {
+				Thread.sleep(periodMillis);
+				for (MqttManager manager : managers) {
+					SiteMetrics.Interval interval = manager.getMetrics().interval();
+					Reconnector reconnector = manager.getReconnector();
+					Log.info("Site {}: {}", manager.getSite(), String.format(
+							"%d replies (%.1f/s), latency p50 %.1f ms, p99 %.1f ms, max %.1f ms; %d outages, %d buffered, %d shed",
+							interval.replies, interval.getRate(), interval.p50Millis, interval.p99Millis, interval.maxMillis,
+							reconnector.getOutageCount(), reconnector.getBufferedCount(), manager.getShedCount()));
+					DedupWindow dedup = manager.getDedupWindow();
+					if (dedup != null) {
+						Log.info("Site {}: {}", manager.getSite(), String.format(
+								"%d duplicates answered (%d confirmed by the store), %d filter false positives, %d defaultIds in the dedup window",
+								dedup.getDuplicateCount(), dedup.getConfirmedCount(), dedup.getFalsePositiveCount(), dedup.size()));
+					}
+					RegistrationPipeline pipeline = manager.getPipeline();
+					if (pipeline != null) {
+						for (FlowStage<?, ?> stage : pipeline.getStages()) {
+							Log.info("Site {} stage {}", manager.getSite(), stage);
+						}
+					}
+				}
+			}
+		} catch (InterruptedException e) {
+			// Stopped.
+		}
+	}
+}
@@ -0,0 +1,247 @@
+package mqtt;
+
+import java.net.Socket;
+import java.security.KeyStore;
+import java.security.Principal;
+import java.security.PrivateKey;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.Enumeration;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.TrustManagerFactory;
+import javax.net.ssl.X509ExtendedKeyManager;
+import javax.net.ssl.X509ExtendedTrustManager;
+
+import startup.Settings;
+import util.Log;
+
+/**
+ * SslCredentials is the SSL context of one set of PEM files (CA certificate, client certificate,
+ * client key). The context is built once from the {@link KeystoreCache} and reused for every
+ * (re)connect.
+ * 
+ * The key and trust managers of the context delegate to replaceable instances: the files are
+ * checked every mqtt.ssl.reloadSeconds (default 60, 0 disables) and when their content changes
+ * the new credentials are swapped in. The established MQTT connection is not touched; the next
+ * handshake uses the new credentials. Cached TLS sessions are dropped at that point so that the
+ * next handshake is a full one with the new certificate.
+ */
+final class SslCredentials {
+
+	private static final ConcurrentHashMap<String, SslCredentials> all = new ConcurrentHashMap<String, SslCredentials>();
+	private static ScheduledExecutorService watcher = null;
+
+	private final String caCrtFile;
+	private final String crtFile;
+	private final String keyFile;
+	private final String password;
+	private final ReloadableKeyManager keyManager = new ReloadableKeyManager();
+	private final ReloadableTrustManager trustManager = new ReloadableTrustManager();
+	private SSLContext context;
+	private volatile String hash;
+
+	private SslCredentials(String caCrtFile, String crtFile, String keyFile, String password) {
+		this.caCrtFile = caCrtFile;
+		this.crtFile = crtFile;
+		this.keyFile = keyFile;
+		this.password = password;
+	}
+
+	/**
+	 * Return the credentials of these files, loading them on first use. Returns null on failure.
+	 */
+	static synchronized SslCredentials get(String caCrtFile, String crtFile, String keyFile, String password) {
+		String id = caCrtFile + '|' + crtFile + '|' + keyFile;
+		SslCredentials credentials = all.get(id);
+		if (credentials == null) {
+			credentials = new SslCredentials(caCrtFile, crtFile, keyFile, password);
+			try {
+				credentials.init();
+			} catch (Exception e) {
+				Log.error("SSL credentials could not be loaded", e);
+				return null;
+			}
+			all.put(id, credentials);
+			watch(credentials);
+		}
+		return credentials;
+	}
+
+	SSLSocketFactory getSocketFactory() {
+		return context.getSocketFactory();
+	}
+
+	private void init() throws Exception {
+		hash = KeystoreCache.hash(caCrtFile, crtFile, keyFile, password);
+		install(KeystoreCache.load(caCrtFile, crtFile, keyFile, password, hash));
+
+		context = SSLContext.getInstance(Settings.get("mqtt.ssl.protocol", "TLSv1.2"));
+		context.init(new KeyManager[] { keyManager }, new TrustManager[] { trustManager }, null);
+		SslUtil.configureSessionCache(context);
+	}
+
+	/**
+	 * Swap in the credentials of the given keystore.
+	 */
+	private void install(KeyStore store) throws Exception {
+		// Trust the CA only, not the client certificate of the key entry.
+		KeyStore trustStore = KeyStore.getInstance(KeyStore.getDefaultType());
+		trustStore.load(null, null);
+		trustStore.setCertificateEntry(KeystoreCache.CA_ALIAS, store.getCertificate(KeystoreCache.CA_ALIAS));
+		TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+		tmf.init(trustStore);
+
+		KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+		kmf.init(store, KeystoreCache.storePassword(keyFile, password));
+
+		X509ExtendedTrustManager tm = null;
+		for (TrustManager m : tmf.getTrustManagers()) {
+			if (m instanceof X509ExtendedTrustManager) {
+				tm = (X509ExtendedTrustManager) m;
+			}
+		}
+		X509ExtendedKeyManager km = null;
+		for (KeyManager m : kmf.getKeyManagers()) {
+			if (m instanceof X509ExtendedKeyManager) {
+				km = (X509ExtendedKeyManager) m;
+			}
+		}
+		if (tm == null || km == null) {
+			throw new IllegalStateException("No X509 key/trust manager available");
+		}
+		trustManager.delegate = tm;
+		keyManager.delegate = km;
+	}
+
+	/**
+	 * Reload if the content of the PEM files has changed. Returns true if new credentials are in use.
+	 */
+	boolean reload() {
+		try {
+			String newHash = KeystoreCache.hash(caCrtFile, crtFile, keyFile, password);
+			if (newHash.equals(hash)) {
+				return false;
+			}
+			install(KeystoreCache.load(caCrtFile, crtFile, keyFile, password, newHash));
+			hash = newHash;
+
+			SSLSessionContext sessions = context.getClientSessionContext();
+			for (Enumeration<byte[]> ids = sessions.getIds(); ids.hasMoreElements();) {
+				sessions.getSession(ids.nextElement()).invalidate();
+			}
+			Log.info("SSL credentials reloaded from {}", crtFile);
+			return true;
+		} catch (Exception e) {
+			// Half written files while certificates are being replaced, retry on the next check.
+			Log.warn("SSL credentials not reloaded, keeping the current ones: {}", e);
+			return false;
+		}
+	}
+
+	private static synchronized void watch(final SslCredentials credentials) {
+		long period = Settings.getLong("mqtt.ssl.reloadSeconds", 60);
+		if (period <= 0) {
+			return;
+		}
+		if (watcher == null) {
+			watcher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "ssl-credentials-watcher");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		watcher.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				credentials.reload();
+			}
+		}, period, period, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Key manager whose delegate can be replaced at runtime.
+	 */
+	static final class ReloadableKeyManager extends X509ExtendedKeyManager {
+		volatile X509ExtendedKeyManager delegate;
+
+		public String[] getClientAliases(String keyType, Principal[] issuers) {
+			return delegate.getClientAliases(keyType, issuers);
+		}
+
+		public String chooseClientAlias(String[] keyType, Principal[] issuers, Socket socket) {
+			return delegate.chooseClientAlias(keyType, issuers, socket);
+		}
+
+		public String[] getServerAliases(String keyType, Principal[] issuers) {
+			return delegate.getServerAliases(keyType, issuers);
+		}
+
+		public String chooseServerAlias(String keyType, Principal[] issuers, Socket socket) {
+			return delegate.chooseServerAlias(keyType, issuers, socket);
+		}
+
+		public X509Certificate[] getCertificateChain(String alias) {
+			return delegate.getCertificateChain(alias);
+		}
+
+		public PrivateKey getPrivateKey(String alias) {
+			return delegate.getPrivateKey(alias);
+		}
+
+		public String chooseEngineClientAlias(String[] keyType, Principal[] issuers, SSLEngine engine) {
+			return delegate.chooseEngineClientAlias(keyType, issuers, engine);
+		}
+
+		public String chooseEngineServerAlias(String keyType, Principal[] issuers, SSLEngine engine) {
+			return delegate.chooseEngineServerAlias(keyType, issuers, engine);
+		}
+	}
+
+	/**
+	 * Trust manager whose delegate can be replaced at runtime.
+	 */
+	static final class ReloadableTrustManager extends X509ExtendedTrustManager {
+		volatile X509ExtendedTrustManager delegate;
+
+		public void checkClientTrusted(X509Certificate[] chain, String authType) throws CertificateException {
+			delegate.checkClientTrusted(chain, authType);
+		}
+
+		public void checkServerTrusted(X509Certificate[] chain, String authType) throws CertificateException {
+			delegate.checkServerTrusted(chain, authType);
+		}
+
+		public X509Certificate[] getAcceptedIssuers() {
+			return delegate.getAcceptedIssuers();
+		}
+
+		public void checkClientTrusted(X509Certificate[] chain, String authType, Socket socket) throws CertificateException {
+			delegate.checkClientTrusted(chain, authType, socket);
+		}
+
+		public void checkServerTrusted(X509Certificate[] chain, String authType, Socket socket) throws CertificateException {
+			delegate.checkServerTrusted(chain, authType, socket);
+		}
+
+		public void checkClientTrusted(X509Certificate[] chain, String authType, SSLEngine engine) throws CertificateException {
+			delegate.checkClientTrusted(chain, authType, engine);
+		}
+
+		public void checkServerTrusted(X509Certificate[] chain, String authType, SSLEngine engine) throws CertificateException {
+			delegate.checkServerTrusted(chain, authType, engine);
+		}
+	}
+}
@@ -1,5 +1,6 @@
 package mqtt;
 
+import org.bouncycastle.asn1.pkcs.PrivateKeyInfo;
 import org.bouncycastle.cert.X509CertificateHolder;
 import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
@@ -15,13 +16,27 @@ import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLSocketFactory;
 import javax.net.ssl.TrustManagerFactory;
 import java.io.FileReader;
-import java.security.KeyPair;
+import java.security.PrivateKey;
 import java.security.KeyStore;
 import java.security.Security;
 import java.security.cert.Certificate;
 import java.security.cert.X509Certificate;
 
-
+import startup.Settings;
+import util.Log;
+
+
+/**
+ * SslUtil builds the SSL socket factory of the Mqtt client from PEM files (CA certificate,
+ * client certificate and optionally encrypted client key).
+ *
+ * Factories are cached by {@link SslCredentials}: PEM material is converted once into a PKCS12
+ * keystore, and the same SSLContext is reused so that its client session cache lets reconnects
+ * resume the TLS session instead of doing a full handshake.
+ *
+ * Settings: mqtt.ssl.protocol (TLSv1.2), mqtt.ssl.sessionCacheSize (100),
+ * mqtt.ssl.sessionTimeout in seconds (86400).
+ */
 public class SslUtil
 {
 //	static SSLSocketFactory getSocketFactory (final String caCrtFile, final String crtFile, final String keyFile, 
@@ -74,90 +89,135 @@ public class SslUtil
 //		return context.getSocketFactory();
 //	}
 	
+	/**
+	 * Return the socket factory for these files, building it on first use. Later calls (reconnects)
+	 * get the same factory. Returns null if the factory cannot be built.
+	 */
 	public static SSLSocketFactory getSocketFactory(final String caCrtFile, final String crtFile, final String keyFile,
             final String password) {
-		try {
-
-			/**
-			 * Add BouncyCastle as a Security Provider
-			 */
-			Security.addProvider(new BouncyCastleProvider());
-
-			JcaX509CertificateConverter certificateConverter = new JcaX509CertificateConverter().setProvider("BC");
-
-			/**
-			 * Load Certificate Authority (CA) certificate
-			 */
-			PEMParser reader = new PEMParser(new FileReader(caCrtFile));
-			X509CertificateHolder caCertHolder = (X509CertificateHolder) reader.readObject();
-			reader.close();
-
-			X509Certificate caCert = certificateConverter.getCertificate(caCertHolder);
-
-			/**
-			 * Load client certificate
-			 */
-			reader = new PEMParser(new FileReader(crtFile));
-			X509CertificateHolder certHolder = (X509CertificateHolder) reader.readObject();
-			reader.close();
-
-			X509Certificate cert = certificateConverter.getCertificate(certHolder);
-
-			/**
-			 * Load client private key
-			 */
-			reader = new PEMParser(new FileReader(keyFile));
-			Object keyObject = reader.readObject();
-			reader.close();
 
-			PEMDecryptorProvider provider = new JcePEMDecryptorProviderBuilder().build(password.toCharArray());
-			JcaPEMKeyConverter keyConverter = new JcaPEMKeyConverter().setProvider("BC");
+		SslCredentials credentials = SslCredentials.get(caCrtFile, crtFile, keyFile, password);
+		return credentials == null ? null : credentials.getSocketFactory();
+	}
 
-			KeyPair key;
+	/**
+	 * Return the socket factory of the PEM files given in the settings: mqtt.ssl.ca, mqtt.ssl.cert,
+	 * mqtt.ssl.key and mqtt.ssl.keyPassword.
+	 */
+	public static SSLSocketFactory getConfiguredSocketFactory() {
+		return getSocketFactory(
+				Settings.get("mqtt.ssl.ca", "certificates/ca.crt"),
+				Settings.get("mqtt.ssl.cert", "certificates/client.crt"),
+				Settings.get("mqtt.ssl.key", "certificates/client.key"),
+				Settings.get("mqtt.ssl.keyPassword", ""));
+	}
 
-			if (keyObject instanceof PEMEncryptedKeyPair) {
-				key = keyConverter.getKeyPair(((PEMEncryptedKeyPair) keyObject).decryptKeyPair(provider));
-			} else {
-				key = keyConverter.getKeyPair((PEMKeyPair) keyObject);
-			}
+	/**
+	 * Enable client side session caching so that later handshakes with the same broker resume.
+	 */
+	public static void configureSessionCache(SSLContext context) {
+		context.getClientSessionContext().setSessionCacheSize(Settings.getInt("mqtt.ssl.sessionCacheSize", 100));
+		context.getClientSessionContext().setSessionTimeout(Settings.getInt("mqtt.ssl.sessionTimeout", 86400));
+	}
 
-			/**
-			 * CA certificate is used to authenticate server
-			 */
-			KeyStore caKeyStore = KeyStore.getInstance(KeyStore.getDefaultType());
-			caKeyStore.load(null, null);
-			caKeyStore.setCertificateEntry("ca-certificate", caCert);
+	/**
+	 * Parse the PEM files and build a new SSL context, without any caching. Returns null on failure.
+	 */
+	public static SSLContext createContext(final String caCrtFile, final String crtFile, final String keyFile,
+            final String password) {
+		try {
+			KeyStore[] stores = parsePem(caCrtFile, crtFile, keyFile, password);
 
 			TrustManagerFactory trustManagerFactory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
-			trustManagerFactory.init(caKeyStore);
-
-			/**
-			 * Client key and certificates are sent to server so it can
-			 * authenticate the client
-			 */
-			KeyStore clientKeyStore = KeyStore.getInstance(KeyStore.getDefaultType());
-			clientKeyStore.load(null, null);
-			clientKeyStore.setCertificateEntry("certificate", cert);
-			clientKeyStore.setKeyEntry("private-key", key.getPrivate(), password.toCharArray(), new Certificate[] { cert });
+			trustManagerFactory.init(stores[0]);
 
 			KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
-			keyManagerFactory.init(clientKeyStore, password.toCharArray());
+			keyManagerFactory.init(stores[1], password.toCharArray());
 
 			/**
-			 * Create SSL socket factory
+			 * Create SSL context
 			 */
-			SSLContext context = SSLContext.getInstance("TLSv1.2");
+			SSLContext context = SSLContext.getInstance(Settings.get("mqtt.ssl.protocol", "TLSv1.2"));
 			context.init(keyManagerFactory.getKeyManagers(), trustManagerFactory.getTrustManagers(), null);
-
-			/**
-			 * Return the newly created socket factory object
-			 */
-			return context.getSocketFactory();
+			configureSessionCache(context);
+			return context;
 
 		} catch (Exception e) {
-			e.printStackTrace();
+			Log.error("SSL/TLS context could not be created", e);
 		}
 
 		return null;
 	}
+
+	/**
+	 * Parse the PEM files with BouncyCastle. Returns { CA trust store, client key store }; the
+	 * client key is stored under "private-key" protected with password.
+	 */
+	static KeyStore[] parsePem(final String caCrtFile, final String crtFile, final String keyFile,
+            final String password) throws Exception {
+
+		/**
+		 * Add BouncyCastle as a Security Provider
+		 */
+		Security.addProvider(new BouncyCastleProvider());
+
+		JcaX509CertificateConverter certificateConverter = new JcaX509CertificateConverter().setProvider("BC");
+
+		/**
+		 * Load Certificate Authority (CA) certificate
+		 */
+		PEMParser reader = new PEMParser(new FileReader(caCrtFile));
+		X509CertificateHolder caCertHolder = (X509CertificateHolder) reader.readObject();
+		reader.close();
+
+		X509Certificate caCert = certificateConverter.getCertificate(caCertHolder);
+
+		/**
+		 * Load client certificate
+		 */
+		reader = new PEMParser(new FileReader(crtFile));
+		X509CertificateHolder certHolder = (X509CertificateHolder) reader.readObject();
+		reader.close();
+
+		X509Certificate cert = certificateConverter.getCertificate(certHolder);
+
+		/**
+		 * Load client private key
+		 */
+		reader = new PEMParser(new FileReader(keyFile));
+		Object keyObject = reader.readObject();
+		reader.close();
+
+		PEMDecryptorProvider provider = new JcePEMDecryptorProviderBuilder().build(password.toCharArray());
+		JcaPEMKeyConverter keyConverter = new JcaPEMKeyConverter().setProvider("BC");
+
+		PrivateKey key;
+
+		if (keyObject instanceof PEMEncryptedKeyPair) {
+			key = keyConverter.getKeyPair(((PEMEncryptedKeyPair) keyObject).decryptKeyPair(provider)).getPrivate();
+		} else if (keyObject instanceof PrivateKeyInfo) {
+			// Unencrypted PKCS#8 key ("BEGIN PRIVATE KEY").
+			key = keyConverter.getPrivateKey((PrivateKeyInfo) keyObject);
+		} else {
+			key = keyConverter.getKeyPair((PEMKeyPair) keyObject).getPrivate();
+		}
+
+		/**
+		 * CA certificate is used to authenticate server
+		 */
+		KeyStore caKeyStore = KeyStore.getInstance(KeyStore.getDefaultType());
+		caKeyStore.load(null, null);
+		caKeyStore.setCertificateEntry("ca-certificate", caCert);
+
+		/**
+		 * Client key and certificates are sent to server so it can
+		 * authenticate the client
+		 */
+		KeyStore clientKeyStore = KeyStore.getInstance(KeyStore.getDefaultType());
+		clientKeyStore.load(null, null);
+		clientKeyStore.setCertificateEntry("certificate", cert);
+		clientKeyStore.setKeyEntry("private-key", key, password.toCharArray(), new Certificate[] { cert });
+
+		return new KeyStore[] { caKeyStore, clientKeyStore };
+	}
 }
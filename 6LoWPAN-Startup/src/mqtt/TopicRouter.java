@@ -0,0 +1,288 @@
+package mqtt;
+
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+/**
+ * TopicRouter dispatches arrived messages to the handler of the topic filter they match. The
+ * filters ('+' for one level, '#' for the rest, as in MQTT 3.1.1 section 4.7) are compiled into a
+ * trie of topic levels when they are added, so a routing decision walks the levels of the topic
+ * once, whatever the number of routes, and allocates nothing.
+ *
+ * Literal levels are looked up in an open addressing table of each node with the String hash of
+ * the level, computed while scanning the topic and compared in place (regionMatches). When several
+ * filters match, the most specific one is taken: a literal level before '+', '+' before '#'.
+ * Topics starting with '$' are not matched by filters starting with a wildcard.
+ *
+ * The levels matched by wildcards are passed to the handler as {@link Captures}: offsets into the
+ * topic, reused by the thread, valid only during the call. Routes are added while the connection
+ * is set up, before messages arrive; dispatch may then run on several threads at once.
+ */
+public final class TopicRouter {
+
+	/**
+	 * Handler of the messages of one filter.
+	 */
+	public interface Route {
+		void handle(String topic, Captures captures, MqttMessage message) throws MqttException;
+	}
+
+	/**
+	 * The topic levels matched by the wildcards of the filter, in order. A '#' capture spans all the
+	 * remaining levels (empty if it matched the parent level).
+	 */
+	public static final class Captures {
+		private static final int MAX = 32;
+
+		private final int[] starts = new int[MAX];
+		private final int[] ends = new int[MAX];
+		private String topic;
+		private int count;
+
+		public int count() {
+			return count;
+		}
+
+		public int start(int i) {
+			return starts[i];
+		}
+
+		public int end(int i) {
+			return ends[i];
+		}
+
+		/**
+		 * Whether capture i equals s, without creating a string.
+		 */
+		public boolean equals(int i, String s) {
+			int len = ends[i] - starts[i];
+			return s.length() == len && topic.regionMatches(starts[i], s, 0, len);
+		}
+
+		/**
+		 * Capture i as a string (allocates).
+		 */
+		public String get(int i) {
+			return topic.substring(starts[i], ends[i]);
+		}
+	}
+
+	/**
+	 * One topic level; the child levels by name, the '+' and '#' children and the route of a filter
+	 * that ends here.
+	 */
+	private static final class Node {
+		String[] keys = new String[4];
+		Node[] children = new Node[4];
+		int size = 0;
+		Node plus;
+		Route hash;		// Route of "<this level>/#"
+		Route route;
+
+		Node child(String topic, int start, int end, int hashCode) {
+			int mask = keys.length - 1;
+			int len = end - start;
+			for (int i = hashCode & mask; keys[i] != null; i = (i + 1) & mask) {
+				String key = keys[i];
+				if (key.length() == len && key.hashCode() == hashCode && topic.regionMatches(start, key, 0, len)) {
+					return children[i];
+				}
+			}
+			return null;
+		}
+
+		Node getOrAdd(String level) {
+			Node node = child(level, 0, level.length(), level.hashCode());
+			if (node != null) {
+				return node;
+			}
+			if ((size + 1) * 2 > keys.length) {
+				String[] oldKeys = keys;
+				Node[] oldChildren = children;
+				keys = new String[oldKeys.length * 2];
+				children = new Node[oldKeys.length * 2];
+				for (int i = 0; i < oldKeys.length; i++) {
+					if (oldKeys[i] != null) {
+						put(oldKeys[i], oldChildren[i]);
+					}
+				}
+			}
+			node = new Node();
+			put(level, node);
+			size++;
+			return node;
+		}
+
+		private void put(String key, Node node) {
+			int mask = keys.length - 1;
+			int i = key.hashCode() & mask;
+			while (keys[i] != null) {
+				i = (i + 1) & mask;
+			}
+			keys[i] = key;
+			children[i] = node;
+		}
+	}
+
+	private final Node root = new Node();
+	private int routes = 0;
+
+	private final ThreadLocal<Captures> captures = new ThreadLocal<Captures>() {
+		protected Captures initialValue() {
+			return new Captures();
+		}
+	};
+
+	/**
+	 * Route the messages matching filter to route, replacing the route of the same filter.
+	 */
+	public synchronized void add(String filter, Route route) {
+		if (!isValidFilter(filter)) {
+			throw new IllegalArgumentException("Invalid topic filter: " + filter);
+		}
+		Node node = root;
+		int start = 0;
+		while (true) {
+			int end = filter.indexOf('/', start);
+			if (end < 0) {
+				end = filter.length();
+			}
+			String level = filter.substring(start, end);
+			if (level.equals("#")) {
+				if (node.hash == null) {
+					routes++;
+				}
+				node.hash = route;
+				return;
+			}
+			if (level.equals("+")) {
+				if (node.plus == null) {
+					node.plus = new Node();
+				}
+				node = node.plus;
+			} else {
+				node = node.getOrAdd(level);
+			}
+			if (end == filter.length()) {
+				if (node.route == null) {
+					routes++;
+				}
+				node.route = route;
+				return;
+			}
+			start = end + 1;
+		}
+	}
+
+	public synchronized int size() {
+		return routes;
+	}
+
+	/**
+	 * Hand the message to the route of the most specific filter matching topic. Returns false if no
+	 * filter matches.
+	 */
+	public boolean dispatch(String topic, MqttMessage message) throws MqttException {
+		Captures c = captures.get();
+		c.topic = topic;
+		c.count = 0;
+		boolean system = topic.length() > 0 && topic.charAt(0) == '$';
+		Route route = match(root, topic, 0, c, system);
+		if (route == null) {
+			c.topic = null;
+			return false;
+		}
+		try {
+			route.handle(topic, c, message);
+		} finally {
+			c.topic = null;
+		}
+		return true;
+	}
+
+	/**
+	 * The route of the most specific filter under node matching topic from the level at start, with
+	 * the captures of the wildcards on the way.
+	 */
+	private static Route match(Node node, String topic, int start, Captures c, boolean noWildcard) {
+		int len = topic.length();
+		int end = start;
+		int hashCode = 0;
+		while (end < len) {
+			char ch = topic.charAt(end);
+			if (ch == '/') {
+				break;
+			}
+			hashCode = 31 * hashCode + ch;
+			end++;
+		}
+		boolean last = end == len;
+
+		Node child = node.child(topic, start, end, hashCode);
+		if (child != null) {
+			Route route = last ? child.route : match(child, topic, end + 1, c, false);
+			if (route == null && last && child.hash != null) {
+				// "a/#" matches "a".
+				route = capture(child.hash, c, len, len);
+			}
+			if (route != null) {
+				return route;
+			}
+		}
+		if (noWildcard) {
+			return null;
+		}
+		if (node.plus != null && c.count < Captures.MAX) {
+			int mark = c.count;
+			c.starts[mark] = start;
+			c.ends[mark] = end;
+			c.count = mark + 1;
+			Route route = last ? node.plus.route : match(node.plus, topic, end + 1, c, false);
+			if (route == null && last && node.plus.hash != null) {
+				route = capture(node.plus.hash, c, len, len);
+			}
+			if (route != null) {
+				return route;
+			}
+			c.count = mark;
+		}
+		if (node.hash != null) {
+			return capture(node.hash, c, start, len);
+		}
+		return null;
+	}
+
+	private static Route capture(Route route, Captures c, int start, int end) {
+		if (c.count < Captures.MAX) {
+			c.starts[c.count] = start;
+			c.ends[c.count] = end;
+			c.count++;
+		}
+		return route;
+	}
+
+	/**
+	 * Validate a filter: '#' only as the last level, '+' only as a whole level.
+	 */
+	static boolean isValidFilter(String filter) {
+		int len = filter.length();
+		if (len == 0) {
+			return false;
+		}
+		for (int i = 0; i < len; i++) {
+			char c = filter.charAt(i);
+			if (c == '+' || c == '#') {
+				if (i > 0 && filter.charAt(i - 1) != '/') {
+					return false;
+				}
+				if (i < len - 1 && filter.charAt(i + 1) != '/') {
+					return false;
+				}
+				if (c == '#' && i != len - 1) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+}
@@ -0,0 +1,709 @@
+package mqtt.broker;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import util.Log;
+
+/**
+ * MqttBroker is a minimal in-process MQTT 3.1.1 broker used as a stand-in for the real broker,
+ * so the service and the load tools can run on localhost without lab hardware.
+ *
+ * Supported: QoS 0/1/2 in both directions, retained messages, '+'/'#' wildcard subscriptions,
+ * shared subscriptions ("$share/<group>/<filter>", messages are spread round robin over the
+ * members of a group), persistent sessions (cleanSession=false), will messages and keep alive.
+ * Authentication is not checked.
+ *
+ * The broker runs on a single thread with one NIO selector; all session state is owned by that
+ * thread, so nothing is locked.
+ */
+public class MqttBroker implements Runnable {
+
+	// Packet types.
+	private static final int CONNECT 		= 1;
+	private static final int CONNACK 		= 2;
+	private static final int PUBLISH 		= 3;
+	private static final int PUBACK 		= 4;
+	private static final int PUBREC 		= 5;
+	private static final int PUBREL 		= 6;
+	private static final int PUBCOMP 		= 7;
+	private static final int SUBSCRIBE 		= 8;
+	private static final int SUBACK 		= 9;
+	private static final int UNSUBSCRIBE 	= 10;
+	private static final int UNSUBACK 		= 11;
+	private static final int PINGREQ 		= 12;
+	private static final int PINGRESP 		= 13;
+	private static final int DISCONNECT 	= 14;
+
+	private static final int MAX_PACKET_SIZE 	= 1 << 20;
+	private static final int MAX_OFFLINE 		= 10000;	// Queued messages per offline persistent session
+
+	private final String host;
+	private final int port;
+	private Selector selector;
+	private ServerSocketChannel server;
+	private Thread thread;
+	private volatile boolean running = false;
+
+	private final Map<String, Session> sessions = new HashMap<String, Session>();
+	private final Map<String, Session.Message> retained = new HashMap<String, Session.Message>();
+	private final Map<String, Integer> sharedCursors = new HashMap<String, Integer>();
+	private int autoClientIds = 0;
+
+	// Reused by route(), selector thread only.
+	private final Map<Session, Integer> targets = new HashMap<Session, Integer>();
+	private final Map<String, List<Session.Subscription>> groups = new HashMap<String, List<Session.Subscription>>();
+
+	private final AtomicLong received = new AtomicLong();
+	private final AtomicLong delivered = new AtomicLong();
+
+	public MqttBroker(int port) {
+		this("localhost", port);
+	}
+
+	public MqttBroker(String host, int port) {
+		this.host = host;
+		this.port = port;
+	}
+
+	/**
+	 * Bind the listening socket and start the selector thread.
+	 */
+	public synchronized void start() throws IOException {
+		selector = Selector.open();
+		server = ServerSocketChannel.open();
+		server.socket().setReuseAddress(true);
+		server.bind(new InetSocketAddress(host, port), 1024);
+		server.configureBlocking(false);
+		server.register(selector, SelectionKey.OP_ACCEPT);
+
+		running = true;
+		thread = new Thread(this, "mqtt-broker-" + getPort());
+		thread.setDaemon(true);
+		thread.start();
+		Log.info("MQTT broker stand-in listening on {}:{}", host, getPort());
+	}
+
+	/**
+	 * Stop the selector thread and close every connection.
+	 */
+	public synchronized void stop() {
+		if (!running) {
+			return;
+		}
+		running = false;
+		selector.wakeup();
+		try {
+			thread.join(2000);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * The bound port, useful when the broker was created with port 0.
+	 */
+	public int getPort() {
+		return server == null ? port : server.socket().getLocalPort();
+	}
+
+	public long getReceivedCount() {
+		return received.get();
+	}
+
+	public long getDeliveredCount() {
+		return delivered.get();
+	}
+
+	public void run() {
+		long nextKeepAliveCheck = System.currentTimeMillis() + 1000;
+
+		while (running) {
+			try {
+				selector.select(1000);
+				Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+				while (it.hasNext()) {
+					SelectionKey key = it.next();
+					it.remove();
+					if (!key.isValid()) {
+						continue;
+					}
+					try {
+						if (key.isAcceptable()) {
+							accept();
+							continue;
+						}
+						if (key.isReadable()) {
+							read(key);
+						}
+						if (key.isValid() && key.isWritable()) {
+							write((Session) key.attachment());
+						}
+					} catch (IOException | RuntimeException e) {
+						// Broken connection or malformed packet: drop the client.
+						Log.debug("Closing client connection: {}", e);
+						close((Session) key.attachment(), true);
+					}
+				}
+
+				long now = System.currentTimeMillis();
+				if (now >= nextKeepAliveCheck) {
+					checkKeepAlive(now);
+					nextKeepAliveCheck = now + 1000;
+				}
+			} catch (IOException e) {
+				Log.error("Broker selector failed", e);
+			}
+		}
+
+		for (Session session : new ArrayList<Session>(sessions.values())) {
+			close(session, false);
+		}
+		try {
+			server.close();
+			selector.close();
+		} catch (IOException e) {
+			// Ignore, shutting down.
+		}
+	}
+
+	/****************************************************************/
+	/* Network                                                      */
+	/****************************************************************/
+
+	private void accept() throws IOException {
+		SocketChannel channel;
+		while ((channel = server.accept()) != null) {
+			channel.configureBlocking(false);
+			channel.socket().setTcpNoDelay(true);
+			// The real session is looked up once CONNECT tells the client id.
+			Session pending = new Session(null);
+			pending.channel = channel;
+			pending.lastActivity = System.currentTimeMillis();
+			pending.key = channel.register(selector, SelectionKey.OP_READ, pending);
+		}
+	}
+
+	private void read(SelectionKey key) throws IOException {
+		Session session = (Session) key.attachment();
+		ByteBuffer in = session.in;
+		int n = session.channel.read(in);
+		if (n < 0) {
+			close(session, true);
+			return;
+		}
+		session.lastActivity = System.currentTimeMillis();
+
+		in.flip();
+		while (in.remaining() >= 2) {
+			int start = in.position();
+			int header = in.get(start) & 0xff;
+
+			// Remaining length, 1 to 4 bytes.
+			int length = 0;
+			int multiplier = 1;
+			int pos = start + 1;
+			boolean complete = false;
+			while (pos < in.limit()) {
+				int b = in.get(pos++) & 0xff;
+				length += (b & 0x7f) * multiplier;
+				if ((b & 0x80) == 0) {
+					complete = true;
+					break;
+				}
+				multiplier *= 128;
+				if (multiplier > 128 * 128 * 128) {
+					throw new IOException("Malformed remaining length");
+				}
+			}
+			if (!complete) {
+				break;
+			}
+			if (length > MAX_PACKET_SIZE) {
+				throw new IOException("Packet too large: " + length);
+			}
+			if (in.limit() - pos < length) {
+				// Incomplete packet, make sure it fits into the buffer once it has arrived.
+				int total = pos - start + length;
+				if (total > in.capacity()) {
+					ByteBuffer bigger = ByteBuffer.allocate(total);
+					bigger.put(in);
+					bigger.flip();
+					in = bigger;
+					session.in = bigger;
+				}
+				break;
+			}
+
+			ByteBuffer packet = in.duplicate();
+			packet.position(pos);
+			packet.limit(pos + length);
+			in.position(pos + length);
+
+			handle(key, (Session) key.attachment(), header >> 4, header & 0x0f, packet);
+			if (!key.isValid()) {
+				return;
+			}
+		}
+		in.compact();
+	}
+
+	private void write(Session session) throws IOException {
+		while (!session.out.isEmpty()) {
+			ByteBuffer buf = session.out.peek();
+			session.channel.write(buf);
+			if (buf.hasRemaining()) {
+				session.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+				return;
+			}
+			session.out.poll();
+		}
+		session.key.interestOps(SelectionKey.OP_READ);
+	}
+
+	private void send(Session session, ByteBuffer buf) {
+		buf.flip();
+		boolean idle = session.out.isEmpty();
+		session.out.add(buf);
+		if (idle) {
+			try {
+				write(session);
+			} catch (IOException e) {
+				close(session, true);
+			}
+		}
+	}
+
+	/**
+	 * Close the network connection of a session. Persistent sessions stay registered.
+	 */
+	private void close(Session session, boolean publishWill) {
+		if (session == null || session.channel == null) {
+			return;
+		}
+		session.key.cancel();
+		try {
+			session.channel.close();
+		} catch (IOException e) {
+			// Ignore, closing anyway.
+		}
+		session.channel = null;
+		session.key = null;
+		session.out.clear();
+		session.in = ByteBuffer.allocate(4096);
+
+		Session.Message will = session.will;
+		session.will = null;
+
+		if (session.clientId != null && session.cleanSession && sessions.get(session.clientId) == session) {
+			sessions.remove(session.clientId);
+		}
+		if (publishWill && will != null) {
+			if (will.retain) {
+				retain(will);
+			}
+			route(will);
+		}
+	}
+
+	private void checkKeepAlive(long now) {
+		for (Session session : new ArrayList<Session>(sessions.values())) {
+			if (session.isConnected() && session.keepAliveSeconds > 0
+					&& now - session.lastActivity > session.keepAliveSeconds * 1500L) {
+				Log.debug("Keep alive expired for {}", session.clientId);
+				close(session, true);
+			}
+		}
+	}
+
+	/****************************************************************/
+	/* Protocol                                                     */
+	/****************************************************************/
+
+	private void handle(SelectionKey key, Session session, int type, int flags, ByteBuffer packet) throws IOException {
+		if (type != CONNECT && session.clientId == null) {
+			throw new IOException("First packet must be CONNECT");
+		}
+		switch (type) {
+		case CONNECT:
+			connect(key, session, packet);
+			break;
+		case PUBLISH:
+			publish(session, flags, packet);
+			break;
+		case PUBACK:
+			session.inflight.remove(packet.getShort() & 0xffff);
+			break;
+		case PUBREC: {
+			int id = packet.getShort() & 0xffff;
+			session.inflight.remove(id);
+			session.released.add(id);
+			send(session, ack(PUBREL, 2, id));
+			break;
+		}
+		case PUBREL: {
+			int id = packet.getShort() & 0xffff;
+			session.receivedQos2.remove(id);
+			send(session, ack(PUBCOMP, 0, id));
+			break;
+		}
+		case PUBCOMP:
+			session.released.remove(packet.getShort() & 0xffff);
+			break;
+		case SUBSCRIBE:
+			subscribe(session, packet);
+			break;
+		case UNSUBSCRIBE:
+			unsubscribe(session, packet);
+			break;
+		case PINGREQ:
+			send(session, header(PINGRESP, 0, 0));
+			break;
+		case DISCONNECT:
+			session.will = null;
+			close(session, false);
+			break;
+		default:
+			throw new IOException("Unexpected packet type " + type);
+		}
+	}
+
+	private void connect(SelectionKey key, Session pending, ByteBuffer packet) throws IOException {
+		if (pending.clientId != null) {
+			throw new IOException("Second CONNECT");
+		}
+		readString(packet);							// Protocol name, "MQTT" or "MQIsdp"
+		int level = packet.get() & 0xff;
+		int flags = packet.get() & 0xff;
+		int keepAlive = packet.getShort() & 0xffff;
+		String clientId = readString(packet);
+
+		if (level != 3 && level != 4) {
+			send(pending, connack(false, 1));		// Unacceptable protocol version
+			close(pending, false);
+			return;
+		}
+		boolean cleanSession = (flags & 0x02) != 0;
+		Session.Message will = null;
+		if ((flags & 0x04) != 0) {
+			String willTopic = readString(packet);
+			byte[] willPayload = readBytes(packet);
+			will = new Session.Message(willTopic, willPayload, (flags >> 3) & 0x03, (flags & 0x20) != 0);
+		}
+		// User name and password are not checked by the stand-in.
+
+		if (clientId.length() == 0) {
+			if (!cleanSession) {
+				send(pending, connack(false, 2));	// Identifier rejected
+				close(pending, false);
+				return;
+			}
+			clientId = "auto-" + (++autoClientIds);
+		}
+
+		Session session = sessions.get(clientId);
+		if (session != null && session.isConnected()) {
+			// Session take over: the older connection is dropped.
+			close(session, true);
+			session = sessions.get(clientId);
+		}
+		boolean sessionPresent = session != null && !cleanSession;
+		if (!sessionPresent) {
+			if (session != null) {
+				sessions.remove(clientId);
+			}
+			session = new Session(clientId);
+		}
+
+		// Move the connection over to the session of this client id.
+		session.cleanSession = cleanSession;
+		session.channel = pending.channel;
+		session.key = key;
+		session.in = pending.in;
+		session.keepAliveSeconds = keepAlive;
+		session.lastActivity = pending.lastActivity;
+		session.will = will;
+		key.attach(session);
+		sessions.put(clientId, session);
+
+		send(session, connack(sessionPresent, 0));
+
+		if (sessionPresent) {
+			// Resend what was not acknowledged, then what arrived while the client was away.
+			for (Map.Entry<Integer, Session.Message> e : session.inflight.entrySet()) {
+				Session.Message m = e.getValue();
+				send(session, publishPacket(m.topic, m.payload, m.qos, e.getKey(), m.retain, true));
+			}
+			for (Integer id : session.released) {
+				send(session, ack(PUBREL, 2, id));
+			}
+			Session.Message m;
+			while ((m = session.offline.poll()) != null) {
+				deliver(session, m, m.qos, m.retain);
+			}
+		}
+	}
+
+	private void publish(Session session, int flags, ByteBuffer packet) throws IOException {
+		int qos = (flags >> 1) & 0x03;
+		boolean retain = (flags & 0x01) != 0;
+		if (qos == 3) {
+			throw new IOException("Invalid QoS");
+		}
+		String topic = readString(packet);
+		if (!Topics.isValidTopic(topic)) {
+			throw new IOException("Invalid topic name " + topic);
+		}
+		int id = qos > 0 ? packet.getShort() & 0xffff : 0;
+		byte[] payload = new byte[packet.remaining()];
+		packet.get(payload);
+		received.incrementAndGet();
+
+		if (qos == 2 && !session.receivedQos2.add(id)) {
+			// Redelivery of a message we already routed, only acknowledge it again.
+			send(session, ack(PUBREC, 0, id));
+			return;
+		}
+
+		Session.Message message = new Session.Message(topic, payload, qos, retain);
+		if (retain) {
+			retain(message);
+		}
+		route(message);
+
+		if (qos == 1) {
+			send(session, ack(PUBACK, 0, id));
+		} else if (qos == 2) {
+			send(session, ack(PUBREC, 0, id));
+		}
+	}
+
+	private void retain(Session.Message message) {
+		if (message.payload.length == 0) {
+			retained.remove(message.topic);
+		} else {
+			retained.put(message.topic, message);
+		}
+	}
+
+	private void subscribe(Session session, ByteBuffer packet) {
+		int id = packet.getShort() & 0xffff;
+		List<Session.Subscription> added = new ArrayList<Session.Subscription>();
+		ByteBuffer granted = ByteBuffer.allocate(packet.remaining());
+		int count = 0;
+
+		while (packet.hasRemaining()) {
+			String filter = readString(packet);
+			int qos = packet.get() & 0x03;
+			String group = null;
+			String realFilter = filter;
+			if (filter.startsWith(Topics.SHARE_PREFIX)) {
+				int slash = filter.indexOf('/', Topics.SHARE_PREFIX.length());
+				if (slash > Topics.SHARE_PREFIX.length()) {
+					group = filter.substring(Topics.SHARE_PREFIX.length(), slash);
+					realFilter = filter.substring(slash + 1);
+				} else {
+					realFilter = "";
+				}
+			}
+			if (qos > 2 || !Topics.isValidFilter(realFilter)) {
+				granted.put((byte) 0x80);
+			} else {
+				Session.Subscription sub = new Session.Subscription(session, realFilter, group, qos);
+				session.subscriptions.put(filter, sub);
+				added.add(sub);
+				granted.put((byte) qos);
+			}
+			count++;
+		}
+
+		ByteBuffer suback = header(SUBACK, 0, 2 + count);
+		suback.putShort((short) id);
+		suback.put(granted.array(), 0, count);
+		send(session, suback);
+
+		// Retained messages go to new non shared subscriptions.
+		for (Session.Subscription sub : added) {
+			if (sub.group != null) {
+				continue;
+			}
+			for (Session.Message m : retained.values()) {
+				if (Topics.matches(sub.filter, m.topic)) {
+					deliver(session, m, Math.min(m.qos, sub.qos), true);
+				}
+			}
+		}
+	}
+
+	private void unsubscribe(Session session, ByteBuffer packet) {
+		int id = packet.getShort() & 0xffff;
+		while (packet.hasRemaining()) {
+			session.subscriptions.remove(readString(packet));
+		}
+		send(session, ack(UNSUBACK, 0, id));
+	}
+
+	/**
+	 * Deliver a message to every matching subscription; one member per shared group.
+	 */
+	private void route(Session.Message message) {
+		targets.clear();
+		groups.clear();
+
+		for (Session session : sessions.values()) {
+			for (Session.Subscription sub : session.subscriptions.values()) {
+				if (!Topics.matches(sub.filter, message.topic)) {
+					continue;
+				}
+				if (sub.group == null) {
+					Integer qos = targets.get(session);
+					if (qos == null || qos < sub.qos) {
+						targets.put(session, sub.qos);
+					}
+				} else {
+					String groupKey = sub.group + '\u0000' + sub.filter;
+					List<Session.Subscription> members = groups.get(groupKey);
+					if (members == null) {
+						members = new ArrayList<Session.Subscription>();
+						groups.put(groupKey, members);
+					}
+					members.add(sub);
+				}
+			}
+		}
+
+		for (Map.Entry<Session, Integer> e : targets.entrySet()) {
+			deliver(e.getKey(), message, Math.min(message.qos, e.getValue()), false);
+		}
+
+		for (Map.Entry<String, List<Session.Subscription>> e : groups.entrySet()) {
+			List<Session.Subscription> members = e.getValue();
+			Integer cursor = sharedCursors.get(e.getKey());
+			int start = cursor == null ? 0 : cursor;
+			// Prefer a connected member, starting after the one used last time.
+			Session.Subscription chosen = null;
+			for (int i = 0; i < members.size(); i++) {
+				Session.Subscription sub = members.get((start + i) % members.size());
+				if (sub.session.isConnected()) {
+					chosen = sub;
+					start = start + i;
+					break;
+				}
+			}
+			if (chosen == null) {
+				chosen = members.get(start % members.size());
+			}
+			sharedCursors.put(e.getKey(), (start + 1) % members.size());
+			deliver(chosen.session, message, Math.min(message.qos, chosen.qos), false);
+		}
+	}
+
+	private void deliver(Session session, Session.Message message, int qos, boolean retainFlag) {
+		if (!session.isConnected()) {
+			if (qos > 0 && !session.cleanSession && session.offline.size() < MAX_OFFLINE) {
+				session.offline.add(new Session.Message(message.topic, message.payload, qos, retainFlag));
+			}
+			return;
+		}
+		int id = 0;
+		if (qos > 0) {
+			id = session.nextPacketId();
+			session.inflight.put(id, new Session.Message(message.topic, message.payload, qos, retainFlag));
+		}
+		delivered.incrementAndGet();
+		send(session, publishPacket(message.topic, message.payload, qos, id, retainFlag, false));
+	}
+
+	/****************************************************************/
+	/* Encoding helpers                                             */
+	/****************************************************************/
+
+	private static ByteBuffer header(int type, int flags, int remainingLength) {
+		int lengthBytes = remainingLength < 128 ? 1 : remainingLength < 16384 ? 2 : remainingLength < 2097152 ? 3 : 4;
+		ByteBuffer buf = ByteBuffer.allocate(1 + lengthBytes + remainingLength);
+		buf.put((byte) ((type << 4) | flags));
+		int x = remainingLength;
+		do {
+			int b = x % 128;
+			x /= 128;
+			if (x > 0) {
+				b |= 0x80;
+			}
+			buf.put((byte) b);
+		} while (x > 0);
+		return buf;
+	}
+
+	private static ByteBuffer ack(int type, int flags, int id) {
+		ByteBuffer buf = header(type, flags, 2);
+		buf.putShort((short) id);
+		return buf;
+	}
+
+	private static ByteBuffer connack(boolean sessionPresent, int returnCode) {
+		ByteBuffer buf = header(CONNACK, 0, 2);
+		buf.put((byte) (sessionPresent ? 1 : 0));
+		buf.put((byte) returnCode);
+		return buf;
+	}
+
+	private static ByteBuffer publishPacket(String topic, byte[] payload, int qos, int id, boolean retain, boolean dup) {
+		byte[] topicBytes = topic.getBytes(StandardCharsets.UTF_8);
+		int length = 2 + topicBytes.length + (qos > 0 ? 2 : 0) + payload.length;
+		int flags = (dup ? 0x08 : 0) | (qos << 1) | (retain ? 0x01 : 0);
+		ByteBuffer buf = header(PUBLISH, flags, length);
+		buf.putShort((short) topicBytes.length);
+		buf.put(topicBytes);
+		if (qos > 0) {
+			buf.putShort((short) id);
+		}
+		buf.put(payload);
+		return buf;
+	}
+
+	private static String readString(ByteBuffer packet) {
+		return new String(readBytes(packet), StandardCharsets.UTF_8);
+	}
+
+	private static byte[] readBytes(ByteBuffer packet) {
+		int length = packet.getShort() & 0xffff;
+		byte[] bytes = new byte[length];
+		packet.get(bytes);
+		return bytes;
+	}
+
+	/**
+	 * Run the broker stand-in on its own: MqttBroker [-b <bind address>] [-p <port>]
+	 */
+	public static void main(String[] args) throws IOException, InterruptedException {
+		String host = "localhost";
+		int port = 1883;
+		for (int i = 0; i < args.length - 1; i++) {
+			if (args[i].equals("-b")) {
+				host = args[++i];
+			} else if (args[i].equals("-p")) {
+				port = Integer.parseInt(args[++i]);
+			}
+		}
+		final MqttBroker broker = new MqttBroker(host, port);
+		broker.start();
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			public void run() {
+				broker.stop();
+			}
+		});
+		broker.thread.join();
+	}
+}
@@ -0,0 +1,96 @@
+package mqtt.broker;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Session is the broker side state of one client id. It outlives its network connection when the
+ * client connected with cleanSession=false, so subscriptions and queued messages survive until
+ * the client comes back.
+ *
+ * Sessions are only touched by the selector thread of {@link MqttBroker}.
+ */
+final class Session {
+
+	/**
+	 * A message routed to this session.
+	 */
+	static final class Message {
+		final String topic;
+		final byte[] payload;
+		final int qos;
+		final boolean retain;
+
+		Message(String topic, byte[] payload, int qos, boolean retain) {
+			this.topic = topic;
+			this.payload = payload;
+			this.qos = qos;
+			this.retain = retain;
+		}
+	}
+
+	/**
+	 * A subscription of this session. group is the share name of "$share/group/filter" or null.
+	 */
+	static final class Subscription {
+		final Session session;
+		final String filter;
+		final String group;
+		final int qos;
+
+		Subscription(Session session, String filter, String group, int qos) {
+			this.session = session;
+			this.filter = filter;
+			this.group = group;
+			this.qos = qos;
+		}
+	}
+
+	final String clientId;
+	boolean cleanSession;
+
+	// Connection, null while the client is offline.
+	SocketChannel channel;
+	SelectionKey key;
+	ByteBuffer in = ByteBuffer.allocate(4096);
+	final ArrayDeque<ByteBuffer> out = new ArrayDeque<ByteBuffer>();
+	int keepAliveSeconds;
+	long lastActivity;
+	Message will;
+
+	// Subscriptions by the filter as given by the client (including a "$share/" prefix).
+	final Map<String, Subscription> subscriptions = new HashMap<String, Subscription>();
+
+	// QoS 1/2 messages sent and not acknowledged yet, by packet id, in sending order.
+	final LinkedHashMap<Integer, Message> inflight = new LinkedHashMap<Integer, Message>();
+	// QoS 2 messages for which PUBREL has been sent (waiting for PUBCOMP).
+	final Set<Integer> released = new HashSet<Integer>();
+	// Inbound QoS 2 packet ids delivered and waiting for PUBREL, so duplicates are not delivered twice.
+	final Set<Integer> receivedQos2 = new HashSet<Integer>();
+	// QoS 1/2 messages that arrived while the client was offline (persistent sessions only).
+	final ArrayDeque<Message> offline = new ArrayDeque<Message>();
+
+	private int nextPacketId = 0;
+
+	Session(String clientId) {
+		this.clientId = clientId;
+	}
+
+	boolean isConnected() {
+		return channel != null;
+	}
+
+	int nextPacketId() {
+		do {
+			nextPacketId = (nextPacketId % 0xffff) + 1;
+		} while (inflight.containsKey(nextPacketId) || released.contains(nextPacketId));
+		return nextPacketId;
+	}
+}
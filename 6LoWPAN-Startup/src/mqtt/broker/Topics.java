@@ -0,0 +1,80 @@
+package mqtt.broker;
+
+/**
+ * Topic name and topic filter helpers of the broker (MQTT 3.1.1 section 4.7).
+ */
+final class Topics {
+
+	static final String SHARE_PREFIX = "$share/";
+
+	private Topics() {
+	}
+
+	/**
+	 * Whether topic matches filter; filter may contain '+' (one level) and '#' (rest) wildcards.
+	 * Topics starting with '$' are not matched by filters starting with a wildcard.
+	 */
+	static boolean matches(String filter, String topic) {
+		int f = 0, t = 0;
+		int fLen = filter.length(), tLen = topic.length();
+
+		if (tLen > 0 && topic.charAt(0) == '$' && fLen > 0 && (filter.charAt(0) == '+' || filter.charAt(0) == '#')) {
+			return false;
+		}
+
+		while (f < fLen) {
+			char c = filter.charAt(f);
+			if (c == '#') {
+				// '#' also matches the parent level ("a/#" matches "a").
+				return true;
+			}
+			if (c == '+') {
+				// Skip one topic level.
+				while (t < tLen && topic.charAt(t) != '/') {
+					t++;
+				}
+				f++;
+			} else {
+				if (t >= tLen || topic.charAt(t) != c) {
+					// "a/#" matches "a": filter is at "/#", topic is exhausted.
+					return t == tLen && f + 1 < fLen && c == '/' && filter.charAt(f + 1) == '#';
+				}
+				f++;
+				t++;
+			}
+		}
+		return t == tLen;
+	}
+
+	/**
+	 * Validate a filter: '#' only as the last level, '+' only as a whole level.
+	 */
+	static boolean isValidFilter(String filter) {
+		int len = filter.length();
+		if (len == 0) {
+			return false;
+		}
+		for (int i = 0; i < len; i++) {
+			char c = filter.charAt(i);
+			if (c == '+' || c == '#') {
+				if (i > 0 && filter.charAt(i - 1) != '/') {
+					return false;
+				}
+				if (i < len - 1 && filter.charAt(i + 1) != '/') {
+					return false;
+				}
+				if (c == '#' && i != len - 1) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * A topic name of a PUBLISH must not be empty nor contain wildcards.
+	 */
+	static boolean isValidTopic(String topic) {
+		return topic.length() > 0 && topic.indexOf('+') < 0 && topic.indexOf('#') < 0;
+	}
+}
@@ -0,0 +1,260 @@
+package mqtt.flow;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import util.Log;
+
+/**
+ * FlowStage is one step of a {@link Flow} pipeline: it subscribes to the previous stage, applies
+ * its {@link Transform} to every item on parallelism threads of its own and publishes the results
+ * to the next stage.
+ *
+ * Backpressure is by demand only. The stage requests at most window items it has not finished, and
+ * requests one more when an item is done, i.e. once its result has been accepted by the next
+ * stage. Publishing blocks while the buffer of the next stage (bufferSize) is full, so a slow
+ * stage stops the ones before it, up to the source.
+ *
+ * An {@link AsyncTransform} finishes its items later, e.g. from the callback thread of a client,
+ * and frees the stage thread meanwhile. Its result is published from a stage thread, never from
+ * the thread that completes it, since publishing may block.
+ *
+ * Every stage counts the items received, emitted, dropped (transform returned null) and failed
+ * (transform threw), the items in progress and the time spent in the transform.
+ */
+public class FlowStage<I, O> extends SubmissionPublisher<O> implements Flow.Processor<I, O> {
+
+	/**
+	 * The work of a stage. Returning null drops the item.
+	 */
+	public interface Transform<I, O> {
+		O apply(I item) throws Exception;
+	}
+
+	/**
+	 * The work of a stage that completes later: apply starts it and done is called once with the
+	 * result, from any thread. A null result drops the item.
+	 */
+	public interface AsyncTransform<I, O> {
+		void apply(I item, Done<O> done) throws Exception;
+	}
+
+	public interface Done<O> {
+		void done(O result);
+	}
+
+	/**
+	 * Told about the items that leave the pipeline at a stage (dropped or failed).
+	 */
+	public interface Exit<I> {
+		void exited(I item);
+	}
+
+	private final String name;
+	private final int window;
+	private final Transform<I, O> transform;
+	private final AsyncTransform<I, O> asyncTransform;
+	private final Exit<I> exit;
+	private final ExecutorService workers;
+	private volatile Flow.Subscription subscription;
+
+	// Metrics.
+	private final AtomicLong received 	= new AtomicLong();
+	private final AtomicLong emitted 	= new AtomicLong();
+	private final AtomicLong dropped 	= new AtomicLong();
+	private final AtomicLong failed 	= new AtomicLong();
+	private final AtomicLong busyNanos 	= new AtomicLong();
+	private final AtomicInteger active 	= new AtomicInteger();
+
+	/**
+	 * Create a stage running transform on parallelism threads, with up to 2 * parallelism items
+	 * requested, publishing through delivery with a buffer of bufferSize items.
+	 */
+	public FlowStage(String name, int parallelism, Executor delivery, int bufferSize, Transform<I, O> transform, Exit<I> exit) {
+		this(name, parallelism, delivery, bufferSize, transform, null, exit);
+	}
+
+	/**
+	 * Create a stage starting transform on parallelism threads, with up to 2 * parallelism items
+	 * requested (started and not done), publishing through delivery with a buffer of bufferSize
+	 * items.
+	 */
+	public FlowStage(String name, int parallelism, Executor delivery, int bufferSize, AsyncTransform<I, O> transform, Exit<I> exit) {
+		this(name, parallelism, delivery, bufferSize, null, transform, exit);
+	}
+
+	private FlowStage(final String name, int parallelism, Executor delivery, int bufferSize, Transform<I, O> transform,
+			AsyncTransform<I, O> asyncTransform, Exit<I> exit) {
+		super(delivery, bufferSize);
+		this.name = name;
+		this.window = 2 * parallelism;
+		this.transform = transform;
+		this.asyncTransform = asyncTransform;
+		this.exit = exit;
+		this.workers = Executors.newFixedThreadPool(parallelism, new ThreadFactory() {
+			private int count = 0;
+
+			public synchronized Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "flow-" + name + "-" + (++count));
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public void onSubscribe(Flow.Subscription subscription) {
+		this.subscription = subscription;
+		subscription.request(window);
+	}
+
+	public void onNext(final I item) {
+		received.incrementAndGet();
+		active.incrementAndGet();
+		workers.execute(new Runnable() {
+			public void run() {
+				process(item);
+			}
+		});
+	}
+
+	private void process(final I item) {
+		final long start = System.nanoTime();
+		if (asyncTransform != null) {
+			final AtomicBoolean completed = new AtomicBoolean();
+			try {
+				asyncTransform.apply(item, new Done<O>() {
+					public void done(final O result) {
+						if (!completed.compareAndSet(false, true)) {
+							return;
+						}
+						busyNanos.addAndGet(System.nanoTime() - start);
+						try {
+							workers.execute(new Runnable() {
+								public void run() {
+									emit(item, result);
+								}
+							});
+						} catch (RejectedExecutionException e) {
+							// Stage finishing (shutdown): the next stage is not full anymore.
+							emit(item, result);
+						}
+					}
+				});
+			} catch (Exception e) {
+				failed.incrementAndGet();
+				Log.warn("Stage {} failed: {}", name, e);
+				if (completed.compareAndSet(false, true)) {
+					busyNanos.addAndGet(System.nanoTime() - start);
+					emit(item, null);
+				}
+			}
+			return;
+		}
+		O result = null;
+		try {
+			result = transform.apply(item);
+		} catch (Exception e) {
+			failed.incrementAndGet();
+			Log.warn("Stage {} failed: {}", name, e);
+		}
+		busyNanos.addAndGet(System.nanoTime() - start);
+		emit(item, result);
+	}
+
+	/**
+	 * Pass the result of item on (or drop the item), then request the next one.
+	 */
+	private void emit(I item, O result) {
+		try {
+			if (result != null) {
+				// Blocks while the next stage has its buffer full.
+				submit(result);
+				emitted.incrementAndGet();
+			} else {
+				dropped.incrementAndGet();
+				exit.exited(item);
+			}
+		} catch (IllegalStateException e) {
+			// Closed meanwhile (shutdown).
+			exit.exited(item);
+		} finally {
+			active.decrementAndGet();
+			subscription.request(1);
+		}
+	}
+
+	public void onError(Throwable throwable) {
+		Log.error("Stage {} got an error from upstream", name, throwable);
+		finish();
+		closeExceptionally(throwable);
+	}
+
+	/**
+	 * Upstream is done: finish the items in progress, then complete downstream.
+	 */
+	public void onComplete() {
+		finish();
+		close();
+	}
+
+	private void finish() {
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+		workers.shutdown();
+		try {
+			workers.awaitTermination(10, TimeUnit.SECONDS);
+			// Items of an AsyncTransform still waiting for their completion.
+			while (active.get() > 0 && System.nanoTime() < deadline) {
+				Thread.sleep(10);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	// Metrics.
+	public long getReceivedCount() {
+		return received.get();
+	}
+
+	public long getEmittedCount() {
+		return emitted.get();
+	}
+
+	public long getDroppedCount() {
+		return dropped.get();
+	}
+
+	public long getFailedCount() {
+		return failed.get();
+	}
+
+	public int getActiveCount() {
+		return active.get();
+	}
+
+	/**
+	 * Average time of the transform per item, in microseconds.
+	 */
+	public double getAverageMicros() {
+		long n = received.get() - active.get();
+		return n > 0 ? busyNanos.get() / 1000.0 / n : 0;
+	}
+
+	public String toString() {
+		return String.format("%s in %d out %d dropped %d failed %d active %d lag %d avg %.1f us", name, received.get(),
+				emitted.get(), dropped.get(), failed.get(), active.get(), estimateMaximumLag(), getAverageMicros());
+	}
+}
@@ -0,0 +1,264 @@
+package mqtt.flow;
+
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.IMqttToken;
+
+import mqtt.MqttManager;
+import mqtt.PayloadCodec;
+import startup.Settings;
+import util.Log;
+
+/**
+ * RegistrationPipeline serves the registrations of one connection (mqtt.pipeline=flow) as a chain
+ * of {@link FlowStage}s:
+ *
+ *  decode     payload -> defaultId                              mqtt.flow.decode.parallelism (1)
+ *  dedup      drop a defaultId whose registration is in progress mqtt.flow.dedup.parallelism (1)
+ *  allocate   insert into the store, get the id                  mqtt.flow.allocate.parallelism (8)
+ *  publish    publish the id to the device                       mqtt.flow.publish.parallelism (8)
+ *
+ * Each stage buffers at most mqtt.flow.buffer (256) items. When the publishes or the store fall
+ * behind, the demand of the stages before them stops, up to a feeder thread that takes the arrived
+ * registrations from a queue of mqtt.flow.queue (65536) entries. {@link #submit(byte[], long)}
+ * never waits: it runs on the callback thread of the client, which also delivers the completions
+ * of the replies, so blocking it would stop the very publishes the pipeline is waiting for. A
+ * registration arriving with the queue full is dropped (the device asks again).
+ *
+ * The publish stage does not wait for the deliveries either: its threads hand the reply to the
+ * client, waiting only for a slot of its in-flight window, and a registration is done when the
+ * client reports the delivery.
+ */
+public class RegistrationPipeline {
+
+	/**
+	 * A registration on its way through the stages.
+	 */
+	public static final class Registration {
+		final byte[] payload;
+		final long arrived;
+		String defaultId;
+		int id;
+		boolean owner;		// Holds the dedup entry of defaultId
+
+		Registration(byte[] payload, long arrived) {
+			this.payload = payload;
+			this.arrived = arrived;
+		}
+
+		public String getDefaultId() {
+			return defaultId;
+		}
+
+		public long getArrived() {
+			return arrived;
+		}
+	}
+
+	/**
+	 * Told about every registration leaving the pipeline, answered or not.
+	 */
+	public interface Done {
+		void done(Registration registration, boolean answered);
+	}
+
+	private final Done done;
+	private final Set<String> inProgress = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	private final SubmissionPublisher<Registration> source;
+	private final List<FlowStage<Registration, Registration>> stages;
+	private final BlockingQueue<Registration> queue;
+	private final Thread feeder;
+	private final AtomicInteger shed = new AtomicInteger();
+	private volatile boolean closed = false;
+
+	private final ExecutorService delivery = Executors.newCachedThreadPool(new ThreadFactory() {
+		private int count = 0;
+
+		public synchronized Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "flow-delivery-" + (++count));
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
+	public RegistrationPipeline(final MqttManager mqttManager, Done done) {
+		this.done = done;
+		int buffer = Settings.getInt("mqtt.flow.buffer", 256);
+
+		FlowStage.Exit<Registration> exit = new FlowStage.Exit<Registration>() {
+			public void exited(Registration registration) {
+				finish(registration, false);
+			}
+		};
+
+		FlowStage<Registration, Registration> decode = new FlowStage<Registration, Registration>("decode",
+				Settings.getInt("mqtt.flow.decode.parallelism", 1), delivery, buffer,
+				new FlowStage.Transform<Registration, Registration>() {
+					public Registration apply(Registration registration) {
+						registration.defaultId = PayloadCodec.decodeDefaultId(registration.payload);
+						if (registration.defaultId == null) {
+							Log.warn("Invalid defaultId of {} bytes dropped", registration.payload.length);
+							return null;
+						}
+						Log.info("Topic: {}  Message: {}", "vestel/newDevice/defaultId", registration.defaultId);
+						return registration;
+					}
+				}, exit);
+
+		FlowStage<Registration, Registration> dedup = new FlowStage<Registration, Registration>("dedup",
+				Settings.getInt("mqtt.flow.dedup.parallelism", 1), delivery, buffer,
+				new FlowStage.Transform<Registration, Registration>() {
+					public Registration apply(Registration registration) {
+						// A repeated request (redelivery, device retry) is answered by the one in progress.
+						registration.owner = inProgress.add(registration.defaultId);
+						return registration.owner ? registration : null;
+					}
+				}, exit);
+
+		FlowStage<Registration, Registration> allocate = new FlowStage<Registration, Registration>("allocate",
+				Settings.getInt("mqtt.flow.allocate.parallelism", 8), delivery, buffer,
+				new FlowStage.Transform<Registration, Registration>() {
+					public Registration apply(Registration registration) throws SQLException {
+						registration.id = mqttManager.allocateId(registration.defaultId);
+						return registration;
+					}
+				}, exit);
+
+		FlowStage<Registration, Registration> publish = new FlowStage<Registration, Registration>("publish",
+				Settings.getInt("mqtt.flow.publish.parallelism", 8), delivery, buffer,
+				new FlowStage.AsyncTransform<Registration, Registration>() {
+					public void apply(final Registration registration, final FlowStage.Done<Registration> done) {
+						mqttManager.publishAsync(registration.defaultId, PayloadCodec.encodeId(registration.id), mqttManager.isRetained(),
+								new IMqttActionListener() {
+									public void onSuccess(IMqttToken asyncActionToken) {
+										done.done(registration);
+									}
+
+									public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+										done.done(null);
+									}
+								});
+					}
+				}, exit);
+
+		source = new SubmissionPublisher<Registration>(delivery, buffer);
+		source.subscribe(decode);
+		decode.subscribe(dedup);
+		dedup.subscribe(allocate);
+		allocate.subscribe(publish);
+		publish.subscribe(new Flow.Subscriber<Registration>() {
+			public void onSubscribe(Flow.Subscription subscription) {
+				subscription.request(Long.MAX_VALUE);
+			}
+
+			public void onNext(Registration registration) {
+				finish(registration, true);
+			}
+
+			public void onError(Throwable throwable) {
+			}
+
+			public void onComplete() {
+			}
+		});
+		stages = Collections.unmodifiableList(Arrays.asList(decode, dedup, allocate, publish));
+
+		queue = new ArrayBlockingQueue<Registration>(Settings.getInt("mqtt.flow.queue", 65536));
+		feeder = new Thread("flow-feeder") {
+			public void run() {
+				feed();
+			}
+		};
+		feeder.setDaemon(true);
+		feeder.start();
+	}
+
+	/**
+	 * Queue an arrived registration for the pipeline, without waiting. Returns false if it is not
+	 * taken: the pipeline is closed or its queue is full.
+	 */
+	public boolean submit(byte[] payload, long arrived) {
+		if (closed) {
+			Log.warn("Pipeline closed, registration dropped");
+			return false;
+		}
+		if (!queue.offer(new Registration(payload, arrived))) {
+			int count = shed.incrementAndGet();
+			if (count == 1 || count % 1000 == 0) {
+				Log.warn("Pipeline queue full, registration dropped ({} so far)", count);
+			}
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Feeder loop: move the queued registrations into the pipeline, waiting while it has no demand.
+	 * Once closed the queue is drained, then the pipeline is completed.
+	 */
+	private void feed() {
+		try {
+			while (!closed || !queue.isEmpty()) {
+				Registration registration = queue.poll(100, TimeUnit.MILLISECONDS);
+				if (registration != null) {
+					source.submit(registration);
+				}
+			}
+		} catch (InterruptedException e) {
+			// Stopped.
+		}
+		source.close();
+		// Queued by a submit racing with close(), or left by an interrupt.
+		Registration registration;
+		while ((registration = queue.poll()) != null) {
+			finish(registration, false);
+		}
+	}
+
+	/**
+	 * Stop taking registrations; the ones queued and in the pipeline are finished in the background.
+	 */
+	public void close() {
+		closed = true;
+	}
+
+	/**
+	 * Registrations dropped because the queue of the pipeline was full.
+	 */
+	public int getShedCount() {
+		return shed.get();
+	}
+
+	public List<FlowStage<Registration, Registration>> getStages() {
+		return stages;
+	}
+
+	/**
+	 * Registrations submitted and not yet taken by the decode stage.
+	 */
+	public int getLag() {
+		return queue.size() + source.estimateMaximumLag();
+	}
+
+	private void finish(Registration registration, boolean answered) {
+		if (registration.owner) {
+			inProgress.remove(registration.defaultId);
+		}
+		done.done(registration, answered);
+	}
+}
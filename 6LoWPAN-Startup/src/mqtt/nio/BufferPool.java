@@ -0,0 +1,51 @@
+package mqtt.nio;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * BufferPool recycles the direct buffers outbound frames are encoded into, so a publish does not
+ * allocate (and later copy) a buffer per frame. Frames larger than the pooled size get a heap
+ * buffer of their own, which is simply dropped after the write.
+ *
+ * Buffers are acquired by any thread and released by the selector thread once written.
+ */
+final class BufferPool {
+
+	private final int bufferSize;
+	private final int maxPooled;
+	private final ConcurrentLinkedQueue<ByteBuffer> free = new ConcurrentLinkedQueue<ByteBuffer>();
+	private final AtomicInteger pooled = new AtomicInteger();
+
+	BufferPool(int bufferSize, int maxPooled) {
+		this.bufferSize = bufferSize;
+		this.maxPooled = maxPooled;
+	}
+
+	/**
+	 * Return a cleared buffer of at least size bytes.
+	 */
+	ByteBuffer acquire(int size) {
+		if (size > bufferSize) {
+			return ByteBuffer.allocate(size);
+		}
+		ByteBuffer buf = free.poll();
+		if (buf == null) {
+			return ByteBuffer.allocateDirect(bufferSize);
+		}
+		pooled.decrementAndGet();
+		buf.clear();
+		return buf;
+	}
+
+	/**
+	 * Give a buffer back once its content is no longer needed.
+	 */
+	void release(ByteBuffer buf) {
+		if (buf.isDirect() && buf.capacity() == bufferSize && pooled.get() < maxPooled) {
+			pooled.incrementAndGet();
+			free.add(buf);
+		}
+	}
+}
@@ -0,0 +1,1063 @@
+package mqtt.nio;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.IMqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.IMqttToken;
+import org.eclipse.paho.client.mqttv3.MqttCallback;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+import startup.Settings;
+import util.Log;
+
+/**
+ * NioMqttClient is a minimal MQTT 3.1.1 client on a single NIO selector thread. It implements
+ * Paho's IMqttAsyncClient, so MqttHandler runs unchanged on top of it (mqtt.client=nio) and the
+ * two clients can be benchmarked side by side.
+ *
+ * Outbound frames are encoded by the calling thread into buffers of a {@link BufferPool} and
+ * queued. The selector thread drains the queue and writes up to mqtt.nio.writeBatch frames with
+ * one gathering write, so the replies that many workers publish at the same time share syscalls.
+ *
+ * Inbound PUBLISH messages are handed to mqtt.nio.lanes single threaded dispatch lanes by topic
+ * hash: messages of one topic keep their order, different topics are handled in parallel. As with
+ * Paho, a QoS 1/2 message is acknowledged once messageArrived has returned. Action listeners and
+ * deliveryComplete also run on the lanes, never on the selector thread.
+ *
+ * Not supported: ssl:// URIs and socket factories, MQTT 3.1, several server URIs and persistence.
+ * QoS 1/2 publishes in flight when the connection drops fail with REASON_CODE_CONNECTION_LOST
+ * (after connectionLost has been called) instead of being sent again after the reconnect.
+ *
+ * Settings: mqtt.nio.lanes (4), mqtt.nio.maxInflight (1000), mqtt.nio.writeBatch (64),
+ * mqtt.nio.bufferSize (256), mqtt.nio.poolSize (1024).
+ */
+public class NioMqttClient implements IMqttAsyncClient, Runnable {
+
+	// Packet types.
+	private static final int CONNECT 		= 1;
+	private static final int CONNACK 		= 2;
+	private static final int PUBLISH 		= 3;
+	private static final int PUBACK 		= 4;
+	private static final int PUBREC 		= 5;
+	private static final int PUBREL 		= 6;
+	private static final int PUBCOMP 		= 7;
+	private static final int SUBSCRIBE 		= 8;
+	private static final int SUBACK 		= 9;
+	private static final int UNSUBSCRIBE 	= 10;
+	private static final int UNSUBACK 		= 11;
+	private static final int PINGREQ 		= 12;
+	private static final int PINGRESP 		= 13;
+	private static final int DISCONNECT 	= 14;
+
+	// Connection states, selector thread only.
+	private static final int IDLE 			= 0;
+	private static final int CONNECTING 	= 1;	// TCP connect or CONNACK pending
+	private static final int CONNECTED 		= 2;
+	private static final int DISCONNECTING 	= 3;	// Quiescing before DISCONNECT
+
+	private static final int MAX_PACKET_SIZE = 1 << 20;
+
+	/**
+	 * An encoded frame waiting to be written. token is the action completed or failed with it.
+	 */
+	private static final class Frame {
+		final ByteBuffer buf;
+		final NioToken token;
+
+		Frame(ByteBuffer buf, NioToken token) {
+			this.buf = buf;
+			this.token = token;
+		}
+	}
+
+	private final String serverURI;
+	private final String clientId;
+	private final String host;
+	private final int port;
+
+	private final int maxInflight 	= Settings.getInt("mqtt.nio.maxInflight", 1000);
+	private final BufferPool pool 	= new BufferPool(Settings.getInt("mqtt.nio.bufferSize", 256), Settings.getInt("mqtt.nio.poolSize", 1024));
+	private final ByteBuffer[] gather = new ByteBuffer[Settings.getInt("mqtt.nio.writeBatch", 64)];
+	private final ExecutorService[] lanes;
+
+	private final Selector selector;
+	private final Thread thread;
+	private volatile boolean closed = false;
+	private volatile boolean connected = false;
+	private volatile MqttCallback callback;
+
+	// Work handed to the selector thread by the other threads.
+	private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+	private final ConcurrentLinkedQueue<Frame> outbound = new ConcurrentLinkedQueue<Frame>();
+	private final AtomicBoolean wakeupPending = new AtomicBoolean();
+
+	// Outstanding QoS 1/2 publishes and subscribe/unsubscribe requests by packet id.
+	private final ConcurrentHashMap<Integer, NioToken> inflight = new ConcurrentHashMap<Integer, NioToken>();
+	private final ConcurrentHashMap<Integer, NioToken> requests = new ConcurrentHashMap<Integer, NioToken>();
+	private final AtomicInteger nextId = new AtomicInteger();
+
+	// Connection, selector thread only.
+	private int state = IDLE;
+	private SocketChannel channel;
+	private SelectionKey key;
+	private ByteBuffer in = ByteBuffer.allocate(8192);
+	private final ArrayDeque<Frame> pending = new ArrayDeque<Frame>();
+	private boolean writeInterest = false;
+	private MqttConnectOptions options;
+	private NioToken connectToken;
+	private NioToken disconnectToken;
+	private long deadline;				// End of the connect timeout or of the quiesce time
+	private long keepAliveMillis;
+	private long lastSent;
+	private long pingSent = 0;
+	// Inbound QoS 2 packet ids waiting for PUBREL.
+	private final Set<Integer> receivedQos2 = new HashSet<Integer>();
+
+	// Metrics, written by the selector thread.
+	private volatile long writes = 0;
+	private volatile long framesWritten = 0;
+
+	/**
+	 * Create the client for a tcp://host:port URI; the selector thread and the lanes start here
+	 * and run until {@link #close()}, which must be called to let the JVM exit.
+	 */
+	public NioMqttClient(String serverURI, String clientId) throws MqttException {
+		URI uri;
+		try {
+			uri = new URI(serverURI);
+		} catch (URISyntaxException e) {
+			throw new IllegalArgumentException(serverURI, e);
+		}
+		if (!"tcp".equals(uri.getScheme()) || uri.getHost() == null) {
+			throw new IllegalArgumentException("Only tcp://host:port URIs are supported: " + serverURI);
+		}
+		this.serverURI = serverURI;
+		this.clientId = clientId;
+		this.host = uri.getHost();
+		this.port = uri.getPort() < 0 ? 1883 : uri.getPort();
+
+		lanes = new ExecutorService[Math.max(1, Settings.getInt("mqtt.nio.lanes", 4))];
+		for (int i = 0; i < lanes.length; i++) {
+			final String name = "mqtt-nio-lane-" + i;
+			lanes[i] = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, name);
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+
+		try {
+			selector = Selector.open();
+		} catch (IOException e) {
+			throw new MqttException(e);
+		}
+		// Not a daemon, like the network threads of Paho: the service lives as long as its client.
+		thread = new Thread(this, "mqtt-nio-" + clientId);
+		thread.setDaemon(false);
+		thread.start();
+	}
+
+	public int getMaxInflight() {
+		return maxInflight;
+	}
+
+	/**
+	 * Number of write syscalls, and of frames they wrote; their ratio is the write batching.
+	 */
+	public long getWriteCount() {
+		return writes;
+	}
+
+	public long getFrameCount() {
+		return framesWritten;
+	}
+
+	/****************************************************************/
+	/* IMqttAsyncClient                                             */
+	/****************************************************************/
+
+	public IMqttToken connect() throws MqttException {
+		return connect(new MqttConnectOptions(), null, null);
+	}
+
+	public IMqttToken connect(MqttConnectOptions options) throws MqttException {
+		return connect(options, null, null);
+	}
+
+	public IMqttToken connect(Object userContext, IMqttActionListener callback) throws MqttException {
+		return connect(new MqttConnectOptions(), userContext, callback);
+	}
+
+	public IMqttToken connect(final MqttConnectOptions options, Object userContext, IMqttActionListener callback) throws MqttException {
+		if (closed) {
+			throw new MqttException(MqttException.REASON_CODE_CLIENT_CLOSED);
+		}
+		if (connected) {
+			throw new MqttException(MqttException.REASON_CODE_CLIENT_CONNECTED);
+		}
+		final NioToken token = new NioToken(this, null, userContext, callback);
+		execute(new Runnable() {
+			public void run() {
+				startConnect(options, token);
+			}
+		});
+		return token;
+	}
+
+	public IMqttToken disconnect() throws MqttException {
+		return disconnect(30000, null, null);
+	}
+
+	public IMqttToken disconnect(long quiesceTimeout) throws MqttException {
+		return disconnect(quiesceTimeout, null, null);
+	}
+
+	public IMqttToken disconnect(Object userContext, IMqttActionListener callback) throws MqttException {
+		return disconnect(30000, userContext, callback);
+	}
+
+	public IMqttToken disconnect(final long quiesceTimeout, Object userContext, IMqttActionListener callback) throws MqttException {
+		if (!connected) {
+			throw new MqttException(MqttException.REASON_CODE_CLIENT_ALREADY_DISCONNECTED);
+		}
+		final NioToken token = new NioToken(this, null, userContext, callback);
+		execute(new Runnable() {
+			public void run() {
+				startDisconnect(quiesceTimeout, token);
+			}
+		});
+		return token;
+	}
+
+	public void disconnectForcibly() throws MqttException {
+		disconnectForcibly(10000);
+	}
+
+	public void disconnectForcibly(long disconnectTimeout) throws MqttException {
+		disconnectForcibly(0, disconnectTimeout);
+	}
+
+	/**
+	 * Close the connection without DISCONNECT (the broker publishes the will) and wait for it.
+	 */
+	public void disconnectForcibly(long quiesceTimeout, long disconnectTimeout) throws MqttException {
+		final NioToken token = new NioToken(this, null, null, null);
+		execute(new Runnable() {
+			public void run() {
+				closeConnection(new MqttException(MqttException.REASON_CODE_CLIENT_DISCONNECTING));
+				complete(token, null);
+			}
+		});
+		token.waitForCompletion(disconnectTimeout);
+	}
+
+	public boolean isConnected() {
+		return connected;
+	}
+
+	public String getClientId() {
+		return clientId;
+	}
+
+	public String getServerURI() {
+		return serverURI;
+	}
+
+	public IMqttDeliveryToken publish(String topic, byte[] payload, int qos, boolean retained) throws MqttException {
+		return publish(topic, payload, qos, retained, null, null);
+	}
+
+	public IMqttDeliveryToken publish(String topic, byte[] payload, int qos, boolean retained, Object userContext, IMqttActionListener callback) throws MqttException {
+		MqttMessage message = new MqttMessage(payload);
+		message.setQos(qos);
+		message.setRetained(retained);
+		return publish(topic, message, userContext, callback);
+	}
+
+	public IMqttDeliveryToken publish(String topic, MqttMessage message) throws MqttException {
+		return publish(topic, message, null, null);
+	}
+
+	public IMqttDeliveryToken publish(String topic, MqttMessage message, Object userContext, IMqttActionListener callback) throws MqttException {
+		checkConnected();
+		int qos = message.getQos();
+		NioToken token = new NioToken(this, new String[] { topic }, userContext, callback);
+		token.message = message;
+		if (qos > 0) {
+			if (inflight.size() >= maxInflight) {
+				throw new MqttException(MqttException.REASON_CODE_MAX_INFLIGHT);
+			}
+			token.messageId = nextPacketId();
+			inflight.put(token.messageId, token);
+		}
+
+		byte[] topicBytes = topic.getBytes(StandardCharsets.UTF_8);
+		byte[] payload = message.getPayload();
+		ByteBuffer buf = header(PUBLISH, (qos << 1) | (message.isRetained() ? 0x01 : 0),
+				2 + topicBytes.length + (qos > 0 ? 2 : 0) + payload.length);
+		buf.putShort((short) topicBytes.length);
+		buf.put(topicBytes);
+		if (qos > 0) {
+			buf.putShort((short) token.messageId);
+		}
+		buf.put(payload);
+		send(buf, token);
+		return token;
+	}
+
+	public IMqttToken subscribe(String topicFilter, int qos) throws MqttException {
+		return subscribe(new String[] { topicFilter }, new int[] { qos }, null, null);
+	}
+
+	public IMqttToken subscribe(String topicFilter, int qos, Object userContext, IMqttActionListener callback) throws MqttException {
+		return subscribe(new String[] { topicFilter }, new int[] { qos }, userContext, callback);
+	}
+
+	public IMqttToken subscribe(String[] topicFilters, int[] qos) throws MqttException {
+		return subscribe(topicFilters, qos, null, null);
+	}
+
+	public IMqttToken subscribe(String[] topicFilters, int[] qos, Object userContext, IMqttActionListener callback) throws MqttException {
+		checkConnected();
+		byte[][] filters = encodeAll(topicFilters);
+		int length = 2;
+		for (byte[] filter : filters) {
+			length += 2 + filter.length + 1;
+		}
+		NioToken token = request(topicFilters, userContext, callback);
+		ByteBuffer buf = header(SUBSCRIBE, 0x02, length);
+		buf.putShort((short) token.messageId);
+		for (int i = 0; i < filters.length; i++) {
+			buf.putShort((short) filters[i].length);
+			buf.put(filters[i]);
+			buf.put((byte) qos[i]);
+		}
+		send(buf, token);
+		return token;
+	}
+
+	public IMqttToken unsubscribe(String topicFilter) throws MqttException {
+		return unsubscribe(new String[] { topicFilter }, null, null);
+	}
+
+	public IMqttToken unsubscribe(String[] topicFilters) throws MqttException {
+		return unsubscribe(topicFilters, null, null);
+	}
+
+	public IMqttToken unsubscribe(String topicFilter, Object userContext, IMqttActionListener callback) throws MqttException {
+		return unsubscribe(new String[] { topicFilter }, userContext, callback);
+	}
+
+	public IMqttToken unsubscribe(String[] topicFilters, Object userContext, IMqttActionListener callback) throws MqttException {
+		checkConnected();
+		byte[][] filters = encodeAll(topicFilters);
+		int length = 2;
+		for (byte[] filter : filters) {
+			length += 2 + filter.length;
+		}
+		NioToken token = request(topicFilters, userContext, callback);
+		ByteBuffer buf = header(UNSUBSCRIBE, 0x02, length);
+		buf.putShort((short) token.messageId);
+		for (byte[] filter : filters) {
+			buf.putShort((short) filter.length);
+			buf.put(filter);
+		}
+		send(buf, token);
+		return token;
+	}
+
+	public void setCallback(MqttCallback callback) {
+		this.callback = callback;
+	}
+
+	public IMqttDeliveryToken[] getPendingDeliveryTokens() {
+		return inflight.values().toArray(new IMqttDeliveryToken[0]);
+	}
+
+	/**
+	 * Stop the selector thread and the lanes; outstanding actions fail with REASON_CODE_CLIENT_CLOSED.
+	 */
+	public void close() throws MqttException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		selector.wakeup();
+		try {
+			thread.join(2000);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		for (ExecutorService lane : lanes) {
+			lane.shutdown();
+		}
+	}
+
+	/****************************************************************/
+	/* Calling threads                                              */
+	/****************************************************************/
+
+	private void checkConnected() throws MqttException {
+		if (closed) {
+			throw new MqttException(MqttException.REASON_CODE_CLIENT_CLOSED);
+		}
+		if (!connected) {
+			throw new MqttException(MqttException.REASON_CODE_CLIENT_NOT_CONNECTED);
+		}
+	}
+
+	private int nextPacketId() throws MqttException {
+		for (int tries = 0; tries < 0xffff; tries++) {
+			int id = nextId.incrementAndGet() & 0xffff;
+			if (id != 0 && !inflight.containsKey(id) && !requests.containsKey(id)) {
+				return id;
+			}
+		}
+		throw new MqttException(MqttException.REASON_CODE_NO_MESSAGE_IDS_AVAILABLE);
+	}
+
+	private NioToken request(String[] topicFilters, Object userContext, IMqttActionListener callback) throws MqttException {
+		NioToken token = new NioToken(this, topicFilters, userContext, callback);
+		token.messageId = nextPacketId();
+		requests.put(token.messageId, token);
+		return token;
+	}
+
+	private static byte[][] encodeAll(String[] strings) {
+		byte[][] bytes = new byte[strings.length][];
+		for (int i = 0; i < strings.length; i++) {
+			bytes[i] = strings[i].getBytes(StandardCharsets.UTF_8);
+		}
+		return bytes;
+	}
+
+	/**
+	 * Queue an encoded frame for the selector thread.
+	 */
+	private void send(ByteBuffer buf, NioToken token) {
+		buf.flip();
+		outbound.add(new Frame(buf, token));
+		wakeup();
+	}
+
+	private void execute(Runnable task) {
+		tasks.add(task);
+		wakeup();
+	}
+
+	/**
+	 * Wake the selector unless a wakeup is already on its way; the selector clears the flag before
+	 * it drains the queues, so nothing queued after that is left behind.
+	 */
+	private void wakeup() {
+		if (wakeupPending.compareAndSet(false, true)) {
+			selector.wakeup();
+		}
+	}
+
+	private ExecutorService lane(int hash) {
+		return lanes[(hash & 0x7fffffff) % lanes.length];
+	}
+
+	/**
+	 * Complete an action and notify its listener (and deliveryComplete for publishes) on a lane.
+	 */
+	private void complete(final NioToken token, final MqttException e) {
+		if (token == null || !token.finish(e)) {
+			return;
+		}
+		final IMqttActionListener listener = token.getActionCallback();
+		final MqttCallback cb = e == null && token.message != null ? callback : null;
+		if (listener == null && cb == null) {
+			return;
+		}
+		try {
+			lane(token.messageId).execute(new Runnable() {
+				public void run() {
+					if (cb != null) {
+						cb.deliveryComplete(token);
+					}
+					if (listener == null) {
+						return;
+					}
+					if (e == null) {
+						listener.onSuccess(token);
+					} else {
+						listener.onFailure(token, e);
+					}
+				}
+			});
+		} catch (RejectedExecutionException ex) {
+			// Closed meanwhile, waiters have been woken up anyway.
+		}
+	}
+
+	/****************************************************************/
+	/* Selector thread                                              */
+	/****************************************************************/
+
+	public void run() {
+		while (!closed) {
+			try {
+				selector.select(state == DISCONNECTING ? 10 : 1000);
+				wakeupPending.set(false);
+
+				Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+				while (it.hasNext()) {
+					SelectionKey selected = it.next();
+					it.remove();
+					if (!selected.isValid()) {
+						continue;
+					}
+					if (selected.isConnectable()) {
+						finishConnect();
+						continue;
+					}
+					if (selected.isReadable()) {
+						read();
+					}
+					if (selected.isValid() && selected.isWritable()) {
+						writeInterest = false;
+						flush();
+					}
+				}
+
+				Runnable task;
+				while ((task = tasks.poll()) != null) {
+					task.run();
+				}
+				if (state == CONNECTED || state == DISCONNECTING) {
+					Frame frame;
+					while ((frame = outbound.poll()) != null) {
+						pending.add(frame);
+					}
+					if (!writeInterest && !pending.isEmpty()) {
+						flush();
+					}
+				}
+				timers(System.currentTimeMillis());
+			} catch (IOException | RuntimeException e) {
+				Log.debug("Mqtt connection of {} failed: {}", clientId, e);
+				lost(e);
+			}
+		}
+
+		closeConnection(new MqttException(MqttException.REASON_CODE_CLIENT_CLOSED));
+		for (NioToken token : discard()) {
+			complete(token, new MqttException(MqttException.REASON_CODE_CLIENT_CLOSED));
+		}
+		try {
+			selector.close();
+		} catch (IOException e) {
+			// Ignore, closing anyway.
+		}
+	}
+
+	private void startConnect(MqttConnectOptions options, NioToken token) {
+		if (state != IDLE) {
+			complete(token, new MqttException(state == CONNECTING
+					? MqttException.REASON_CODE_CONNECT_IN_PROGRESS : MqttException.REASON_CODE_CLIENT_CONNECTED));
+			return;
+		}
+		// Frames queued by callers that raced with the loss of the previous connection.
+		for (NioToken stale : discard()) {
+			complete(stale, new MqttException(MqttException.REASON_CODE_CONNECTION_LOST));
+		}
+		this.options = options;
+		this.connectToken = token;
+		this.keepAliveMillis = options.getKeepAliveInterval() * 1000L;
+		int timeout = options.getConnectionTimeout();
+		this.deadline = timeout > 0 ? System.currentTimeMillis() + timeout * 1000L : Long.MAX_VALUE;
+		state = CONNECTING;
+		try {
+			channel = SocketChannel.open();
+			channel.configureBlocking(false);
+			channel.socket().setTcpNoDelay(true);
+			if (channel.connect(new InetSocketAddress(host, port))) {
+				key = channel.register(selector, SelectionKey.OP_READ);
+				sendConnect();
+			} else {
+				key = channel.register(selector, SelectionKey.OP_CONNECT);
+			}
+		} catch (IOException e) {
+			lost(new MqttException(MqttException.REASON_CODE_SERVER_CONNECT_ERROR, e));
+		}
+	}
+
+	private void finishConnect() throws IOException {
+		channel.finishConnect();
+		key.interestOps(SelectionKey.OP_READ);
+		sendConnect();
+	}
+
+	private void sendConnect() throws IOException {
+		byte[] id = clientId.getBytes(StandardCharsets.UTF_8);
+		byte[] willTopic = null, willPayload = null, user = null, password = null;
+		int flags = options.isCleanSession() ? 0x02 : 0;
+		int length = 10 + 2 + id.length;
+		MqttMessage will = options.getWillMessage();
+		if (will != null) {
+			willTopic = options.getWillDestination().getBytes(StandardCharsets.UTF_8);
+			willPayload = will.getPayload();
+			flags |= 0x04 | (will.getQos() << 3) | (will.isRetained() ? 0x20 : 0);
+			length += 2 + willTopic.length + 2 + willPayload.length;
+		}
+		if (options.getUserName() != null) {
+			user = options.getUserName().getBytes(StandardCharsets.UTF_8);
+			flags |= 0x80;
+			length += 2 + user.length;
+		}
+		if (options.getPassword() != null) {
+			password = new String(options.getPassword()).getBytes(StandardCharsets.UTF_8);
+			flags |= 0x40;
+			length += 2 + password.length;
+		}
+
+		ByteBuffer buf = header(CONNECT, 0, length);
+		buf.putShort((short) 4);
+		buf.put((byte) 'M').put((byte) 'Q').put((byte) 'T').put((byte) 'T');
+		buf.put((byte) 4);
+		buf.put((byte) flags);
+		buf.putShort((short) options.getKeepAliveInterval());
+		putBytes(buf, id);
+		if (willTopic != null) {
+			putBytes(buf, willTopic);
+			putBytes(buf, willPayload);
+		}
+		if (user != null) {
+			putBytes(buf, user);
+		}
+		if (password != null) {
+			putBytes(buf, password);
+		}
+		queue(buf);
+		flush();
+	}
+
+	private void startDisconnect(long quiesceTimeout, NioToken token) {
+		if (state != CONNECTED) {
+			complete(token, new MqttException(MqttException.REASON_CODE_CLIENT_ALREADY_DISCONNECTED));
+			return;
+		}
+		state = DISCONNECTING;
+		connected = false;
+		disconnectToken = token;
+		deadline = System.currentTimeMillis() + quiesceTimeout;
+	}
+
+	private void timers(long now) throws IOException {
+		switch (state) {
+		case CONNECTING:
+			if (now >= deadline) {
+				lost(new MqttException(MqttException.REASON_CODE_CLIENT_TIMEOUT));
+			}
+			break;
+		case CONNECTED:
+			if (keepAliveMillis <= 0) {
+				break;
+			}
+			if (pingSent > 0) {
+				if (now - pingSent > keepAliveMillis) {
+					Log.debug("No PINGRESP within {} ms", keepAliveMillis);
+					lost(new MqttException(MqttException.REASON_CODE_CLIENT_TIMEOUT));
+				}
+			} else if (now - lastSent >= keepAliveMillis) {
+				pingSent = now;
+				queue(header(PINGREQ, 0, 0));
+				flush();
+			}
+			break;
+		case DISCONNECTING:
+			boolean quiet = inflight.isEmpty() && requests.isEmpty() && pending.isEmpty() && outbound.isEmpty();
+			if (quiet || now >= deadline) {
+				queue(header(DISCONNECT, 0, 0));
+				try {
+					flush();
+				} catch (IOException e) {
+					// Closing anyway.
+				}
+				NioToken token = disconnectToken;
+				closeConnection(new MqttException(MqttException.REASON_CODE_CLIENT_DISCONNECTING));
+				complete(token, null);
+			}
+			break;
+		}
+	}
+
+	/**
+	 * The connection failed or was lost: fail what is outstanding and, if it was established,
+	 * call connectionLost first so that the callback knows before the failed publishes return.
+	 */
+	private void lost(Throwable cause) {
+		if (state == IDLE) {
+			return;
+		}
+		final MqttException e = cause instanceof MqttException ? (MqttException) cause : new MqttException(
+				state == CONNECTING ? MqttException.REASON_CODE_SERVER_CONNECT_ERROR : MqttException.REASON_CODE_CONNECTION_LOST, cause);
+		final boolean established = state == CONNECTED;
+		final NioToken connecting = state == CONNECTING ? connectToken : null;
+		final NioToken disconnecting = state == DISCONNECTING ? disconnectToken : null;
+		final List<NioToken> failed = discard();
+		closeChannel();
+
+		try {
+			lanes[0].execute(new Runnable() {
+				public void run() {
+					MqttCallback cb = callback;
+					if (established && cb != null) {
+						cb.connectionLost(e);
+					}
+					complete(connecting, e);
+					for (NioToken token : failed) {
+						complete(token, e);
+					}
+					complete(disconnecting, null);
+				}
+			});
+		} catch (RejectedExecutionException ex) {
+			// Closed meanwhile.
+		}
+	}
+
+	/**
+	 * Close the connection on request (disconnect or close); outstanding actions fail with e.
+	 */
+	private void closeConnection(MqttException e) {
+		if (state == IDLE) {
+			return;
+		}
+		NioToken connecting = state == CONNECTING ? connectToken : null;
+		List<NioToken> failed = discard();
+		closeChannel();
+		complete(connecting, e);
+		for (NioToken token : failed) {
+			complete(token, e);
+		}
+	}
+
+	private void closeChannel() {
+		if (key != null) {
+			key.cancel();
+		}
+		try {
+			if (channel != null) {
+				channel.close();
+			}
+		} catch (IOException e) {
+			// Ignore, closing anyway.
+		}
+		channel = null;
+		key = null;
+		connected = false;
+		state = IDLE;
+		connectToken = null;
+		disconnectToken = null;
+		writeInterest = false;
+		pingSent = 0;
+		in = ByteBuffer.allocate(8192);
+	}
+
+	/**
+	 * Take every queued frame and outstanding action, returning the tokens to fail.
+	 */
+	private List<NioToken> discard() {
+		List<NioToken> tokens = new ArrayList<NioToken>();
+		Frame frame;
+		while ((frame = pending.poll()) != null || (frame = outbound.poll()) != null) {
+			pool.release(frame.buf);
+			if (frame.token != null) {
+				tokens.add(frame.token);
+			}
+		}
+		for (Iterator<NioToken> it = inflight.values().iterator(); it.hasNext(); ) {
+			tokens.add(it.next());
+			it.remove();
+		}
+		for (Iterator<NioToken> it = requests.values().iterator(); it.hasNext(); ) {
+			tokens.add(it.next());
+			it.remove();
+		}
+		receivedQos2.clear();
+		return tokens;
+	}
+
+	private void queue(ByteBuffer buf) {
+		buf.flip();
+		pending.add(new Frame(buf, null));
+	}
+
+	/**
+	 * Write the pending frames, up to gather.length of them per gathering write. If the socket
+	 * buffer fills up, the rest waits for OP_WRITE.
+	 */
+	private void flush() throws IOException {
+		while (!pending.isEmpty()) {
+			int n = 0;
+			for (Frame frame : pending) {
+				gather[n++] = frame.buf;
+				if (n == gather.length) {
+					break;
+				}
+			}
+			channel.write(gather, 0, n);
+			Arrays.fill(gather, 0, n, null);
+			writes++;
+			lastSent = System.currentTimeMillis();
+
+			int done = 0;
+			while (!pending.isEmpty() && !pending.peek().buf.hasRemaining()) {
+				Frame frame = pending.poll();
+				pool.release(frame.buf);
+				// QoS 0 publishes are complete once written, the others wait for their acknowledgement.
+				if (frame.token != null && frame.token.messageId == 0) {
+					complete(frame.token, null);
+				}
+				done++;
+			}
+			framesWritten += done;
+			if (done < n) {
+				writeInterest = true;
+				key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+				return;
+			}
+		}
+		if (key.interestOps() != SelectionKey.OP_READ) {
+			key.interestOps(SelectionKey.OP_READ);
+		}
+	}
+
+	private void read() throws IOException {
+		int n = channel.read(in);
+		if (n < 0) {
+			throw new IOException("Connection closed by the broker");
+		}
+
+		in.flip();
+		while (in.remaining() >= 2) {
+			int start = in.position();
+			int header = in.get(start) & 0xff;
+
+			// Remaining length, 1 to 4 bytes.
+			int length = 0;
+			int multiplier = 1;
+			int pos = start + 1;
+			boolean complete = false;
+			while (pos < in.limit()) {
+				int b = in.get(pos++) & 0xff;
+				length += (b & 0x7f) * multiplier;
+				if ((b & 0x80) == 0) {
+					complete = true;
+					break;
+				}
+				multiplier *= 128;
+				if (multiplier > 128 * 128 * 128) {
+					throw new IOException("Malformed remaining length");
+				}
+			}
+			if (!complete) {
+				break;
+			}
+			if (length > MAX_PACKET_SIZE) {
+				throw new IOException("Packet too large: " + length);
+			}
+			if (in.limit() - pos < length) {
+				// Incomplete packet, make sure it fits into the buffer once it has arrived.
+				int total = pos - start + length;
+				if (total > in.capacity()) {
+					ByteBuffer bigger = ByteBuffer.allocate(total);
+					bigger.put(in);
+					bigger.flip();
+					in = bigger;
+				}
+				break;
+			}
+
+			ByteBuffer packet = in.duplicate();
+			packet.position(pos);
+			packet.limit(pos + length);
+			in.position(pos + length);
+
+			handle(header >> 4, header & 0x0f, packet);
+			if (state == IDLE) {
+				return;
+			}
+		}
+		in.compact();
+	}
+
+	private void handle(int type, int flags, ByteBuffer packet) throws IOException {
+		if (state == CONNECTING && type != CONNACK) {
+			throw new IOException("Expected CONNACK instead of packet type " + type);
+		}
+		switch (type) {
+		case CONNACK:
+			boolean sessionPresent = (packet.get() & 0x01) != 0;
+			int returnCode = packet.get() & 0xff;
+			if (returnCode != 0) {
+				lost(new MqttException(returnCode));
+				return;
+			}
+			NioToken token = connectToken;
+			token.sessionPresent = sessionPresent;
+			connectToken = null;
+			state = CONNECTED;
+			connected = true;
+			complete(token, null);
+			break;
+
+		case PUBLISH:
+			final int qos = (flags >> 1) & 0x03;
+			final String topic = new String(readBytes(packet), StandardCharsets.UTF_8);
+			final int id = qos > 0 ? packet.getShort() & 0xffff : 0;
+			if (qos == 2 && !receivedQos2.add(id)) {
+				// Duplicate of a message being delivered, the PUBREC follows its delivery.
+				return;
+			}
+			byte[] payload = new byte[packet.remaining()];
+			packet.get(payload);
+			final MqttMessage message = new MqttMessage(payload);
+			message.setQos(qos);
+			message.setRetained((flags & 0x01) != 0);
+			dispatch(topic, message, id);
+			break;
+
+		case PUBACK:
+		case PUBCOMP:
+			complete(inflight.remove(packet.getShort() & 0xffff), null);
+			break;
+
+		case PUBREC:
+			queue(ack(PUBREL, 0x02, packet.getShort() & 0xffff));
+			flush();
+			break;
+
+		case PUBREL:
+			int released = packet.getShort() & 0xffff;
+			receivedQos2.remove(released);
+			queue(ack(PUBCOMP, 0, released));
+			flush();
+			break;
+
+		case SUBACK:
+			NioToken sub = requests.remove(packet.getShort() & 0xffff);
+			if (sub != null) {
+				int[] granted = new int[packet.remaining()];
+				for (int i = 0; i < granted.length; i++) {
+					granted[i] = packet.get() & 0xff;
+				}
+				sub.grantedQos = granted;
+				complete(sub, null);
+			}
+			break;
+
+		case UNSUBACK:
+			complete(requests.remove(packet.getShort() & 0xffff), null);
+			break;
+
+		case PINGRESP:
+			pingSent = 0;
+			break;
+
+		default:
+			throw new IOException("Unexpected packet type " + type);
+		}
+	}
+
+	/**
+	 * Hand an inbound message to the lane of its topic; it is acknowledged once messageArrived
+	 * has returned. If messageArrived throws, the connection is dropped without acknowledging, so
+	 * the broker sends the message again (what Paho does).
+	 */
+	private void dispatch(final String topic, final MqttMessage message, final int id) {
+		lane(topic.hashCode()).execute(new Runnable() {
+			public void run() {
+				MqttCallback cb = callback;
+				try {
+					if (cb != null) {
+						cb.messageArrived(topic, message);
+					}
+				} catch (final Throwable e) {
+					Log.error("Message on {} not handled, dropping the connection", topic, e);
+					execute(new Runnable() {
+						public void run() {
+							lost(e);
+						}
+					});
+					return;
+				}
+				if (message.getQos() == 1) {
+					send(ack(PUBACK, 0, id), null);
+				} else if (message.getQos() == 2) {
+					send(ack(PUBREC, 0, id), null);
+				}
+			}
+		});
+	}
+
+	/****************************************************************/
+	/* Encoding helpers                                             */
+	/****************************************************************/
+
+	private ByteBuffer header(int type, int flags, int remainingLength) {
+		int lengthBytes = remainingLength < 128 ? 1 : remainingLength < 16384 ? 2 : remainingLength < 2097152 ? 3 : 4;
+		ByteBuffer buf = pool.acquire(1 + lengthBytes + remainingLength);
+		buf.put((byte) ((type << 4) | flags));
+		int x = remainingLength;
+		do {
+			int b = x % 128;
+			x /= 128;
+			if (x > 0) {
+				b |= 0x80;
+			}
+			buf.put((byte) b);
+		} while (x > 0);
+		return buf;
+	}
+
+	private ByteBuffer ack(int type, int flags, int id) {
+		ByteBuffer buf = header(type, flags, 2);
+		buf.putShort((short) id);
+		return buf;
+	}
+
+	private static void putBytes(ByteBuffer buf, byte[] bytes) {
+		buf.putShort((short) bytes.length);
+		buf.put(bytes);
+	}
+
+	private static byte[] readBytes(ByteBuffer packet) {
+		int length = packet.getShort() & 0xffff;
+		byte[] bytes = new byte[length];
+		packet.get(bytes);
+		return bytes;
+	}
+}
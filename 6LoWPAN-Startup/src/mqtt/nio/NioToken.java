@@ -0,0 +1,137 @@
+package mqtt.nio;
+
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.IMqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.internal.wire.MqttWireMessage;
+
+/**
+ * NioToken tracks one action of {@link NioMqttClient} (connect, publish, subscribe, unsubscribe or
+ * disconnect) with the semantics of the Paho tokens: waitForCompletion throws the failure of the
+ * action, or REASON_CODE_CLIENT_TIMEOUT if it did not complete in time.
+ */
+final class NioToken implements IMqttDeliveryToken {
+
+	private final IMqttAsyncClient client;
+	private final String[] topics;
+	private volatile Object userContext;
+	private volatile IMqttActionListener listener;
+
+	// Set before the action is handed to the selector thread.
+	int messageId = 0;
+	MqttMessage message = null;
+
+	// Set by the selector thread before completion.
+	volatile int[] grantedQos = null;
+	volatile boolean sessionPresent = false;
+
+	private boolean complete = false;
+	private MqttException exception = null;
+
+	NioToken(IMqttAsyncClient client, String[] topics, Object userContext, IMqttActionListener listener) {
+		this.client = client;
+		this.topics = topics;
+		this.userContext = userContext;
+		this.listener = listener;
+	}
+
+	/**
+	 * Complete the action, failed if e is not null. Returns false if it was already complete.
+	 */
+	synchronized boolean finish(MqttException e) {
+		if (complete) {
+			return false;
+		}
+		exception = e;
+		complete = true;
+		notifyAll();
+		return true;
+	}
+
+	public void waitForCompletion() throws MqttException {
+		waitForCompletion(-1);
+	}
+
+	/**
+	 * Wait up to timeout milliseconds, forever if timeout <= 0 (as Paho does).
+	 */
+	public synchronized void waitForCompletion(long timeout) throws MqttException {
+		long deadline = System.currentTimeMillis() + timeout;
+		try {
+			while (!complete) {
+				if (timeout <= 0) {
+					wait();
+				} else {
+					long remaining = deadline - System.currentTimeMillis();
+					if (remaining <= 0) {
+						throw new MqttException(MqttException.REASON_CODE_CLIENT_TIMEOUT);
+					}
+					wait(remaining);
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new MqttException(e);
+		}
+		if (exception != null) {
+			throw exception;
+		}
+	}
+
+	public synchronized boolean isComplete() {
+		return complete;
+	}
+
+	public synchronized MqttException getException() {
+		return exception;
+	}
+
+	public void setActionCallback(IMqttActionListener listener) {
+		this.listener = listener;
+	}
+
+	public IMqttActionListener getActionCallback() {
+		return listener;
+	}
+
+	public IMqttAsyncClient getClient() {
+		return client;
+	}
+
+	public String[] getTopics() {
+		return topics;
+	}
+
+	public void setUserContext(Object userContext) {
+		this.userContext = userContext;
+	}
+
+	public Object getUserContext() {
+		return userContext;
+	}
+
+	public int getMessageId() {
+		return messageId;
+	}
+
+	public int[] getGrantedQos() {
+		return grantedQos;
+	}
+
+	public boolean getSessionPresent() {
+		return sessionPresent;
+	}
+
+	/**
+	 * Wire messages are not kept, the response is only reflected in the token fields.
+	 */
+	public MqttWireMessage getResponse() {
+		return null;
+	}
+
+	public MqttMessage getMessage() {
+		return message;
+	}
+}
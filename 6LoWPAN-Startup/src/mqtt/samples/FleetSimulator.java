@@ -0,0 +1,600 @@
+package mqtt.samples;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.IMqttToken;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+import mqtt.broker.MqttBroker;
+
+/**
+ * A load generator that replays a mass power-on of 6LoWPAN devices against the startup service.
+ *
+ * Every simulated device publishes its defaultId to "vestel/newDevice/defaultId" at its arrival
+ * time and waits for its generated id on "vestel/newDevice/<defaultId>", the exchange of the
+ * MqttAsyncCallBack/MqttAsyncWait samples, which the simulator is built from: the devices are
+ * multiplexed on a small pool of MqttAsyncCallBack publisher connections and one MqttAsyncWait
+ * listener subscribed to "vestel/newDevice/+", so tens of thousands of devices do not need tens
+ * of thousands of sockets. Like a real node, a device that got no id within the retry interval
+ * (-t) publishes its request again.
+ *
+ * Arrival curves:
+ *  - step:    all devices power on at the same moment
+ *  - ramp:    arrival rate grows linearly from 0 during the duration
+ *  - poisson: exponential inter-arrival times with the given mean rate
+ *  - outage:  poisson arrivals while the broker is stopped during the outage window and started
+ *             again; needs the embedded broker (-e). The service and the simulator lose their
+ *             connections, the devices arriving meanwhile wait for theirs, and all of them come
+ *             back at once when the broker does (recovery storm)
+ *
+ * With -e the simulator runs the embedded broker (mqtt.broker.MqttBroker) on the given port and
+ * waits until the service started against it (-Dmqtt.broker=localhost -Dmqtt.port=<port>)
+ * reports "ready" on its status topic.
+ *
+ * At the end time-to-id percentiles, error/timeout counts and the sustained registration rate
+ * of the service are printed. If the application is run with the -h parameter then info is
+ * displayed that describes all of the options / parameters.
+ */
+public class FleetSimulator {
+
+	private static final String PFX = "vestel/newDevice/";
+	private static final String REQUEST_TOPIC = PFX + "defaultId";
+
+	/**
+	 * The main entry point of the simulator.
+	 */
+	public static void main(String[] args) {
+
+		// Default settings:
+		String broker 		= "localhost";
+		int port 			= 1883;
+		boolean embedded 	= false;
+		int devices 		= 1000;
+		String curve 		= "step";
+		double rate 		= 500;			// Mean arrivals per second (poisson, outage)
+		long duration 		= 10000;		// Arrival window in ms (ramp)
+		long outageStart 	= 2000;			// ms after start (outage)
+		long outageLength 	= 3000;			// ms (outage)
+		int connections 	= 4;
+		int qos 			= 2;
+		long retryMillis 	= 5000;			// Request again after this long without an id, 0 never
+		long waitMillis 	= 30000;		// Max wait for outstanding replies after the last arrival
+		long seed 			= System.nanoTime();
+
+		// Parse the arguments -
+		for (int i=0; i<args.length; i++) {
+			if (args[i].length() == 2 && args[i].startsWith("-")) {
+				char arg = args[i].charAt(1);
+				// Handle arguments that take no-value
+				switch(arg) {
+					case 'h': case '?':	printHelp(); return;
+					case 'e': embedded = true;	continue;
+				}
+				if (i == args.length -1) {
+					System.out.println("Missing value for argument: "+args[i]);
+					printHelp();
+					return;
+				}
+				switch(arg) {
+					case 'b': broker = args[++i];                        break;
+					case 'p': port = Integer.parseInt(args[++i]);        break;
+					case 'n': devices = Integer.parseInt(args[++i]);     break;
+					case 'a': curve = args[++i];                         break;
+					case 'r': rate = Double.parseDouble(args[++i]);      break;
+					case 'd': duration = Long.parseLong(args[++i]);      break;
+					case 'o': outageStart = Long.parseLong(args[++i]);   break;
+					case 'l': outageLength = Long.parseLong(args[++i]);  break;
+					case 'c': connections = Integer.parseInt(args[++i]); break;
+					case 's': qos = Integer.parseInt(args[++i]);         break;
+					case 't': retryMillis = Long.parseLong(args[++i]);   break;
+					case 'w': waitMillis = Long.parseLong(args[++i]);    break;
+					case 'x': seed = Long.parseLong(args[++i]);          break;
+					default:
+						System.out.println("Unrecognised argument: "+args[i]);
+						printHelp();
+						return;
+				}
+			} else {
+				System.out.println("Unrecognised argument: "+args[i]);
+				printHelp();
+				return;
+			}
+		}
+
+		long[] arrivals;
+		Random random = new Random(seed);
+		switch (curve) {
+		case "step": 	arrivals = stepArrivals(devices); 						break;
+		case "ramp": 	arrivals = rampArrivals(devices, duration); 			break;
+		case "poisson":
+		case "outage": 	arrivals = poissonArrivals(devices, rate, random); 		break;
+		default:
+			System.out.println("Invalid arrival curve: "+curve);
+			printHelp();
+			return;
+		}
+		if (curve.equals("outage") && !embedded) {
+			System.out.println("The outage curve stops and starts the broker, run it with the embedded broker (-e)");
+			printHelp();
+			return;
+		}
+
+		try {
+			MqttBroker mqttBroker = null;
+			if (embedded) {
+				mqttBroker = new MqttBroker(broker, port);
+				mqttBroker.start();
+				System.out.println("Embedded broker listening on " + broker + ":" + port);
+			}
+			if (embedded) {
+				awaitReady("tcp://" + broker + ":" + port);
+			}
+			FleetSimulator simulator = new FleetSimulator("tcp://" + broker + ":" + port, connections, qos, retryMillis);
+			if (curve.equals("outage")) {
+				simulator.scheduleOutage(mqttBroker, outageStart, outageLength);
+			}
+			simulator.run(arrivals, waitMillis);
+			simulator.report(curve);
+			simulator.close();
+			if (mqttBroker != null) {
+				mqttBroker.stop();
+			}
+		} catch (MqttException me) {
+			// Display full details of any exception that occurs
+			System.out.println("reason " + me.getReasonCode());
+			System.out.println("msg " + me.getMessage());
+			System.out.println("loc " + me.getLocalizedMessage());
+			System.out.println("cause " + me.getCause());
+			System.out.println("excep " + me);
+			me.printStackTrace();
+		} catch (Throwable th) {
+			System.out.println("Throwable caught "+th);
+			th.printStackTrace();
+		}
+	}
+
+	/****************************************************************/
+	/* Arrival curves, all return sorted offsets in nanoseconds      */
+	/****************************************************************/
+
+	static long[] stepArrivals(int devices) {
+		return new long[devices];
+	}
+
+	static long[] rampArrivals(int devices, long durationMillis) {
+		// Cumulative arrivals of a linear rate grow with t^2, so invert it.
+		long[] arrivals = new long[devices];
+		for (int i = 0; i < devices; i++) {
+			arrivals[i] = (long) (durationMillis * 1e6 * Math.sqrt((double) i / devices));
+		}
+		return arrivals;
+	}
+
+	static long[] poissonArrivals(int devices, double ratePerSec, Random random) {
+		long[] arrivals = new long[devices];
+		double t = 0;
+		for (int i = 0; i < devices; i++) {
+			t += -Math.log(1 - random.nextDouble()) / ratePerSec;
+			arrivals[i] = (long) (t * 1e9);
+		}
+		return arrivals;
+	}
+
+	/**
+	 * A simulated device waiting for its id.
+	 */
+	static final class Device {
+		final String defaultId;
+		final long arrived;
+		volatile long sent;				// Last request, 0 while it has to be (re)sent
+
+		Device(String defaultId, long arrived) {
+			this.defaultId = defaultId;
+			this.arrived = arrived;
+		}
+	}
+
+	/**
+	 * A publisher connection: the MqttAsyncCallBack sample, connected once and then publishing the
+	 * requests of many devices without waiting for each one. A lost connection is connected
+	 * again instead of ending the process.
+	 */
+	class RequestPublisher extends MqttAsyncCallBack {
+
+		RequestPublisher(String brokerUrl, String clientId) throws MqttException {
+			super(brokerUrl, clientId, true, true, null, null);
+		}
+
+		boolean isConnected() {
+			return client.isConnected();
+		}
+
+		void publish(Device device) throws MqttException {
+			MqttMessage message = new MqttMessage(device.defaultId.getBytes());
+			message.setQos(qos);
+			client.publish(REQUEST_TOPIC, message, device, pubListener);
+		}
+
+		public void connectionLost(Throwable cause) {
+			reconnect(new Reconnect() {
+				public void connect() throws Throwable {
+					RequestPublisher.this.connect();
+				}
+			});
+		}
+	}
+
+	/**
+	 * The reply listener: the MqttAsyncWait sample with a persistent session, so the replies
+	 * published while it reconnects after an outage are kept for it by the broker.
+	 */
+	class Listener extends MqttAsyncWait {
+
+		Listener(String brokerUrl, String clientId) throws MqttException {
+			super(brokerUrl, clientId, false, true, null, null);
+		}
+
+		public void messageArrived(String topic, MqttMessage message) {
+			replyArrived(topic, message);
+		}
+
+		public void connectionLost(Throwable cause) {
+			reconnect(new Reconnect() {
+				public void connect() throws Throwable {
+					connectAndSubscribe(PFX + "+", qos);
+				}
+			});
+		}
+	}
+
+	interface Reconnect {
+		void connect() throws Throwable;
+	}
+
+	/**
+	 * Wait until the service reports "ready" on its status topic (retained, see
+	 * startup.Readiness), with the MqttAsyncWait sample subscribed to it.
+	 */
+	static void awaitReady(String brokerUrl) throws Throwable {
+		final String statusTopic = System.getProperty("startup.status.topic", "vestel/startup/status");
+		final Object ready = new Object();
+		final boolean[] isReady = { false };
+		MqttAsyncWait watcher = new MqttAsyncWait(brokerUrl, "fleetSim_status", true, true, null, null) {
+			public void messageArrived(String topic, MqttMessage message) {
+				if ("ready".equals(new String(message.getPayload()))) {
+					synchronized (ready) {
+						isReady[0] = true;
+						ready.notifyAll();
+					}
+				}
+			}
+		};
+		System.out.println("Waiting for the service to report ready on " + statusTopic + "..");
+		watcher.connectAndSubscribe(statusTopic, 1);
+		synchronized (ready) {
+			while (!isReady[0]) {
+				ready.wait();
+			}
+		}
+		watcher.disconnect();
+	}
+
+	// Private instance variables
+	private final RequestPublisher[] publishers;
+	private final Listener listener;
+	private final int qos;
+	private final long retryNanos;
+	private final String runId = Long.toHexString(System.currentTimeMillis() & 0xffffffL);
+
+	private final ConcurrentHashMap<String, Device> pending = new ConcurrentHashMap<String, Device>();
+	private long[] latencies;									// Time-to-id of each answered device
+	private final AtomicInteger answered = new AtomicInteger();
+	private final AtomicInteger publishErrors = new AtomicInteger();
+	private final AtomicInteger retries = new AtomicInteger();
+	private final AtomicInteger reconnects = new AtomicInteger();
+	private final AtomicInteger invalidReplies = new AtomicInteger();
+	private final AtomicInteger duplicates = new AtomicInteger();
+	private final AtomicLong firstSend = new AtomicLong();
+	private final AtomicLong lastReply = new AtomicLong();
+	private volatile boolean running = true;
+	private long outageMillis = 0;
+	private int sent = 0;
+
+	private final ExecutorService reconnector = Executors.newCachedThreadPool(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "fleetSim-reconnect");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
+	private final IMqttActionListener pubListener = new IMqttActionListener() {
+		public void onSuccess(IMqttToken asyncActionToken) {
+		}
+
+		public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+			// Lost with its connection: send it again.
+			publishErrors.incrementAndGet();
+			((Device) asyncActionToken.getUserContext()).sent = 0;
+		}
+	};
+
+	/**
+	 * Constructs the simulator and connects its publisher pool and the reply listener.
+	 * @param brokerUrl the url to connect to
+	 * @param connections the number of publisher connections devices are spread on
+	 * @param qos the quality of service of device requests
+	 * @param retryMillis the time after which a device without id requests again, 0 for never
+	 * @throws Throwable
+	 */
+	public FleetSimulator(String brokerUrl, int connections, int qos, long retryMillis) throws Throwable {
+		this.qos = qos;
+		this.retryNanos = retryMillis * 1000000L;
+
+		listener = new Listener(brokerUrl, "fleetSim_" + runId + "_sub");
+		listener.connectAndSubscribe(PFX + "+", qos);
+
+		publishers = new RequestPublisher[connections];
+		for (int i = 0; i < connections; i++) {
+			publishers[i] = new RequestPublisher(brokerUrl, "fleetSim_" + runId + "_" + i);
+			publishers[i].connect();
+		}
+		System.out.println("Connected " + connections + " publishers and 1 listener to " + brokerUrl);
+	}
+
+	/**
+	 * Stop the broker outageStart ms after the first arrival and start it again outageLength ms
+	 * later.
+	 */
+	public void scheduleOutage(final MqttBroker broker, final long outageStart, final long outageLength) {
+		outageMillis = outageLength;
+		Thread outage = new Thread("fleetSim-outage") {
+			public void run() {
+				try {
+					Thread.sleep(outageStart);
+					System.out.println("Broker stopped");
+					broker.stop();
+					Thread.sleep(outageLength);
+					broker.start();
+					System.out.println("Broker started again");
+				} catch (InterruptedException e) {
+					// Simulation over.
+				} catch (IOException e) {
+					System.out.println("Broker could not be started again: " + e);
+				}
+			}
+		};
+		outage.setDaemon(true);
+		outage.start();
+	}
+
+	/**
+	 * Replay the arrival schedule and wait for the replies.
+	 */
+	public void run(long[] arrivals, long waitMillis) throws InterruptedException {
+		latencies = new long[arrivals.length];
+		long start = System.nanoTime();
+		firstSend.set(start);
+
+		Thread retrier = new Thread("fleetSim-retry") {
+			public void run() {
+				while (running) {
+					LockSupport.parkNanos(100000000L);
+					resend();
+				}
+			}
+		};
+		retrier.setDaemon(true);
+		retrier.start();
+
+		for (int i = 0; i < arrivals.length; i++) {
+			long due = start + arrivals[i];
+			long delay;
+			while ((delay = due - System.nanoTime()) > 0) {
+				LockSupport.parkNanos(delay);
+			}
+
+			Device device = new Device("sim" + runId + "-" + i, System.nanoTime());
+			pending.put(device.defaultId, device);
+			publish(device);
+			sent++;
+		}
+		System.out.println("All " + sent + " devices powered on in " + (System.nanoTime() - start) / 1000000 + " ms, waiting for ids..");
+
+		long deadline = System.nanoTime() + waitMillis * 1000000L;
+		while (!pending.isEmpty() && System.nanoTime() < deadline) {
+			Thread.sleep(50);
+		}
+		running = false;
+	}
+
+	/**
+	 * Publish the request of a device. When the inflight window of every connection is full the
+	 * device keeps trying, like a real node would, and the wait is part of its time-to-id. While
+	 * no connection is up the device is left to the retry thread.
+	 */
+	private void publish(Device device) {
+		device.sent = System.nanoTime();
+		int index = (device.defaultId.hashCode() & Integer.MAX_VALUE) % publishers.length;
+		for (int attempt = 0; running; attempt++) {
+			RequestPublisher publisher = publishers[(index + attempt) % publishers.length];
+			if (!publisher.isConnected()) {
+				if (attempt >= publishers.length && !anyConnected()) {
+					device.sent = 0;
+					return;
+				}
+				continue;
+			}
+			try {
+				publisher.publish(device);
+				return;
+			} catch (MqttException e) {
+				if (e.getReasonCode() != MqttException.REASON_CODE_MAX_INFLIGHT
+						&& e.getReasonCode() != MqttException.REASON_CODE_CLIENT_NOT_CONNECTED) {
+					publishErrors.incrementAndGet();
+					device.sent = 0;
+					return;
+				}
+				if (attempt >= publishers.length) {
+					LockSupport.parkNanos(100000L);
+				}
+			}
+		}
+	}
+
+	private boolean anyConnected() {
+		for (RequestPublisher publisher : publishers) {
+			if (publisher.isConnected()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Publish again the requests that could not be sent, and with retries on those that got no
+	 * id within the retry interval.
+	 */
+	private void resend() {
+		long now = System.nanoTime();
+		for (Device device : pending.values()) {
+			long sentAt = device.sent;
+			if (sentAt == 0 || (retryNanos > 0 && now - sentAt > retryNanos)) {
+				if (sentAt != 0) {
+					retries.incrementAndGet();
+				}
+				publish(device);
+			}
+		}
+	}
+
+	/**
+	 * Connect a lost client again in the background, every 500 ms until it succeeds.
+	 */
+	private void reconnect(final Reconnect reconnect) {
+		reconnector.execute(new Runnable() {
+			public void run() {
+				while (running) {
+					try {
+						reconnect.connect();
+						reconnects.incrementAndGet();
+						return;
+					} catch (Throwable th) {
+						LockSupport.parkNanos(500000000L);
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Print time-to-id percentiles, error rates and the sustained registrations per second.
+	 */
+	public void report(String curve) {
+		int n = answered.get();
+		long[] sorted = Arrays.copyOf(latencies, n);
+		Arrays.sort(sorted);
+		double seconds = (lastReply.get() - firstSend.get()) / 1e9;
+
+		System.out.println();
+		System.out.println("Arrival curve     : " + curve);
+		if (outageMillis > 0) {
+			System.out.println("Broker outage     : " + outageMillis + " ms, " + reconnects.get() + " reconnects");
+		}
+		System.out.println("Devices           : " + sent);
+		System.out.println("Got id            : " + n);
+		System.out.println("Timed out         : " + pending.size());
+		System.out.println("Publish errors    : " + publishErrors.get());
+		System.out.println("Retried requests  : " + retries.get());
+		System.out.println("Invalid replies   : " + invalidReplies.get() + " (id <= 0)");
+		System.out.println("Duplicate replies : " + duplicates.get());
+		System.out.println(String.format("Error rate        : %.3f %%", sent == 0 ? 0 : 100.0 * (sent - n + invalidReplies.get()) / sent));
+		if (n > 0) {
+			System.out.println(String.format("Time-to-id (ms)   : p50 %.2f  p90 %.2f  p99 %.2f  p99.9 %.2f  max %.2f",
+					percentile(sorted, 50), percentile(sorted, 90), percentile(sorted, 99),
+					percentile(sorted, 99.9), sorted[n - 1] / 1e6));
+			System.out.println(String.format("Sustained rate    : %.1f registrations/s over %.2f s", n / seconds, seconds));
+		}
+	}
+
+	static double percentile(long[] sorted, double p) {
+		int index = (int) Math.ceil(p / 100.0 * sorted.length) - 1;
+		return sorted[Math.max(0, Math.min(sorted.length - 1, index))] / 1e6;
+	}
+
+	public void close() {
+		running = false;
+		reconnector.shutdownNow();
+		try {
+			for (RequestPublisher publisher : publishers) {
+				if (publisher.isConnected()) {
+					publisher.client.disconnect().waitForCompletion();
+				}
+			}
+			listener.disconnect();
+		} catch (MqttException e) {
+			System.out.println("Disconnect failed " + e);
+		}
+	}
+
+	/**
+	 * A reply of the service, or one of our own requests that the listener also matches.
+	 */
+	void replyArrived(String topic, MqttMessage message) {
+		if (topic.equals(REQUEST_TOPIC)) {
+			return;
+		}
+		long now = System.nanoTime();
+		Device device = pending.remove(topic.substring(PFX.length()));
+		if (device == null) {
+			if (topic.startsWith(PFX + "sim" + runId)) {
+				duplicates.incrementAndGet();
+			}
+			return;
+		}
+		try {
+			if (Integer.parseInt(new String(message.getPayload()).trim()) <= 0) {
+				invalidReplies.incrementAndGet();
+			}
+		} catch (NumberFormatException e) {
+			invalidReplies.incrementAndGet();
+		}
+		latencies[answered.getAndIncrement()] = now - device.arrived;
+		lastReply.set(now);
+	}
+
+	static void printHelp() {
+		System.out.println(
+			"Syntax:\n\n" +
+				"    FleetSimulator [-h] [-b <hostname|IP address>] [-p <brokerport>] [-e] [-n <devices>]\n" +
+				"            [-a step|ramp|poisson|outage] [-r <rate>] [-d <ms>] [-o <ms>] [-l <ms>]\n" +
+				"            [-c <connections>] [-s 0|1|2] [-t <ms>] [-w <ms>] [-x <seed>]\n\n" +
+				"    -h  Print this help text and quit\n" +
+				"    -b  Broker name/IP address (default localhost)\n" +
+				"    -p  Broker port (default 1883)\n" +
+				"    -e  Run the embedded broker on that address and port\n" +
+				"    -n  Number of simulated devices (default 1000)\n" +
+				"    -a  Arrival curve (default step); outage needs -e\n" +
+				"    -r  Mean arrival rate per second for poisson and outage (default 500)\n" +
+				"    -d  Arrival window in ms for ramp (default 10000)\n" +
+				"    -o  Broker stop in ms after the beginning, outage (default 2000)\n" +
+				"    -l  Time in ms until the broker is started again, outage (default 3000)\n" +
+				"    -c  Number of publisher connections (default 4)\n" +
+				"    -s  QoS of device requests (default 2)\n" +
+				"    -t  Request again after this many ms without id, 0 never (default 5000)\n" +
+				"    -w  Max time in ms to wait for outstanding ids (default 30000)\n" +
+				"    -x  Random seed of the arrival curve\n"
+			);
+	}
+}
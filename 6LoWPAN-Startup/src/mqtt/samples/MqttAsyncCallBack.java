@@ -320,6 +320,26 @@ public class MqttAsyncCallBack implements MqttCallback {
 		}
     }
 
+    /**
+     * Connect using the non-blocking {@link MqttConnector} and wait to be notified that it
+     * completed, leaving the client connected. Tools built on this sample (see FleetSimulator)
+     * publish on the connected client and call this again from connectionLost to reconnect.
+     * @throws Throwable the reason the connect failed
+     */
+    public void connect() throws Throwable {
+    	synchronized (waiter) {
+    		state = BEGIN;
+    		donext = false;
+    		ex = null;
+    	}
+    	MqttConnector con = new MqttConnector();
+    	con.doConnect();
+    	waitForStateChange(10000);
+    	if (state != CONNECTED) {
+    		throw ex != null ? ex : new MqttException(MqttException.REASON_CODE_CLIENT_TIMEOUT);
+    	}
+    }
+
     /**
      * Publish / send a message to an MQTT server
      * @param topicName the name of the topic to publish to
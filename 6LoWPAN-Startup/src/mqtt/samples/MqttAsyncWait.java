@@ -286,6 +286,29 @@ public class MqttAsyncWait implements MqttCallback {
      */
     public void subscribe(String topicName, int qos) throws MqttException {
 
+    	connectAndSubscribe(topicName, qos);
+
+    	// Continue waiting for messages until the Enter is pressed
+    	log("Press <Enter> to exit");
+		try {
+			System.in.read();
+		} catch (IOException e) {
+			//If we can't read we'll just exit
+		}
+
+    	disconnect();
+    }
+
+    /**
+     * Connect to the MQTT server and subscribe to a topic, then return while the messages
+     * arrive in messageArrived. Tools built on this sample (see FleetSimulator) override
+     * messageArrived and call this again from connectionLost to reconnect.
+     * @param topicName to subscribe to (can be wild carded)
+     * @param qos the maximum quality of service to receive messages at for this subscription
+     * @throws MqttException
+     */
+    public void connectAndSubscribe(String topicName, int qos) throws MqttException {
+
     	// Connect to the MQTT server
     	// issue a non-blocking connect and then use the token to wait until the
     	// connect completes. An exception is thrown if connect fails.
@@ -302,16 +325,13 @@ public class MqttAsyncWait implements MqttCallback {
     	IMqttToken subToken = client.subscribe(topicName, qos, null, null);
     	subToken.waitForCompletion();
     	log("Subscribed to topic \""+topicName);
+    }
 
-    	// Continue waiting for messages until the Enter is pressed
-    	log("Press <Enter> to exit");
-		try {
-			System.in.read();
-		} catch (IOException e) {
-			//If we can't read we'll just exit
-		}
-
-    	// Disconnect the client
+    /**
+     * Disconnect the client
+     * @throws MqttException
+     */
+    public void disconnect() throws MqttException {
     	// Issue the disconnect and then use the token to wait until
     	// the disconnect completes.
     	log("Disconnecting");
@@ -0,0 +1,644 @@
+package mqttsn;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import mqtt.MqttManager;
+import mqtt.PayloadCodec;
+import startup.Ingress;
+import startup.Settings;
+import startup.StartupManager;
+import util.Log;
+
+/**
+ * MqttSnGateway lets sensor nodes register over MQTT-SN 1.2 (UDP) with the service itself acting
+ * as the gateway: registrations are handled in-process by {@link StartupManager#allocateId}, the
+ * allocation of the broker sites with their dedup window, instead of being relayed to the broker,
+ * which saves a hop and the QoS 2 exchange per device. A payload that is not a valid defaultId
+ * ({@link PayloadCodec#decodeDefaultId(byte[])}) is refused (PUBACK "not supported" with QoS 1).
+ * 
+ * A node publishes its defaultId on "vestel/newDevice/defaultId" (REGISTER the name, or use the
+ * predefined topic id 1) and receives its id on "vestel/newDevice/&lt;defaultId&gt;" if it subscribed
+ * to that name, otherwise on the predefined topic id 2. Lease heartbeats go to
+ * "vestel/startup/heartbeat" (predefined 3). QoS -1 (predefined topics, no connection), 0 and 1 are
+ * supported; the reply uses the QoS of the request (QoS 1 replies are retried every
+ * mqttsn.retryMs, 10000, mqttsn.retries, 3, times). Subscriptions are by exact topic name only, and
+ * will messages are not supported.
+ * 
+ * A client that sent DISCONNECT with a duration sleeps: replies for it are buffered (at most
+ * mqttsn.sleepBuffer, 16) and sent when it wakes up with a PINGREQ. Clients silent for 1.5 times
+ * their keep-alive or sleep duration are forgotten.
+ * 
+ * All client state belongs to the selector thread; the mqttsn.workers (16) allocate ids and hand
+ * the replies back through a queue.
+ * 
+ * Settings: mqttsn.enabled (false), mqttsn.bind (0.0.0.0), mqttsn.port (1883), mqttsn.gatewayId (1).
+ */
+public class MqttSnGateway implements Ingress {
+
+	public static final int PREDEFINED_REGISTRATION = 1;
+	public static final int PREDEFINED_REPLY 		= 2;
+	public static final int PREDEFINED_HEARTBEAT 	= 3;
+
+	private static final String REGISTRATION_TOPIC 	= "vestel/newDevice/defaultId";
+	private static final String REPLY_PREFIX 		= "vestel/newDevice/";
+
+	private static final int ACTIVE = 0;
+	private static final int ASLEEP = 1;
+
+	/**
+	 * A QoS 1 packet sent to a client and not acknowledged yet.
+	 */
+	private static final class Outbound {
+		final byte[] packet;
+		long sentAt;
+		int retries = 0;
+
+		Outbound(byte[] packet, long sentAt) {
+			this.packet = packet;
+			this.sentAt = sentAt;
+		}
+	}
+
+	/**
+	 * Gateway side state of a connected (or sleeping) client.
+	 */
+	private static final class Client {
+		final String clientId;
+		SocketAddress address;
+		int state = ACTIVE;
+		long durationNanos;
+		long lastSeen;
+		final Map<String, Integer> topicIds = new HashMap<String, Integer>();
+		final Map<Integer, String> topicNames = new HashMap<Integer, String>();
+		final Map<String, Integer> subscriptions = new HashMap<String, Integer>();
+		final ArrayDeque<byte[]> buffered = new ArrayDeque<byte[]>();
+		final LinkedHashMap<Integer, Outbound> inflight = new LinkedHashMap<Integer, Outbound>();
+		final int[] recentMsgIds = new int[8];
+		int recentPos = 0;
+		int nextTopicId = 1;
+		int nextMsgId = 0;
+
+		Client(String clientId) {
+			this.clientId = clientId;
+			for (int i = 0; i < recentMsgIds.length; i++) {
+				recentMsgIds[i] = -1;
+			}
+		}
+
+		int topicId(String name) {
+			Integer id = topicIds.get(name);
+			if (id == null) {
+				id = nextTopicId++;
+				topicIds.put(name, id);
+				topicNames.put(id, name);
+			}
+			return id;
+		}
+
+		int nextMsgId() {
+			do {
+				nextMsgId = (nextMsgId % 0xFFFF) + 1;
+			} while (inflight.containsKey(nextMsgId));
+			return nextMsgId;
+		}
+
+		/**
+		 * True if msgId was seen recently (retransmitted QoS 1 publish); remembers it otherwise.
+		 */
+		boolean isDuplicate(int msgId) {
+			for (int seen : recentMsgIds) {
+				if (seen == msgId) {
+					return true;
+				}
+			}
+			recentMsgIds[recentPos] = msgId;
+			recentPos = (recentPos + 1) % recentMsgIds.length;
+			return false;
+		}
+
+		void reset() {
+			topicIds.clear();
+			topicNames.clear();
+			subscriptions.clear();
+			buffered.clear();
+			inflight.clear();
+			nextTopicId = 1;
+		}
+	}
+
+	/**
+	 * A registration done by a worker, to be answered by the selector thread.
+	 */
+	private static final class Completion {
+		final String clientId;		// null for QoS -1
+		final SocketAddress address;
+		final String defaultId;
+		final int qos;
+		final byte[] payload;
+
+		Completion(String clientId, SocketAddress address, String defaultId, int qos, byte[] payload) {
+			this.clientId = clientId;
+			this.address = address;
+			this.defaultId = defaultId;
+			this.qos = qos;
+			this.payload = payload;
+		}
+	}
+
+	private final StartupManager startupManager;
+	private final InetSocketAddress address;
+	private final int gatewayId = Settings.getInt("mqttsn.gatewayId", 1);
+	private final long retryNanos = TimeUnit.MILLISECONDS.toNanos(Settings.getLong("mqttsn.retryMs", 10000));
+	private final int maxRetries = Settings.getInt("mqttsn.retries", 3);
+	private final int sleepBuffer = Settings.getInt("mqttsn.sleepBuffer", 16);
+
+	private final ExecutorService workers = Executors.newFixedThreadPool(Settings.getInt("mqttsn.workers", 16), new ThreadFactory() {
+		private int count = 0;
+
+		public synchronized Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "mqttsn-worker-" + (++count));
+			t.setDaemon(true);
+			return t;
+		}
+	});
+	private final ConcurrentLinkedQueue<Completion> completions = new ConcurrentLinkedQueue<Completion>();
+
+	// Selector thread only.
+	private final Map<String, Client> clients = new HashMap<String, Client>();
+	private final Map<SocketAddress, Client> clientsByAddress = new HashMap<SocketAddress, Client>();
+
+	private DatagramChannel channel;
+	private Selector selector;
+	private Thread thread;
+	private volatile boolean running = false;
+
+	// Metrics.
+	private final AtomicLong registrations 	= new AtomicLong();
+	private final AtomicLong buffered 		= new AtomicLong();
+	private final AtomicLong retransmitted 	= new AtomicLong();
+
+	public MqttSnGateway(StartupManager startupManager) {
+		this(startupManager, new InetSocketAddress(Settings.get("mqttsn.bind", "0.0.0.0"), Settings.getInt("mqttsn.port", 1883)));
+	}
+
+	public MqttSnGateway(StartupManager startupManager, InetSocketAddress address) {
+		this.startupManager = startupManager;
+		this.address = address;
+	}
+
+	public synchronized void start() throws IOException {
+		if (running) {
+			return;
+		}
+		channel = DatagramChannel.open();
+		channel.configureBlocking(false);
+		channel.bind(address);
+		selector = Selector.open();
+		channel.register(selector, SelectionKey.OP_READ);
+		running = true;
+		thread = new Thread("mqttsn-selector") {
+			public void run() {
+				serve();
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+		Log.info("MQTT-SN gateway listening on {}", channel.getLocalAddress());
+	}
+
+	/**
+	 * Port actually bound (mqttsn.port 0 binds any free port).
+	 */
+	public int getPort() throws IOException {
+		return ((InetSocketAddress) channel.getLocalAddress()).getPort();
+	}
+
+	/**
+	 * Stop reading, let the registrations in progress finish and send their replies.
+	 */
+	public void shutdown(long timeoutMs) {
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+		workers.shutdown();
+		try {
+			if (!workers.awaitTermination(timeoutMs, TimeUnit.MILLISECONDS)) {
+				Log.warn("MQTT-SN registrations still running at shutdown");
+			}
+			// The selector thread sends the last replies, then stops.
+			running = false;
+			if (selector != null) {
+				selector.wakeup();
+			}
+			if (thread != null) {
+				thread.join(Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())));
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		try {
+			if (channel != null) {
+				channel.close();
+			}
+		} catch (IOException e) {
+			// Closing anyway.
+		}
+	}
+
+	private void serve() {
+		ByteBuffer in = ByteBuffer.allocateDirect(2048);
+		long nextCheck = System.nanoTime();
+		try {
+			while (running) {
+				selector.select(1000);
+				selector.selectedKeys().clear();
+				SocketAddress from;
+				while (running && !workers.isShutdown() && (from = receive(in)) != null) {
+					in.flip();
+					try {
+						handle(from, in);
+					} catch (RuntimeException e) {
+						// Truncated or inconsistent packet (BufferUnderflowException and the like).
+						Log.debug("Malformed MQTT-SN packet from {} dropped: {}", from, e);
+					}
+				}
+				Completion done;
+				while ((done = completions.poll()) != null) {
+					reply(done);
+				}
+				long now = System.nanoTime();
+				if (now - nextCheck >= 0) {
+					checkClients(now);
+					nextCheck = now + TimeUnit.SECONDS.toNanos(1);
+				}
+			}
+			Completion done;
+			while ((done = completions.poll()) != null) {
+				reply(done);
+			}
+		} catch (IOException e) {
+			if (running) {
+				Log.error("MQTT-SN gateway stopped", e);
+			}
+		} finally {
+			try {
+				selector.close();
+			} catch (IOException e) {
+				// Closing anyway.
+			}
+		}
+	}
+
+	private SocketAddress receive(ByteBuffer in) throws IOException {
+		in.clear();
+		return channel.receive(in);
+	}
+
+	private void handle(SocketAddress from, ByteBuffer in) {
+		int length = in.get() & 0xFF;
+		if (length == 0x01) {
+			length = in.getShort() & 0xFFFF;
+		}
+		if (length > in.limit()) {
+			return;
+		}
+		in.limit(length);
+		int type = in.get() & 0xFF;
+		Client client = clientsByAddress.get(from);
+		if (client != null) {
+			client.lastSeen = System.nanoTime();
+		}
+
+		switch (type) {
+		case MqttSnPacket.SEARCHGW:
+			send(from, MqttSnPacket.simple(MqttSnPacket.GWINFO, gatewayId));
+			break;
+		case MqttSnPacket.CONNECT:
+			connect(from, in);
+			break;
+		case MqttSnPacket.REGISTER:
+			if (client != null) {
+				in.getShort();
+				int msgId = in.getShort() & 0xFFFF;
+				int topicId = client.topicId(string(in));
+				send(from, MqttSnPacket.ack(MqttSnPacket.REGACK, topicId, msgId, MqttSnPacket.ACCEPTED));
+			}
+			break;
+		case MqttSnPacket.REGACK:
+			// Topics are only registered to clients together with a publish, see deliver().
+			break;
+		case MqttSnPacket.PUBLISH:
+			publish(from, client, in);
+			break;
+		case MqttSnPacket.PUBACK:
+			if (client != null) {
+				in.getShort();
+				client.inflight.remove(in.getShort() & 0xFFFF);
+			}
+			break;
+		case MqttSnPacket.SUBSCRIBE:
+			if (client != null) {
+				subscribe(client, in);
+			}
+			break;
+		case MqttSnPacket.UNSUBSCRIBE:
+			if (client != null) {
+				int flags = in.get() & 0xFF;
+				int msgId = in.getShort() & 0xFFFF;
+				if ((flags & MqttSnPacket.TOPIC_TYPE_MASK) == MqttSnPacket.TOPIC_NORMAL) {
+					client.subscriptions.remove(string(in));
+				}
+				send(from, MqttSnPacket.unsuback(msgId));
+			}
+			break;
+		case MqttSnPacket.PINGREQ:
+			ping(from, client, in);
+			break;
+		case MqttSnPacket.DISCONNECT:
+			if (client != null) {
+				if (in.remaining() >= 2) {
+					client.state = ASLEEP;
+					client.durationNanos = TimeUnit.SECONDS.toNanos(in.getShort() & 0xFFFF);
+				} else {
+					forget(client);
+				}
+				send(from, MqttSnPacket.empty(MqttSnPacket.DISCONNECT));
+			}
+			break;
+		default:
+			Log.debug("MQTT-SN message type {} from {} not supported", type, from);
+		}
+	}
+
+	private void connect(SocketAddress from, ByteBuffer in) {
+		int flags = in.get() & 0xFF;
+		in.get();	// Protocol id
+		int duration = in.getShort() & 0xFFFF;
+		String clientId = string(in);
+		if ((flags & MqttSnPacket.FLAG_WILL) != 0) {
+			send(from, MqttSnPacket.simple(MqttSnPacket.CONNACK, MqttSnPacket.NOT_SUPPORTED));
+			return;
+		}
+		Client client = clients.get(clientId);
+		if (client == null) {
+			client = new Client(clientId);
+			clients.put(clientId, client);
+		} else if ((flags & MqttSnPacket.FLAG_CLEAN_SESSION) != 0) {
+			client.reset();
+		}
+		if (client.address != null && !client.address.equals(from)) {
+			clientsByAddress.remove(client.address);
+		}
+		Client previous = clientsByAddress.put(from, client);
+		if (previous != null && previous != client) {
+			// Another client id reused this address: the old one is gone.
+			clients.remove(previous.clientId);
+		}
+		client.address = from;
+		client.state = ACTIVE;
+		client.durationNanos = TimeUnit.SECONDS.toNanos(duration);
+		client.lastSeen = System.nanoTime();
+		send(from, MqttSnPacket.simple(MqttSnPacket.CONNACK, MqttSnPacket.ACCEPTED));
+		flushBuffered(client);
+	}
+
+	private void publish(SocketAddress from, Client client, ByteBuffer in) {
+		int flags = in.get() & 0xFF;
+		int topicId = in.getShort() & 0xFFFF;
+		int msgId = in.getShort() & 0xFFFF;
+		byte[] data = new byte[in.remaining()];
+		in.get(data);
+		int qos = MqttSnPacket.qos(flags);
+		int topicType = flags & MqttSnPacket.TOPIC_TYPE_MASK;
+
+		String topic = null;
+		if (topicType == MqttSnPacket.TOPIC_PREDEFINED) {
+			topic = topicId == PREDEFINED_REGISTRATION ? REGISTRATION_TOPIC
+					: topicId == PREDEFINED_HEARTBEAT ? MqttManager.HEARTBEAT_TOPIC : null;
+		} else if (topicType == MqttSnPacket.TOPIC_NORMAL && client != null) {
+			topic = client.topicNames.get(topicId);
+		}
+		if (client == null && qos != -1) {
+			// Only QoS -1 works without a connection.
+			send(from, MqttSnPacket.empty(MqttSnPacket.DISCONNECT));
+			return;
+		}
+		if (topic == null || qos == 2) {
+			if (qos >= 0) {
+				send(from, MqttSnPacket.ack(MqttSnPacket.PUBACK, topicId, msgId,
+						topic == null ? MqttSnPacket.INVALID_TOPIC_ID : MqttSnPacket.NOT_SUPPORTED));
+			}
+			return;
+		}
+		final String defaultId = PayloadCodec.decodeDefaultId(data);
+		if (defaultId == null && (topic.equals(MqttManager.HEARTBEAT_TOPIC) || topic.equals(REGISTRATION_TOPIC))) {
+			Log.debug("MQTT-SN publish on {} with an invalid defaultId of {} bytes refused", topic, data.length);
+			if (qos == 1) {
+				send(from, MqttSnPacket.ack(MqttSnPacket.PUBACK, topicId, msgId, MqttSnPacket.NOT_SUPPORTED));
+			}
+			return;
+		}
+		if (qos == 1) {
+			boolean duplicate = client.isDuplicate(msgId);
+			send(from, MqttSnPacket.ack(MqttSnPacket.PUBACK, topicId, msgId, MqttSnPacket.ACCEPTED));
+			if (duplicate) {
+				return;
+			}
+		}
+
+		if (topic.equals(MqttManager.HEARTBEAT_TOPIC)) {
+			startupManager.notifyHeartbeat(defaultId);
+		} else if (topic.equals(REGISTRATION_TOPIC)) {
+			final String clientId = client == null ? null : client.clientId;
+			final SocketAddress address = from;
+			final int replyQos = qos;
+			workers.execute(new Runnable() {
+				public void run() {
+					register(clientId, address, defaultId, replyQos);
+				}
+			});
+		} else if (qos == 1) {
+			// Only the registration and heartbeat topics are served; the ack above was sent.
+			Log.debug("MQTT-SN publish on {} ignored", topic);
+		}
+	}
+
+	private void register(String clientId, SocketAddress address, String defaultId, int qos) {
+		try {
+			int generatedId = startupManager.allocateId(defaultId);
+			if (generatedId < 0) {
+				Log.warn("No id for MQTT-SN device {}", defaultId);
+				return;
+			}
+			registrations.incrementAndGet();
+			completions.add(new Completion(clientId, address, defaultId, qos, PayloadCodec.encodeId(generatedId)));
+			selector.wakeup();
+		} catch (SQLException e) {
+			// No reply: the device registers again.
+			Log.warn("MQTT-SN registration of {} failed: {}", defaultId, e);
+		}
+	}
+
+	private void subscribe(Client client, ByteBuffer in) {
+		int flags = in.get() & 0xFF;
+		int msgId = in.getShort() & 0xFFFF;
+		int qos = Math.max(0, Math.min(1, MqttSnPacket.qos(flags)));
+		if ((flags & MqttSnPacket.TOPIC_TYPE_MASK) != MqttSnPacket.TOPIC_NORMAL) {
+			// Predefined topic ids need no subscription: replies come on PREDEFINED_REPLY anyway.
+			send(client.address, MqttSnPacket.suback(MqttSnPacket.qosFlags(qos), in.getShort() & 0xFFFF, msgId, MqttSnPacket.ACCEPTED));
+			return;
+		}
+		String topic = string(in);
+		if (topic.indexOf('+') >= 0 || topic.indexOf('#') >= 0) {
+			send(client.address, MqttSnPacket.suback(0, 0, msgId, MqttSnPacket.NOT_SUPPORTED));
+			return;
+		}
+		client.subscriptions.put(topic, qos);
+		send(client.address, MqttSnPacket.suback(MqttSnPacket.qosFlags(qos), client.topicId(topic), msgId, MqttSnPacket.ACCEPTED));
+	}
+
+	private void ping(SocketAddress from, Client client, ByteBuffer in) {
+		if (in.hasRemaining()) {
+			// A sleeping client is awake: send what was kept for it, then PINGRESP puts it back to sleep.
+			Client sleeper = clients.get(string(in));
+			if (sleeper != null) {
+				if (sleeper.address != null && !sleeper.address.equals(from)) {
+					clientsByAddress.remove(sleeper.address);
+				}
+				sleeper.address = from;
+				clientsByAddress.put(from, sleeper);
+				sleeper.lastSeen = System.nanoTime();
+				flushBuffered(sleeper);
+			}
+		}
+		send(from, MqttSnPacket.empty(MqttSnPacket.PINGRESP));
+	}
+
+	/**
+	 * Send (or keep, if the client sleeps) the id generated for a device.
+	 */
+	private void reply(Completion done) {
+		String topic = REPLY_PREFIX + done.defaultId;
+		if (done.clientId == null) {
+			send(done.address, MqttSnPacket.publish(MqttSnPacket.qosFlags(-1) | MqttSnPacket.TOPIC_PREDEFINED,
+					PREDEFINED_REPLY, 0, done.payload));
+			return;
+		}
+		Client client = clients.get(done.clientId);
+		if (client == null) {
+			return;		// Gone meanwhile; it registers again.
+		}
+		Integer subscribed = client.subscriptions.get(topic);
+		int qos = Math.min(done.qos, subscribed != null ? subscribed : 1);
+		int msgId = qos == 1 ? client.nextMsgId() : 0;
+		byte[] packet = subscribed != null
+				? MqttSnPacket.publish(MqttSnPacket.qosFlags(qos) | MqttSnPacket.TOPIC_NORMAL, client.topicId(topic), msgId, done.payload)
+				: MqttSnPacket.publish(MqttSnPacket.qosFlags(qos) | MqttSnPacket.TOPIC_PREDEFINED, PREDEFINED_REPLY, msgId, done.payload);
+		if (qos == 1) {
+			client.inflight.put(msgId, new Outbound(packet, System.nanoTime()));
+		}
+		if (client.state == ASLEEP) {
+			if (client.buffered.size() >= sleepBuffer) {
+				client.buffered.poll();
+				Log.warn("MQTT-SN client {} sleeps with {} replies buffered, oldest dropped", client.clientId, sleepBuffer);
+			}
+			client.buffered.add(packet);
+			buffered.incrementAndGet();
+		} else {
+			send(client.address, packet);
+		}
+	}
+
+	private void flushBuffered(Client client) {
+		byte[] packet;
+		while ((packet = client.buffered.poll()) != null) {
+			send(client.address, packet);
+		}
+		long now = System.nanoTime();
+		for (Outbound outbound : client.inflight.values()) {
+			outbound.sentAt = now;
+		}
+	}
+
+	/**
+	 * Retry unacknowledged QoS 1 replies of awake clients and forget clients that went silent.
+	 */
+	private void checkClients(long now) {
+		Iterator<Client> it = clients.values().iterator();
+		while (it.hasNext()) {
+			Client client = it.next();
+			if (client.durationNanos > 0 && now - client.lastSeen > client.durationNanos * 3 / 2) {
+				Log.debug("MQTT-SN client {} lost", client.clientId);
+				it.remove();
+				clientsByAddress.remove(client.address, client);
+				continue;
+			}
+			if (client.state == ASLEEP) {
+				continue;
+			}
+			Iterator<Outbound> pending = client.inflight.values().iterator();
+			while (pending.hasNext()) {
+				Outbound outbound = pending.next();
+				if (now - outbound.sentAt < retryNanos) {
+					continue;
+				}
+				if (outbound.retries++ >= maxRetries) {
+					pending.remove();
+					continue;
+				}
+				outbound.packet[outbound.packet[0] == 0x01 ? 4 : 2] |= MqttSnPacket.FLAG_DUP;
+				outbound.sentAt = now;
+				retransmitted.incrementAndGet();
+				send(client.address, outbound.packet);
+			}
+		}
+	}
+
+	private void forget(Client client) {
+		clients.remove(client.clientId);
+		clientsByAddress.remove(client.address, client);
+	}
+
+	private void send(SocketAddress to, byte[] packet) {
+		try {
+			channel.send(ByteBuffer.wrap(packet), to);
+		} catch (IOException e) {
+			Log.debug("MQTT-SN packet to {} not sent: {}", to, e);
+		}
+	}
+
+	private static String string(ByteBuffer in) {
+		byte[] bytes = new byte[in.remaining()];
+		in.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	public long getRegistrationCount() {
+		return registrations.get();
+	}
+
+	public long getBufferedCount() {
+		return buffered.get();
+	}
+
+	public long getRetransmittedCount() {
+		return retransmitted.get();
+	}
+}
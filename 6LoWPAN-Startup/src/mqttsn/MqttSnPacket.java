@@ -0,0 +1,140 @@
+package mqttsn;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * MqttSnPacket holds the constants of MQTT-SN 1.2 and builds the packets the gateway sends.
+ * 
+ * A packet is a length (one byte, or 0x01 and two bytes above 255), a message type and the
+ * variable part. The flags byte of PUBLISH, SUBSCRIBE and CONNECT is DUP(0x80), QoS(0x60: 0x00
+ * QoS 0, 0x20 QoS 1, 0x40 QoS 2, 0x60 QoS -1), RETAIN(0x10), WILL(0x08), CLEAN_SESSION(0x04) and
+ * the topic id type (0x03: normal, predefined, short name).
+ */
+public final class MqttSnPacket {
+
+	public static final int SEARCHGW 		= 0x01;
+	public static final int GWINFO 			= 0x02;
+	public static final int CONNECT 		= 0x04;
+	public static final int CONNACK 		= 0x05;
+	public static final int REGISTER 		= 0x0A;
+	public static final int REGACK 			= 0x0B;
+	public static final int PUBLISH 		= 0x0C;
+	public static final int PUBACK 			= 0x0D;
+	public static final int SUBSCRIBE 		= 0x12;
+	public static final int SUBACK 			= 0x13;
+	public static final int UNSUBSCRIBE 	= 0x14;
+	public static final int UNSUBACK 		= 0x15;
+	public static final int PINGREQ 		= 0x16;
+	public static final int PINGRESP 		= 0x17;
+	public static final int DISCONNECT 		= 0x18;
+
+	public static final int FLAG_DUP 			= 0x80;
+	public static final int FLAG_QOS_MASK 		= 0x60;
+	public static final int FLAG_WILL 			= 0x08;
+	public static final int FLAG_CLEAN_SESSION 	= 0x04;
+	public static final int TOPIC_NORMAL 		= 0x00;
+	public static final int TOPIC_PREDEFINED 	= 0x01;
+	public static final int TOPIC_SHORT 		= 0x02;
+	public static final int TOPIC_TYPE_MASK 	= 0x03;
+
+	public static final int ACCEPTED 			= 0x00;
+	public static final int CONGESTION 			= 0x01;
+	public static final int INVALID_TOPIC_ID 	= 0x02;
+	public static final int NOT_SUPPORTED 		= 0x03;
+
+	private MqttSnPacket() {
+	}
+
+	/**
+	 * QoS of a flags byte: 0, 1, 2 or -1.
+	 */
+	public static int qos(int flags) {
+		int qos = (flags & FLAG_QOS_MASK) >>> 5;
+		return qos == 3 ? -1 : qos;
+	}
+
+	/**
+	 * Flags byte bits for a QoS of 0, 1, 2 or -1.
+	 */
+	public static int qosFlags(int qos) {
+		return (qos < 0 ? 3 : qos) << 5;
+	}
+
+	/**
+	 * Build a packet of the given type around its variable part.
+	 */
+	public static byte[] packet(int type, byte[] body) {
+		int length = body.length + 2;
+		byte[] out;
+		int pos;
+		if (length <= 255) {
+			out = new byte[length];
+			out[0] = (byte) length;
+			pos = 1;
+		} else {
+			out = new byte[length + 2];
+			out[0] = 0x01;
+			out[1] = (byte) ((length + 2) >>> 8);
+			out[2] = (byte) (length + 2);
+			pos = 3;
+		}
+		out[pos] = (byte) type;
+		System.arraycopy(body, 0, out, pos + 1, body.length);
+		return out;
+	}
+
+	public static byte[] connect(String clientId, int durationSeconds, boolean cleanSession) {
+		byte[] id = clientId.getBytes(StandardCharsets.UTF_8);
+		ByteBuffer body = ByteBuffer.allocate(4 + id.length);
+		body.put((byte) (cleanSession ? FLAG_CLEAN_SESSION : 0)).put((byte) 0x01).putShort((short) durationSeconds).put(id);
+		return packet(CONNECT, body.array());
+	}
+
+	public static byte[] register(int topicId, int msgId, String topicName) {
+		byte[] name = topicName.getBytes(StandardCharsets.UTF_8);
+		ByteBuffer body = ByteBuffer.allocate(4 + name.length);
+		body.putShort((short) topicId).putShort((short) msgId).put(name);
+		return packet(REGISTER, body.array());
+	}
+
+	public static byte[] publish(int flags, int topicId, int msgId, byte[] data) {
+		ByteBuffer body = ByteBuffer.allocate(5 + data.length);
+		body.put((byte) flags).putShort((short) topicId).putShort((short) msgId).put(data);
+		return packet(PUBLISH, body.array());
+	}
+
+	/**
+	 * PUBACK, REGACK: topic id, message id and return code.
+	 */
+	public static byte[] ack(int type, int topicId, int msgId, int returnCode) {
+		ByteBuffer body = ByteBuffer.allocate(5);
+		body.putShort((short) topicId).putShort((short) msgId).put((byte) returnCode);
+		return packet(type, body.array());
+	}
+
+	public static byte[] subscribe(int flags, int msgId, String topicName) {
+		byte[] name = topicName.getBytes(StandardCharsets.UTF_8);
+		ByteBuffer body = ByteBuffer.allocate(3 + name.length);
+		body.put((byte) flags).putShort((short) msgId).put(name);
+		return packet(SUBSCRIBE, body.array());
+	}
+
+	public static byte[] suback(int flags, int topicId, int msgId, int returnCode) {
+		ByteBuffer body = ByteBuffer.allocate(6);
+		body.put((byte) flags).putShort((short) topicId).putShort((short) msgId).put((byte) returnCode);
+		return packet(SUBACK, body.array());
+	}
+
+	public static byte[] unsuback(int msgId) {
+		return packet(UNSUBACK, new byte[] { (byte) (msgId >>> 8), (byte) msgId });
+	}
+
+	public static byte[] simple(int type, int value) {
+		return packet(type, new byte[] { (byte) value });
+	}
+
+	public static byte[] empty(int type) {
+		return packet(type, new byte[0]);
+	}
+}
@@ -1,44 +1,95 @@
 package startup;
 
+import java.sql.Connection;
 import java.sql.DriverManager;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
 
-import com.mysql.jdbc.Connection;
-import com.mysql.jdbc.Statement;
+import util.Log;
 
 /**
  * @author Engin Leloglu - 2016
  * 
  * DBManager provides the control of database parameters and operations.
+ * 
+ * Connections are kept in a small pool (db.pool.size, default 4) instead of being opened for every
+ * device; {@link #warmUp()} opens them before the first device arrives.
  *
+ * Only plain JDBC is used, so db.url may also name an embedded database in MySQL mode (with
+ * db.driver set to its driver class), e.g. H2 for the benchmarks.
  */
-public class DBManager {
+public class DBManager implements IdStore {
 
 	private static DBManager instance = null;	// Singleton object
-	private Connection conn = null;
 
-	public void connectToDB() {
+	private final String URL 		= Settings.get("db.url", "jdbc:mysql://localhost:3306/test");
+	private final String USER 		= Settings.get("db.user", "root");
+	private final String PASSWORD 	= Settings.get("db.password", "1234");
+	private final String DRIVER 	= Settings.get("db.driver", "com.mysql.jdbc.Driver");
+	private final String ID_COLUMN 	= Settings.get("db.idColumn", "ID");	// Auto-increment key of devicestartup
+	private static final int IN_CHUNK = 500;							// Keys per "in (...)" query
+	private final ArrayBlockingQueue<Connection> pool = new ArrayBlockingQueue<Connection>(Math.max(1, Settings.getInt("db.pool.size", 4)));
+
+	public Connection connectToDB() throws SQLException {
+
+		try {
+			Class.forName(DRIVER);
+		} catch (ClassNotFoundException e) {
+			throw new SQLException("JDBC driver " + DRIVER + " is not on the classpath", e);
+		}
+		return DriverManager.getConnection(URL, USER, PASSWORD);
+	}
+
+	/**
+	 * Fill the connection pool. Throws if the database cannot be reached.
+	 */
+	public void warmUp() throws SQLException {
+		while (pool.remainingCapacity() > 0) {
+			if (!pool.offer(connectToDB())) {
+				break;
+			}
+		}
+		Log.info("Database pool ready with {} connections", pool.size());
+	}
+
+	private Connection borrow() throws SQLException {
+		Connection conn = pool.poll();
+		return conn != null ? conn : connectToDB();
+	}
+
+	private void giveBack(Connection conn) {
+		if (!pool.offer(conn)) {
+			close(conn);
+		}
+	}
 
+	private static void close(Connection conn) {
 		try {
-			Class.forName("com.mysql.jdbc.Connection");
-			conn = (Connection) DriverManager.getConnection("jdbc:mysql://localhost:3306/test", "root", "1234");
-		} catch (ClassNotFoundException | SQLException e) {
-			e.printStackTrace();
+			conn.close();
+		} catch (SQLException e) {
+			// Already broken.
 		}
 	}
 	
 	public int insertIntoDB(String defaultId){
 
-		connectToDB();
-		
 		int generatedId = -1;
-		String query = "insert into devicestartup(DEFAULT_ID) values('" + defaultId + "');";
-		Statement stm = null;
+		Connection conn = null;
+		PreparedStatement stm = null;
 
 		try {
-			stm = (Statement) conn.createStatement();
-			int isSucc = stm.executeUpdate(query, Statement.RETURN_GENERATED_KEYS);
+			conn = borrow();
+			stm = conn.prepareStatement("insert into devicestartup(DEFAULT_ID) values(?)", Statement.RETURN_GENERATED_KEYS);
+			stm.setString(1, defaultId);
+			int isSucc = stm.executeUpdate();
 
 			if (isSucc == 1) {
 				ResultSet rs = stm.getGeneratedKeys();
@@ -47,15 +98,296 @@ public class DBManager {
 				rs.close();
 			}
 			stm.close();
-			conn.close();
+			giveBack(conn);
 		} catch (SQLException e) {
-			e.printStackTrace();
+			Log.error("Insertion of {} failed", defaultId, e);
+			// Do not hand a possibly broken connection to the next device.
+			if (conn != null) {
+				close(conn);
+			}
 		}
 
-		System.out.println("generatedId -> " + generatedId);
+		Log.info("generatedId -> {}", generatedId);
 		return generatedId;
 	}
 	
+	public int insert(String defaultId) {
+		return insertIntoDB(defaultId);
+	}
+
+	public Map<String, Integer> findIds(Collection<String> defaultIds) throws SQLException {
+		Map<String, Integer> found = new HashMap<String, Integer>();
+		for (List<String> chunk : chunks(defaultIds)) {
+			for (Object[] row : queryIn("select DEFAULT_ID, max(" + ID_COLUMN + ") from devicestartup where DEFAULT_ID in ",
+					chunk, " group by DEFAULT_ID")) {
+				found.put((String) row[0], ((Number) row[1]).intValue());
+			}
+		}
+		return found;
+	}
+
+	public Map<Integer, String> findDefaultIds(Collection<Integer> ids) throws SQLException {
+		Map<Integer, String> found = new HashMap<Integer, String>();
+		for (List<Integer> chunk : chunks(ids)) {
+			for (Object[] row : queryIn("select " + ID_COLUMN + ", DEFAULT_ID from devicestartup where " + ID_COLUMN + " in ",
+					chunk, "")) {
+				found.put(((Number) row[0]).intValue(), (String) row[1]);
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * Delete the rows of expired devices, IN_CHUNK statements per batch.
+	 */
+	public int release(Map<String, Integer> registrations) throws SQLException {
+		int removed = 0;
+		for (List<Map.Entry<String, Integer>> chunk : chunks(registrations.entrySet())) {
+			Connection conn = borrow();
+			try {
+				PreparedStatement stm = conn.prepareStatement("delete from devicestartup where DEFAULT_ID = ? and " + ID_COLUMN + " <= ?");
+				try {
+					for (Map.Entry<String, Integer> e : chunk) {
+						stm.setString(1, e.getKey());
+						stm.setInt(2, e.getValue());
+						stm.addBatch();
+					}
+					for (int count : stm.executeBatch()) {
+						removed += Math.max(0, count);
+					}
+				} finally {
+					stm.close();
+				}
+			} catch (SQLException e) {
+				close(conn);
+				conn = null;
+				throw e;
+			} finally {
+				if (conn != null) {
+					giveBack(conn);
+				}
+			}
+		}
+		return removed;
+	}
+
+	private static <T> List<List<T>> chunks(Collection<T> keys) {
+		List<List<T>> chunks = new ArrayList<List<T>>();
+		List<T> chunk = null;
+		for (T key : keys) {
+			if (chunk == null || chunk.size() == IN_CHUNK) {
+				chunk = new ArrayList<T>(Math.min(IN_CHUNK, keys.size()));
+				chunks.add(chunk);
+			}
+			chunk.add(key);
+		}
+		return chunks;
+	}
+
+	/**
+	 * Run "prefix (?, ?, ...) suffix" with the given keys on a pooled connection and return the
+	 * two columns of every row.
+	 */
+	private List<Object[]> queryIn(String prefix, List<?> keys, String suffix) throws SQLException {
+		StringBuilder sql = new StringBuilder(prefix.length() + suffix.length() + keys.size() * 2 + 2);
+		sql.append(prefix).append('(');
+		for (int i = 0; i < keys.size(); i++) {
+			sql.append(i == 0 ? "?" : ",?");
+		}
+		sql.append(')').append(suffix);
+
+		List<Object[]> rows = new ArrayList<Object[]>();
+		Connection conn = borrow();
+		try {
+			PreparedStatement stm = conn.prepareStatement(sql.toString());
+			try {
+				for (int i = 0; i < keys.size(); i++) {
+					stm.setObject(i + 1, keys.get(i));
+				}
+				ResultSet rs = stm.executeQuery();
+				while (rs.next()) {
+					rows.add(new Object[] { rs.getObject(1), rs.getObject(2) });
+				}
+				rs.close();
+			} finally {
+				stm.close();
+			}
+		} catch (SQLException e) {
+			close(conn);
+			conn = null;
+			throw e;
+		} finally {
+			if (conn != null) {
+				giveBack(conn);
+			}
+		}
+		return rows;
+	}
+
+	public int maxId() throws SQLException {
+		Connection conn = borrow();
+		try {
+			Statement stm = conn.createStatement();
+			try {
+				ResultSet rs = stm.executeQuery("select max(" + ID_COLUMN + ") from devicestartup");
+				int max = rs.next() ? rs.getInt(1) : 0;
+				rs.close();
+				return max;
+			} finally {
+				stm.close();
+			}
+		} catch (SQLException e) {
+			close(conn);
+			conn = null;
+			throw e;
+		} finally {
+			if (conn != null) {
+				giveBack(conn);
+			}
+		}
+	}
+
+	public void scan(int fromId, int toId, RowHandler handler) throws SQLException {
+		// A connection of its own: a streamed result set holds its connection until it is read to the end.
+		Connection conn = connectToDB();
+		try {
+			PreparedStatement stm = conn.prepareStatement(
+					"select " + ID_COLUMN + ", DEFAULT_ID from devicestartup where " + ID_COLUMN + " >= ? and " + ID_COLUMN + " < ? order by " + ID_COLUMN,
+					ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+			try {
+				if (URL.startsWith("jdbc:mysql:")) {
+					// Connector/J streams row by row (forward-only cursor) instead of reading the whole result.
+					stm.setFetchSize(Integer.MIN_VALUE);
+				}
+				stm.setInt(1, fromId);
+				stm.setInt(2, toId);
+				ResultSet rs = stm.executeQuery();
+				while (rs.next()) {
+					handler.row(rs.getInt(1), rs.getString(2));
+				}
+				rs.close();
+			} finally {
+				stm.close();
+			}
+		} finally {
+			close(conn);
+		}
+	}
+
+	/**
+	 * Pass the short addresses assigned in a PAN (table device_shortaddr) to the handler.
+	 */
+	public void loadShortAddresses(int panId, RowHandler handler) throws SQLException {
+		Connection conn = borrow();
+		try {
+			PreparedStatement stm = conn.prepareStatement("select SHORT_ADDR, DEFAULT_ID from device_shortaddr where PAN_ID = ?");
+			try {
+				stm.setInt(1, panId);
+				ResultSet rs = stm.executeQuery();
+				while (rs.next()) {
+					handler.row(rs.getInt(1), rs.getString(2));
+				}
+				rs.close();
+			} finally {
+				stm.close();
+			}
+		} catch (SQLException e) {
+			close(conn);
+			conn = null;
+			throw e;
+		} finally {
+			if (conn != null) {
+				giveBack(conn);
+			}
+		}
+	}
+
+	/**
+	 * Return the PANs with short addresses assigned in table device_shortaddr.
+	 */
+	public List<Integer> loadShortAddressPans() throws SQLException {
+		List<Integer> panIds = new ArrayList<Integer>();
+		Connection conn = borrow();
+		try {
+			PreparedStatement stm = conn.prepareStatement("select distinct PAN_ID from device_shortaddr");
+			try {
+				ResultSet rs = stm.executeQuery();
+				while (rs.next()) {
+					panIds.add(rs.getInt(1));
+				}
+				rs.close();
+			} finally {
+				stm.close();
+			}
+		} catch (SQLException e) {
+			close(conn);
+			conn = null;
+			throw e;
+		} finally {
+			if (conn != null) {
+				giveBack(conn);
+			}
+		}
+		return panIds;
+	}
+
+	public void insertShortAddress(int panId, int addr, String defaultId) throws SQLException {
+		update("insert into device_shortaddr(PAN_ID, SHORT_ADDR, DEFAULT_ID) values(?, ?, ?)", panId, addr, defaultId);
+	}
+
+	public void deleteShortAddress(int panId, int addr) throws SQLException {
+		update("delete from device_shortaddr where PAN_ID = ? and SHORT_ADDR = ?", panId, addr, null);
+	}
+
+	private void update(String sql, int a, int b, String c) throws SQLException {
+		Connection conn = borrow();
+		try {
+			PreparedStatement stm = conn.prepareStatement(sql);
+			try {
+				stm.setInt(1, a);
+				stm.setInt(2, b);
+				if (c != null) {
+					stm.setString(3, c);
+				}
+				stm.executeUpdate();
+			} finally {
+				stm.close();
+			}
+		} catch (SQLException e) {
+			close(conn);
+			conn = null;
+			throw e;
+		} finally {
+			if (conn != null) {
+				giveBack(conn);
+			}
+		}
+	}
+
+	public boolean isRegistered(String defaultId) throws SQLException {
+		Connection conn = borrow();
+		try {
+			PreparedStatement stm = conn.prepareStatement("select 1 from devicestartup where DEFAULT_ID = ? limit 1");
+			try {
+				stm.setString(1, defaultId);
+				ResultSet rs = stm.executeQuery();
+				boolean found = rs.next();
+				rs.close();
+				return found;
+			} finally {
+				stm.close();
+			}
+		} catch (SQLException e) {
+			close(conn);
+			conn = null;
+			throw e;
+		} finally {
+			if (conn != null) {
+				giveBack(conn);
+			}
+		}
+	}
+
 	public static DBManager getInstance() {
 		// Singleton pattern.
 		if (instance == null) {
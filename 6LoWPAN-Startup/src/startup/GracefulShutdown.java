@@ -0,0 +1,93 @@
+package startup;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import mqtt.MqttManager;
+import util.Log;
+
+/**
+ * GracefulShutdown stops the service from a shutdown hook (SIGTERM, rolling restart) without losing
+ * replies: the service is reported as stopping, the other ingresses (CoAP, MQTT-SN) stop reading
+ * and answer the registrations they have started, then {@link MqttManager#shutdown(long)} unsubscribes, drains the id
+ * generations in progress, waits for outstanding publishes and disconnects. The broker sites are
+ * shut down in parallel, so a site in an outage does not use up the deadline of the others. Last,
+ * a snapshot of the lookup index is written ({@link IndexSnapshot#shutdown()}).
+ * 
+ * Settings: startup.shutdown.timeoutMs (10000), the deadline of the whole sequence.
+ */
+public final class GracefulShutdown extends Thread {
+
+	private static final CountDownLatch stopped = new CountDownLatch(1);
+
+	private final List<MqttManager> mqttManagers;
+	private final List<Ingress> ingresses;
+	private final IndexSnapshot snapshot;
+	private final long timeoutMs = Settings.getLong("startup.shutdown.timeoutMs", 10000);
+
+	private GracefulShutdown(List<MqttManager> mqttManagers, List<Ingress> ingresses, IndexSnapshot snapshot) {
+		super("startup-shutdown");
+		this.mqttManagers = mqttManagers;
+		this.ingresses = ingresses;
+		this.snapshot = snapshot;
+	}
+
+	/**
+	 * Run the shutdown sequence for these managers (one per broker site), ingresses and index
+	 * snapshot (null if the index is not persisted) when the JVM stops.
+	 */
+	public static void install(List<MqttManager> mqttManagers, List<Ingress> ingresses, IndexSnapshot snapshot) {
+		GracefulShutdown hook = new GracefulShutdown(mqttManagers, ingresses, snapshot);
+		Runtime.getRuntime().addShutdownHook(hook);
+		Log.flushAfter(hook);
+	}
+
+	/**
+	 * Block until the shutdown sequence is over. Called by the main thread, which keeps the JVM
+	 * alive: the threads of the MQTT client end with its connection, so during a broker outage
+	 * nothing else might.
+	 */
+	public static void awaitStopped() throws InterruptedException {
+		stopped.await();
+	}
+
+	public void run() {
+		long begin = System.nanoTime();
+		// Stop advertising the service first (ready file, "stopping" on the status topic), then
+		// publish no state any more: "offline" is published at disconnect.
+		Readiness.set(Readiness.STOPPING);
+		Readiness.setPublishers(Collections.<MqttManager>emptyList());
+
+		for (Ingress ingress : ingresses) {
+			ingress.shutdown(timeoutMs / (2 * ingresses.size()));
+		}
+		final long remaining = Math.max(1, timeoutMs - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin));
+		List<Thread> sites = new ArrayList<Thread>();
+		for (final MqttManager mqttManager : mqttManagers) {
+			Thread site = new Thread("startup-shutdown-" + mqttManager.getSite()) {
+				public void run() {
+					mqttManager.shutdown(remaining);
+				}
+			};
+			site.start();
+			sites.add(site);
+		}
+		for (Thread site : sites) {
+			try {
+				site.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+		// No registration comes in any more.
+		if (snapshot != null) {
+			snapshot.shutdown();
+		}
+		Log.info("Stopped in {} ms", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin));
+		stopped.countDown();
+	}
+}
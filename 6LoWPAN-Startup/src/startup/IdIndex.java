@@ -0,0 +1,251 @@
+package startup;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * IdIndex is the in-memory defaultId <-> generated id index in front of the {@link IdStore}.
+ * 
+ * Lookups are read-through: the keys not in memory are loaded from the store with one bulk query
+ * per request and kept. Keys the store does not know are remembered as missing for
+ * lookup.negativeTtlMs (default 30000), at most lookup.negativeSize (default 100000) of them, so
+ * repeated lookups of unknown devices do not reach the database either. New registrations are
+ * added by {@link StartupManager} as they happen.
+ */
+public class IdIndex {
+
+	/**
+	 * Bulk load of keys from the store.
+	 */
+	private interface Loader<K, V> {
+		Map<K, V> load(Collection<K> keys) throws SQLException;
+	}
+
+	private final IdStore store;
+	private final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<String, Integer>();
+	private final ConcurrentHashMap<Integer, String> defaultIds = new ConcurrentHashMap<Integer, String>();
+	// Keys unknown to the store, with the expiry time (System.nanoTime) of that answer.
+	private final ConcurrentHashMap<String, Long> missingDefaultIds = new ConcurrentHashMap<String, Long>();
+	private final ConcurrentHashMap<Integer, Long> missingIds = new ConcurrentHashMap<Integer, Long>();
+	private final long negativeTtl = TimeUnit.MILLISECONDS.toNanos(Settings.getLong("lookup.negativeTtlMs", 30000));
+	private final int negativeSize = Settings.getInt("lookup.negativeSize", 100000);
+
+	private final Loader<String, Integer> idLoader = new Loader<String, Integer>() {
+		public Map<String, Integer> load(Collection<String> keys) throws SQLException {
+			return store.findIds(keys);
+		}
+	};
+	private final Loader<Integer, String> defaultIdLoader = new Loader<Integer, String>() {
+		public Map<Integer, String> load(Collection<Integer> keys) throws SQLException {
+			return store.findDefaultIds(keys);
+		}
+	};
+
+	// Metrics.
+	private final AtomicLong hits 			= new AtomicLong();
+	private final AtomicLong negativeHits 	= new AtomicLong();
+	private final AtomicLong loaded 		= new AtomicLong();
+	private final AtomicLong storeQueries 	= new AtomicLong();
+
+	private volatile IndexSnapshot snapshot = null;
+
+	public IdIndex(IdStore store) {
+		this.store = store;
+	}
+
+	/**
+	 * Journal new registrations to this snapshot from now on.
+	 */
+	public void setSnapshot(IndexSnapshot snapshot) {
+		this.snapshot = snapshot;
+	}
+
+	/**
+	 * Record a registration (new id of defaultId).
+	 */
+	public void put(String defaultId, int id) {
+		defaultIds.put(id, defaultId);
+		ids.put(defaultId, id);
+		missingDefaultIds.remove(defaultId);
+		missingIds.remove(id);
+		IndexSnapshot journal = snapshot;
+		if (journal != null) {
+			journal.append(id, defaultId);
+		}
+	}
+
+	/**
+	 * Forget the registration of defaultId if its id is at most the given one (expired lease).
+	 */
+	public void remove(String defaultId, int id) {
+		Integer current = ids.get(defaultId);
+		if (current != null && current <= id && ids.remove(defaultId, current)) {
+			defaultIds.remove(current, defaultId);
+			IndexSnapshot journal = snapshot;
+			if (journal != null) {
+				journal.appendRemoval(current, defaultId);
+			}
+		}
+	}
+
+	/**
+	 * The ids that are the current id of their defaultId, in ascending order.
+	 */
+	int[] sortedIds() {
+		int[] sorted = new int[ids.size() + 16];
+		int count = 0;
+		for (Integer id : ids.values()) {
+			if (count == sorted.length) {
+				sorted = Arrays.copyOf(sorted, count * 2);
+			}
+			sorted[count++] = id;
+		}
+		sorted = Arrays.copyOf(sorted, count);
+		Arrays.sort(sorted);
+		return sorted;
+	}
+
+	/**
+	 * The defaultId of id if id is still its current id, null otherwise.
+	 */
+	String latestDefaultId(int id) {
+		String defaultId = defaultIds.get(id);
+		if (defaultId == null) {
+			return null;
+		}
+		Integer current = ids.get(defaultId);
+		return current != null && current == id ? defaultId : null;
+	}
+
+	/**
+	 * Add a registration read from the store (warm-up). Newer registrations already in the index
+	 * are kept.
+	 */
+	public void load(String defaultId, int id) {
+		defaultIds.putIfAbsent(id, defaultId);
+		Integer current = ids.putIfAbsent(defaultId, id);
+		while (current != null && current < id && !ids.replace(defaultId, current, id)) {
+			current = ids.putIfAbsent(defaultId, id);
+		}
+		missingDefaultIds.remove(defaultId);
+		missingIds.remove(id);
+	}
+
+	/**
+	 * Return the generated id of each defaultId, in the given order, null for unknown ones.
+	 */
+	public Map<String, Integer> getIds(List<String> keys) throws SQLException {
+		Map<String, Integer> result = lookup(keys, ids, missingDefaultIds, idLoader);
+		for (Map.Entry<String, Integer> e : result.entrySet()) {
+			if (e.getValue() != null && !defaultIds.containsKey(e.getValue())) {
+				defaultIds.put(e.getValue(), e.getKey());
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Return the defaultId of each generated id, in the given order, null for unknown ones.
+	 */
+	public Map<Integer, String> getDefaultIds(List<Integer> keys) throws SQLException {
+		return lookup(keys, defaultIds, missingIds, defaultIdLoader);
+	}
+
+	private <K, V> Map<K, V> lookup(List<K> keys, ConcurrentHashMap<K, V> cache, ConcurrentHashMap<K, Long> missing,
+			Loader<K, V> loader) throws SQLException {
+		Map<K, V> result = new LinkedHashMap<K, V>(keys.size() * 2);
+		List<K> toLoad = null;
+		long now = System.nanoTime();
+
+		for (K key : keys) {
+			V value = cache.get(key);
+			if (value != null) {
+				hits.incrementAndGet();
+				result.put(key, value);
+			} else if (isMissing(missing, key, now)) {
+				negativeHits.incrementAndGet();
+				result.put(key, null);
+			} else {
+				if (toLoad == null) {
+					toLoad = new ArrayList<K>();
+				}
+				toLoad.add(key);
+				result.put(key, null);	// Keeps the request order
+			}
+		}
+
+		if (toLoad != null) {
+			storeQueries.incrementAndGet();
+			Map<K, V> found = loader.load(toLoad);
+			for (K key : toLoad) {
+				V value = found.get(key);
+				if (value != null) {
+					loaded.incrementAndGet();
+					// A registration that happened meanwhile wins over the value just read.
+					V current = cache.putIfAbsent(key, value);
+					result.put(key, current != null ? current : value);
+				} else {
+					markMissing(missing, cache, key, now);
+				}
+			}
+		}
+		return result;
+	}
+
+	private boolean isMissing(ConcurrentHashMap<?, Long> missing, Object key, long now) {
+		Long expiry = missing.get(key);
+		if (expiry == null) {
+			return false;
+		}
+		if (expiry - now > 0) {
+			return true;
+		}
+		missing.remove(key, expiry);
+		return false;
+	}
+
+	/**
+	 * Remember that the store does not know key. put() and load() add a key to the cache before
+	 * they clear its missing mark, so checking the cache after setting the mark never leaves a
+	 * registration that happened meanwhile marked as missing.
+	 */
+	private <K> void markMissing(ConcurrentHashMap<K, Long> missing, ConcurrentHashMap<K, ?> cache, K key, long now) {
+		if (missing.size() >= negativeSize) {
+			// Simplest bound: forget all negative answers, they are only an optimization.
+			missing.clear();
+		}
+		Long expiry = now + negativeTtl;
+		missing.put(key, expiry);
+		if (cache.containsKey(key)) {
+			missing.remove(key, expiry);
+		}
+	}
+
+	public int size() {
+		return ids.size();
+	}
+
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	public long getNegativeHitCount() {
+		return negativeHits.get();
+	}
+
+	public long getLoadedCount() {
+		return loaded.get();
+	}
+
+	public long getStoreQueryCount() {
+		return storeQueries.get();
+	}
+}
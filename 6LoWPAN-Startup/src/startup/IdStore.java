@@ -0,0 +1,61 @@
+package startup;
+
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * IdStore is the storage behind id generation. It records the defaultId of a new device and
+ * returns the id generated for it, or -1 when the insertion fails.
+ */
+public interface IdStore {
+
+	/**
+	 * Receives the rows of a {@link IdStore#scan(int, int, RowHandler)}.
+	 */
+	public interface RowHandler {
+		public void row(int id, String defaultId);
+	}
+
+	public int insert(String defaultId) throws SQLException;
+
+	/**
+	 * True if an id has been generated for defaultId and the device has not been removed
+	 * (decommissioned) since.
+	 */
+	public boolean isRegistered(String defaultId) throws SQLException;
+
+	/**
+	 * Return the generated id of each of these defaultIds that is registered (the latest one if a
+	 * device registered several times). Unknown defaultIds are absent from the result.
+	 */
+	public Map<String, Integer> findIds(Collection<String> defaultIds) throws SQLException;
+
+	/**
+	 * Return the defaultId of each of these generated ids that exists.
+	 */
+	public Map<Integer, String> findDefaultIds(Collection<Integer> ids) throws SQLException;
+
+	/**
+	 * Highest generated id so far, 0 if there is none.
+	 */
+	public int maxId() throws SQLException;
+
+	/**
+	 * Pass every registration with fromId <= id < toId to the handler, in id order, without holding
+	 * the range in memory.
+	 */
+	public void scan(int fromId, int toId, RowHandler handler) throws SQLException;
+
+	/**
+	 * Remove the registrations of these devices (defaultId -> id) whose id is at most the given one,
+	 * so a device that registered again meanwhile keeps its new id. Returns the number of
+	 * registrations removed.
+	 */
+	public int release(Map<String, Integer> registrations) throws SQLException;
+
+	/**
+	 * Prepare the store (open connections) so that the first device is served without delay.
+	 */
+	public void warmUp() throws SQLException;
+}
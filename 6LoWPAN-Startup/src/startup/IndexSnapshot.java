@@ -0,0 +1,584 @@
+package startup;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import util.Log;
+
+/**
+ * IndexSnapshot persists the defaultId -> id mappings of the {@link IdIndex} on local disk, so a
+ * restart gets them back in seconds instead of reading the whole devicestartup table again.
+ * 
+ * Two kinds of files are kept in index.dir (default the "index" directory of {@link StateDir}):
+ * <ul>
+ * <li>index.snap, written every index.snapshotMinutes (default 10): the mappings sorted by id, ids
+ * delta-encoded and defaultIds front-coded against the previous one (both as varints), followed by
+ * a CRC32 of the file. It is written to a temporary file and renamed.</li>
+ * <li>journal.&lt;generation&gt;: every new registration appended as it happens (id, defaultId,
+ * CRC32 per record, so a torn last record is detected and ignored). Removed registrations (expired
+ * leases) are recorded with the id negated.</li>
+ * </ul>
+ * A snapshot starts a new journal generation and records it; older journals are deleted once the
+ * snapshot is on disk. The journal of a run is opened before the service takes registrations
+ * ({@link #open(IdIndex)}); restoring then maps the snapshot read-only and replays the journals
+ * from its generation up to that one. Snapshots are only written once the index holds the whole
+ * store ({@link #complete(IdIndex)}), the last one at shutdown.
+ * 
+ * The snapshot header and every journal name the store they were taken from
+ * ({@link StartupManager#storeIdentity()}) and the snapshot its highest id. Files of another store,
+ * or ahead of the store (a database restored from a backup), are deleted instead of restored.
+ */
+public class IndexSnapshot {
+
+	private static final int MAGIC 		= 0x53494458;	// "SIDX"
+	private static final int VERSION 	= 2;
+	private static final int JOURNAL 	= 0x534a4e4c;	// "SJNL"
+
+	private final File dir;
+	private final File snapshotFile;
+	private final String store;
+	private DataOutputStream journal = null;
+	private long generation = 0;
+	private long liveGeneration = -1;		// Journal of this run, not restored
+	private IdIndex completeIndex = null;
+	private ScheduledExecutorService scheduler = null;
+
+	/**
+	 * The snapshot of the store named store in index.dir.
+	 */
+	public IndexSnapshot(String store) throws IOException {
+		this(StateDir.checked(new File(Settings.get("index.dir", StateDir.file("index").getPath()))), store);
+	}
+
+	public IndexSnapshot(File dir, String store) {
+		this.dir = dir;
+		this.snapshotFile = new File(dir, "index.snap");
+		this.store = store;
+	}
+
+	/**
+	 * Journal the registrations of the index from now on, in a generation after all those on disk
+	 * (never append to a journal that may end with a torn record).
+	 */
+	public synchronized void open(IdIndex index) throws IOException {
+		if (liveGeneration >= 0) {
+			return;
+		}
+		long lastGeneration = 0;
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				lastGeneration = Math.max(lastGeneration, journalGeneration(file));
+			}
+		}
+		generation = lastGeneration + 1;
+		openJournal();
+		liveGeneration = generation;
+		index.setSnapshot(this);
+	}
+
+	/**
+	 * Load the snapshot and the journals of previous runs into the index, unless they belong to
+	 * another store or go beyond storeMaxId, the highest id in the store. Returns the highest id
+	 * restored (0 if there was nothing), the point from which the store has to be read for newer
+	 * registrations. New registrations are journaled ({@link #open(IdIndex)}, if not done before).
+	 */
+	public synchronized int restore(IdIndex index, int storeMaxId) throws IOException {
+		open(index);
+		long start = System.nanoTime();
+		int maxId = 0;
+		long snapshotCount = 0;
+		long journalCount = 0;
+		long fromGeneration = 0;
+
+		String stale = check(storeMaxId);
+		if (stale != null) {
+			Log.warn("Index files in {} discarded: {}", dir, stale);
+			discard();
+		}
+
+		if (snapshotFile.isFile()) {
+			try {
+				long[] result = readSnapshot(index);
+				fromGeneration = result[0];
+				snapshotCount = result[1];
+				maxId = (int) result[2];
+			} catch (IOException e) {
+				Log.warn("Index snapshot {} unusable, ignored: {}", snapshotFile, e);
+			}
+		}
+
+		File[] journals = dir.listFiles();
+		if (journals != null) {
+			for (File file : journals) {
+				long gen = journalGeneration(file);
+				if (gen >= liveGeneration) {
+					// This run's registrations, in the index already.
+					continue;
+				}
+				if (gen >= fromGeneration) {
+					long[] result = replayJournal(file, index);
+					journalCount += result[0];
+					maxId = (int) Math.max(maxId, result[1]);
+				} else if (gen >= 0) {
+					// Left over by a snapshot that was interrupted before cleaning up.
+					file.delete();
+				}
+			}
+		}
+
+		Log.info("Index restored from disk: {} mappings from the snapshot, {} from journals, up to id {}, in {} ms",
+				snapshotCount, journalCount, maxId, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+		return maxId;
+	}
+
+	/**
+	 * Journal a new registration.
+	 */
+	public void append(int id, String defaultId) {
+		appendRecord(id, defaultId);
+	}
+
+	/**
+	 * Journal the removal of a registration, recorded with the negated id.
+	 */
+	public void appendRemoval(int id, String defaultId) {
+		appendRecord(-id, defaultId);
+	}
+
+	private synchronized void appendRecord(int id, String defaultId) {
+		if (journal == null) {
+			return;
+		}
+		try {
+			byte[] name = defaultId.getBytes(StandardCharsets.UTF_8);
+			CRC32 crc = new CRC32();
+			crc.update(id >>> 24);
+			crc.update(id >>> 16);
+			crc.update(id >>> 8);
+			crc.update(id);
+			crc.update(name);
+			journal.writeInt(id);
+			journal.writeShort(name.length);
+			journal.write(name);
+			journal.writeInt((int) crc.getValue());
+			journal.flush();
+		} catch (IOException e) {
+			// The snapshot still gets the mapping; only a crash before it would lose it, and then
+			// the store is read again from the snapshot's highest id.
+			Log.warn("Index journal write failed: {}", e);
+		}
+	}
+
+	/**
+	 * The index holds the whole store now (restored and warmed up): write a snapshot of it every
+	 * index.snapshotMinutes from now on, and at {@link #shutdown()}.
+	 */
+	public synchronized void complete(final IdIndex index) {
+		completeIndex = index;
+		long period = Settings.getLong("index.snapshotMinutes", 10);
+		if (period <= 0 || scheduler != null) {
+			return;
+		}
+		scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "index-snapshot");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		scheduler.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				try {
+					write(index);
+				} catch (Throwable e) {
+					Log.warn("Index snapshot failed: {}", e);
+				}
+			}
+		}, period, period, TimeUnit.MINUTES);
+	}
+
+	/**
+	 * Write a snapshot now, then drop the journals it makes obsolete.
+	 */
+	public void write(IdIndex index) throws IOException {
+		long start = System.nanoTime();
+		long snapshotGeneration;
+		synchronized (this) {
+			// Registrations journaled from here on are replayed on top of this snapshot; the ones
+			// before are in the index already, so in the snapshot.
+			generation++;
+			openJournal();
+			snapshotGeneration = generation;
+		}
+
+		int[] ids = index.sortedIds();
+		File tmp = new File(dir, "index.snap.tmp");
+		FileOutputStream file = new FileOutputStream(tmp);
+		int count = 0;
+		int maxId = 0;
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file, 64 * 1024));
+			// Count and highest id are only known at the end: written in the header afterwards.
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(snapshotGeneration);
+			out.writeInt(0);
+			out.writeInt(0);
+			byte[] storeName = store.getBytes(StandardCharsets.UTF_8);
+			out.writeShort(storeName.length);
+			out.write(storeName);
+
+			byte[] previous = new byte[0];
+			int previousId = 0;
+			for (int id : ids) {
+				String defaultId = index.latestDefaultId(id);
+				if (defaultId == null) {
+					continue;
+				}
+				byte[] name = defaultId.getBytes(StandardCharsets.UTF_8);
+				int shared = 0;
+				int max = Math.min(previous.length, name.length);
+				while (shared < max && previous[shared] == name[shared]) {
+					shared++;
+				}
+				writeVarint(out, id - previousId);
+				writeVarint(out, shared);
+				writeVarint(out, name.length - shared);
+				out.write(name, shared, name.length - shared);
+				previous = name;
+				previousId = id;
+				maxId = id;
+				count++;
+			}
+			out.flush();
+		} finally {
+			file.close();
+		}
+
+		// Patch the header, then append the CRC of the whole file.
+		FileChannel channel = FileChannel.open(tmp.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+		try {
+			ByteBuffer header = ByteBuffer.allocate(8);
+			header.putInt(count).putInt(maxId).flip();
+			channel.write(header, 16);
+			CRC32 crc = new CRC32();
+			crc.update(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+			ByteBuffer trailer = ByteBuffer.allocate(4);
+			trailer.putInt((int) crc.getValue()).flip();
+			channel.write(trailer, channel.size());
+			channel.force(true);
+		} finally {
+			channel.close();
+		}
+		Files.move(tmp.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (File f : files) {
+				long gen = journalGeneration(f);
+				if (gen >= 0 && gen < snapshotGeneration) {
+					f.delete();
+				}
+			}
+		}
+		Log.info("Index snapshot written: {} mappings, {} bytes, in {} ms", count, snapshotFile.length(),
+				TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+	}
+
+	/**
+	 * Write a last snapshot, so the next start replays no journal, then close. An index that was
+	 * not complete yet is left to the journals.
+	 */
+	public void shutdown() {
+		IdIndex index;
+		synchronized (this) {
+			index = completeIndex;
+			if (scheduler != null) {
+				scheduler.shutdownNow();
+			}
+		}
+		if (index != null) {
+			try {
+				write(index);
+			} catch (IOException e) {
+				Log.warn("Last index snapshot failed: {}", e.getMessage());
+			}
+		}
+		close();
+	}
+
+	public synchronized void close() {
+		if (scheduler != null) {
+			scheduler.shutdownNow();
+		}
+		if (journal != null) {
+			try {
+				journal.close();
+			} catch (IOException e) {
+				// Ignore.
+			}
+			journal = null;
+		}
+	}
+
+	/**
+	 * Why the files in the directory must not be restored, null if they may.
+	 */
+	private String check(int storeMaxId) {
+		if (snapshotFile.isFile()) {
+			try {
+				FileChannel channel = FileChannel.open(snapshotFile.toPath(), StandardOpenOption.READ);
+				try {
+					ByteBuffer header = ByteBuffer.allocate((int) Math.min(channel.size(), 64 * 1024));
+					while (header.hasRemaining() && channel.read(header) >= 0) {
+						// Read up to the end of the header.
+					}
+					header.flip();
+					if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+						return "the snapshot is not an index snapshot of version " + VERSION;
+					}
+					header.getLong();
+					header.getInt();
+					int maxId = header.getInt();
+					String snapshotStore = readStore(header);
+					if (!store.equals(snapshotStore)) {
+						return "the snapshot was taken from " + snapshotStore + ", not from " + store;
+					}
+					if (maxId > storeMaxId) {
+						return "the snapshot goes up to id " + maxId + ", the store only to " + storeMaxId;
+					}
+				} finally {
+					channel.close();
+				}
+			} catch (IOException | RuntimeException e) {
+				// RuntimeException: a buffer underflow on a truncated header.
+				return "the snapshot header is unreadable (" + e + ")";
+			}
+		}
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				long gen = journalGeneration(file);
+				if (gen < 0 || gen >= liveGeneration) {
+					continue;
+				}
+				try {
+					long maxId = replayJournal(file, null)[1];
+					if (maxId > storeMaxId) {
+						return file.getName() + " goes up to id " + maxId + ", the store only to " + storeMaxId;
+					}
+				} catch (IOException e) {
+					return file.getName() + " is not usable (" + e.getMessage() + ")";
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Delete the snapshot and the journals of previous runs.
+	 */
+	private void discard() {
+		snapshotFile.delete();
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				long gen = journalGeneration(file);
+				if (gen >= 0 && gen < liveGeneration) {
+					file.delete();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns { journal generation, mappings, highest id }.
+	 */
+	private long[] readSnapshot(IdIndex index) throws IOException {
+		FileChannel channel = FileChannel.open(snapshotFile.toPath(), StandardOpenOption.READ);
+		try {
+			long size = channel.size();
+			if (size < 30) {
+				throw new IOException("truncated");
+			}
+			MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+			ByteBuffer body = map.duplicate();
+			body.limit((int) (size - 4));
+			CRC32 crc = new CRC32();
+			crc.update(body);
+			if ((int) crc.getValue() != map.getInt((int) (size - 4))) {
+				throw new IOException("checksum mismatch");
+			}
+
+			map.limit((int) (size - 4));
+			if (map.getInt() != MAGIC || map.getInt() != VERSION) {
+				throw new IOException("not an index snapshot");
+			}
+			long gen = map.getLong();
+			int count = map.getInt();
+			int maxId = map.getInt();
+			readStore(map);
+
+			byte[] name = new byte[64];
+			int id = 0;
+			int length = 0;
+			for (int i = 0; i < count; i++) {
+				id += readVarint(map);
+				int shared = readVarint(map);
+				int suffix = readVarint(map);
+				length = shared + suffix;
+				if (length > name.length) {
+					name = Arrays.copyOf(name, Math.max(length, name.length * 2));
+				}
+				map.get(name, shared, suffix);
+				index.load(new String(name, 0, length, StandardCharsets.UTF_8), id);
+			}
+			return new long[] { gen, count, maxId };
+		} finally {
+			channel.close();
+		}
+	}
+
+	/**
+	 * Returns { records, highest id }. With a null index the journal is only read.
+	 */
+	private long[] replayJournal(File file, IdIndex index) throws IOException {
+		long records = 0;
+		int maxId = 0;
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+		try {
+			String journalStore;
+			try {
+				if (in.readInt() != JOURNAL) {
+					throw new IOException("not an index journal");
+				}
+				journalStore = in.readUTF();
+			} catch (EOFException e) {
+				// Opened but never written to.
+				return new long[] { 0, 0 };
+			}
+			if (!store.equals(journalStore)) {
+				throw new IOException("journal of " + journalStore + ", not of " + store);
+			}
+			CRC32 crc = new CRC32();
+			while (true) {
+				int id = in.readInt();
+				byte[] name = new byte[in.readUnsignedShort()];
+				in.readFully(name);
+				int expected = in.readInt();
+				crc.reset();
+				crc.update(id >>> 24);
+				crc.update(id >>> 16);
+				crc.update(id >>> 8);
+				crc.update(id);
+				crc.update(name);
+				if ((int) crc.getValue() != expected) {
+					if (index != null) {
+						Log.warn("Index journal {} has a corrupt record after {} records, rest ignored", file, records);
+					}
+					break;
+				}
+				if (id < 0) {
+					if (index != null) {
+						index.remove(new String(name, StandardCharsets.UTF_8), -id);
+					}
+				} else {
+					if (index != null) {
+						index.load(new String(name, StandardCharsets.UTF_8), id);
+					}
+					maxId = Math.max(maxId, id);
+				}
+				records++;
+			}
+		} catch (EOFException e) {
+			// End of the journal (possibly a torn last record).
+		} finally {
+			in.close();
+		}
+		return new long[] { records, maxId };
+	}
+
+	private void openJournal() throws IOException {
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Cannot create " + dir);
+		}
+		if (journal != null) {
+			journal.close();
+		}
+		File file = new File(dir, "journal." + generation);
+		boolean empty = file.length() == 0;
+		OutputStream out = new FileOutputStream(file, true);
+		journal = new DataOutputStream(new BufferedOutputStream(out, 8 * 1024));
+		if (empty) {
+			journal.writeInt(JOURNAL);
+			journal.writeUTF(store);
+			journal.flush();
+		}
+	}
+
+	/**
+	 * The store name of a snapshot header.
+	 */
+	private static String readStore(ByteBuffer header) {
+		byte[] name = new byte[header.getShort() & 0xffff];
+		header.get(name);
+		return new String(name, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Generation of a journal file, -1 if the file is not a journal.
+	 */
+	private static long journalGeneration(File file) {
+		String name = file.getName();
+		if (!name.startsWith("journal.")) {
+			return -1;
+		}
+		try {
+			return Long.parseLong(name.substring("journal.".length()));
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	private static void writeVarint(DataOutputStream out, int value) throws IOException {
+		while ((value & ~0x7f) != 0) {
+			out.write((value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		out.write(value);
+	}
+
+	private static int readVarint(ByteBuffer in) {
+		int value = 0;
+		int shift = 0;
+		byte b;
+		do {
+			b = in.get();
+			value |= (b & 0x7f) << shift;
+			shift += 7;
+		} while (b < 0);
+		return value;
+	}
+}
@@ -0,0 +1,159 @@
+package startup;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import util.Log;
+
+/**
+ * IndexWarmer fills the {@link IdIndex} from the store after a (re)start, so the first storm after
+ * a failover is answered from memory instead of going to MySQL.
+ * 
+ * The id range 1..max id is split into index.warm.partitions (default 4) ranges streamed in
+ * parallel, each with a forward-only cursor ({@link IdStore#scan(int, int, IdStore.RowHandler)}),
+ * so the table never has to fit in the heap twice. The service takes traffic meanwhile: lookups of
+ * keys not loaded yet read through to the store as usual. Progress is logged every
+ * index.warm.progressSeconds (default 5).
+ * 
+ * With an {@link IndexSnapshot} the mappings saved on local disk are restored first and only the
+ * ids above the highest restored one are read from the store. Once the whole store is read the
+ * snapshot is written periodically, and at once if the store added many rows.
+ */
+public class IndexWarmer {
+
+	private final IdStore store;
+	private final IdIndex index;
+	private final IndexSnapshot snapshot;
+	private final int partitions = Math.max(1, Settings.getInt("index.warm.partitions", 4));
+	private final long progressSeconds = Settings.getLong("index.warm.progressSeconds", 5);
+
+	private static final int SNAPSHOT_AFTER_ROWS = 10000;
+
+	private final AtomicLong rows = new AtomicLong();
+	private final AtomicInteger failed = new AtomicInteger();
+	private final CountDownLatch done = new CountDownLatch(1);
+	private volatile int firstId = 1;
+	private volatile int maxId = 0;
+	private volatile long startNanos = 0;
+
+	public IndexWarmer(IdStore store, IdIndex index) {
+		this(store, index, null);
+	}
+
+	public IndexWarmer(IdStore store, IdIndex index, IndexSnapshot snapshot) {
+		this.store = store;
+		this.index = index;
+		this.snapshot = snapshot;
+	}
+
+	/**
+	 * Start the warm-up in the background.
+	 */
+	public void start() {
+		Thread coordinator = new Thread("index-warmup") {
+			public void run() {
+				try {
+					warm();
+				} catch (Throwable e) {
+					Log.error("Index warm-up failed", e);
+				} finally {
+					done.countDown();
+				}
+			}
+		};
+		coordinator.setDaemon(true);
+		coordinator.start();
+	}
+
+	/**
+	 * Wait for the end of the warm-up. Returns false on timeout.
+	 */
+	public boolean await(long timeoutMs) throws InterruptedException {
+		return done.await(timeoutMs, TimeUnit.MILLISECONDS);
+	}
+
+	public long getLoadedRows() {
+		return rows.get();
+	}
+
+	/**
+	 * Rows expected in total (upper bound: gaps of deleted ids are not known in advance).
+	 */
+	public int getExpectedRows() {
+		return Math.max(0, maxId - firstId + 1);
+	}
+
+	private void warm() throws SQLException, InterruptedException, IOException {
+		startNanos = System.nanoTime();
+		if (snapshot != null) {
+			firstId = snapshot.restore(index, store.maxId()) + 1;
+		}
+		final int first = firstId;
+		maxId = store.maxId();
+		if (maxId < first) {
+			Log.info("Index warm-up: nothing to read from the store");
+			if (snapshot != null) {
+				snapshot.complete(index);
+			}
+			return;
+		}
+
+		// Ranges [from, to) covering first..maxId.
+		int size = (maxId - first + partitions) / partitions;
+		Thread[] workers = new Thread[partitions];
+		for (int p = 0; p < partitions; p++) {
+			final int from = first + p * size;
+			final int to = (int) Math.min((long) maxId + 1, (long) from + size);
+			workers[p] = new Thread("index-warmup-" + (p + 1)) {
+				public void run() {
+					try {
+						store.scan(from, to, new IdStore.RowHandler() {
+							public void row(int id, String defaultId) {
+								index.load(defaultId, id);
+								rows.incrementAndGet();
+							}
+						});
+					} catch (SQLException e) {
+						failed.incrementAndGet();
+						Log.error("Index warm-up of ids from {} failed", from, e);
+					}
+				}
+			};
+			workers[p].setDaemon(true);
+			workers[p].start();
+		}
+
+		for (Thread worker : workers) {
+			while (worker.isAlive()) {
+				worker.join(TimeUnit.SECONDS.toMillis(Math.max(1, progressSeconds)));
+				if (worker.isAlive()) {
+					reportProgress();
+				}
+			}
+		}
+
+		long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+		Log.info("Index warm-up done: {} rows in {} ms, {} partitions failed, index holds {} devices",
+				rows.get(), millis, failed.get(), index.size());
+
+		// Not after a failed partition: its rows would be missing from every restored index.
+		if (snapshot != null && failed.get() == 0) {
+			snapshot.complete(index);
+			// Next restart starts from here instead of reading these rows again.
+			if (rows.get() >= SNAPSHOT_AFTER_ROWS) {
+				snapshot.write(index);
+			}
+		}
+	}
+
+	private void reportProgress() {
+		long loaded = rows.get();
+		long millis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+		Log.info("Index warm-up: {} of about {} rows ({}%), {} rows/s",
+				loaded, getExpectedRows(), loaded * 100 / Math.max(1, getExpectedRows()), loaded * 1000 / millis);
+	}
+}
@@ -0,0 +1,21 @@
+package startup;
+
+import java.io.IOException;
+
+/**
+ * Ingress is a way for devices to register other than the Mqtt subscription of
+ * {@link mqtt.MqttManager} (CoAP, MQTT-SN). Ingresses are started by {@link StartupOrchestrator}
+ * and stopped first by {@link GracefulShutdown}.
+ */
+public interface Ingress {
+
+	/**
+	 * Bind and start serving. Throws if the port cannot be bound.
+	 */
+	public void start() throws IOException;
+
+	/**
+	 * Stop taking requests, then let the registrations in progress answer, within timeoutMs.
+	 */
+	public void shutdown(long timeoutMs);
+}
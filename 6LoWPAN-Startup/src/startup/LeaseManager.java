@@ -0,0 +1,278 @@
+package startup;
+
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import util.Log;
+
+/**
+ * LeaseManager gives every generated id a lease that the device keeps alive with heartbeats
+ * (defaultId on the heartbeat topic, see MqttManager.HEARTBEAT_TOPIC). A device that has not been
+ * heard of for lease.ttlSeconds (default 7 days) loses its id: its registration is removed from the
+ * store, which gives the id back (short addresses) or at least stops devicestartup from growing
+ * with devices that left the field.
+ * 
+ * Deadlines are kept in a {@link TimingWheel} ticking every lease.tickMs (default 1000), so a
+ * heartbeat is a map lookup and a compare-and-set, and expiry costs nothing for the leases that are
+ * not due. Expired registrations are removed from the store and the index in batches of
+ * lease.batchSize (default 500); a batch that fails is retried after lease.retrySeconds (60).
+ * A device that registered again between the expiry and the removal keeps its registration:
+ * registrations ({@link #register(String)}) and removals exclude each other, and a removal skips
+ * the devices that hold a lease of the expired id again.
+ * 
+ * On {@link #start()} the registrations already in the store get a full lease, since the last
+ * heartbeats are not persisted; with short addresses those of every PAN. Counts are logged every
+ * lease.statsSeconds (60).
+ */
+public class LeaseManager {
+
+	/**
+	 * The lease of the registration of one device.
+	 */
+	static final class Lease extends TimingWheel.Entry {
+		final String defaultId;
+		final int id;
+
+		Lease(String defaultId, int id) {
+			this.defaultId = defaultId;
+			this.id = id;
+		}
+	}
+
+	private final IdStore store;
+	private final IdIndex index;
+	private final long tickNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, Settings.getLong("lease.tickMs", 1000)));
+	private final long ttlTicks = TimeUnit.SECONDS.toNanos(Settings.getLong("lease.ttlSeconds", 7 * 24 * 3600)) / tickNanos;
+	private final long retryTicks = TimeUnit.SECONDS.toNanos(Settings.getLong("lease.retrySeconds", 60)) / tickNanos;
+	private final int batchSize = Math.max(1, Settings.getInt("lease.batchSize", 500));
+	private final long statsNanos = TimeUnit.SECONDS.toNanos(Settings.getLong("lease.statsSeconds", 60));
+
+	private final ConcurrentHashMap<String, Lease> leases = new ConcurrentHashMap<String, Lease>();
+	private final TimingWheel<Lease> wheel = new TimingWheel<Lease>(0);
+	private final ReentrantReadWriteLock releasing = new ReentrantReadWriteLock();
+	private final long origin = System.nanoTime();
+	private Map<String, Integer> batch = new HashMap<String, Integer>();
+
+	// Metrics.
+	private final AtomicLong renewals 	= new AtomicLong();
+	private final AtomicLong expired 	= new AtomicLong();
+	private final AtomicLong released 	= new AtomicLong();
+	private volatile double expirationRate = 0;
+
+	private final TimingWheel.Sink<Lease> sink = new TimingWheel.Sink<Lease>() {
+		public void expired(Lease lease) {
+			// A lease replaced by a new registration meanwhile is not current any more.
+			if (leases.remove(lease.defaultId, lease)) {
+				expired.incrementAndGet();
+				batch.put(lease.defaultId, lease.id);
+				if (batch.size() >= batchSize) {
+					flush();
+				}
+			}
+		}
+	};
+
+	private Thread thread = null;
+
+	public LeaseManager(IdStore store, IdIndex index) {
+		this.store = store;
+		this.index = index;
+	}
+
+	/**
+	 * Insert the registration of defaultId into the store and lease the id it gets. Returns the
+	 * id, as {@link IdStore#insert(String)}.
+	 */
+	public int register(String defaultId) throws SQLException {
+		releasing.readLock().lock();
+		try {
+			int id = store.insert(defaultId);
+			if (id > 0) {
+				grant(defaultId, id);
+			}
+			return id;
+		} finally {
+			releasing.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Lease the id just generated for defaultId; a previous lease of the device is replaced.
+	 */
+	public void grant(String defaultId, int id) {
+		install(new Lease(defaultId, id), false);
+	}
+
+	/**
+	 * Renew the lease of defaultId. Returns false if the device has no lease (unknown or expired;
+	 * it has to register again).
+	 */
+	public boolean heartbeat(String defaultId) {
+		Lease lease = leases.get(defaultId);
+		if (lease != null && wheel.renew(lease, tick() + ttlTicks)) {
+			renewals.incrementAndGet();
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Give the registrations of the store a lease, then expire leases until the JVM stops.
+	 */
+	public synchronized void start() {
+		if (thread != null) {
+			return;
+		}
+		thread = new Thread("lease-wheel") {
+			public void run() {
+				loadStore();
+				runWheel();
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Put a lease in place unless the device has a newer registration; loaded leases never replace
+	 * a lease of the same id.
+	 */
+	private void install(Lease lease, boolean loaded) {
+		while (true) {
+			Lease current = leases.putIfAbsent(lease.defaultId, lease);
+			if (current == null) {
+				break;
+			}
+			if (current.id > lease.id || (current.id == lease.id && (loaded || heartbeat(lease.defaultId)))) {
+				return;
+			}
+			if (leases.replace(lease.defaultId, current, lease)) {
+				wheel.cancel(current);
+				break;
+			}
+		}
+		wheel.schedule(lease, tick() + ttlTicks);
+	}
+
+	private void loadStore() {
+		long start = System.nanoTime();
+		IdStore.RowHandler handler = new IdStore.RowHandler() {
+			public void row(int id, String defaultId) {
+				install(new Lease(defaultId, id), true);
+			}
+		};
+		try {
+			// The ids of scan() are those of the default PAN only.
+			if (store instanceof ShortAddressStore) {
+				((ShortAddressStore) store).scanAllPans(handler);
+			} else {
+				store.scan(1, store.maxId() + 1, handler);
+			}
+			Log.info("Leases granted to {} registered devices in {} ms",
+					leases.size(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+		} catch (SQLException e) {
+			Log.warn("Registered devices could not be read, only new registrations are leased: {}", e);
+		}
+	}
+
+	private void runWheel() {
+		long lastStats = System.nanoTime();
+		long lastExpired = 0;
+		try {
+			while (true) {
+				wheel.advance(tick(), sink);
+				flush();
+
+				long now = System.nanoTime();
+				if (now - lastStats >= statsNanos) {
+					long count = expired.get();
+					expirationRate = (count - lastExpired) * 1e9 / (now - lastStats);
+					Log.info("Leases: {} active, {} expired ({}/s), {} renewals",
+							leases.size(), count, String.format("%.1f", expirationRate), renewals.get());
+					lastStats = now;
+					lastExpired = count;
+				}
+				long next = origin + (tick() + 1) * tickNanos;
+				TimeUnit.NANOSECONDS.sleep(Math.max(1, next - System.nanoTime()));
+			}
+		} catch (InterruptedException e) {
+			// Stopped.
+		}
+	}
+
+	/**
+	 * Remove the expired registrations collected so far from the store and the index.
+	 */
+	private void flush() {
+		if (batch.isEmpty()) {
+			return;
+		}
+		Map<String, Integer> expiring = batch;
+		batch = new HashMap<String, Integer>();
+		releasing.writeLock().lock();
+		try {
+			// Registered again since it expired, with the same id (a short address is kept): the
+			// registration is the device's again. A newer id leaves the old one to release.
+			for (Iterator<Map.Entry<String, Integer>> it = expiring.entrySet().iterator(); it.hasNext();) {
+				Map.Entry<String, Integer> e = it.next();
+				Lease current = leases.get(e.getKey());
+				if (current != null && current.id <= e.getValue()) {
+					it.remove();
+				}
+			}
+			if (expiring.isEmpty()) {
+				return;
+			}
+			released.addAndGet(store.release(expiring));
+			for (Map.Entry<String, Integer> e : expiring.entrySet()) {
+				index.remove(e.getKey(), e.getValue());
+			}
+		} catch (SQLException e) {
+			Log.warn("{} expired registrations could not be removed, retried in {} ticks: {}", expiring.size(), retryTicks, e);
+			for (Map.Entry<String, Integer> r : expiring.entrySet()) {
+				Lease retry = new Lease(r.getKey(), r.getValue());
+				if (leases.putIfAbsent(retry.defaultId, retry) == null) {
+					wheel.schedule(retry, tick() + retryTicks);
+				}
+			}
+		} finally {
+			releasing.writeLock().unlock();
+		}
+	}
+
+	private long tick() {
+		return (System.nanoTime() - origin) / tickNanos;
+	}
+
+	public int getLeaseCount() {
+		return leases.size();
+	}
+
+	public long getRenewalCount() {
+		return renewals.get();
+	}
+
+	public long getExpiredCount() {
+		return expired.get();
+	}
+
+	/**
+	 * Registrations actually removed from the store (a device may have had several).
+	 */
+	public long getReleasedCount() {
+		return released.get();
+	}
+
+	/**
+	 * Expirations per second over the last lease.statsSeconds.
+	 */
+	public double getExpirationRate() {
+		return expirationRate;
+	}
+}
@@ -0,0 +1,104 @@
+package startup;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * MemoryIdStore keeps the defaultId -> id mapping in memory only. Ids are generated like the
+ * auto-increment column of devicestartup table, starting from 1.
+ * 
+ * It is used when the service runs without MySQL (tools, benchmarks).
+ */
+public class MemoryIdStore implements IdStore {
+
+	private final AtomicInteger lastId = new AtomicInteger();
+	private final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<String, Integer>();
+	private final ConcurrentHashMap<Integer, String> defaultIds = new ConcurrentHashMap<Integer, String>();
+
+	public int insert(String defaultId) {
+		int generatedId = lastId.incrementAndGet();
+		defaultIds.put(generatedId, defaultId);
+		ids.put(defaultId, generatedId);
+		return generatedId;
+	}
+
+	public Map<String, Integer> findIds(Collection<String> keys) {
+		Map<String, Integer> found = new HashMap<String, Integer>();
+		for (String defaultId : keys) {
+			Integer id = ids.get(defaultId);
+			if (id != null) {
+				found.put(defaultId, id);
+			}
+		}
+		return found;
+	}
+
+	public Map<Integer, String> findDefaultIds(Collection<Integer> keys) {
+		Map<Integer, String> found = new HashMap<Integer, String>();
+		for (Integer id : keys) {
+			String defaultId = defaultIds.get(id);
+			if (defaultId != null && ids.containsKey(defaultId)) {
+				found.put(id, defaultId);
+			}
+		}
+		return found;
+	}
+
+	public void warmUp() {
+		// Nothing to prepare.
+	}
+
+	/**
+	 * Return the last id generated for defaultId, or -1 if it has never been inserted.
+	 */
+	public int get(String defaultId) {
+		Integer id = ids.get(defaultId);
+		return id == null ? -1 : id;
+	}
+
+	public int maxId() {
+		return lastId.get();
+	}
+
+	public void scan(int fromId, int toId, RowHandler handler) {
+		for (int id = Math.max(1, fromId); id < toId; id++) {
+			String defaultId = defaultIds.get(id);
+			if (defaultId != null && ids.containsKey(defaultId)) {
+				handler.row(id, defaultId);
+			}
+		}
+	}
+
+	public boolean isRegistered(String defaultId) {
+		return ids.containsKey(defaultId);
+	}
+
+	public int release(Map<String, Integer> registrations) {
+		int removed = 0;
+		for (Map.Entry<String, Integer> e : registrations.entrySet()) {
+			Integer id = ids.get(e.getKey());
+			if (id != null && id <= e.getValue() && ids.remove(e.getKey(), id)) {
+				defaultIds.remove(id);
+				removed++;
+			}
+		}
+		return removed;
+	}
+
+	/**
+	 * Forget defaultId (decommissioned device).
+	 */
+	public void remove(String defaultId) {
+		Integer id = ids.remove(defaultId);
+		if (id != null) {
+			defaultIds.remove(id);
+		}
+	}
+
+	public int size() {
+		return ids.size();
+	}
+}
@@ -0,0 +1,101 @@
+package startup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import mqtt.MqttManager;
+import util.Log;
+
+/**
+ * Readiness is the lifecycle state of the service as seen from outside.
+ * 
+ * The state is published as a retained message on the status topic of every broker site
+ * ({@link MqttManager#STATUS_TOPIC}, the broker replaces it with "offline" if the service dies)
+ * from the moment its connection is up, so "starting" is seen while the other steps are still
+ * running. The file given by startup.readyFile (optional) exists exactly while the service is
+ * ready, for supervisors and load balancers that do not speak MQTT.
+ */
+public final class Readiness {
+
+	public static final int STARTING 	= 0;
+	public static final int READY 		= 1;
+	public static final int STOPPING 	= 2;
+	public static final int FAILED 		= 3;
+
+	private static final String[] NAMES = { "starting", "ready", "stopping", "failed" };
+
+	private static volatile int state = STARTING;
+	private static volatile List<MqttManager> publishers = Collections.emptyList();
+	private static final CountDownLatch ready = new CountDownLatch(1);
+
+	private Readiness() {
+	}
+
+	/**
+	 * Publish the current state on the status topic of these connected managers, and the state
+	 * changes from now on (none if empty).
+	 */
+	static synchronized void setPublishers(List<MqttManager> mqttManagers) {
+		publishers = mqttManagers;
+		if (state != FAILED) {
+			for (MqttManager mqttManager : mqttManagers) {
+				mqttManager.publishStatus(NAMES[state]);
+			}
+		}
+	}
+
+	public static synchronized void set(int newState) {
+		state = newState;
+		Log.info("Service is {}", NAMES[newState]);
+
+		String path = Settings.get("startup.readyFile", null);
+		if (path != null) {
+			try {
+				if (newState == READY) {
+					File file = new File(path);
+					File tmp = new File(path + ".tmp");
+					Files.write(tmp.toPath(), "ready\n".getBytes());
+					Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+				} else {
+					Files.deleteIfExists(new File(path).toPath());
+				}
+			} catch (IOException e) {
+				Log.warn("Ready file {} could not be updated: {}", path, e);
+			}
+		}
+
+		if (newState != FAILED) {
+			for (MqttManager mqttManager : publishers) {
+				mqttManager.publishStatus(NAMES[newState]);
+			}
+		}
+		if (newState == READY) {
+			ready.countDown();
+		}
+	}
+
+	public static int get() {
+		return state;
+	}
+
+	public static boolean isReady() {
+		return state == READY;
+	}
+
+	public static String name(int state) {
+		return NAMES[state];
+	}
+
+	/**
+	 * Wait until the service is ready. Returns false on timeout.
+	 */
+	public static boolean awaitReady(long timeoutMs) throws InterruptedException {
+		return ready.await(timeoutMs, TimeUnit.MILLISECONDS);
+	}
+}
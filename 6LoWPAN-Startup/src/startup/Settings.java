@@ -0,0 +1,63 @@
+package startup;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+
+/**
+ * Settings provides the configurable parameters of the service.
+ * 
+ * Values are looked up in the system properties first (-Dkey=value), then in the properties file
+ * given by "startup.config" (default ./startup.properties, optional), then the default given by
+ * the caller is used.
+ */
+public final class Settings {
+
+	private static final Properties file = new Properties();
+
+	static {
+		String path = System.getProperty("startup.config", "startup.properties");
+		InputStream in = null;
+		try {
+			in = new FileInputStream(path);
+			file.load(in);
+		} catch (IOException e) {
+			// No settings file, defaults are used.
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+					// Ignore.
+				}
+			}
+		}
+	}
+
+	private Settings() {
+	}
+
+	public static String get(String key, String defaultValue) {
+		String value = System.getProperty(key);
+		if (value == null) {
+			value = file.getProperty(key);
+		}
+		return value == null ? defaultValue : value.trim();
+	}
+
+	public static int getInt(String key, int defaultValue) {
+		String value = get(key, null);
+		return value == null ? defaultValue : Integer.parseInt(value);
+	}
+
+	public static long getLong(String key, long defaultValue) {
+		String value = get(key, null);
+		return value == null ? defaultValue : Long.parseLong(value);
+	}
+
+	public static boolean getBoolean(String key, boolean defaultValue) {
+		String value = get(key, null);
+		return value == null ? defaultValue : Boolean.parseBoolean(value);
+	}
+}
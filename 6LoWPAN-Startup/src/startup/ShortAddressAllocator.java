@@ -0,0 +1,140 @@
+package startup;
+
+import java.util.BitSet;
+
+/**
+ * ShortAddressAllocator hands out the 16-bit short addresses of one PAN.
+ * 
+ * The state is a bitmap of the 65536 addresses (1024 words) plus a summary bitmap with one bit per
+ * full word (16 words), so finding a free address takes at most 17 word reads and a
+ * numberOfTrailingZeros, whatever the occupancy. The search starts after the last address given
+ * (next fit), so a released address is not handed out again right away while the old node may
+ * still be using it in the mesh.
+ * 
+ * Reserved addresses (by default 0xFFFE "no short address" and 0xFFFF broadcast, see
+ * {@link #parseReserved(String)}) are never handed out nor released.
+ */
+public class ShortAddressAllocator {
+
+	public static final int SLOTS = 1 << 16;
+
+	private final long[] used = new long[SLOTS / 64];
+	private final long[] full = new long[SLOTS / 64 / 64];
+	private final BitSet reserved;
+	private int free;
+	private int cursor = 0;
+
+	public ShortAddressAllocator(BitSet reserved) {
+		this.reserved = reserved;
+		this.free = SLOTS;
+		for (int addr = reserved.nextSetBit(0); addr >= 0 && addr < SLOTS; addr = reserved.nextSetBit(addr + 1)) {
+			set(addr);
+		}
+	}
+
+	/**
+	 * Parse a list of reserved addresses and ranges, e.g. "0x0000, 0x8000-0xFFFD, 0xFFFE, 0xFFFF".
+	 */
+	public static BitSet parseReserved(String spec) {
+		BitSet reserved = new BitSet(SLOTS);
+		for (String part : spec.split(",")) {
+			part = part.trim();
+			if (part.isEmpty()) {
+				continue;
+			}
+			int dash = part.indexOf('-');
+			int from = Integer.decode(dash < 0 ? part : part.substring(0, dash).trim());
+			int to = dash < 0 ? from : Integer.decode(part.substring(dash + 1).trim());
+			if (from < 0 || to >= SLOTS || from > to) {
+				throw new IllegalArgumentException("Bad reserved short address range: " + part);
+			}
+			reserved.set(from, to + 1);
+		}
+		return reserved;
+	}
+
+	/**
+	 * Return a free address and mark it used, or -1 if the PAN is full.
+	 */
+	public synchronized int allocate() {
+		if (free == 0) {
+			return -1;
+		}
+		int addr = findFree(cursor);
+		set(addr);
+		cursor = (addr + 1) & (SLOTS - 1);
+		return addr;
+	}
+
+	/**
+	 * Mark an address as used (state loaded from the database). Returns false if it was not free.
+	 */
+	public synchronized boolean mark(int addr) {
+		if (isSet(addr)) {
+			return false;
+		}
+		set(addr);
+		return true;
+	}
+
+	/**
+	 * Free an address. Returns false if it was not in use or is reserved.
+	 */
+	public synchronized boolean release(int addr) {
+		if (reserved.get(addr) || !isSet(addr)) {
+			return false;
+		}
+		int word = addr >>> 6;
+		used[word] &= ~(1L << addr);
+		full[word >>> 6] &= ~(1L << word);
+		free++;
+		return true;
+	}
+
+	public synchronized boolean isAllocated(int addr) {
+		return isSet(addr) && !reserved.get(addr);
+	}
+
+	public synchronized int getFreeCount() {
+		return free;
+	}
+
+	private boolean isSet(int addr) {
+		return (used[addr >>> 6] & (1L << addr)) != 0;
+	}
+
+	private void set(int addr) {
+		int word = addr >>> 6;
+		used[word] |= 1L << addr;
+		if (used[word] == -1L) {
+			full[word >>> 6] |= 1L << word;
+		}
+		free--;
+	}
+
+	/**
+	 * First free address at or after start, wrapping around. There must be one.
+	 */
+	private int findFree(int start) {
+		int word = start >>> 6;
+		long bits = ~used[word] & (-1L << start);
+		if (bits != 0) {
+			return (word << 6) | Long.numberOfTrailingZeros(bits);
+		}
+		// Next word that is not full, from the summary; the last step wraps to the words before.
+		int next = word + 1;
+		for (int i = 0; i <= full.length; i++) {
+			int s = (next >>> 6) & (full.length - 1);
+			long notFull = ~full[s];
+			if (i == 0 && next < SLOTS / 64) {
+				notFull &= -1L << next;
+			}
+			if (notFull != 0) {
+				int w = (s << 6) | Long.numberOfTrailingZeros(notFull);
+				return (w << 6) | Long.numberOfTrailingZeros(~used[w]);
+			}
+			next = ((s + 1) & (full.length - 1)) << 6;
+		}
+		throw new IllegalStateException("No free short address although " + free + " are free");
+	}
+}
@@ -0,0 +1,258 @@
+package startup;
+
+import java.sql.SQLException;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+import util.Log;
+
+/**
+ * ShortAddressStore is the id store of the short-address mode (id.store=shortaddr): instead of the
+ * ever-growing 32-bit key of devicestartup, a device gets a 16-bit short address of its PAN, which
+ * 6LoWPAN header compression can elide or shorten.
+ * 
+ * A device names its PAN by sending "defaultId@pan" (pan in hex, e.g. "00:12:4b:00:1a2b@abcd");
+ * a plain defaultId belongs to shortaddr.pan (default 0xABCD). The reply topic is derived from
+ * what the device sent, as usual. A device that registers again (reboot) keeps its address.
+ * 
+ * Each PAN is a {@link ShortAddressAllocator} loaded from the device_shortaddr table on first use
+ * and kept in memory; assignments and releases are written through to the table
+ * (shortaddr.backend=memory keeps them in memory only). Addresses of decommissioned devices are
+ * given back with {@link #release(String)}.
+ * 
+ * Address 0x0000 is never handed out, whatever shortaddr.reserved says: it is the usual address
+ * of the PAN coordinator, and the rest of the service takes an id of 0 for "none".
+ * 
+ * Settings: shortaddr.pan, shortaddr.reserved (0xFFFE,0xFFFF), shortaddr.backend (mysql).
+ */
+public class ShortAddressStore implements IdStore {
+
+	/**
+	 * Assignments of one PAN.
+	 */
+	private static final class Pan {
+		final int panId;
+		final ShortAddressAllocator allocator;
+		final ConcurrentHashMap<String, Integer> addresses = new ConcurrentHashMap<String, Integer>();
+		final ConcurrentHashMap<Integer, String> devices = new ConcurrentHashMap<Integer, String>();
+
+		Pan(int panId, ShortAddressAllocator allocator) {
+			this.panId = panId;
+			this.allocator = allocator;
+		}
+	}
+
+	private final int defaultPan = Integer.decode(Settings.get("shortaddr.pan", "0xABCD"));
+	private final String reserved = Settings.get("shortaddr.reserved", "0xFFFE,0xFFFF");
+	private final DBManager db;
+	private final ConcurrentHashMap<Integer, Pan> pans = new ConcurrentHashMap<Integer, Pan>();
+
+	public ShortAddressStore() {
+		this("memory".equals(Settings.get("shortaddr.backend", "mysql")) ? null : DBManager.getInstance());
+	}
+
+	/**
+	 * A store persisted in the given database, or in memory only if db is null.
+	 */
+	public ShortAddressStore(DBManager db) {
+		this.db = db;
+	}
+
+	/**
+	 * Return the PAN of what a device sent: the "@pan" suffix, or the default PAN.
+	 */
+	public int panOf(String defaultId) {
+		int at = defaultId.lastIndexOf('@');
+		if (at >= 0 && at < defaultId.length() - 1) {
+			try {
+				int pan = Integer.parseInt(defaultId.substring(at + 1), 16);
+				if (pan >= 0 && pan <= 0xFFFF) {
+					return pan;
+				}
+			} catch (NumberFormatException e) {
+				// Not a PAN suffix.
+			}
+		}
+		return defaultPan;
+	}
+
+	private Pan pan(int panId) throws SQLException {
+		Pan pan = pans.get(panId);
+		if (pan != null) {
+			return pan;
+		}
+		synchronized (pans) {
+			pan = pans.get(panId);
+			if (pan == null) {
+				pan = load(panId);
+				pans.put(panId, pan);
+			}
+		}
+		return pan;
+	}
+
+	private Pan load(int panId) throws SQLException {
+		BitSet reservedAddresses = ShortAddressAllocator.parseReserved(reserved);
+		reservedAddresses.set(0);
+		final Pan pan = new Pan(panId, new ShortAddressAllocator(reservedAddresses));
+		if (db != null) {
+			db.loadShortAddresses(panId, new RowHandler() {
+				public void row(int addr, String defaultId) {
+					if (pan.allocator.mark(addr)) {
+						pan.addresses.put(defaultId, addr);
+						pan.devices.put(addr, defaultId);
+					} else {
+						Log.warn("Short address {} of PAN {} is reserved or assigned twice, ignored", addr, pan.panId);
+					}
+				}
+			});
+			Log.info("PAN {}: {} short addresses in use", Integer.toHexString(panId), pan.addresses.size());
+		}
+		return pan;
+	}
+
+	/**
+	 * Return the short address of the device, assigning one if it has none. -1 if the PAN is full
+	 * or the assignment could not be stored.
+	 */
+	public int insert(String defaultId) throws SQLException {
+		Pan pan = pan(panOf(defaultId));
+		synchronized (pan) {
+			Integer current = pan.addresses.get(defaultId);
+			if (current != null) {
+				return current;
+			}
+			int addr = pan.allocator.allocate();
+			if (addr < 0) {
+				Log.warn("PAN {} has no free short address for {}", Integer.toHexString(pan.panId), defaultId);
+				return -1;
+			}
+			if (db != null) {
+				try {
+					db.insertShortAddress(pan.panId, addr, defaultId);
+				} catch (SQLException e) {
+					pan.allocator.release(addr);
+					throw e;
+				}
+			}
+			pan.addresses.put(defaultId, addr);
+			pan.devices.put(addr, defaultId);
+			return addr;
+		}
+	}
+
+	/**
+	 * Give back the address of a decommissioned device. Returns false if it had none.
+	 */
+	public boolean release(String defaultId) throws SQLException {
+		Pan pan = pan(panOf(defaultId));
+		synchronized (pan) {
+			Integer addr = pan.addresses.get(defaultId);
+			if (addr == null) {
+				return false;
+			}
+			if (db != null) {
+				db.deleteShortAddress(pan.panId, addr);
+			}
+			pan.addresses.remove(defaultId);
+			pan.devices.remove(addr);
+			pan.allocator.release(addr);
+			return true;
+		}
+	}
+
+	public int release(Map<String, Integer> registrations) throws SQLException {
+		int removed = 0;
+		for (Map.Entry<String, Integer> e : registrations.entrySet()) {
+			Pan pan = pan(panOf(e.getKey()));
+			Integer addr = pan.addresses.get(e.getKey());
+			if (addr != null && addr <= e.getValue() && release(e.getKey())) {
+				removed++;
+			}
+		}
+		return removed;
+	}
+
+	/**
+	 * Free addresses left in the PAN of this device.
+	 */
+	public int getFreeCount(String defaultId) throws SQLException {
+		return pan(panOf(defaultId)).allocator.getFreeCount();
+	}
+
+	public boolean isRegistered(String defaultId) throws SQLException {
+		return pan(panOf(defaultId)).addresses.containsKey(defaultId);
+	}
+
+	public Map<String, Integer> findIds(Collection<String> defaultIds) throws SQLException {
+		Map<String, Integer> found = new HashMap<String, Integer>();
+		for (String defaultId : defaultIds) {
+			Integer addr = pan(panOf(defaultId)).addresses.get(defaultId);
+			if (addr != null) {
+				found.put(defaultId, addr);
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * Short addresses are only unique within a PAN: ids are looked up in the default PAN.
+	 */
+	public Map<Integer, String> findDefaultIds(Collection<Integer> ids) throws SQLException {
+		Pan pan = pan(defaultPan);
+		Map<Integer, String> found = new HashMap<Integer, String>();
+		for (Integer addr : ids) {
+			String defaultId = pan.devices.get(addr);
+			if (defaultId != null) {
+				found.put(addr, defaultId);
+			}
+		}
+		return found;
+	}
+
+	public int maxId() {
+		return ShortAddressAllocator.SLOTS - 1;
+	}
+
+	/**
+	 * Scan the assignments of the default PAN.
+	 */
+	public void scan(int fromId, int toId, RowHandler handler) throws SQLException {
+		Pan pan = pan(defaultPan);
+		for (int addr = Math.max(0, fromId); addr < Math.min(toId, ShortAddressAllocator.SLOTS); addr++) {
+			String defaultId = pan.devices.get(addr);
+			if (defaultId != null) {
+				handler.row(addr, defaultId);
+			}
+		}
+	}
+
+	/**
+	 * Pass the assignments of every PAN to the handler: the PANs of the table and those used
+	 * since the start.
+	 */
+	public void scanAllPans(RowHandler handler) throws SQLException {
+		Set<Integer> panIds = new TreeSet<Integer>(pans.keySet());
+		panIds.add(defaultPan);
+		if (db != null) {
+			panIds.addAll(db.loadShortAddressPans());
+		}
+		for (int panId : panIds) {
+			for (Map.Entry<Integer, String> e : pan(panId).devices.entrySet()) {
+				handler.row(e.getKey(), e.getValue());
+			}
+		}
+	}
+
+	public void warmUp() throws SQLException {
+		if (db != null) {
+			db.warmUp();
+		}
+		pan(defaultPan);
+	}
+}
@@ -1,6 +1,8 @@
 package startup;
 
-import org.eclipse.paho.client.mqttv3.MqttException;
+import java.io.IOException;
+
+import mqtt.broker.MqttBroker;
 
 /**
  * @author Engin Leloglu - 2016
@@ -9,9 +11,29 @@ import org.eclipse.paho.client.mqttv3.MqttException;
  */
 public class Starter {
 
-	public static void main(String[] args) throws MqttException {
+	public static void main(String[] args) throws IOException, InterruptedException {
+		
+		// Optionally run the broker stand-in in the same process (offline testing and benchmarks).
+		if (Settings.getBoolean("broker.embedded", false)) {
+			new MqttBroker(Settings.get("broker.embedded.host", "localhost"), Settings.getInt("mqtt.port", 1883)).start();
+		}
+		
+		// Database, TLS and broker connection are prepared in parallel; readiness is published once
+		// all of them are up. A supervisor restarts the service if it cannot get ready.
+		StartupOrchestrator orchestrator = new StartupOrchestrator();
+		if (!orchestrator.start()) {
+			System.exit(1);
+		}
+		GracefulShutdown.install(orchestrator.getStartupManager().getMqttManagers(), orchestrator.getIngresses(),
+				orchestrator.getIndexSnapshot());
+		
+		// Used to train the class-data-sharing archive and to measure cold starts (startup.sh).
+		if (Settings.getBoolean("startup.exitWhenReady", false)) {
+			System.exit(0);
+		}
 		
-		new StartupManager();
+		// Serve until stopped (SIGTERM); a broker outage must not end the JVM.
+		GracefulShutdown.awaitStopped();
 	}
 
 }
@@ -1,9 +1,14 @@
 package startup;
 
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 
 import org.eclipse.paho.client.mqttv3.MqttException;
 
+import mqtt.BrokerSite;
 import mqtt.MqttManager;
 
 /**
@@ -13,11 +18,148 @@ import mqtt.MqttManager;
  */
 public class StartupManager {
 
+	private IdStore idStore = null;
+	private IdIndex idIndex = null;
+	private LeaseManager leaseManager = null;
+	private List<MqttManager> mqttManagers = Collections.emptyList();
+
 	public StartupManager() throws MqttException {		
-		new MqttManager(this);
+		this(configuredStore());
+		connect();
+	}
+
+	/**
+	 * Create a mediator on top of the given store without connecting to the broker.
+	 * Used by tools and benchmarks that drive the allocation path themselves.
+	 */
+	public StartupManager(IdStore idStore) {
+		this.idStore = idStore;
+		this.idIndex = new IdIndex(idStore);
+		// lease.enabled: ids of devices that stop sending heartbeats are taken back.
+		if (Settings.getBoolean("lease.enabled", false)) {
+			this.leaseManager = new LeaseManager(idStore, idIndex);
+		}
+	}
+
+	/**
+	 * Return the store selected by id.store: "memory" runs the service without MySQL (offline
+	 * tests and benchmarks), "shortaddr" hands out 16-bit short addresses per PAN
+	 * ({@link ShortAddressStore}), anything else uses the devicestartup table.
+	 */
+	public static IdStore configuredStore() {
+		String store = Settings.get("id.store", "mysql");
+		if ("memory".equals(store)) {
+			return new MemoryIdStore();
+		}
+		if ("shortaddr".equals(store)) {
+			return new ShortAddressStore();
+		}
+		return DBManager.getInstance();
+	}
+
+	/**
+	 * Name the store selected by id.store (its kind and db.url), so what is kept of it on local
+	 * disk is not applied to another one. Null if the store lives in memory only: nothing of it
+	 * outlives the process, so nothing of it is kept either.
+	 */
+	public static String storeIdentity() {
+		String store = Settings.get("id.store", "mysql");
+		if ("memory".equals(store)) {
+			return null;
+		}
+		if ("shortaddr".equals(store)) {
+			if ("memory".equals(Settings.get("shortaddr.backend", "mysql"))) {
+				return null;
+			}
+			store += " pan " + Settings.get("shortaddr.pan", "0xABCD");
+		} else {
+			store = "mysql";
+		}
+		return store + " " + Settings.get("db.url", "jdbc:mysql://localhost:3306/test");
+	}
+
+	/**
+	 * Connect to the broker of every configured site ({@link BrokerSite#configured()}) and
+	 * subscribe to new devices there. All sites share the store, the index and the leases.
+	 */
+	public List<MqttManager> connect() throws MqttException {
+		List<MqttManager> managers = new ArrayList<MqttManager>();
+		for (BrokerSite site : BrokerSite.configured()) {
+			managers.add(new MqttManager(this, site));
+		}
+		mqttManagers = Collections.unmodifiableList(managers);
+		return mqttManagers;
+	}
+
+	public IdStore getIdStore() {
+		return idStore;
+	}
+
+	/**
+	 * Return the manager of the first site, null before {@link #connect()}.
+	 */
+	public MqttManager getMqttManager() {
+		return mqttManagers.isEmpty() ? null : mqttManagers.get(0);
+	}
+
+	/**
+	 * Return the managers of all sites, in the order of mqtt.sites.
+	 */
+	public List<MqttManager> getMqttManagers() {
+		return mqttManagers;
+	}
+
+	public IdIndex getIdIndex() {
+		return idIndex;
+	}
+
+	/**
+	 * Return the lease manager, null if leases are disabled.
+	 */
+	public LeaseManager getLeaseManager() {
+		return leaseManager;
 	}
 
 	public int notifyInsertion(String defaultId) throws SQLException {
-		return DBManager.getInstance().insertIntoDB(defaultId);
+		int generatedId = leaseManager != null ? leaseManager.register(defaultId) : idStore.insert(defaultId);
+		if (generatedId > 0) {
+			idIndex.put(defaultId, generatedId);
+		}
+		return generatedId;
+	}
+
+	/**
+	 * Allocate the id of a registration that arrived outside the broker sites (CoAP, MQTT-SN) the
+	 * way the sites do, through the allocation of the first site ({@link MqttManager#allocateId},
+	 * with its dedup window); {@link #notifyInsertion(String)} before {@link #connect()}.
+	 */
+	public int allocateId(String defaultId) throws SQLException {
+		MqttManager mqttManager = getMqttManager();
+		return mqttManager != null ? mqttManager.allocateId(defaultId) : notifyInsertion(defaultId);
+	}
+
+	/**
+	 * Renew the lease of defaultId. Returns false if it has none (leases disabled, or expired).
+	 */
+	public boolean notifyHeartbeat(String defaultId) {
+		return leaseManager != null && leaseManager.heartbeat(defaultId);
+	}
+
+	/**
+	 * Translate defaultIds to generated ids (null for unknown ones), from memory when possible.
+	 */
+	public Map<String, Integer> lookupIds(List<String> defaultIds) throws SQLException {
+		return idIndex.getIds(defaultIds);
+	}
+
+	/**
+	 * Translate generated ids to defaultIds (null for unknown ones), from memory when possible.
+	 */
+	public Map<Integer, String> lookupDefaultIds(List<Integer> ids) throws SQLException {
+		return idIndex.getDefaultIds(ids);
+	}
+
+	public boolean isRegistered(String defaultId) throws SQLException {
+		return idStore.isRegistered(defaultId);
 	}
 }
@@ -0,0 +1,226 @@
+package startup;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import coap.CoapServer;
+import mqtt.BrokerSite;
+import mqtt.MqttManager;
+import mqtt.SiteReporter;
+import mqttsn.MqttSnGateway;
+import util.Log;
+
+/**
+ * StartupOrchestrator brings the service up. The database pool, the TLS context and the Mqtt
+ * connections (one per broker site, see {@link BrokerSite}) are prepared in parallel (the
+ * connections wait for the TLS context only), and the service is reported ready
+ * ({@link Readiness}) only once all of them are.
+ * 
+ * Every step is timed, and the time from JVM start to ready is logged, so cold starts of a
+ * failover replica can be measured (see startup.sh coldstart).
+ * 
+ * Once ready, the lookup index is warmed up in the background ({@link IndexWarmer}, index.warm)
+ * and leases start expiring ({@link LeaseManager}, lease.enabled). The throughput and latency of
+ * every site are logged periodically ({@link SiteReporter}).
+ * 
+ * With coap.enabled the CoAP ingress ({@link CoapServer}), and with mqttsn.enabled the MQTT-SN
+ * gateway ({@link MqttSnGateway}), are bound once the steps are done; the service is not ready if
+ * their port cannot be bound.
+ * 
+ * Settings: startup.timeoutMs (30000), the deadline for all steps together.
+ */
+public final class StartupOrchestrator {
+
+	private final StartupManager startupManager = new StartupManager(StartupManager.configuredStore());
+	private final long timeoutMs = Settings.getLong("startup.timeoutMs", 30000);
+	private final boolean ssl = anySsl();
+	private final List<Ingress> ingresses = new ArrayList<Ingress>();
+	private IndexSnapshot snapshot = null;
+
+	private final ExecutorService executor = Executors.newCachedThreadPool(new ThreadFactory() {
+		private int count = 0;
+
+		public synchronized Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "startup-" + (++count));
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
+	/**
+	 * Run all steps. Returns true if the service is ready, false if a step failed or the deadline
+	 * passed (the reason is logged).
+	 */
+	public boolean start() {
+		long begin = System.nanoTime();
+		long deadline = begin + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+		Readiness.set(Readiness.STARTING);
+		// Before the first registration is taken: the ones served while the snapshot is restored
+		// are journaled too.
+		snapshot = openSnapshot();
+
+		Future<Long> database = submit("database", new Callable<Void>() {
+			public Void call() throws Exception {
+				startupManager.getIdStore().warmUp();
+				return null;
+			}
+		});
+
+		final Future<Long> tls = !ssl ? null : submit("tls", new Callable<Void>() {
+			public Void call() throws Exception {
+				for (BrokerSite site : BrokerSite.configured()) {
+					if (site.isSsl() && site.getSocketFactory() == null) {
+						throw new IllegalStateException("SSL/TLS socket factory of site " + site + " could not be created");
+					}
+				}
+				return null;
+			}
+		});
+
+		Future<Long> mqtt = submit("mqtt", new Callable<Void>() {
+			public Void call() throws Exception {
+				if (tls != null) {
+					tls.get();
+				}
+				List<MqttManager> mqttManagers = startupManager.connect();
+				for (MqttManager mqttManager : mqttManagers) {
+					if (!mqttManager.isSubscribed()) {
+						throw new IllegalStateException("subscription failed on site " + mqttManager.getSite());
+					}
+				}
+				// Connected: "starting" until the other steps are done.
+				Readiness.setPublishers(mqttManagers);
+				return null;
+			}
+		});
+
+		boolean ok = await("database", database, deadline);
+		ok &= tls == null || await("tls", tls, deadline);
+		ok &= await("mqtt", mqtt, deadline);
+		executor.shutdownNow();
+
+		if (ok && Settings.getBoolean("coap.enabled", false)) {
+			ok = startIngress("CoAP", new CoapServer(startupManager));
+		}
+		if (ok && Settings.getBoolean("mqttsn.enabled", false)) {
+			ok = startIngress("MQTT-SN", new MqttSnGateway(startupManager));
+		}
+		if (!ok) {
+			Readiness.set(Readiness.FAILED);
+			return false;
+		}
+		Readiness.set(Readiness.READY);
+		Log.info("Ready in {} ms, {} ms after JVM start",
+				TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin), ManagementFactory.getRuntimeMXBean().getUptime());
+
+		// Fill the lookup index in the background; the service is already serving.
+		if (Settings.getBoolean("index.warm", true)) {
+			new IndexWarmer(startupManager.getIdStore(), startupManager.getIdIndex(), snapshot).start();
+		}
+		if (startupManager.getLeaseManager() != null) {
+			startupManager.getLeaseManager().start();
+		}
+		new SiteReporter(startupManager.getMqttManagers()).start();
+		return true;
+	}
+
+	private static boolean anySsl() {
+		for (BrokerSite site : BrokerSite.configured()) {
+			if (site.isSsl()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public StartupManager getStartupManager() {
+		return startupManager;
+	}
+
+	/**
+	 * Return the snapshot of the lookup index, null if the index is not persisted.
+	 */
+	public IndexSnapshot getIndexSnapshot() {
+		return snapshot;
+	}
+
+	/**
+	 * index.persist: journal the lookup index from now on, to restore it from the local snapshot and
+	 * journals and read only newer rows. Null if the index is not persisted: a store in memory starts
+	 * empty, there is nothing to restore; short addresses repeat across PANs and are handed out again
+	 * below the highest one, so neither the mappings by id nor the newer rows would be right.
+	 */
+	private IndexSnapshot openSnapshot() {
+		String store = StartupManager.storeIdentity();
+		if (store == null || "shortaddr".equals(Settings.get("id.store", "mysql"))
+				|| !Settings.getBoolean("index.warm", true) || !Settings.getBoolean("index.persist", true)) {
+			return null;
+		}
+		try {
+			IndexSnapshot snapshot = new IndexSnapshot(store);
+			snapshot.open(startupManager.getIdIndex());
+			return snapshot;
+		} catch (IOException e) {
+			Log.error("Index not persisted: {}", e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Return the ingresses started besides Mqtt (CoAP, MQTT-SN).
+	 */
+	public List<Ingress> getIngresses() {
+		return ingresses;
+	}
+
+	private boolean startIngress(String name, Ingress ingress) {
+		try {
+			ingress.start();
+			ingresses.add(ingress);
+			return true;
+		} catch (IOException e) {
+			Log.error("{} ingress could not be started", name, e);
+			return false;
+		}
+	}
+
+	/**
+	 * Run a step in parallel; the future returns its duration in milliseconds.
+	 */
+	private Future<Long> submit(final String name, final Callable<Void> step) {
+		return executor.submit(new Callable<Long>() {
+			public Long call() throws Exception {
+				long start = System.nanoTime();
+				step.call();
+				return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+			}
+		});
+	}
+
+	private boolean await(String name, Future<Long> step, long deadline) {
+		try {
+			long millis = step.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+			Log.info("Startup step {} done in {} ms", name, millis);
+			return true;
+		} catch (TimeoutException e) {
+			Log.error("Startup step {} did not finish within {} ms", name, timeoutMs);
+		} catch (ExecutionException e) {
+			Log.error("Startup step {} failed", name, e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			Log.error("Startup step {} interrupted", name);
+		}
+		step.cancel(true);
+		return false;
+	}
+}
@@ -0,0 +1,81 @@
+package startup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Set;
+
+/**
+ * StateDir is the directory where the service keeps what it needs across restarts: the outbox of
+ * each connection, the dedup checkpoints, the index snapshot and the cached keystores. Unlike the
+ * shared temporary directory it is private to the user running the service, so another local user
+ * can neither plant a file the service would load nor read what it writes.
+ *
+ * A missing directory is created with mode 0700. An existing one is refused if it is a symbolic
+ * link, is owned by another user or is writable by the group or others.
+ *
+ * Settings: startup.stateDir (<user.home>/.startup-service).
+ */
+public final class StateDir {
+
+	private StateDir() {
+	}
+
+	/**
+	 * The state directory, created if needed.
+	 */
+	public static File get() throws IOException {
+		return checked(new File(Settings.get("startup.stateDir",
+				new File(System.getProperty("user.home"), ".startup-service").getPath())));
+	}
+
+	/**
+	 * A file or sub directory name in the state directory.
+	 */
+	public static File file(String name) throws IOException {
+		return new File(get(), name);
+	}
+
+	/**
+	 * Create dir with mode 0700 if it does not exist, then check that it is a private directory of
+	 * the current user. On file systems without POSIX permissions only the type is checked.
+	 */
+	public static File checked(File dir) throws IOException {
+		Path path = dir.toPath();
+		PosixFileAttributeView view = Files.getFileAttributeView(path, PosixFileAttributeView.class, LinkOption.NOFOLLOW_LINKS);
+		if (!Files.exists(path, LinkOption.NOFOLLOW_LINKS)) {
+			try {
+				if (view != null) {
+					Files.createDirectories(path, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+				} else {
+					Files.createDirectories(path);
+				}
+			} catch (FileAlreadyExistsException e) {
+				// Created meanwhile, checked below.
+			}
+		}
+		if (!Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+			throw new IOException(dir + " is not a directory");
+		}
+		if (view == null) {
+			return dir;
+		}
+		PosixFileAttributes attributes = view.readAttributes();
+		String user = System.getProperty("user.name");
+		if (!attributes.owner().getName().equals(user)) {
+			throw new IOException(dir + " is owned by " + attributes.owner().getName() + ", not by " + user);
+		}
+		Set<PosixFilePermission> permissions = attributes.permissions();
+		if (permissions.contains(PosixFilePermission.GROUP_WRITE) || permissions.contains(PosixFilePermission.OTHERS_WRITE)) {
+			throw new IOException(dir + " is writable by other users (" + PosixFilePermissions.toString(permissions) + ")");
+		}
+		return dir;
+	}
+}
@@ -0,0 +1,178 @@
+package startup;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+/**
+ * TimingWheel is a hierarchical timing wheel (4 levels of 64 slots) for a large number of
+ * deadlines counted in ticks, such as the leases of {@link LeaseManager}.
+ * 
+ * Level 0 has one slot per tick, level 1 one slot per 64 ticks and so on, so 2^24 ticks are covered
+ * and an entry moves down at most 3 times before it expires; advancing one tick only touches the
+ * slots that are due, whatever the number of entries. Longer deadlines are parked in the last level
+ * and placed again when they come around.
+ * 
+ * Deadlines are only ever extended ({@link #renew(Entry, long)}) or cancelled, lock-free from any
+ * thread: the entry stays in its slot, and when the slot comes due an entry with a later deadline is
+ * simply placed again. New entries are queued by {@link #schedule(Entry, long)} from any thread and
+ * picked up by the thread that calls {@link #advance(long, Sink)}, the only one touching the slots.
+ */
+public final class TimingWheel<E extends TimingWheel.Entry> {
+
+	/**
+	 * Receives the entries that expire during an {@link TimingWheel#advance(long, Sink)}.
+	 */
+	public interface Sink<E> {
+		public void expired(E entry);
+	}
+
+	/**
+	 * Something with a deadline; it belongs to one wheel and is scheduled at most once.
+	 */
+	public static class Entry {
+		private static final AtomicLongFieldUpdater<Entry> DEADLINE = AtomicLongFieldUpdater.newUpdater(Entry.class, "deadline");
+
+		private volatile long deadline = DEAD;
+		private Entry next;
+
+		/**
+		 * The tick at which the entry expires, or Long.MIN_VALUE once expired or cancelled.
+		 */
+		public final long getDeadline() {
+			return deadline;
+		}
+	}
+
+	private static final long DEAD = Long.MIN_VALUE;
+	private static final int BITS = 6;
+	private static final int SLOTS = 1 << BITS;
+	private static final int MASK = SLOTS - 1;
+	private static final int LEVELS = 4;
+	private static final long SPAN = 1L << (BITS * LEVELS);
+
+	private final Entry[][] slots = new Entry[LEVELS][SLOTS];
+	private final ConcurrentLinkedQueue<Entry> pending = new ConcurrentLinkedQueue<Entry>();
+	private long now;	// Next tick to process
+
+	public TimingWheel(long startTick) {
+		this.now = startTick;
+	}
+
+	/**
+	 * Add an entry that expires at the given tick. Any thread.
+	 */
+	public void schedule(E entry, long deadline) {
+		Entry e = entry;
+		e.deadline = deadline;
+		pending.add(e);
+	}
+
+	/**
+	 * Push the deadline of a scheduled entry to the given tick (an earlier tick is ignored). Any
+	 * thread. Returns false if the entry has expired or was cancelled.
+	 */
+	public boolean renew(E entry, long deadline) {
+		Entry e = entry;
+		while (true) {
+			long current = e.deadline;
+			if (current == DEAD) {
+				return false;
+			}
+			if (deadline <= current || Entry.DEADLINE.compareAndSet(e, current, deadline)) {
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Cancel an entry. Any thread. Returns false if it had expired or was cancelled already.
+	 */
+	public boolean cancel(E entry) {
+		return Entry.DEADLINE.getAndSet(entry, DEAD) != DEAD;
+	}
+
+	/**
+	 * Process all ticks up to and including the given one, passing expired entries to the sink.
+	 * Only one thread may call this.
+	 */
+	@SuppressWarnings("unchecked")
+	public void advance(long tick, Sink<E> sink) {
+		Entry added;
+		while ((added = pending.poll()) != null) {
+			place(added, added.deadline);
+		}
+		while (now <= tick) {
+			if ((now & MASK) == 0) {
+				cascade();
+			}
+			int slot = (int) (now & MASK);
+			Entry e = slots[0][slot];
+			slots[0][slot] = null;
+			while (e != null) {
+				Entry next = e.next;
+				e.next = null;
+				while (true) {
+					long deadline = e.deadline;
+					if (deadline == DEAD) {
+						break;
+					}
+					if (deadline > now) {
+						// Renewed since it was placed.
+						place(e, deadline);
+						break;
+					}
+					if (Entry.DEADLINE.compareAndSet(e, deadline, DEAD)) {
+						sink.expired((E) e);
+						break;
+					}
+				}
+				e = next;
+			}
+			now++;
+		}
+	}
+
+	/**
+	 * At the start of a level 0 round, move the entries of the due level 1 slot (and of higher
+	 * levels at the start of their rounds) down.
+	 */
+	private void cascade() {
+		for (int level = 1; level < LEVELS; level++) {
+			int slot = (int) ((now >>> (BITS * level)) & MASK);
+			Entry e = slots[level][slot];
+			slots[level][slot] = null;
+			while (e != null) {
+				Entry next = e.next;
+				e.next = null;
+				place(e, e.deadline);
+				e = next;
+			}
+			if (slot != 0) {
+				break;
+			}
+		}
+	}
+
+	private void place(Entry e, long deadline) {
+		if (deadline == DEAD) {
+			return;
+		}
+		long delta = deadline - now;
+		int level;
+		int slot;
+		if (delta < SLOTS) {
+			level = 0;
+			slot = (int) ((delta < 0 ? now : deadline) & MASK);
+		} else {
+			if (delta >= SPAN) {
+				// Parked in the last level, placed again when it comes around.
+				delta = SPAN - 1;
+				deadline = now + delta;
+			}
+			level = (63 - Long.numberOfLeadingZeros(delta)) / BITS;
+			slot = (int) ((deadline >>> (BITS * level)) & MASK);
+		}
+		e.next = slots[level][slot];
+		slots[level][slot] = e;
+	}
+}
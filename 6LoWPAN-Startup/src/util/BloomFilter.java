@@ -0,0 +1,142 @@
+package util;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * BloomFilter is a fixed size set of strings that may answer "maybe" for a string never added (at
+ * about the false positive rate it was sized for, as long as it holds at most the expected number
+ * of strings) but never "no" for one that was.
+ *
+ * The k bit positions of a string come from one 64 bit FNV-1a hash of its chars, split in two
+ * halves combined as h1 + i * h2 (Kirsch and Mitzenmacher). Bits are set with compare-and-set, so
+ * add and mightContain may run on several threads at once.
+ */
+public final class BloomFilter {
+
+	// The largest filter the constructor builds, and more hashes than any sizing gives.
+	private static final int MAX_WORDS 	= (Integer.MAX_VALUE - 63) / 64;
+	private static final int MAX_HASHES = 64;
+
+	private final AtomicLongArray words;
+	private final int bits;
+	private final int hashes;
+
+	/**
+	 * A filter for expected strings at false positive rate fpp.
+	 */
+	public BloomFilter(int expected, double fpp) {
+		long m = (long) Math.ceil(-Math.max(1, expected) * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+		m = Math.max(64, Math.min(m, Integer.MAX_VALUE - 63));
+		this.words = new AtomicLongArray((int) ((m + 63) / 64));
+		this.bits = words.length() * 64;
+		this.hashes = Math.max(1, (int) Math.round((double) bits / Math.max(1, expected) * Math.log(2)));
+	}
+
+	private BloomFilter(int wordCount, int hashes) {
+		this.words = new AtomicLongArray(wordCount);
+		this.bits = wordCount * 64;
+		this.hashes = hashes;
+	}
+
+	public void add(String s) {
+		long hash = hash(s);
+		int h1 = (int) hash;
+		int h2 = (int) (hash >>> 32) | 1;
+		for (int i = 0; i < hashes; i++) {
+			int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % bits;
+			int word = bit >>> 6;
+			long mask = 1L << bit;
+			long old;
+			while (((old = words.get(word)) & mask) == 0 && !words.compareAndSet(word, old, old | mask)) {
+				// Another bit of the word was set meanwhile, retry.
+			}
+		}
+	}
+
+	public boolean mightContain(String s) {
+		long hash = hash(s);
+		int h1 = (int) hash;
+		int h2 = (int) (hash >>> 32) | 1;
+		for (int i = 0; i < hashes; i++) {
+			int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % bits;
+			if ((words.get(bit >>> 6) & (1L << bit)) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Remove all strings, keeping the memory.
+	 */
+	public void clear() {
+		for (int i = 0; i < words.length(); i++) {
+			words.set(i, 0);
+		}
+	}
+
+	/**
+	 * True if other has the same size and hash count, i.e. the same strings give the same bits.
+	 */
+	public boolean isCompatible(BloomFilter other) {
+		return bits == other.bits && hashes == other.hashes;
+	}
+
+	/**
+	 * Size of the filter in bytes.
+	 */
+	public int sizeBytes() {
+		return words.length() * 8;
+	}
+
+	public void write(DataOutput out) throws IOException {
+		out.writeInt(words.length());
+		out.writeInt(hashes);
+		for (int i = 0; i < words.length(); i++) {
+			out.writeLong(words.get(i));
+		}
+	}
+
+	/**
+	 * Read a filter written by {@link #write(DataOutput)}.
+	 */
+	public static BloomFilter read(DataInput in) throws IOException {
+		return read(in, MAX_WORDS);
+	}
+
+	/**
+	 * Read a filter written by {@link #write(DataOutput)} of at most maxWords 64 bit words, e.g.
+	 * what is left of the input, so a corrupt size cannot allocate more than the input holds.
+	 */
+	public static BloomFilter read(DataInput in, int maxWords) throws IOException {
+		int wordCount = in.readInt();
+		int hashes = in.readInt();
+		if (wordCount <= 0 || hashes <= 0 || hashes > MAX_HASHES) {
+			throw new IOException("invalid filter");
+		}
+		if (wordCount > Math.min(maxWords, MAX_WORDS)) {
+			throw new IOException("filter of " + wordCount + " words, at most " + Math.min(maxWords, MAX_WORDS) + " expected");
+		}
+		BloomFilter filter = new BloomFilter(wordCount, hashes);
+		for (int i = 0; i < wordCount; i++) {
+			filter.words.set(i, in.readLong());
+		}
+		return filter;
+	}
+
+	private static long hash(String s) {
+		long h = 0xcbf29ce484222325L;
+		for (int i = 0; i < s.length(); i++) {
+			h ^= s.charAt(i);
+			h *= 0x100000001b3L;
+		}
+		// FNV spreads the last chars poorly into the high bits: finish with a mix.
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		return h;
+	}
+}
@@ -0,0 +1,358 @@
+package util;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Calendar;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Log is the asynchronous logging facility of the service.
+ *
+ * Callers only check the level (one volatile read) and copy the format string and its
+ * arguments into a preallocated ring buffer slot. Formatting, timestamps and the actual
+ * write to stdout happen on a single background writer thread. When the ring is full the
+ * event is dropped and counted instead of blocking the caller; the writer reports the
+ * number of dropped events once it catches up.
+ *
+ * Messages are parameterized with "{}" place holders, e.g.
+ * <pre>Log.info("generatedId -> {}", generatedId);</pre>
+ *
+ * The level is read from the "startup.log.level" system property (TRACE, DEBUG, INFO, WARN,
+ * ERROR or OFF, default INFO) and can be changed at runtime with {@link #setLevel(int)}.
+ * The ring size is read from "startup.log.buffer" (default 8192, rounded up to a power of 2).
+ */
+public final class Log {
+
+	public static final int TRACE 	= 0;
+	public static final int DEBUG 	= 1;
+	public static final int INFO 	= 2;
+	public static final int WARN 	= 3;
+	public static final int ERROR 	= 4;
+	public static final int OFF 	= 5;
+
+	private static final String[] LEVEL_NAMES = { "TRACE", "DEBUG", "INFO ", "WARN ", "ERROR" };
+	private static final int MAX_ARGS = 4;
+
+	private static volatile int level = parseLevel(System.getProperty("startup.log.level"), INFO);
+
+	// Ring buffer (bounded MPSC queue, one sequence number per slot).
+	private static final Slot[] slots;
+	private static final AtomicLongArray sequences;
+	private static final int mask;
+	private static final AtomicLong head 	= new AtomicLong();	// Next slot to claim by producers
+	private static long tail 				= 0;				// Next slot to consume, writer thread only
+	private static final AtomicLong dropped = new AtomicLong();
+
+	private static final Writer out = new BufferedWriter(new OutputStreamWriter(System.out), 16 * 1024);
+	private static final Thread writer;
+	private static volatile boolean running = true;
+	// Shutdown hooks that still log; the final flush waits for them.
+	private static final List<Thread> flushAfter = new CopyOnWriteArrayList<Thread>();
+
+	static {
+		int capacity = 1;
+		int requested = Integer.getInteger("startup.log.buffer", 8192);
+		while (capacity < requested) {
+			capacity <<= 1;
+		}
+		slots = new Slot[capacity];
+		sequences = new AtomicLongArray(capacity);
+		for (int i = 0; i < capacity; i++) {
+			slots[i] = new Slot();
+			sequences.set(i, i);
+		}
+		mask = capacity - 1;
+
+		writer = new Thread("startup-log-writer") {
+			public void run() {
+				drainLoop();
+			}
+		};
+		writer.setDaemon(true);
+		writer.start();
+
+		// Make sure the tail of the ring reaches stdout when the JVM stops.
+		Runtime.getRuntime().addShutdownHook(new Thread("startup-log-flush") {
+			public void run() {
+				for (Thread hook : flushAfter) {
+					try {
+						// Hooks are started one after the other; join() returns at once on a hook
+						// that has not been started yet.
+						for (int i = 0; i < 1000 && hook.getState() == Thread.State.NEW; i++) {
+							Thread.sleep(1);
+						}
+						hook.join();
+					} catch (InterruptedException e) {
+						break;
+					}
+				}
+				shutdown();
+			}
+		});
+	}
+
+	private Log() {
+	}
+
+	/**
+	 * Preallocated log event. Only references are stored, the message is built by the writer.
+	 */
+	private static final class Slot {
+		int level;
+		long time;
+		String thread;
+		String format;
+		int argCount;
+		final Object[] args = new Object[MAX_ARGS];
+		Throwable thrown;
+	}
+
+	// Level control.
+	public static int getLevel() {
+		return level;
+	}
+
+	public static void setLevel(int newLevel) {
+		level = newLevel;
+	}
+
+	public static boolean isEnabled(int lvl) {
+		return lvl >= level;
+	}
+
+	public static boolean isDebugEnabled() {
+		return DEBUG >= level;
+	}
+
+	/**
+	 * Parse a level name such as "DEBUG"; returns defaultLevel for null or unknown names.
+	 */
+	public static int parseLevel(String name, int defaultLevel) {
+		if (name == null) {
+			return defaultLevel;
+		}
+		switch (name.trim().toUpperCase()) {
+		case "TRACE": 	return TRACE;
+		case "DEBUG": 	return DEBUG;
+		case "INFO": 	return INFO;
+		case "WARN": 	return WARN;
+		case "ERROR": 	return ERROR;
+		case "OFF": 	return OFF;
+		default: 		return defaultLevel;
+		}
+	}
+
+	/**
+	 * Number of events dropped because the ring was full.
+	 */
+	public static long getDroppedCount() {
+		return dropped.get();
+	}
+
+	// Fixed arity entry points avoid a varargs array per call.
+	public static void trace(String format) 												{ if (TRACE >= level) enqueue(TRACE, format, 0, null, null, null, null, null); }
+	public static void trace(String format, Object a) 									{ if (TRACE >= level) enqueue(TRACE, format, 1, a, null, null, null, null); }
+	public static void trace(String format, Object a, Object b) 							{ if (TRACE >= level) enqueue(TRACE, format, 2, a, b, null, null, null); }
+	public static void trace(String format, Object a, Object b, Object c) 				{ if (TRACE >= level) enqueue(TRACE, format, 3, a, b, c, null, null); }
+	public static void trace(String format, Object a, Object b, Object c, Object d) 		{ if (TRACE >= level) enqueue(TRACE, format, 4, a, b, c, d, null); }
+
+	public static void debug(String format) 												{ if (DEBUG >= level) enqueue(DEBUG, format, 0, null, null, null, null, null); }
+	public static void debug(String format, Object a) 									{ if (DEBUG >= level) enqueue(DEBUG, format, 1, a, null, null, null, null); }
+	public static void debug(String format, Object a, Object b) 							{ if (DEBUG >= level) enqueue(DEBUG, format, 2, a, b, null, null, null); }
+	public static void debug(String format, Object a, Object b, Object c) 				{ if (DEBUG >= level) enqueue(DEBUG, format, 3, a, b, c, null, null); }
+	public static void debug(String format, Object a, Object b, Object c, Object d) 		{ if (DEBUG >= level) enqueue(DEBUG, format, 4, a, b, c, d, null); }
+
+	public static void info(String format) 												{ if (INFO >= level) enqueue(INFO, format, 0, null, null, null, null, null); }
+	public static void info(String format, Object a) 										{ if (INFO >= level) enqueue(INFO, format, 1, a, null, null, null, null); }
+	public static void info(String format, Object a, Object b) 							{ if (INFO >= level) enqueue(INFO, format, 2, a, b, null, null, null); }
+	public static void info(String format, Object a, Object b, Object c) 					{ if (INFO >= level) enqueue(INFO, format, 3, a, b, c, null, null); }
+	public static void info(String format, Object a, Object b, Object c, Object d) 		{ if (INFO >= level) enqueue(INFO, format, 4, a, b, c, d, null); }
+
+	public static void warn(String format) 												{ if (WARN >= level) enqueue(WARN, format, 0, null, null, null, null, null); }
+	public static void warn(String format, Object a) 										{ if (WARN >= level) enqueue(WARN, format, 1, a, null, null, null, null); }
+	public static void warn(String format, Object a, Object b) 							{ if (WARN >= level) enqueue(WARN, format, 2, a, b, null, null, null); }
+	public static void warn(String format, Object a, Object b, Object c) 					{ if (WARN >= level) enqueue(WARN, format, 3, a, b, c, null, null); }
+
+	public static void error(String format) 												{ if (ERROR >= level) enqueue(ERROR, format, 0, null, null, null, null, null); }
+	public static void error(String format, Object a) 									{ if (ERROR >= level) enqueue(ERROR, format, 1, a, null, null, null, null); }
+	public static void error(String format, Object a, Object b) 							{ if (ERROR >= level) enqueue(ERROR, format, 2, a, b, null, null, null); }
+	public static void error(String format, Throwable thrown) 							{ if (ERROR >= level) enqueue(ERROR, format, 0, null, null, null, null, thrown); }
+	public static void error(String format, Object a, Throwable thrown) 					{ if (ERROR >= level) enqueue(ERROR, format, 1, a, null, null, null, thrown); }
+
+	/**
+	 * Claim a slot and publish the event. Never blocks; drops the event when the ring is full.
+	 */
+	private static void enqueue(int lvl, String format, int argCount, Object a, Object b, Object c, Object d, Throwable thrown) {
+		long seq;
+		int index;
+		for (;;) {
+			seq = head.get();
+			index = (int) seq & mask;
+			long slotSeq = sequences.get(index);
+			if (slotSeq == seq) {
+				if (head.compareAndSet(seq, seq + 1)) {
+					break;
+				}
+			} else if (slotSeq < seq) {
+				// The writer has not released this slot yet: the ring is full.
+				dropped.incrementAndGet();
+				return;
+			}
+			// Another producer claimed this sequence in the meantime, retry.
+		}
+
+		Slot slot = slots[index];
+		slot.level = lvl;
+		slot.time = System.currentTimeMillis();
+		slot.thread = Thread.currentThread().getName();
+		slot.format = format;
+		slot.argCount = argCount;
+		slot.args[0] = a;
+		slot.args[1] = b;
+		slot.args[2] = c;
+		slot.args[3] = d;
+		slot.thrown = thrown;
+		sequences.lazySet(index, seq + 1);
+	}
+
+	/**
+	 * Register a shutdown hook whose log lines must still be written: the final flush waits for it.
+	 */
+	public static void flushAfter(Thread hook) {
+		flushAfter.add(hook);
+	}
+
+	/**
+	 * Stop accepting work, drain whatever is left in the ring and flush stdout.
+	 */
+	public static void shutdown() {
+		running = false;
+		LockSupport.unpark(writer);
+		try {
+			writer.join(2000);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static void drainLoop() {
+		StringBuilder sb = new StringBuilder(256);
+		Calendar cal = Calendar.getInstance();
+		int idle = 0;
+
+		while (true) {
+			int written = drain(sb, cal);
+			if (written > 0) {
+				idle = 0;
+				continue;
+			}
+			flush();
+			if (!running) {
+				// One last pass for events that were published while we were flushing.
+				drain(sb, cal);
+				flush();
+				return;
+			}
+			// Back off gradually so an idle service does not burn a core.
+			if (++idle < 100) {
+				Thread.yield();
+			} else {
+				LockSupport.parkNanos(1000000L);
+			}
+		}
+	}
+
+	private static int drain(StringBuilder sb, Calendar cal) {
+		int count = 0;
+		for (;;) {
+			int index = (int) tail & mask;
+			if (sequences.get(index) != tail + 1) {
+				break;
+			}
+			Slot slot = slots[index];
+			sb.setLength(0);
+			format(sb, cal, slot);
+
+			// Release the slot before the (possibly slow) write.
+			slot.thread = null;
+			slot.format = null;
+			slot.args[0] = slot.args[1] = slot.args[2] = slot.args[3] = null;
+			Throwable thrown = slot.thrown;
+			slot.thrown = null;
+			sequences.lazySet(index, tail + slots.length);
+			tail++;
+			count++;
+
+			write(sb);
+			if (thrown != null) {
+				flush();
+				thrown.printStackTrace(System.out);
+			}
+		}
+
+		long lost = dropped.getAndSet(0);
+		if (lost > 0) {
+			sb.setLength(0);
+			sb.append(lost).append(" log events dropped, ring buffer was full\n");
+			write(sb);
+		}
+		return count;
+	}
+
+	private static void format(StringBuilder sb, Calendar cal, Slot slot) {
+		cal.setTimeInMillis(slot.time);
+		sb.append(cal.get(Calendar.YEAR)).append('-');
+		pad(sb, cal.get(Calendar.MONTH) + 1, 2).append('-');
+		pad(sb, cal.get(Calendar.DAY_OF_MONTH), 2).append(' ');
+		pad(sb, cal.get(Calendar.HOUR_OF_DAY), 2).append(':');
+		pad(sb, cal.get(Calendar.MINUTE), 2).append(':');
+		pad(sb, cal.get(Calendar.SECOND), 2).append('.');
+		pad(sb, cal.get(Calendar.MILLISECOND), 3).append(' ');
+		sb.append(LEVEL_NAMES[slot.level]).append(" [").append(slot.thread).append("] ");
+
+		String format = slot.format;
+		int arg = 0;
+		int start = 0;
+		int pos;
+		while (arg < slot.argCount && (pos = format.indexOf("{}", start)) >= 0) {
+			sb.append(format, start, pos).append(slot.args[arg++]);
+			start = pos + 2;
+		}
+		sb.append(format, start, format.length());
+		if (slot.thrown != null) {
+			sb.append(' ').append(slot.thrown);
+		}
+		sb.append('\n');
+	}
+
+	private static StringBuilder pad(StringBuilder sb, int value, int width) {
+		for (int limit = 10, i = 1; i < width; i++, limit *= 10) {
+			if (value < limit) {
+				sb.append('0');
+			}
+		}
+		return sb.append(value);
+	}
+
+	private static void write(StringBuilder sb) {
+		try {
+			out.append(sb);
+		} catch (IOException e) {
+			// stdout is gone, nothing sensible left to do.
+		}
+	}
+
+	private static void flush() {
+		try {
+			out.flush();
+		} catch (IOException e) {
+			// Ignore, see write().
+		}
+	}
+}
@@ -0,0 +1,266 @@
+package util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * RingBuffer hands work from a producer thread to several consumer threads through preallocated,
+ * reusable slots, without locks on the fast path and without allocation.
+ *
+ * As in the ring of {@link Log}, every slot has a sequence number: a slot is free for the producer
+ * when its sequence equals the position being claimed, and ready for the consumers when it is one
+ * more. Positions are claimed with a compare-and-set on the head (producers) and on the tail
+ * (consumers), so several producers are safe too (e.g. the dispatch lanes of the NIO client);
+ * with a single one the compare-and-set never fails.
+ *
+ * Usage, producer: <pre>
+ *   long seq = ring.claim();   Request r = ring.get(seq);   ...fill r...;   ring.publish(seq);
+ * </pre> consumer: <pre>
+ *   long seq = ring.take();    Request r = ring.get(seq);   ...copy r...;   ring.release(seq);
+ * </pre>
+ *
+ * A consumer with nothing to take, or a producer facing a full ring, waits with the {@link Wait}
+ * strategy of the ring: busy spinning (lowest latency, burns a core per waiting thread), yielding,
+ * or parking after a short spin (the default; a parked thread is signalled by the other side).
+ */
+public final class RingBuffer<T> {
+
+	/**
+	 * Creates the slots of the ring.
+	 */
+	public interface Factory<T> {
+		T create();
+	}
+
+	public enum Wait {
+		SPIN, YIELD, PARK;
+
+		/**
+		 * Parse "spin", "yield" or "park" (case insensitive), defaultWait for anything else.
+		 */
+		public static Wait parse(String name, Wait defaultWait) {
+			if (name != null) {
+				for (Wait wait : values()) {
+					if (wait.name().equalsIgnoreCase(name.trim())) {
+						return wait;
+					}
+				}
+			}
+			return defaultWait;
+		}
+	}
+
+	private static final int SPINS = 100;
+	private static final int YIELDS = 100;
+
+	private final Object[] slots;
+	private final AtomicLongArray sequences;
+	private final int mask;
+	private final Wait wait;
+	private final AtomicLong head = new AtomicLong();	// Next position to claim by a producer
+	private final AtomicLong tail = new AtomicLong();	// Next position to take by a consumer
+	private volatile boolean closed = false;
+
+	// PARK only: threads about to wait on the conditions.
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition notEmpty = lock.newCondition();
+	private final Condition notFull = lock.newCondition();
+	private final AtomicInteger consumersWaiting = new AtomicInteger();
+	private final AtomicInteger producersWaiting = new AtomicInteger();
+
+	/**
+	 * Create a ring of capacity slots (rounded up to a power of 2) made by factory.
+	 */
+	public RingBuffer(int capacity, Factory<T> factory, Wait wait) {
+		int size = 1;
+		while (size < capacity) {
+			size <<= 1;
+		}
+		slots = new Object[size];
+		sequences = new AtomicLongArray(size);
+		for (int i = 0; i < size; i++) {
+			slots[i] = factory.create();
+			sequences.set(i, i);
+		}
+		mask = size - 1;
+		this.wait = wait;
+	}
+
+	public int capacity() {
+		return slots.length;
+	}
+
+	/**
+	 * Number of slots published and not taken yet (approximate while threads are at work).
+	 */
+	public int size() {
+		return (int) Math.max(0, head.get() - tail.get());
+	}
+
+	public Wait getWait() {
+		return wait;
+	}
+
+	/**
+	 * The slot of a claimed or taken position.
+	 */
+	@SuppressWarnings("unchecked")
+	public T get(long seq) {
+		return (T) slots[(int) seq & mask];
+	}
+
+	/**
+	 * Claim the next slot for writing, waiting while the ring is full. Returns -1 once the ring is
+	 * closed.
+	 */
+	public long claim() throws InterruptedException {
+		for (int idle = 0; ; idle++) {
+			long seq = head.get();
+			long slotSeq = sequences.get((int) seq & mask);
+			if (slotSeq == seq) {
+				if (head.compareAndSet(seq, seq + 1)) {
+					return seq;
+				}
+				idle = 0;
+			} else if (slotSeq < seq) {
+				// Full: the consumers have not released this slot yet.
+				if (closed) {
+					return -1;
+				}
+				idle(idle, producersWaiting, notFull, seq, true);
+			}
+			// Another producer claimed this position in the meantime, retry.
+			if (closed) {
+				return -1;
+			}
+		}
+	}
+
+	/**
+	 * Claim the next slot for writing if one is free, without waiting. Returns -1 if the ring is
+	 * full or closed; for producers that must never block, e.g. a thread the consumers depend on.
+	 */
+	public long tryClaim() {
+		while (!closed) {
+			long seq = head.get();
+			long slotSeq = sequences.get((int) seq & mask);
+			if (slotSeq == seq) {
+				if (head.compareAndSet(seq, seq + 1)) {
+					return seq;
+				}
+			} else if (slotSeq < seq) {
+				return -1;
+			}
+			// Another producer claimed this position in the meantime, retry.
+		}
+		return -1;
+	}
+
+	/**
+	 * Make a claimed slot available to the consumers.
+	 */
+	public void publish(long seq) {
+		sequences.set((int) seq & mask, seq + 1);
+		if (consumersWaiting.get() > 0) {
+			signal(notEmpty);
+		}
+	}
+
+	/**
+	 * Take the next published slot, waiting while the ring is empty. Returns -1 once the ring is
+	 * closed and empty.
+	 */
+	public long take() throws InterruptedException {
+		for (int idle = 0; ; idle++) {
+			long seq = tail.get();
+			long slotSeq = sequences.get((int) seq & mask);
+			if (slotSeq == seq + 1) {
+				if (tail.compareAndSet(seq, seq + 1)) {
+					return seq;
+				}
+				idle = 0;
+			} else if (slotSeq < seq + 1) {
+				// Empty: nothing published at this position yet.
+				if (closed) {
+					return -1;
+				}
+				idle(idle, consumersWaiting, notEmpty, seq, false);
+			}
+		}
+	}
+
+	/**
+	 * Give a taken slot back to the producers.
+	 */
+	public void release(long seq) {
+		sequences.set((int) seq & mask, seq + slots.length);
+		if (producersWaiting.get() > 0) {
+			signal(notFull);
+		}
+	}
+
+	/**
+	 * Wake all waiting threads; claim and take return -1 from now on (take once the published slots
+	 * are taken).
+	 */
+	public void close() {
+		closed = true;
+		lock.lock();
+		try {
+			notEmpty.signalAll();
+			notFull.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public boolean isClosed() {
+		return closed;
+	}
+
+	/**
+	 * Wait for the slot of position seq to become free (producer) or ready (consumer), after idle
+	 * fruitless attempts.
+	 */
+	private void idle(int idle, AtomicInteger waiting, Condition condition, long seq, boolean producer) throws InterruptedException {
+		if (wait == Wait.SPIN || (wait == Wait.PARK && idle < SPINS)) {
+			if (Thread.interrupted()) {
+				throw new InterruptedException();
+			}
+			return;
+		}
+		if (wait == Wait.YIELD || idle < SPINS + YIELDS) {
+			Thread.yield();
+			if (Thread.interrupted()) {
+				throw new InterruptedException();
+			}
+			return;
+		}
+		// Announce the wait before checking again, the other side signals after its update.
+		waiting.incrementAndGet();
+		lock.lock();
+		try {
+			while (!closed && sequences.get((int) seq & mask) < (producer ? seq : seq + 1)) {
+				// One signal per update wakes one waiter; the timeout only bounds the wait of the
+				// others if that one was waiting for an older position.
+				condition.await(1, TimeUnit.MILLISECONDS);
+			}
+		} finally {
+			lock.unlock();
+			waiting.decrementAndGet();
+		}
+	}
+
+	private void signal(Condition condition) {
+		lock.lock();
+		try {
+			condition.signal();
+		} finally {
+			lock.unlock();
+		}
+	}
+}
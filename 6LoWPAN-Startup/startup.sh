@@ -0,0 +1,68 @@
+#!/bin/sh
+#
+# Build and run the startup service.
+#
+#   startup.sh build              compile src into build/startup.jar
+#   startup.sh cds                build, then record the class-data-sharing archive build/startup.jsa
+#   startup.sh run [-Dkey=value]  run the service (with the archive when it exists)
+#   startup.sh coldstart [n]      start the service n times (default 10) and report the time to ready
+#
+# The archive holds the parsed classes of a complete start (broker connection, TLS, logging), so a
+# failover replica skips most class loading. It is recorded against an embedded broker and the
+# memory store, and has to be recorded again whenever the jar or the JDK changes.
+#
+# Settings are read from startup.properties (see startup.Settings) or given as -D options.
+
+cd "$(dirname "$0")" || exit 1
+
+JAR=build/startup.jar
+JSA=build/startup.jsa
+CP="$JAR:lib/*"
+
+build() {
+	rm -rf build/classes && mkdir -p build/classes || exit 1
+	javac -nowarn -proc:none -d build/classes -cp "lib/*" $(find src -name '*.java') || exit 1
+	jar cf "$JAR" -C build/classes . || exit 1
+}
+
+share() {
+	if [ -f "$JSA" ]; then
+		echo "-XX:SharedArchiveFile=$JSA -Xshare:auto"
+	fi
+}
+
+# A start that exits as soon as the service is ready, on a port of its own.
+trial() {
+	java $1 ${JAVA_OPTS} -Dbroker.embedded=true -Did.store=memory -Dmqtt.port=$2 \
+		-Dstartup.exitWhenReady=true -cp "$CP" startup.Starter
+}
+
+case "$1" in
+build)
+	build
+	;;
+cds)
+	build
+	rm -f "$JSA"
+	trial "-XX:ArchiveClassesAtExit=$JSA" 18830 > /dev/null || exit 1
+	ls -l "$JSA"
+	;;
+run)
+	shift
+	[ -f "$JAR" ] || build
+	exec java $(share) ${JAVA_OPTS} "$@" -cp "$CP" startup.Starter
+	;;
+coldstart)
+	[ -f "$JAR" ] || build
+	n=${2:-10}
+	i=0
+	while [ $i -lt $n ]; do
+		trial "$(share)" $((18840 + i)) | grep -o 'Ready in .*'
+		i=$((i + 1))
+	done
+	;;
+*)
+	echo "usage: $0 build | cds | run [options] | coldstart [n]"
+	exit 1
+	;;
+esac